@@ -17,21 +17,30 @@
 
 package org.bitcoinj.core;
 
-import static org.bitcoinj.core.Utils.reverseBytes;
+import static org.libdohj.core.Utils.byteArrayToByteBuffer;
+import static org.libdohj.core.Utils.hashToByteBufferLE;
 import static org.libdohj.core.Utils.scryptDigest;
+import static org.libdohj.core.Utils.uint32ToByteBufferLE;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
 
 import javax.annotation.Nullable;
 
 import org.libdohj.core.AltcoinNetworkParameters;
+import org.libdohj.core.AltcoinSerializer;
 import org.libdohj.core.AuxPoWNetworkParameters;
+import org.libdohj.core.BufferPool;
+import org.libdohj.core.EquihashNetworkParameters;
+import org.libdohj.core.MwebNetworkParameters;
+import org.libdohj.core.PayloadScanner;
 import org.libdohj.params.AbstractLitecoinParams;
 
 /**
@@ -47,6 +56,27 @@ import org.libdohj.params.AbstractLitecoinParams;
 public class AltcoinBlock extends org.bitcoinj.core.Block {
     private static final int BYTE_BITS = 8;
 
+    /** Version bits which select the mining algorithm on multi-algorithm chains such as DigiByte. */
+    public static final long VERSION_ALGO_MASK = 0x0f00L;
+    public static final int ALGO_UNKNOWN = -1;
+    public static final int ALGO_SHA256D = 0;
+    public static final int ALGO_SCRYPT = 1;
+    public static final int ALGO_GROESTL = 2;
+    public static final int ALGO_SKEIN = 3;
+    public static final int ALGO_QUBIT = 4;
+    public static final int ALGO_ODO = 7;
+
+    /** Size of a Zcash style header, up to but not including the Equihash solution. */
+    public static final int EQUIHASH_HEADER_SIZE = 140;
+
+    /** Per-thread scratch space for serializing headers to be hashed. */
+    private static final ThreadLocal<byte[]> HEADER_SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[HEADER_SIZE];
+        }
+    };
+
     private boolean auxpowParsed = false;
     private boolean auxpowBytesValid = false;
 
@@ -61,6 +91,32 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
 
     private Sha256Hash scryptHash;
 
+    // Zcash style header fields, on Equihash chains. Block holds the low 32
+    // bits of the nonce.
+    @Nullable private Sha256Hash finalSaplingRoot;
+    @Nullable private byte[] equihashNonce;
+    /** Equihash solution, left out of verified header copies unless the network retains them. */
+    @Nullable private byte[] equihashSolution;
+    private boolean equihashVerified;
+    @Nullable private Sha256Hash equihashHash;
+    // Header fields the hash and verification were computed from; either is
+    // dropped as soon as these no longer match the header.
+    private long hashedTime;
+    private long hashedDifficultyTarget;
+    private long hashedNonce;
+    @Nullable private Sha256Hash hashedPrevBlockHash;
+    @Nullable private Sha256Hash hashedMerkleRoot;
+
+    // Litecoin extension block (MWEB), which follows the transactions. Only
+    // its position is recorded, unless the network retains a copy of it.
+    private int mwebOffset;
+    private int mwebLength;
+    @Nullable private byte[] mwebData;
+
+    // Witnesses skipped when parsing, by transaction index, copied out of the
+    // payload and read when asked for. Null means none are outstanding.
+    @Nullable private byte[][] witnessData;
+
     /** Special case constructor, used for the genesis node, cloneAsHeader and unit tests.
      * @param params NetworkParameters object.
      */
@@ -112,17 +168,278 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
     }
 
     private Sha256Hash calculateScryptHash() {
+        // Only the Bitcoin-style header is hashed; any AuxPoW header is proven
+        // through the parent block instead.
+        final byte[] header = HEADER_SCRATCH.get();
+        writeBitcoinHeaderTo(ByteBuffer.wrap(header));
         try {
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
-            writeHeader(bos);
-            return Sha256Hash.wrap(reverseBytes(scryptDigest(bos.toByteArray())));
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Cannot happen.
+            return Sha256Hash.wrapReversed(scryptDigest(header));
         } catch (GeneralSecurityException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
     }
 
+    /**
+     * Get the serialized size of the block header, including any AuxPoW header
+     * but not the transaction count.
+     */
+    public int getHeaderSize() {
+        if (null != equihashNonce) {
+            checkEquihashSolutionHeld();
+            return EQUIHASH_HEADER_SIZE + VarInt.sizeOf(equihashSolution.length) + equihashSolution.length;
+        }
+        return HEADER_SIZE + (null == auxpow ? 0 : auxpow.getSerializedSize());
+    }
+
+    /**
+     * Serialize the block header, including any AuxPoW header, into the given
+     * buffer. Fields are written in place, so unlike {@link #bitcoinSerialize()}
+     * no intermediate arrays are created. The buffer must have at least
+     * {@link #getHeaderSize()} bytes remaining.
+     */
+    public void serializeHeaderTo(final ByteBuffer buffer) {
+        if (null != equihashNonce) {
+            checkEquihashSolutionHeld();
+            writeEquihashInputTo(buffer);
+            byteArrayToByteBuffer(equihashSolution, buffer);
+            return;
+        }
+        writeBitcoinHeaderTo(buffer);
+        if (null != this.auxpow) {
+            this.auxpow.serializeTo(buffer);
+        }
+    }
+
+    /**
+     * Serialize the block header, including any AuxPoW header, into a buffer
+     * taken from the given pool. The buffer is returned flipped, ready to be
+     * read or written to a channel, and should be released back to the pool
+     * once done with.
+     */
+    public ByteBuffer serializeHeader(final BufferPool pool) {
+        final ByteBuffer buffer = pool.acquire(getHeaderSize());
+        serializeHeaderTo(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Write the 80 byte Bitcoin-style header, without any AuxPoW header.
+     */
+    private void writeBitcoinHeaderTo(final ByteBuffer buffer) {
+        if (isHeaderBytesValid() && payload != null && payload.length >= offset + HEADER_SIZE) {
+            buffer.put(payload, offset, HEADER_SIZE);
+            return;
+        }
+        uint32ToByteBufferLE(getRawVersion(), buffer);
+        hashToByteBufferLE(getPrevBlockHash(), buffer);
+        hashToByteBufferLE(getMerkleRoot(), buffer);
+        uint32ToByteBufferLE(getTimeSeconds(), buffer);
+        uint32ToByteBufferLE(getDifficultyTarget(), buffer);
+        uint32ToByteBufferLE(getNonce(), buffer);
+    }
+
+    /**
+     * Write a Zcash style header without its Equihash solution; the input
+     * the solution is checked against.
+     */
+    private void writeEquihashInputTo(final ByteBuffer buffer) {
+        uint32ToByteBufferLE(getRawVersion(), buffer);
+        hashToByteBufferLE(getPrevBlockHash(), buffer);
+        hashToByteBufferLE(getMerkleRoot(), buffer);
+        hashToByteBufferLE(finalSaplingRoot, buffer);
+        uint32ToByteBufferLE(getTimeSeconds(), buffer);
+        uint32ToByteBufferLE(getDifficultyTarget(), buffer);
+        buffer.put(equihashNonce);
+    }
+
+    private void checkEquihashSolutionHeld() {
+        if (null == equihashSolution) {
+            throw new IllegalStateException("Equihash solution was released once verified");
+        }
+    }
+
+    /**
+     * Record the header fields the Equihash hash is computed from.
+     */
+    private void recordEquihashFields() {
+        hashedTime = getTimeSeconds();
+        hashedDifficultyTarget = getDifficultyTarget();
+        hashedNonce = getNonce();
+        hashedPrevBlockHash = getPrevBlockHash();
+        hashedMerkleRoot = getMerkleRoot();
+    }
+
+    /**
+     * Drop the Equihash hash and verification if the header has changed since
+     * they were computed.
+     */
+    private void checkEquihashFieldsCurrent() {
+        if (null != equihashHash
+                && (hashedTime != getTimeSeconds()
+                    || hashedDifficultyTarget != getDifficultyTarget()
+                    || hashedNonce != getNonce()
+                    || !getPrevBlockHash().equals(hashedPrevBlockHash)
+                    || !getMerkleRoot().equals(hashedMerkleRoot))) {
+            equihashHash = null;
+            equihashVerified = false;
+        }
+    }
+
+    /**
+     * Whether this is a Zcash style header, with an Equihash solution.
+     */
+    public boolean isEquihashHeader() {
+        return null != equihashNonce;
+    }
+
+    /**
+     * Get the final Sapling root of a Zcash style header, or null otherwise.
+     */
+    @Nullable
+    public Sha256Hash getFinalSaplingRoot() {
+        return finalSaplingRoot;
+    }
+
+    /**
+     * Get the 256 bit nonce of a Zcash style header, or null otherwise.
+     * {@link #getNonce()} returns its low 32 bits.
+     */
+    @Nullable
+    public byte[] getEquihashNonce() {
+        return null == equihashNonce ? null : equihashNonce.clone();
+    }
+
+    /**
+     * Get the Equihash solution of a Zcash style header, or null if there
+     * is none, or it was released once verified.
+     */
+    @Nullable
+    public byte[] getEquihashSolution() {
+        return null == equihashSolution ? null : equihashSolution.clone();
+    }
+
+    /**
+     * Returns the hash of the block; for Zcash style headers, of the whole
+     * header including the Equihash solution.
+     */
+    @Override
+    public Sha256Hash getHash() {
+        if (null != equihashNonce) {
+            checkEquihashFieldsCurrent();
+            if (null == equihashHash) {
+                final byte[] header = new byte[getHeaderSize()];
+                serializeHeaderTo(ByteBuffer.wrap(header));
+                equihashHash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(header));
+                recordEquihashFields();
+            }
+            return equihashHash;
+        }
+        return super.getHash();
+    }
+
+    /**
+     * Sets the nonce; on Zcash style headers, the low 32 bits of the 256 bit
+     * nonce.
+     */
+    @Override
+    public void setNonce(long nonce) {
+        super.setNonce(nonce);
+        if (null != equihashNonce) {
+            // Header copies share the array
+            equihashNonce = equihashNonce.clone();
+            Utils.uint32ToByteArrayLE(nonce, equihashNonce, 0);
+        }
+    }
+
+    /**
+     * Whether the block was followed by a MimbleWimble extension block.
+     */
+    public boolean hasMwebBlock() {
+        return mwebLength > 0;
+    }
+
+    /**
+     * Get the offset of the extension block in the payload the block was
+     * parsed from, or 0 if there is none.
+     */
+    public int getMwebOffset() {
+        return mwebOffset;
+    }
+
+    /**
+     * Get the length of the extension block, in bytes, or 0 if there is none.
+     */
+    public int getMwebLength() {
+        return mwebLength;
+    }
+
+    /**
+     * Get the serialized extension block, as a read only view of the copy
+     * taken when the block was parsed. The payload itself is not held, as
+     * the decoder may reuse it for later messages.
+     *
+     * @return the extension block, or null if there is none, or the network
+     * does not retain it.
+     */
+    @Nullable
+    public ByteBuffer getMwebData() {
+        if (null == mwebData) {
+            return null;
+        }
+        return ByteBuffer.wrap(mwebData).asReadOnlyBuffer();
+    }
+
+    /**
+     * Whether the witnesses of a transaction were skipped when parsing, and
+     * have not yet been read with {@link #materializeWitnesses(int)}.
+     */
+    public boolean isWitnessDeferred(final int txIndex) {
+        return null != witnessData && null != witnessData[txIndex];
+    }
+
+    /**
+     * Read the skipped witnesses of a transaction from the bytes copied when
+     * the block was parsed, and set them on its inputs. Does nothing to
+     * transactions whose witnesses were parsed along with them.
+     *
+     * @return the transaction.
+     */
+    public Transaction materializeWitnesses(final int txIndex) throws ProtocolException {
+        final Transaction tx = getTransactions().get(txIndex);
+        if (!isWitnessDeferred(txIndex)) {
+            return tx;
+        }
+        final byte[] witnessPayload = witnessData[txIndex];
+        final int end = witnessPayload.length;
+        int witnessCursor = 0;
+        for (TransactionInput input : tx.getInputs()) {
+            final int countSize = PayloadScanner.varIntSize(witnessPayload, witnessCursor, end);
+            if (countSize == PayloadScanner.INCOMPLETE || witnessCursor + countSize > end) {
+                throw new ProtocolException("Witness of transaction " + txIndex + " is truncated");
+            }
+            final int pushCount = (int) PayloadScanner.readVarInt(witnessPayload, witnessCursor);
+            witnessCursor += countSize;
+            final TransactionWitness witness = new TransactionWitness(pushCount);
+            for (int pushIdx = 0; pushIdx < pushCount; pushIdx++) {
+                final int pushLength = PayloadScanner.byteArrayLength(witnessPayload, witnessCursor, end);
+                if (pushLength == PayloadScanner.INCOMPLETE) {
+                    throw new ProtocolException("Witness of transaction " + txIndex + " is truncated");
+                }
+                final int prefix = PayloadScanner.varIntSize(witnessPayload, witnessCursor, end);
+                final byte[] push = new byte[pushLength - prefix];
+                System.arraycopy(witnessPayload, witnessCursor + prefix, push, 0, push.length);
+                witness.setPush(pushIdx, push);
+                witnessCursor += pushLength;
+            }
+            input.setWitness(witness);
+        }
+        witnessData[txIndex] = null;
+        // Bytes the transaction was parsed from do not include the witnesses
+        tx.unCache();
+        return tx;
+    }
+
     public AuxPoW getAuxPoW() {
         return this.auxpow;
     }
@@ -141,6 +458,22 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
         return scryptHash;
     }
 
+    /**
+     * Get the scrypt hash if it has already been calculated, or null.
+     */
+    @Nullable
+    Sha256Hash getCachedScryptHash() {
+        return scryptHash;
+    }
+
+    /**
+     * Set the scrypt hash, where it is already known for the same header
+     * bytes.
+     */
+    void setCachedScryptHash(final Sha256Hash scryptHash) {
+        this.scryptHash = scryptHash;
+    }
+
     /**
      * Returns the Scrypt hash of the block.
      */
@@ -186,6 +519,40 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
         return bitset;
     }
 
+    /**
+     * Get the mining algorithm selected by the version bits of a block on a
+     * multi-algorithm chain. Blocks from before multiple algorithms were
+     * introduced have none of the algorithm bits set, and so are scrypt.
+     *
+     * @return one of the ALGO_ constants, or {@link #ALGO_UNKNOWN}.
+     */
+    public static int getAlgorithm(final long rawVersion) {
+        switch ((int) ((rawVersion & VERSION_ALGO_MASK) >> 8)) {
+            case 0:
+                return ALGO_SCRYPT;
+            case 2:
+                return ALGO_SHA256D;
+            case 4:
+                return ALGO_GROESTL;
+            case 6:
+                return ALGO_SKEIN;
+            case 8:
+                return ALGO_QUBIT;
+            case 14:
+                return ALGO_ODO;
+            default:
+                return ALGO_UNKNOWN;
+        }
+    }
+
+    /**
+     * Get the mining algorithm selected by this block's version, on a
+     * multi-algorithm chain.
+     */
+    public int getAlgorithm() {
+        return getAlgorithm(this.getRawVersion());
+    }
+
     /**
      * Return block version without applying any filtering (i.e. for AuxPoW blocks
      * which structure version differently to pack in additional data).
@@ -216,6 +583,54 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
         }
     }
 
+    @Override
+    protected void parse() throws ProtocolException {
+        if (params instanceof EquihashNetworkParameters) {
+            parseEquihashHeader();
+        } else {
+            super.parse();
+        }
+    }
+
+    /**
+     * Parse a Zcash style header. Block parses the Bitcoin header fields from
+     * an 80 byte header holding the low 32 bits of the nonce, and the rest
+     * are held here. Transactions, which are in the Zcash format, are not
+     * parsed.
+     */
+    private void parseEquihashHeader() throws ProtocolException {
+        final int headerStart = offset;
+        if (payload.length < headerStart + EQUIHASH_HEADER_SIZE) {
+            throw new ProtocolException("Equihash block header is truncated");
+        }
+        final byte[] bitcoinHeader = new byte[HEADER_SIZE];
+        System.arraycopy(payload, headerStart, bitcoinHeader, 0, 68);
+        System.arraycopy(payload, headerStart + 100, bitcoinHeader, 68, 12);
+        cursor = headerStart + 68;
+        finalSaplingRoot = readHash();
+        cursor += 8;
+        equihashNonce = readBytes(32);
+        equihashSolution = readByteArray();
+        final int headerEnd = cursor;
+        final Sha256Hash hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload, headerStart, headerEnd - headerStart));
+
+        final byte[] originalPayload = payload;
+        payload = bitcoinHeader;
+        offset = 0;
+        try {
+            super.parse();
+        } finally {
+            payload = originalPayload;
+            offset = headerStart;
+        }
+        equihashHash = hash;
+        recordEquihashFields();
+        cursor = headerEnd;
+        length = headerEnd - headerStart;
+        // Retained bytes are not in the Bitcoin layout, so are never copied as they are
+        headerBytesValid = false;
+    }
+
     protected void parseAuxPoW() throws ProtocolException {
         if (this.auxpowParsed)
             return;
@@ -240,32 +655,174 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
         if (null != this.auxpow) {
             super.parseTransactions(offset + auxpow.getMessageSize());
             optimalEncodingMessageSize += auxpow.getMessageSize();
+        } else if (params instanceof MwebNetworkParameters) {
+            parseMwebTransactions(offset);
         } else {
             super.parseTransactions(offset);
         }
     }
 
+    /**
+     * Parse transactions as Block does, then skip any extension block which
+     * follows them. Integrating (HogEx) transactions carry the MWEB flag,
+     * which Transaction cannot parse, so are parsed from a copy without it,
+     * as are witness transactions when the serializer defers witnesses;
+     * every other transaction is parsed in place, exactly as Block would.
+     * The extension block is only measured, and copied if the network
+     * retains it.
+     */
+    private void parseMwebTransactions(final int offset) throws ProtocolException {
+        // Pooled payloads run past the end of the message
+        final int end = UNKNOWN_LENGTH == length ? payload.length : this.offset + length;
+        cursor = offset;
+        optimalEncodingMessageSize = HEADER_SIZE;
+        if (end == cursor) {
+            // Header only
+            transactionBytesValid = false;
+            return;
+        }
+        final boolean deferWitnesses = serializer instanceof AltcoinSerializer
+            && ((AltcoinSerializer) serializer).isWitnessDeferred();
+        final int numTransactions = (int) readVarInt();
+        optimalEncodingMessageSize += VarInt.sizeOf(numTransactions);
+        transactions = new ArrayList<Transaction>(Math.min(numTransactions, 20));
+        boolean hogEx = false;
+        for (int txIdx = 0; txIdx < numTransactions; txIdx++) {
+            hogEx = PayloadScanner.hasMwebFlag(payload, cursor, end);
+            final boolean witness = PayloadScanner.hasWitnessFlag(payload, cursor, end)
+                && (payload[cursor + 5] & PayloadScanner.WITNESS_FLAG) != 0;
+            final Transaction tx;
+            final int txLength;
+            if (hogEx || (deferWitnesses && witness)) {
+                // Measured here rather than with transactionLength(), so the
+                // inputs and outputs are only scanned once
+                final int witnessStart = PayloadScanner.witnessOffset(payload, cursor, end);
+                final int witnessEnd = witnessStart == PayloadScanner.INCOMPLETE ? PayloadScanner.INCOMPLETE
+                    : PayloadScanner.witnessEnd(payload, cursor, witnessStart, end);
+                final int lockTimeOffset = witnessEnd + (hogEx ? 1 : 0);
+                if (witnessEnd == PayloadScanner.INCOMPLETE || lockTimeOffset + 4 > end
+                        || (hogEx && payload[witnessEnd] != 0)) {
+                    throw new ProtocolException("Transaction " + txIdx + " is truncated or carries an MWEB transaction");
+                }
+                txLength = lockTimeOffset + 4 - cursor;
+                if (deferWitnesses && witness) {
+                    deferWitness(txIdx, numTransactions, witnessStart, witnessEnd);
+                }
+                tx = new Transaction(params, stripFlags(payload, cursor, txLength, witness ? witnessStart : -1,
+                    witnessEnd, !deferWitnesses), 0, this, serializer, UNKNOWN_LENGTH, null);
+            } else {
+                tx = new Transaction(params, payload, cursor, this, serializer, UNKNOWN_LENGTH, null);
+                txLength = tx.getMessageSize();
+            }
+            // Label the transaction as coming from the P2P network, so code that cares where we first saw it knows.
+            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            transactions.add(tx);
+            cursor += txLength;
+            optimalEncodingMessageSize += tx.getOptimalEncodingMessageSize();
+        }
+        if (hogEx && numTransactions >= 2) {
+            // Optional extension block, which runs to the end of the block
+            final boolean present = readBytes(1)[0] != 0;
+            if (present) {
+                mwebOffset = cursor;
+                mwebLength = end - cursor;
+                cursor = end;
+                if (((MwebNetworkParameters) params).isMwebDataRetained()) {
+                    mwebData = Arrays.copyOfRange(payload, mwebOffset, end);
+                }
+            }
+            optimalEncodingMessageSize += 1 + mwebLength;
+        }
+        transactionBytesValid = serializer.isParseRetainMode();
+    }
+
+    /**
+     * Copy the witnesses of a transaction out of the payload, which the
+     * decoder may reuse for later messages once the block is built.
+     */
+    private void deferWitness(final int txIdx, final int numTransactions, final int witnessStart,
+            final int witnessEnd) {
+        if (null == witnessData) {
+            witnessData = new byte[numTransactions][];
+        }
+        witnessData[txIdx] = Arrays.copyOfRange(payload, witnessStart, witnessEnd);
+    }
+
+    /**
+     * Copy a transaction in the extended serialization into one Transaction
+     * understands, without the MWEB flag or the empty MWEB transaction which
+     * follows the witness data, and optionally without the witnesses. Without
+     * witnesses, this is the serialization its ID is calculated over.
+     *
+     * @param witnessStart offset of the witnesses, or -1 if there are none.
+     * @param witnessEnd offset just past the witnesses, or where they would be.
+     */
+    private static byte[] stripFlags(final byte[] buf, final int offset, final int length,
+            final int witnessStart, final int witnessEnd, final boolean keepWitness) {
+        final boolean witness = keepWitness && witnessStart >= 0;
+        final int bodyEnd = witnessStart >= 0 ? witnessStart : witnessEnd;
+        final int bodyLength = bodyEnd - (offset + 6); // After version, marker and flags
+        final int witnessLength = witness ? witnessEnd - witnessStart : 0;
+        final ByteBuffer stripped = ByteBuffer.allocate(4 + (witness ? 2 : 0) + bodyLength + witnessLength + 4);
+        stripped.put(buf, offset, 4);
+        if (witness) {
+            stripped.put((byte) 0).put((byte) PayloadScanner.WITNESS_FLAG);
+        }
+        stripped.put(buf, offset + 6, bodyLength);
+        if (witness) {
+            stripped.put(buf, witnessStart, witnessLength);
+        }
+        stripped.put(buf, offset + length - 4, 4);
+        return stripped.array();
+    }
+
     @Override
     void writeHeader(OutputStream stream) throws IOException {
-        super.writeHeader(stream);
-        if (null != this.auxpow) {
-            this.auxpow.bitcoinSerialize(stream);
+        if (isHeaderBytesValid() && payload != null) {
+            // Retained bytes can be copied across as they are
+            super.writeHeader(stream);
+            if (null != this.auxpow) {
+                this.auxpow.bitcoinSerialize(stream);
+            }
+            return;
+        }
+        final BufferPool pool = BufferPool.getSharedHeapPool();
+        final ByteBuffer buffer = serializeHeader(pool);
+        try {
+            stream.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
+        } finally {
+            pool.release(buffer);
         }
     }
 
-    /** Returns a copy of the block, but without any transactions. */
+    /**
+     * Returns a copy of the block, but without any transactions. Copies of
+     * verified Zcash style headers leave out the Equihash solution unless the
+     * network retains them, as stores only need the hash from then on.
+     */
     @Override
     public Block cloneAsHeader() {
         AltcoinBlock block = new AltcoinBlock(params, getRawVersion());
         super.copyBitcoinHeaderTo(block);
         block.auxpow = auxpow;
+        block.finalSaplingRoot = finalSaplingRoot;
+        block.equihashNonce = equihashNonce;
+        if (null != equihashNonce) {
+            block.equihashHash = getHash();
+            block.equihashVerified = equihashVerified;
+            block.recordEquihashFields();
+            final boolean released = equihashVerified && params instanceof EquihashNetworkParameters
+                && !((EquihashNetworkParameters) params).isEquihashSolutionRetained();
+            block.equihashSolution = released ? null : equihashSolution;
+        }
         return block;
     }
 
     /** Returns true if the hash of the block is OK (lower than difficulty target). */
     protected boolean checkProofOfWork(boolean throwException) throws VerificationException {
         if (params instanceof AltcoinNetworkParameters) {
-            BigInteger target = getDifficultyTargetAsInteger();
+            BigInteger target = ((AltcoinNetworkParameters) params).getCompactTargetCache()
+                .getTarget(getDifficultyTarget());
 
             if (params instanceof AuxPoWNetworkParameters) {
                 final AuxPoWNetworkParameters auxParams = (AuxPoWNetworkParameters)this.params;
@@ -274,6 +831,11 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
                 }
             }
 
+            if (null != equihashNonce && params instanceof EquihashNetworkParameters
+                    && !checkEquihashSolution(throwException)) {
+                return false;
+            }
+
             final AltcoinNetworkParameters altParams = (AltcoinNetworkParameters)this.params;
             BigInteger h = altParams.getBlockDifficultyHash(this).toBigInteger();
             if (h.compareTo(target) > 0) {
@@ -290,6 +852,46 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
         }
     }
 
+    /**
+     * Check the Equihash solution of a Zcash style header. The result is kept
+     * until the header changes.
+     */
+    private boolean checkEquihashSolution(final boolean throwException) throws VerificationException {
+        checkEquihashFieldsCurrent();
+        if (equihashVerified) {
+            return true;
+        }
+        final EquihashNetworkParameters equihashParams = (EquihashNetworkParameters) params;
+        boolean valid = false;
+        if (null != equihashSolution) {
+            final byte[] input = new byte[EQUIHASH_HEADER_SIZE];
+            writeEquihashInputTo(ByteBuffer.wrap(input));
+            valid = equihashParams.getEquihashVerifier().verify(input, 0, input.length,
+                equihashSolution, 0, equihashSolution.length);
+        }
+        if (!valid) {
+            if (throwException)
+                throw new VerificationException("Equihash solution is invalid: " + getHashAsString());
+            else
+                return false;
+        }
+        getHash();
+        equihashVerified = true;
+        return true;
+    }
+
+    /**
+     * Returns the work represented by this block, from the network's cache of
+     * decoded targets where there is one.
+     */
+    @Override
+    public BigInteger getWork() throws VerificationException {
+        if (params instanceof AltcoinNetworkParameters) {
+            return ((AltcoinNetworkParameters) params).getCompactTargetCache().getWork(getDifficultyTarget());
+        }
+        return super.getWork();
+    }
+
     /**
      * Checks the block data to ensure it follows the rules laid out in the network parameters. Specifically,
      * throws an exception if the proof of work is invalid, or if the timestamp is too far from what it should be.
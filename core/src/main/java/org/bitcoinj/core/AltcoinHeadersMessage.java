@@ -0,0 +1,239 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.libdohj.core.AltcoinNetworkParameters;
+import org.libdohj.core.EquihashNetworkParameters;
+import org.libdohj.core.PayloadScanner;
+
+/**
+ * <p>A "headers" message which indexes the headers it contains rather than
+ * parsing them. Parsing records the offset of each header (which for AuxPoW
+ * chains varies in length) in a single pass into a primitive array; header
+ * fields can then be read and headers linked straight from the payload, and
+ * {@link AltcoinBlock} instances are only created for headers which are
+ * actually requested.</p>
+ *
+ * <p>The payload is retained regardless of the serializer's parse-retain mode,
+ * as it is needed to materialize headers.</p>
+ */
+public class AltcoinHeadersMessage extends HeadersMessage {
+    // Note that fields must not have initializers, as parse() runs from the
+    // superclass constructor, before they would be applied.
+
+    /** Start offset of each header, plus the end offset of the last one. */
+    private int[] offsets;
+    private byte[] headerBytes;
+    private AltcoinBlock[] headers;
+    /** Whether headers are Zcash style, with an Equihash solution. */
+    private boolean equihash;
+    /** Offset of the time within each header; later in Zcash style headers. */
+    private int timeOffset;
+
+    public AltcoinHeadersMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        final long headerCount = readVarInt();
+        if (headerCount > MAX_HEADERS || headerCount < 0) {
+            throw new ProtocolException("Too many headers: got " + headerCount + " which is larger than " +
+                    MAX_HEADERS);
+        }
+
+        final AltcoinNetworkParameters altParams = (AltcoinNetworkParameters) params;
+        equihash = params instanceof EquihashNetworkParameters;
+        timeOffset = equihash ? 100 : 68;
+        final int count = (int) headerCount;
+        offsets = new int[count + 1];
+        for (int headerIdx = 0; headerIdx < count; headerIdx++) {
+            offsets[headerIdx] = cursor;
+            final int headerLength = PayloadScanner.blockHeaderLength(altParams, payload, cursor, payload.length);
+            if (headerLength == PayloadScanner.INCOMPLETE
+                || cursor + headerLength >= payload.length) {
+                throw new ProtocolException("Header " + headerIdx + " is truncated");
+            }
+            cursor += headerLength;
+            if (payload[cursor++] != 0) {
+                throw new ProtocolException("Block header does not end with a null byte");
+            }
+        }
+        offsets[count] = cursor;
+        headerBytes = payload;
+        headers = new AltcoinBlock[count];
+        length = cursor - offset;
+    }
+
+    @Override
+    public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(size()).encode());
+        stream.write(headerBytes, offsets[0], offsets[size()] - offsets[0]);
+    }
+
+    /**
+     * Get the headers in this message. Headers are materialized as the list is
+     * accessed, rather than all at once.
+     */
+    @Override
+    public List<Block> getBlockHeaders() {
+        return new AbstractList<Block>() {
+            @Override
+            public Block get(int index) {
+                return getHeader(index);
+            }
+
+            @Override
+            public int size() {
+                return AltcoinHeadersMessage.this.size();
+            }
+        };
+    }
+
+    /**
+     * Get the number of headers in this message.
+     */
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Get the header at the given index, parsing it (including any AuxPoW
+     * header) on first access.
+     */
+    public AltcoinBlock getHeader(final int index) throws ProtocolException {
+        AltcoinBlock header = headers[index];
+        if (header == null) {
+            header = (AltcoinBlock) params.getSerializer(true).makeBlock(headerBytes, offsets[index], Message.UNKNOWN_LENGTH);
+            headers[index] = header;
+        }
+        return header;
+    }
+
+    /**
+     * Get the offset of the header at the given index within the payload.
+     */
+    public int getHeaderOffset(final int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Get the length of the header at the given index, including any AuxPoW
+     * header, but not including the trailing transaction count.
+     */
+    public int getHeaderLength(final int index) {
+        return offsets[index + 1] - offsets[index] - 1;
+    }
+
+    /**
+     * Get the raw version number of the header at the given index, including
+     * any chain ID and flags.
+     */
+    public long getRawVersion(final int index) {
+        return Utils.readUint32(headerBytes, offsets[index]);
+    }
+
+    public Sha256Hash getPrevBlockHash(final int index) {
+        return Sha256Hash.wrapReversed(Arrays.copyOfRange(headerBytes, offsets[index] + 4, offsets[index] + 36));
+    }
+
+    public long getTimeSeconds(final int index) {
+        return Utils.readUint32(headerBytes, offsets[index] + timeOffset);
+    }
+
+    public long getDifficultyTarget(final int index) {
+        return Utils.readUint32(headerBytes, offsets[index] + timeOffset + 4);
+    }
+
+    /**
+     * Get the nonce of the header at the given index; for Zcash style
+     * headers, the low 32 bits of it.
+     */
+    public long getNonce(final int index) {
+        return Utils.readUint32(headerBytes, offsets[index] + timeOffset + 8);
+    }
+
+    /**
+     * Whether the header at the given index carries an AuxPoW header.
+     */
+    public boolean isAuxPoW(final int index) {
+        return !equihash && getHeaderLength(index) > Block.HEADER_SIZE;
+    }
+
+    /**
+     * Calculate the hash of the header at the given index, without
+     * materializing it.
+     */
+    public Sha256Hash getHash(final int index) {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(headerBytes, offsets[index], getHashedLength(index)));
+    }
+
+    /**
+     * Get the length of the header at the given index covered by its hash;
+     * the Bitcoin style header, or the whole of a Zcash style header.
+     */
+    private int getHashedLength(final int index) {
+        return equihash ? getHeaderLength(index) : Block.HEADER_SIZE;
+    }
+
+    /**
+     * Check that each header in this message builds on the one before it,
+     * working directly from the payload. Allocates nothing beyond a single
+     * digest and scratch buffer per call.
+     *
+     * @param previous hash of the block the first header should build on, or
+     * null to not check the first header.
+     * @return the index of the first header which does not connect to its
+     * predecessor, or -1 if all headers connect.
+     */
+    public int findDisconnectedHeader(@Nullable final Sha256Hash previous) {
+        if (size() == 0) {
+            return -1;
+        }
+        if (previous != null && !previous.equals(getPrevBlockHash(0))) {
+            return 0;
+        }
+        final MessageDigest digest = Sha256Hash.newDigest();
+        final byte[] hash = new byte[Sha256Hash.LENGTH];
+        for (int headerIdx = 1; headerIdx < size(); headerIdx++) {
+            digest.update(headerBytes, offsets[headerIdx - 1], getHashedLength(headerIdx - 1));
+            try {
+                digest.digest(hash, 0, hash.length);
+                digest.update(hash);
+                digest.digest(hash, 0, hash.length);
+            } catch (DigestException e) {
+                throw new RuntimeException(e); // Cannot happen.
+            }
+            // Both the digest output and the serialized previous hash are little endian
+            final int prevOffset = offsets[headerIdx] + 4;
+            for (int byteIdx = 0; byteIdx < hash.length; byteIdx++) {
+                if (hash[byteIdx] != headerBytes[prevOffset + byteIdx]) {
+                    return headerIdx;
+                }
+            }
+        }
+        return -1;
+    }
+}
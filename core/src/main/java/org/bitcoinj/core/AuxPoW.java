@@ -19,9 +19,16 @@
 package org.bitcoinj.core;
 
 import org.libdohj.core.AuxPoWNetworkParameters;
+import org.libdohj.core.PayloadScanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static org.libdohj.core.Utils.byteArrayToByteBuffer;
+import static org.libdohj.core.Utils.hashToByteBufferLE;
+import static org.libdohj.core.Utils.int64ToByteBufferLE;
+import static org.libdohj.core.Utils.uint32ToByteBufferLE;
+import static org.libdohj.core.Utils.varIntToByteBuffer;
+
 import javax.annotation.Nullable;
 import java.io.*;
 import java.math.BigInteger;
@@ -56,6 +63,9 @@ public class AuxPoW extends ChildMessage {
     private MerkleBranch chainMerkleBranch;
     private AltcoinBlock parentBlockHeader;
 
+    /** Interned parent elements, while they have not been replaced. */
+    @Nullable private transient AuxPoWParentCache.Entry parentEntry;
+
     // Transactions can be encoded in a way that will use more bytes than is optimal
     // (due to VarInts having multiple encodings)
     // MAX_BLOCK_SIZE must be compared to the optimal encoding, not the actual encoding, so when parsing, we keep track
@@ -122,6 +132,11 @@ public class AuxPoW extends ChildMessage {
     @Override
     protected void parse() throws ProtocolException {
         cursor = offset;
+        final AuxPoWParentCache cache = AuxPoWParentCache.getShared();
+        if (cache != null) {
+            parseInterned(cache);
+            return;
+        }
         transaction = new Transaction(params, payload, cursor, this, serializer, Message.UNKNOWN_LENGTH, null);
         cursor += transaction.getOptimalEncodingMessageSize();
         optimalEncodingMessageSize = transaction.getOptimalEncodingMessageSize();        
@@ -146,6 +161,63 @@ public class AuxPoW extends ChildMessage {
         length = cursor - offset;
     }
 
+    /**
+     * Parse this header, taking the coinbase transaction and parent block
+     * header from the given cache where they have been seen before. The
+     * coinbase is skipped over rather than parsed until the parent header
+     * hash is known.
+     */
+    private void parseInterned(final AuxPoWParentCache cache) throws ProtocolException {
+        final int coinbaseOffset = cursor;
+        final int coinbaseLength = PayloadScanner.transactionLength(payload, cursor, payload.length);
+        if (coinbaseLength == PayloadScanner.INCOMPLETE) {
+            throw new ProtocolException("AuxPoW coinbase transaction is truncated");
+        }
+        cursor += coinbaseLength;
+
+        hashBlock = readHash();
+
+        final int branchOffset = cursor;
+        coinbaseBranch = new MerkleBranch(params, this, payload, cursor, serializer);
+        cursor += coinbaseBranch.getOptimalEncodingMessageSize();
+        final int branchLength = cursor - branchOffset;
+
+        chainMerkleBranch = new MerkleBranch(params, this, payload, cursor, serializer);
+        cursor += chainMerkleBranch.getOptimalEncodingMessageSize();
+
+        if (cursor + Block.HEADER_SIZE > payload.length) {
+            throw new ProtocolException("AuxPoW parent block header is truncated");
+        }
+        final Sha256Hash parentHash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload, cursor, Block.HEADER_SIZE));
+        AuxPoWParentCache.Entry entry = cache.get(parentHash, payload, coinbaseOffset, coinbaseLength,
+            branchOffset, branchLength);
+        final AuxPoWParentCache.Elements elements;
+        if (entry == null) {
+            final byte[] coinbaseBytes = AuxPoWParentCache.Entry.copyOf(payload, coinbaseOffset, coinbaseLength);
+            final Transaction coinbase = new Transaction(params, coinbaseBytes, 0, null, serializer, coinbaseLength, null);
+            final byte[] blockBytes = Arrays.copyOfRange(payload, cursor, cursor + Block.HEADER_SIZE);
+            // No parent message, as the header is shared between AuxPoW headers
+            final AltcoinBlock header = new AltcoinBlock(params, blockBytes, 0, null, serializer, Block.HEADER_SIZE);
+            elements = new AuxPoWParentCache.Elements(coinbase, header);
+            entry = new AuxPoWParentCache.Entry(parentHash, blockBytes, coinbaseBytes,
+                AuxPoWParentCache.Entry.copyOf(payload, branchOffset, branchLength), elements);
+            cache.put(entry);
+        } else {
+            elements = entry.getElements(params, serializer);
+        }
+        cursor += Block.HEADER_SIZE;
+        transaction = elements.coinbase;
+        parentBlockHeader = elements.parentBlockHeader;
+        parentEntry = entry;
+
+        optimalEncodingMessageSize = transaction.getOptimalEncodingMessageSize()
+            + 32
+            + coinbaseBranch.getOptimalEncodingMessageSize()
+            + chainMerkleBranch.getOptimalEncodingMessageSize()
+            + Block.HEADER_SIZE;
+        length = cursor - offset;
+    }
+
     public int getOptimalEncodingMessageSize() {
         if (optimalEncodingMessageSize != 0)
             return optimalEncodingMessageSize;
@@ -177,6 +249,82 @@ public class AuxPoW extends ChildMessage {
         parentBlockHeader.bitcoinSerializeToStream(stream);
     }
 
+    /**
+     * Get the number of bytes {@link #serializeTo(ByteBuffer)} writes. Unlike
+     * {@link #getMessageSize()}, this also works for headers built in code,
+     * whose length is never set.
+     */
+    public int getSerializedSize() {
+        if (payload != null && length != UNKNOWN_LENGTH) {
+            return length;
+        }
+        return transactionSize(transaction)
+            + 32
+            + branchSize(coinbaseBranch)
+            + branchSize(chainMerkleBranch)
+            + parentBlockHeader.getHeaderSize();
+    }
+
+    private static int transactionSize(final Transaction tx) {
+        if (tx.hasWitnesses()) {
+            return tx.bitcoinSerialize().length;
+        }
+        int size = 4 + VarInt.sizeOf(tx.getInputs().size());
+        for (TransactionInput input : tx.getInputs()) {
+            final int scriptLength = input.getScriptBytes().length;
+            size += 32 + 4 + VarInt.sizeOf(scriptLength) + scriptLength + 4;
+        }
+        size += VarInt.sizeOf(tx.getOutputs().size());
+        for (TransactionOutput output : tx.getOutputs()) {
+            final int scriptLength = output.getScriptBytes().length;
+            size += 8 + VarInt.sizeOf(scriptLength) + scriptLength;
+        }
+        return size + 4;
+    }
+
+    private static int branchSize(final MerkleBranch branch) {
+        return VarInt.sizeOf(branch.size()) + branch.size() * 32 + 4;
+    }
+
+    /**
+     * Serialize this AuxPoW header into the given buffer. Retained payload
+     * bytes are copied across directly; otherwise each element is written in
+     * place, without the intermediate arrays used by {@link #bitcoinSerialize()}.
+     */
+    public void serializeTo(final ByteBuffer buffer) {
+        if (payload != null && length != UNKNOWN_LENGTH) {
+            buffer.put(payload, offset, length);
+            return;
+        }
+        writeTransactionTo(transaction, buffer);
+        hashToByteBufferLE(hashBlock, buffer);
+        coinbaseBranch.serializeTo(buffer);
+        chainMerkleBranch.serializeTo(buffer);
+        parentBlockHeader.serializeHeaderTo(buffer);
+    }
+
+    private static void writeTransactionTo(final Transaction tx, final ByteBuffer buffer) {
+        if (tx.hasWitnesses()) {
+            // Not expected in a parent coinbase, so not worth writing in place
+            buffer.put(tx.bitcoinSerialize());
+            return;
+        }
+        uint32ToByteBufferLE(tx.getVersion(), buffer);
+        varIntToByteBuffer(tx.getInputs().size(), buffer);
+        for (TransactionInput input : tx.getInputs()) {
+            hashToByteBufferLE(input.getOutpoint().getHash(), buffer);
+            uint32ToByteBufferLE(input.getOutpoint().getIndex(), buffer);
+            byteArrayToByteBuffer(input.getScriptBytes(), buffer);
+            uint32ToByteBufferLE(input.getSequenceNumber(), buffer);
+        }
+        varIntToByteBuffer(tx.getOutputs().size(), buffer);
+        for (TransactionOutput output : tx.getOutputs()) {
+            int64ToByteBufferLE(output.getValue().value, buffer);
+            byteArrayToByteBuffer(output.getScriptBytes(), buffer);
+        }
+        uint32ToByteBufferLE(tx.getLockTime(), buffer);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -280,7 +428,7 @@ public class AuxPoW extends ChildMessage {
 
         // Check that the coinbase transaction is in the merkle tree of the
         // parent block header
-        if (!getCoinbaseBranch().calculateMerkleRoot(getCoinbase().getHash()).equals(parentBlockHeader.getMerkleRoot())) {
+        if (!isCoinbaseInParentBlock()) {
             if (throwException) {
                 throw new VerificationException("Aux POW merkle root incorrect");
             }
@@ -386,6 +534,18 @@ public class AuxPoW extends ChildMessage {
         return true;
     }
 
+    /**
+     * Check the coinbase transaction is in the parent block's merkle tree,
+     * using the result cached against interned parent elements if available.
+     */
+    private boolean isCoinbaseInParentBlock() {
+        final AuxPoWParentCache.Entry entry = this.parentEntry;
+        if (entry != null) {
+            return entry.isCoinbaseInParent(getCoinbaseBranch(), parentBlockHeader);
+        }
+        return getCoinbaseBranch().calculateMerkleRoot(getCoinbase().getHash()).equals(parentBlockHeader.getMerkleRoot());
+    }
+
     /**
      * Get the nonce value from the coinbase transaction script.
      *
@@ -457,13 +617,34 @@ public class AuxPoW extends ChildMessage {
      * parent block header.
      */
     public void setCoinbaseBranch(final MerkleBranch merkleBranch) {
+        this.parentEntry = null;
         this.coinbaseBranch = merkleBranch;
     }
 
+    /**
+     * Set the coinbase transaction from the parent chain block.
+     */
+    public void setCoinbase(final Transaction coinbase) {
+        unCache();
+        this.parentEntry = null;
+        this.transaction = coinbase;
+        coinbase.setParent(this);
+    }
+
+    /**
+     * Set the merkle branch used to connect the child block hash to the chain
+     * merkle root committed to in the coinbase transaction.
+     */
+    public void setChainMerkleBranch(final MerkleBranch merkleBranch) {
+        unCache();
+        this.chainMerkleBranch = merkleBranch;
+    }
+
     /**
      * Set the parent chain block header.
      */
     public void setParentBlockHeader(final AltcoinBlock header) {
+        this.parentEntry = null;
         this.parentBlockHeader = header;
     }
 }
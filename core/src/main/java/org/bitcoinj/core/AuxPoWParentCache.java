@@ -0,0 +1,231 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * <p>Bounded intern pool for the parent chain elements of AuxPoW headers. When
+ * several merge-mined chains are followed in one JVM, the same parent block
+ * header and coinbase transaction arrive in an AuxPoW header on each chain.
+ * With a shared cache installed via {@link #setShared(AuxPoWParentCache)},
+ * {@link AuxPoW} looks up the parent header hash while parsing, and on a hit
+ * reuses what is already known of that parent instead of parsing and hashing
+ * it again.</p>
+ *
+ * <p>Entries are keyed by parent hash alone, and hold what does not depend on
+ * the network: the raw parent header and coinbase bytes, the coinbase
+ * transaction ID, and whether the coinbase is in the parent block's merkle
+ * tree. The coinbase transaction and parent header objects carry their
+ * network's parameters, so are parsed once for each network the parent is
+ * seen on, taking the parent's scrypt hash from another network's header
+ * where it has already been calculated, and are then reused by every AuxPoW
+ * header of that network. Entries are only reused where the coinbase
+ * transaction and coinbase branch bytes match exactly.</p>
+ *
+ * <p>Interned transactions and headers have no parent message, and are shared
+ * between AuxPoW headers, so must not be modified in place; use the AuxPoW
+ * setters to replace them instead.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class AuxPoWParentCache {
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    @Nullable private static volatile AuxPoWParentCache shared;
+
+    private final Map<Sha256Hash, Entry> entries;
+    private long hits;
+    private long misses;
+
+    public AuxPoWParentCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity maximum number of parent blocks to retain. Least
+     * recently used entries are evicted first.
+     */
+    public AuxPoWParentCache(final int capacity) {
+        this.entries = new LinkedHashMap<Sha256Hash, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Sha256Hash, AuxPoWParentCache.Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the cache used when parsing AuxPoW headers, or null if parent
+     * elements are not interned (the default).
+     */
+    @Nullable
+    public static AuxPoWParentCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Set the cache used when parsing AuxPoW headers, or null to disable
+     * interning.
+     */
+    public static void setShared(@Nullable final AuxPoWParentCache cache) {
+        shared = cache;
+    }
+
+    /**
+     * Find the entry for the given parent block, if the coinbase transaction
+     * and coinbase branch it was created from match the bytes given.
+     */
+    @Nullable
+    synchronized Entry get(final Sha256Hash parentHash,
+            final byte[] payload, final int coinbaseOffset, final int coinbaseLength,
+            final int branchOffset, final int branchLength) {
+        final Entry entry = entries.get(parentHash);
+        if (entry != null
+            && rangeEquals(entry.coinbaseBytes, payload, coinbaseOffset, coinbaseLength)
+            && rangeEquals(entry.branchBytes, payload, branchOffset, branchLength)) {
+            hits++;
+            return entry;
+        }
+        misses++;
+        return null;
+    }
+
+    synchronized void put(final Entry entry) {
+        entries.put(entry.parentHash, entry);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private static boolean rangeEquals(final byte[] expected, final byte[] buf, final int offset, final int length) {
+        if (expected.length != length) {
+            return false;
+        }
+        for (int byteIdx = 0; byteIdx < length; byteIdx++) {
+            if (expected[byteIdx] != buf[offset + byteIdx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Interned parent chain elements of an AuxPoW header.
+     */
+    static class Entry {
+        private final Sha256Hash parentHash;
+        private final byte[] parentHeaderBytes;
+        private final byte[] coinbaseBytes;
+        private final byte[] branchBytes;
+        private final Sha256Hash coinbaseTxId;
+        /** Coinbase and parent header parsed for each network, by network ID. */
+        private final Map<String, Elements> elements = new HashMap<String, Elements>(4);
+        @Nullable private volatile Boolean coinbaseInParent;
+
+        /**
+         * Create an entry from elements parsed for their network. The byte
+         * arrays should be copies, so the entry does not pin the payload they
+         * were found in.
+         */
+        Entry(final Sha256Hash parentHash, final byte[] parentHeaderBytes, final byte[] coinbaseBytes,
+                final byte[] branchBytes, final Elements elements) {
+            this.parentHash = parentHash;
+            this.parentHeaderBytes = parentHeaderBytes;
+            this.coinbaseBytes = coinbaseBytes;
+            this.branchBytes = branchBytes;
+            this.coinbaseTxId = elements.coinbase.getTxId();
+            this.elements.put(elements.parentBlockHeader.getParams().getId(), elements);
+        }
+
+        /**
+         * Get the coinbase transaction and parent header for the given network,
+         * parsing them from the interned bytes the first time the parent is
+         * seen on that network.
+         */
+        synchronized Elements getElements(final NetworkParameters params, final MessageSerializer serializer)
+                throws ProtocolException {
+            Elements result = elements.get(params.getId());
+            if (result == null) {
+                final Transaction coinbase = new Transaction(params, coinbaseBytes, 0, null, serializer,
+                    coinbaseBytes.length, null);
+                final AltcoinBlock header = new AltcoinBlock(params, parentHeaderBytes, 0, null, serializer,
+                    Block.HEADER_SIZE);
+                // The scrypt hash depends only on the header bytes
+                for (Elements other : elements.values()) {
+                    final Sha256Hash scryptHash = other.parentBlockHeader.getCachedScryptHash();
+                    if (scryptHash != null) {
+                        header.setCachedScryptHash(scryptHash);
+                        break;
+                    }
+                }
+                result = new Elements(coinbase, header);
+                elements.put(params.getId(), result);
+            }
+            return result;
+        }
+
+        /**
+         * Whether the coinbase transaction is in the parent block's merkle
+         * tree, calculating it via the given branch on first call. The branch
+         * must match the one the entry was created from.
+         */
+        boolean isCoinbaseInParent(final MerkleBranch coinbaseBranch, final AltcoinBlock parentBlockHeader) {
+            Boolean result = coinbaseInParent;
+            if (result == null) {
+                result = coinbaseBranch.calculateMerkleRoot(coinbaseTxId)
+                    .equals(parentBlockHeader.getMerkleRoot());
+                coinbaseInParent = result;
+            }
+            return result;
+        }
+
+        static byte[] copyOf(final byte[] payload, final int offset, final int length) {
+            return Arrays.copyOfRange(payload, offset, offset + length);
+        }
+    }
+
+    /**
+     * Coinbase transaction and parent header of an entry, parsed for one
+     * network.
+     */
+    static class Elements {
+        final Transaction coinbase;
+        final AltcoinBlock parentBlockHeader;
+
+        Elements(final Transaction coinbase, final AltcoinBlock parentBlockHeader) {
+            this.coinbase = coinbase;
+            this.parentBlockHeader = parentBlockHeader;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * <p>Builds merged mining work for a set of child chains, and the AuxPoW
+ * headers for each chain once the parent block has been mined.</p>
+ *
+ * <p>Each child chain's block hash is placed into a chain merkle tree at the
+ * slot given by {@link AuxPoW#getExpectedIndex(long, int, int)}, which depends
+ * on the chain ID, the tree height and a nonce. The smallest tree height and
+ * nonce for which no two chains share a slot are searched for once per set of
+ * chain IDs, and reused while the set is unchanged, so refreshing work for new
+ * child blocks only requires the tree itself to be rehashed.</p>
+ *
+ * <p>The root of the tree is committed to in the parent chain coinbase script
+ * as {@link AuxPoW#MERGED_MINING_HEADER}, followed by the root, tree size and
+ * nonce; see {@link Work#getCoinbaseCommitment()}.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class MergedMiningCoordinator {
+    /** Longest chain merkle branch accepted by {@link AuxPoW}. */
+    public static final int MAX_MERKLE_HEIGHT = 30;
+    public static final int DEFAULT_MAX_NONCE_ATTEMPTS = 1 << 16;
+
+    /** Length of the commitment written into the coinbase script. */
+    public static final int COMMITMENT_LENGTH = AuxPoW.MERGED_MINING_HEADER.length + Sha256Hash.LENGTH + 8;
+
+    private final int maxNonceAttempts;
+    @Nullable private volatile Layout lastLayout;
+
+    public MergedMiningCoordinator() {
+        this(DEFAULT_MAX_NONCE_ATTEMPTS);
+    }
+
+    /**
+     * @param maxNonceAttempts number of nonces to try at each tree height
+     * before moving to the next height.
+     */
+    public MergedMiningCoordinator(final int maxNonceAttempts) {
+        if (maxNonceAttempts < 1) {
+            throw new IllegalArgumentException("At least one nonce must be attempted per tree height.");
+        }
+        this.maxNonceAttempts = maxNonceAttempts;
+    }
+
+    /**
+     * Get a layout for the given chain IDs, reusing the previous layout if
+     * the chain IDs are unchanged.
+     *
+     * @throws IllegalArgumentException if chain IDs are duplicated or no
+     * layout can be found.
+     */
+    public Layout getLayout(final int[] chainIds) {
+        final Layout layout = lastLayout;
+        if (layout != null && Arrays.equals(layout.chainIds, chainIds)) {
+            return layout;
+        }
+        final Layout newLayout = findLayout(chainIds, maxNonceAttempts);
+        lastLayout = newLayout;
+        return newLayout;
+    }
+
+    /**
+     * Build work for the given child chains.
+     *
+     * @param chainIds chain ID of each child chain.
+     * @param childBlockHashes hash of the block being mined on each child
+     * chain, in the same order as the chain IDs.
+     */
+    public Work createWork(final int[] chainIds, final Sha256Hash[] childBlockHashes) {
+        if (chainIds.length != childBlockHashes.length) {
+            throw new IllegalArgumentException("Expected " + chainIds.length + " child block hashes, got "
+                + childBlockHashes.length);
+        }
+        return new Work(getLayout(chainIds), childBlockHashes);
+    }
+
+    /**
+     * Find the smallest tree, and the first nonce for that tree size, which
+     * assign every chain a distinct slot.
+     */
+    static Layout findLayout(final int[] chainIds, final int maxNonceAttempts) {
+        if (chainIds.length == 0) {
+            throw new IllegalArgumentException("At least one chain is required.");
+        }
+        final int[] sorted = chainIds.clone();
+        Arrays.sort(sorted);
+        for (int chainIdx = 1; chainIdx < sorted.length; chainIdx++) {
+            if (sorted[chainIdx] == sorted[chainIdx - 1]) {
+                throw new IllegalArgumentException("Chain ID " + sorted[chainIdx] + " is duplicated.");
+            }
+        }
+
+        int merkleHeight = 0;
+        while ((1 << merkleHeight) < chainIds.length) {
+            merkleHeight++;
+        }
+        final int[] slots = new int[chainIds.length];
+        for (; merkleHeight <= MAX_MERKLE_HEIGHT; merkleHeight++) {
+            final long[] used = new long[Math.max(1, (1 << merkleHeight) >>> 6)];
+            for (long nonce = 0; nonce < maxNonceAttempts; nonce++) {
+                if (assignSlots(chainIds, nonce, merkleHeight, slots, used)) {
+                    return new Layout(chainIds.clone(), slots.clone(), merkleHeight, nonce);
+                }
+                Arrays.fill(used, 0L);
+            }
+        }
+        throw new IllegalArgumentException("No merged mining layout found for " + chainIds.length + " chains.");
+    }
+
+    private static boolean assignSlots(final int[] chainIds, final long nonce, final int merkleHeight,
+            final int[] slots, final long[] used) {
+        for (int chainIdx = 0; chainIdx < chainIds.length; chainIdx++) {
+            final int slot = AuxPoW.getExpectedIndex(nonce, chainIds[chainIdx], merkleHeight);
+            final long bit = 1L << (slot & 63);
+            if ((used[slot >>> 6] & bit) != 0) {
+                return false;
+            }
+            used[slot >>> 6] |= bit;
+            slots[chainIdx] = slot;
+        }
+        return true;
+    }
+
+    /**
+     * Assignment of chains to slots within the chain merkle tree.
+     */
+    public static class Layout {
+        private final int[] chainIds;
+        private final int[] slots;
+        private final int merkleHeight;
+        private final long nonce;
+
+        private Layout(final int[] chainIds, final int[] slots, final int merkleHeight, final long nonce) {
+            this.chainIds = chainIds;
+            this.slots = slots;
+            this.merkleHeight = merkleHeight;
+            this.nonce = nonce;
+        }
+
+        public int getChainCount() {
+            return chainIds.length;
+        }
+
+        public int getChainId(final int chainIdx) {
+            return chainIds[chainIdx];
+        }
+
+        /**
+         * Get the slot of the given chain within the chain merkle tree.
+         */
+        public int getSlot(final int chainIdx) {
+            return slots[chainIdx];
+        }
+
+        /**
+         * Get the height of the chain merkle tree, which is also the length of
+         * each chain's merkle branch.
+         */
+        public int getMerkleHeight() {
+            return merkleHeight;
+        }
+
+        /**
+         * Get the number of leaves in the chain merkle tree.
+         */
+        public int getMerkleSize() {
+            return 1 << merkleHeight;
+        }
+
+        public long getNonce() {
+            return nonce;
+        }
+    }
+
+    /**
+     * Chain merkle tree built over a set of child block hashes.
+     */
+    public static class Work {
+        private final Layout layout;
+        /** Each level of the tree, leaves first, as consecutive internal byte order hashes. */
+        private final byte[][] levels;
+        private final Sha256Hash root;
+
+        private Work(final Layout layout, final Sha256Hash[] childBlockHashes) {
+            this.layout = layout;
+            this.levels = new byte[layout.merkleHeight + 1][];
+
+            // Unused slots are left as zero hashes
+            byte[] level = new byte[layout.getMerkleSize() * Sha256Hash.LENGTH];
+            for (int chainIdx = 0; chainIdx < childBlockHashes.length; chainIdx++) {
+                System.arraycopy(childBlockHashes[chainIdx].getReversedBytes(), 0,
+                    level, layout.slots[chainIdx] * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+            }
+            levels[0] = level;
+
+            final MessageDigest digest = Sha256Hash.newDigest();
+            try {
+                for (int height = 1; height <= layout.merkleHeight; height++) {
+                    final byte[] below = level;
+                    level = new byte[below.length / 2];
+                    for (int offset = 0; offset < level.length; offset += Sha256Hash.LENGTH) {
+                        digest.update(below, offset * 2, Sha256Hash.LENGTH * 2);
+                        digest.digest(level, offset, Sha256Hash.LENGTH);
+                        digest.update(level, offset, Sha256Hash.LENGTH);
+                        digest.digest(level, offset, Sha256Hash.LENGTH);
+                    }
+                    levels[height] = level;
+                }
+            } catch (DigestException e) {
+                throw new RuntimeException(e); // Cannot happen.
+            }
+            this.root = Sha256Hash.wrapReversed(level);
+        }
+
+        public Layout getLayout() {
+            return layout;
+        }
+
+        public Sha256Hash getChainMerkleRoot() {
+            return root;
+        }
+
+        /**
+         * Get the bytes to be included in the parent chain coinbase script:
+         * the merged mining header, chain merkle root, tree size and nonce.
+         */
+        public byte[] getCoinbaseCommitment() {
+            final byte[] commitment = new byte[COMMITMENT_LENGTH];
+            int offset = 0;
+            System.arraycopy(AuxPoW.MERGED_MINING_HEADER, 0, commitment, offset, AuxPoW.MERGED_MINING_HEADER.length);
+            offset += AuxPoW.MERGED_MINING_HEADER.length;
+            System.arraycopy(root.getBytes(), 0, commitment, offset, Sha256Hash.LENGTH);
+            offset += Sha256Hash.LENGTH;
+            Utils.uint32ToByteArrayLE(layout.getMerkleSize(), commitment, offset);
+            offset += 4;
+            Utils.uint32ToByteArrayLE(layout.nonce, commitment, offset);
+            return commitment;
+        }
+
+        /**
+         * Get the branch connecting the given chain's block hash to the chain
+         * merkle root.
+         *
+         * @param params network parameters of the child chain.
+         * @param chainIdx index of the chain in the layout.
+         * @param parent AuxPoW header the branch will belong to, if any.
+         */
+        public MerkleBranch getChainMerkleBranch(final NetworkParameters params, final int chainIdx,
+                @Nullable final ChildMessage parent) {
+            final int slot = layout.slots[chainIdx];
+            final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(layout.merkleHeight);
+            for (int height = 0; height < layout.merkleHeight; height++) {
+                final int sibling = ((slot >>> height) ^ 1) * Sha256Hash.LENGTH;
+                hashes.add(Sha256Hash.wrapReversed(Arrays.copyOfRange(levels[height], sibling, sibling + Sha256Hash.LENGTH)));
+            }
+            return new MerkleBranch(params, parent, hashes, slot);
+        }
+
+        /**
+         * Build the AuxPoW header for a child chain, once a parent block
+         * including this work's coinbase commitment has been mined.
+         *
+         * @param params network parameters of the child chain.
+         * @param chainIdx index of the chain in the layout.
+         * @param parentCoinbase the parent block coinbase transaction, which
+         * must include {@link #getCoinbaseCommitment()} in its input script.
+         * @param coinbaseBranch branch connecting the coinbase transaction to
+         * the parent block merkle root.
+         * @param parentHeader the parent block header.
+         */
+        public AuxPoW createAuxPoW(final NetworkParameters params, final int chainIdx,
+                final Transaction parentCoinbase, final MerkleBranch coinbaseBranch,
+                final AltcoinBlock parentHeader) {
+            final AuxPoW auxpow = new AuxPoW(params, null);
+            auxpow.setCoinbase(parentCoinbase);
+            auxpow.setCoinbaseBranch(coinbaseBranch);
+            auxpow.setChainMerkleBranch(getChainMerkleBranch(params, chainIdx, auxpow));
+            auxpow.setParentBlockHeader(parentHeader);
+            return auxpow;
+        }
+    }
+}
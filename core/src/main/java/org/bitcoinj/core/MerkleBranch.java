@@ -17,9 +17,14 @@
 
 package org.bitcoinj.core;
 
+import static org.libdohj.core.Utils.hashToByteBufferLE;
+import static org.libdohj.core.Utils.uint32ToByteBufferLE;
+import static org.libdohj.core.Utils.varIntToByteBuffer;
+
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -117,6 +122,18 @@ public class MerkleBranch extends ChildMessage {
         Utils.uint32ToByteStreamLE(index, stream);
     }
 
+    /**
+     * Serialize this branch into the given buffer, writing hashes in place
+     * rather than through reversed copies.
+     */
+    public void serializeTo(final ByteBuffer buffer) {
+        varIntToByteBuffer(hashes.size(), buffer);
+        for (Sha256Hash hash: hashes) {
+            hashToByteBufferLE(hash, buffer);
+        }
+        uint32ToByteBufferLE(index, buffer);
+    }
+
     /**
      * Calculate the merkle branch root based on the supplied hashes and the given leaf hash.
      * Used to verify that the given leaf and root are part of the same tree.
@@ -0,0 +1,313 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.AltcoinHeadersMessage;
+import org.bitcoinj.core.BitcoinSerializer;
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+
+/**
+ * Incremental decoder for altcoin network messages. Unlike
+ * {@link BitcoinSerializer#deserialize(ByteBuffer)}, which requires the whole
+ * message to be present, this accepts bytes as they arrive from the network,
+ * hashes the payload as it is copied in, and can report a block's header
+ * (including any AuxPoW header) as soon as those bytes have arrived, before
+ * the transactions follow. "headers" messages are decoded to
+ * {@link AltcoinHeadersMessage}, which indexes rather than parses its headers.
+ *
+ * <p>Payload buffers for blocks and transactions are taken from a
+ * {@link BufferPool} when the serializer is not in parse-retain mode (as
+ * messages then do not keep a reference to their payload). Pooled buffers are
+ * usually longer than the message, and bitcoinj only bounds reads by the
+ * array length, so a message parsed from one must account for exactly its
+ * payload or it is rejected. Other messages are handed to the serializer to
+ * construct as normal.</p>
+ *
+ * <p>Instances hold per-connection state and are not thread safe.</p>
+ */
+public class AltcoinMessageDecoder {
+    /**
+     * Callback for block headers which have been received ahead of the rest of
+     * their block.
+     */
+    public interface HeaderListener {
+        /**
+         * Called once the header of an incoming block, including its AuxPoW
+         * header if any, has been received. The message checksum has not been
+         * verified at this point, so the header should be treated as a hint
+         * (for example to start proof of work checks early) until the complete
+         * block is returned from the decoder.
+         */
+        void onBlockHeader(AltcoinBlock header);
+    }
+
+    private static final int MAGIC_LENGTH = 4;
+    private static final int PACKET_HEADER_LENGTH = MAGIC_LENGTH + BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH;
+    private static final int DEFAULT_READ_BUFFER_SIZE = 1 << 16;
+
+    private final AltcoinSerializer serializer;
+    private final BufferPool pool;
+    private final byte[] magic = new byte[MAGIC_LENGTH];
+    private final byte[] headerBytes = new byte[PACKET_HEADER_LENGTH];
+    private final MessageDigest digest = Sha256Hash.newDigest();
+    @Nullable private HeaderListener headerListener;
+
+    private int headerFill = 0;
+    @Nullable private BitcoinSerializer.BitcoinPacketHeader header;
+    @Nullable private ByteBuffer payloadBuffer;
+    private byte[] payload;
+    private int payloadFill;
+    private boolean pooledPayload;
+    private boolean blockPayload;
+    private boolean headersPayload;
+    private boolean directPayload;
+    private boolean headerNotified;
+
+    @Nullable private ByteBuffer readBuffer;
+    private boolean endOfStream = false;
+
+    public AltcoinMessageDecoder(final AltcoinSerializer serializer) {
+        this(serializer, BufferPool.getSharedHeapPool());
+    }
+
+    public AltcoinMessageDecoder(final AltcoinSerializer serializer, final BufferPool pool) {
+        if (pool.isDirect()) {
+            throw new IllegalArgumentException("Payloads must be array backed, so a heap buffer pool is required.");
+        }
+        this.serializer = serializer;
+        this.pool = pool;
+        Utils.uint32ToByteArrayBE(serializer.getParameters().getPacketMagic(), magic, 0);
+    }
+
+    /**
+     * Set the listener to be notified of block headers ahead of their block.
+     */
+    public void setHeaderListener(@Nullable final HeaderListener headerListener) {
+        this.headerListener = headerListener;
+    }
+
+    /**
+     * Consume bytes from the given buffer until either a complete message has
+     * been decoded, or the buffer is exhausted. Bytes before the network's
+     * packet magic are skipped, as with {@link BitcoinSerializer#seekPastMagicBytes(ByteBuffer)}.
+     *
+     * @return the decoded message, or null if more bytes are required.
+     * @throws ProtocolException if the message is malformed or fails its checksum.
+     */
+    @Nullable
+    public Message decode(final ByteBuffer in) throws ProtocolException {
+        while (in.hasRemaining()) {
+            if (header == null) {
+                if (!readPacketHeader(in)) {
+                    return null;
+                }
+                startPayload();
+            }
+            final int count = Math.min(in.remaining(), header.size - payloadFill);
+            in.get(payload, payloadFill, count);
+            if (directPayload) {
+                digest.update(payload, payloadFill, count);
+            }
+            payloadFill += count;
+            if (payloadFill < header.size) {
+                notifyHeaderIfAvailable();
+                return null;
+            }
+            return completeMessage();
+        }
+        return null;
+    }
+
+    /**
+     * Read from the given channel and decode the next message, if one can be
+     * completed from the bytes available. Any bytes read beyond the end of the
+     * message are kept for the next call.
+     *
+     * @return the decoded message, or null if more bytes are required (or the
+     * channel has reached end of stream, see {@link #isEndOfStream()}).
+     * @throws EOFException if the channel closes part way through a message.
+     */
+    @Nullable
+    public Message read(final ReadableByteChannel channel) throws IOException, ProtocolException {
+        if (readBuffer == null) {
+            readBuffer = pool.acquire(DEFAULT_READ_BUFFER_SIZE);
+            readBuffer.flip();
+        }
+        Message message = decode(readBuffer);
+        if (message != null) {
+            return message;
+        }
+        readBuffer.clear();
+        final int read = channel.read(readBuffer);
+        readBuffer.flip();
+        if (read < 0) {
+            endOfStream = true;
+            if (isPartial()) {
+                throw new EOFException("Channel closed part way through a message");
+            }
+            return null;
+        }
+        return decode(readBuffer);
+    }
+
+    /**
+     * Whether the channel passed to {@link #read(ReadableByteChannel)} has
+     * reached end of stream.
+     */
+    public boolean isEndOfStream() {
+        return endOfStream;
+    }
+
+    /**
+     * Whether a message has been partially received.
+     */
+    public boolean isPartial() {
+        return headerFill > 0 || header != null;
+    }
+
+    /**
+     * Return any buffers held by this decoder to the pool, discarding partially
+     * received messages.
+     */
+    public void release() {
+        resetMessage();
+        if (readBuffer != null) {
+            pool.release(readBuffer);
+            readBuffer = null;
+        }
+    }
+
+    /**
+     * Read the packet magic and header. Returns true once the header is complete.
+     */
+    private boolean readPacketHeader(final ByteBuffer in) throws ProtocolException {
+        while (headerFill < MAGIC_LENGTH && in.hasRemaining()) {
+            final byte b = in.get();
+            if (b == magic[headerFill]) {
+                headerFill++;
+            } else {
+                headerFill = (b == magic[0]) ? 1 : 0;
+            }
+        }
+        if (headerFill < MAGIC_LENGTH) {
+            return false;
+        }
+        final int count = Math.min(in.remaining(), PACKET_HEADER_LENGTH - headerFill);
+        in.get(headerBytes, headerFill, count);
+        headerFill += count;
+        if (headerFill < PACKET_HEADER_LENGTH) {
+            return false;
+        }
+        header = new BitcoinSerializer.BitcoinPacketHeader(
+            ByteBuffer.wrap(headerBytes, MAGIC_LENGTH, BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH));
+        return true;
+    }
+
+    private void startPayload() {
+        blockPayload = "block".equals(header.command);
+        // Messages only drop their reference to the payload when not retaining it,
+        // and only blocks and transactions are built directly here. Blocks on
+        // Equihash networks do not parse their transactions, so cannot be
+        // checked against the payload length.
+        pooledPayload = !serializer.isParseRetainMode()
+            && ((blockPayload && !(serializer.getParameters() instanceof EquihashNetworkParameters))
+                || "tx".equals(header.command));
+        headersPayload = "headers".equals(header.command);
+        // Blocks are always built here, so their header can be reported early, and
+        // headers so they can be indexed rather than parsed
+        directPayload = blockPayload || headersPayload || pooledPayload;
+        if (pooledPayload) {
+            payloadBuffer = pool.acquire(header.size);
+            payload = payloadBuffer.array();
+        } else {
+            payload = new byte[header.size];
+        }
+        payloadFill = 0;
+        headerNotified = false;
+        digest.reset();
+    }
+
+    private void notifyHeaderIfAvailable() throws ProtocolException {
+        if (!blockPayload || headerListener == null || headerNotified) {
+            return;
+        }
+        final int headerLength = PayloadScanner.blockHeaderLength(
+            (AltcoinNetworkParameters) serializer.getParameters(), payload, 0, payloadFill);
+        if (headerLength == PayloadScanner.INCOMPLETE) {
+            return;
+        }
+        headerNotified = true;
+        // Header only copy, with a zero transaction count
+        final byte[] headerOnly = Arrays.copyOf(payload, headerLength + 1);
+        headerOnly[headerLength] = 0;
+        headerListener.onBlockHeader((AltcoinBlock) serializer.makeBlock(headerOnly, 0, Message.UNKNOWN_LENGTH));
+    }
+
+    private Message completeMessage() throws ProtocolException {
+        try {
+            if (!directPayload) {
+                return serializer.deserializePayload(header, ByteBuffer.wrap(payload));
+            }
+            final byte[] hash = digest.digest(digest.digest());
+            for (int checksumIdx = 0; checksumIdx < 4; checksumIdx++) {
+                if (header.checksum[checksumIdx] != hash[checksumIdx]) {
+                    throw new ProtocolException("Checksum failed to verify, actual " +
+                        Utils.HEX.encode(Arrays.copyOf(hash, 4)) +
+                        " vs " + Utils.HEX.encode(header.checksum));
+                }
+            }
+            notifyHeaderIfAvailable();
+            final Message message;
+            if (blockPayload) {
+                message = serializer.makeBlock(payload, 0, header.size);
+            } else if (headersPayload) {
+                return new AltcoinHeadersMessage(serializer.getParameters(), payload);
+            } else {
+                message = serializer.makeTransaction(payload, 0, header.size, null);
+            }
+            if (pooledPayload && message.getMessageSize() != header.size) {
+                // Parsing ran short of, or past, the payload into whatever the buffer last held
+                throw new ProtocolException(header.command + " message is " + header.size
+                    + " bytes but parsed as " + message.getMessageSize());
+            }
+            return message;
+        } finally {
+            resetMessage();
+        }
+    }
+
+    private void resetMessage() {
+        if (payloadBuffer != null) {
+            pool.release(payloadBuffer);
+            payloadBuffer = null;
+        }
+        payload = null;
+        header = null;
+        headerFill = 0;
+        payloadFill = 0;
+    }
+}
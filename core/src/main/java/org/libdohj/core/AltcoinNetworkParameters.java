@@ -38,4 +38,9 @@ public interface AltcoinNetworkParameters {
      * by the coinbase transaction) for a block at the given height.
      */
     public Coin getBlockSubsidy(final int height);
+
+    /**
+     * Get the cache of decoded difficulty targets for this network.
+     */
+    public CompactTargetCache getCompactTargetCache();
 }
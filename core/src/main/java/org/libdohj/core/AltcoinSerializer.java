@@ -7,9 +7,30 @@ import org.bitcoinj.core.Utils;
  * @author jrn
  */
 public class AltcoinSerializer extends BitcoinSerializer {
+    private final boolean witnessDeferred;
 
     public AltcoinSerializer(NetworkParameters params, boolean parseRetain) {
+        this(params, parseRetain, false);
+    }
+
+    /**
+     * @param witnessDeferred whether blocks skip transaction witnesses when
+     * parsed, reading them from the payload only when asked for. This is
+     * for scanning blocks where only IDs and outputs are needed, and only
+     * applies on networks implementing {@link MwebNetworkParameters}.
+     */
+    public AltcoinSerializer(NetworkParameters params, boolean parseRetain, boolean witnessDeferred) {
         super(params, parseRetain);
+        this.witnessDeferred = witnessDeferred;
+    }
+
+    /**
+     * Whether blocks skip transaction witnesses when parsed.
+     *
+     * @see AltcoinBlock#materializeWitnesses(int)
+     */
+    public boolean isWitnessDeferred() {
+        return witnessDeferred;
     }
 
     @Override
@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+
+/**
+ * <p>In-memory index of recent headers by height, used to find ancestors for
+ * difficulty calculations without walking back through the block store.</p>
+ *
+ * <p>Headers are recorded as difficulty checks see them. The index holds the
+ * hash, time and difficulty target of a run of consecutive headers, each
+ * linked to the one before by its previous block hash, in primitive ring
+ * buffers addressed by height. An ancestor of a block in the run is therefore
+ * a single array lookup. A header which does not link to the run (after a
+ * gap, or a reorganisation below the run) starts a new run, and lookups
+ * outside the run report a miss so callers fall back to the block store.</p>
+ *
+ * <p>The ring grows to fit the deepest lookup requested, so callers do not
+ * need to size it up front. Instances are thread safe.</p>
+ */
+public class AncestorIndex {
+    private static final int DEFAULT_CAPACITY = 1 << 12;
+
+    /** Returned by lookups which the index cannot answer. */
+    public static final long MISS = -1;
+
+    private byte[] hashes;
+    private int[] times;
+    private int[] targets;
+    private int mask;
+
+    /** Height of the lowest header in the current run, or -1 if empty. */
+    private int lowHeight = -1;
+    /** Height of the highest header in the current run, or -1 if empty. */
+    private int highHeight = -1;
+
+    public AncestorIndex() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity initial number of headers to retain, rounded up to a
+     * power of two.
+     */
+    public AncestorIndex(final int capacity) {
+        allocate(capacity);
+    }
+
+    /**
+     * Record a header. Headers should be added in chain order; a header which
+     * does not build on the current run starts a new one, and a header
+     * replacing one already in the run discards everything above it.
+     */
+    public synchronized void add(final StoredBlock block) {
+        final Block header = block.getHeader();
+        final int height = block.getHeight();
+        if (isInRun(height - 1) && hashEquals(height - 1, header.getPrevBlockHash())) {
+            if (height <= highHeight && hashEquals(height, header.getHash())) {
+                // Already indexed
+                return;
+            }
+            highHeight = height;
+            lowHeight = Math.max(lowHeight, height - mask);
+        } else {
+            lowHeight = height;
+            highHeight = height;
+        }
+        final int slot = height & mask;
+        System.arraycopy(header.getHash().getBytes(), 0, hashes, slot * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+        times[slot] = (int) header.getTimeSeconds();
+        targets[slot] = (int) header.getDifficultyTarget();
+    }
+
+    /**
+     * Get the time of the block the given depth below the given block.
+     *
+     * @return the block time in seconds, or {@link #MISS} if the index does not
+     * hold that block.
+     */
+    public synchronized long getTimeSeconds(final StoredBlock from, final int depth) {
+        final int height = findAncestor(from, depth);
+        return height < 0 ? MISS : times[height & mask] & 0xffffffffL;
+    }
+
+    /**
+     * Get the compact difficulty target of the block the given depth below
+     * the given block.
+     *
+     * @return the compact target, or {@link #MISS} if the index does not hold
+     * that block.
+     */
+    public synchronized long getDifficultyTarget(final StoredBlock from, final int depth) {
+        final int height = findAncestor(from, depth);
+        return height < 0 ? MISS : targets[height & mask] & 0xffffffffL;
+    }
+
+    /**
+     * Get the number of headers in the current run.
+     */
+    public synchronized int size() {
+        return highHeight < 0 ? 0 : highHeight - lowHeight + 1;
+    }
+
+    public synchronized void clear() {
+        lowHeight = -1;
+        highHeight = -1;
+    }
+
+    /**
+     * Get the height of the ancestor, or -1 if it is not indexed. Grows the
+     * ring if the depth could never be satisfied at its current size.
+     */
+    private int findAncestor(final StoredBlock from, final int depth) {
+        if (depth > mask) {
+            grow(depth + 1);
+            return -1;
+        }
+        final int height = from.getHeight();
+        final int ancestorHeight = height - depth;
+        if (depth < 0 || ancestorHeight < lowHeight || !isInRun(height)
+            || !hashEquals(height, from.getHeader().getHash())) {
+            return -1;
+        }
+        return ancestorHeight;
+    }
+
+    private boolean isInRun(final int height) {
+        return highHeight >= 0 && height >= lowHeight && height <= highHeight;
+    }
+
+    private boolean hashEquals(final int height, final Sha256Hash hash) {
+        final byte[] bytes = hash.getBytes();
+        final int offset = (height & mask) * Sha256Hash.LENGTH;
+        for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+            if (hashes[offset + byteIdx] != bytes[byteIdx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void allocate(final int capacity) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        hashes = new byte[size * Sha256Hash.LENGTH];
+        times = new int[size];
+        targets = new int[size];
+        mask = size - 1;
+    }
+
+    private void grow(final int capacity) {
+        final byte[] oldHashes = hashes;
+        final int[] oldTimes = times;
+        final int[] oldTargets = targets;
+        final int oldMask = mask;
+        allocate(capacity);
+        for (int height = lowHeight; highHeight >= 0 && height <= highHeight; height++) {
+            final int oldSlot = height & oldMask;
+            final int slot = height & mask;
+            System.arraycopy(oldHashes, oldSlot * Sha256Hash.LENGTH, hashes, slot * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+            times[slot] = oldTimes[oldSlot];
+            targets[slot] = oldTargets[oldSlot];
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe pool of byte buffers, bucketed by power-of-two capacity.
+ * Buffers larger than the maximum pooled capacity are allocated on demand
+ * and dropped on release, so a single oversized message cannot pin memory.
+ *
+ * <p>Buffers must not be used after being released, and must not be released
+ * while any message still refers to their backing array.</p>
+ */
+public class BufferPool {
+    private static final int MIN_SIZE_CLASS = 10; // 1 KiB
+
+    public static final int DEFAULT_MAX_POOLED_CAPACITY = 1 << 21; // 2 MiB
+    public static final int DEFAULT_MAX_BUFFERS_PER_CLASS = 8;
+
+    private static final BufferPool SHARED_HEAP = new BufferPool(false,
+        DEFAULT_MAX_POOLED_CAPACITY, DEFAULT_MAX_BUFFERS_PER_CLASS);
+
+    private final boolean direct;
+    private final int maxSizeClass;
+    private final int maxBuffersPerClass;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCounts;
+
+    /**
+     * @param direct whether to allocate direct rather than heap buffers.
+     * @param maxPooledCapacity largest buffer capacity to retain on release.
+     * @param maxBuffersPerClass maximum number of idle buffers retained for
+     * each capacity.
+     */
+    public BufferPool(final boolean direct, final int maxPooledCapacity, final int maxBuffersPerClass) {
+        this.direct = direct;
+        this.maxSizeClass = Math.max(MIN_SIZE_CLASS, sizeClass(maxPooledCapacity));
+        this.maxBuffersPerClass = maxBuffersPerClass;
+        final int classCount = this.maxSizeClass - MIN_SIZE_CLASS + 1;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final ConcurrentLinkedQueue<ByteBuffer>[] queues = new ConcurrentLinkedQueue[classCount];
+        this.free = queues;
+        this.freeCounts = new AtomicInteger[classCount];
+        for (int classIdx = 0; classIdx < classCount; classIdx++) {
+            this.free[classIdx] = new ConcurrentLinkedQueue<ByteBuffer>();
+            this.freeCounts[classIdx] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Get the pool of heap buffers shared by decoders and serializers which
+     * are not given a pool explicitly.
+     */
+    public static BufferPool getSharedHeapPool() {
+        return SHARED_HEAP;
+    }
+
+    /**
+     * Get a cleared buffer with at least the given capacity.
+     */
+    public ByteBuffer acquire(final int minCapacity) {
+        final int sizeClass = Math.max(MIN_SIZE_CLASS, sizeClass(minCapacity));
+        if (sizeClass > maxSizeClass) {
+            return allocate(minCapacity);
+        }
+        final int classIdx = sizeClass - MIN_SIZE_CLASS;
+        final ByteBuffer buffer = free[classIdx].poll();
+        if (buffer == null) {
+            return allocate(1 << sizeClass);
+        }
+        freeCounts[classIdx].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. Buffers which were not allocated by this
+     * pool, or which would exceed the pool's limits, are silently dropped.
+     */
+    public void release(final ByteBuffer buffer) {
+        final int capacity = buffer.capacity();
+        if (buffer.isDirect() != direct
+            || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        final int sizeClass = sizeClass(capacity);
+        if (sizeClass < MIN_SIZE_CLASS || sizeClass > maxSizeClass) {
+            return;
+        }
+        final int classIdx = sizeClass - MIN_SIZE_CLASS;
+        if (freeCounts[classIdx].incrementAndGet() > maxBuffersPerClass) {
+            freeCounts[classIdx].decrementAndGet();
+            return;
+        }
+        free[classIdx].offer(buffer);
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    private ByteBuffer allocate(final int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Get the exponent of the smallest power of two at least as large as the
+     * given capacity.
+     */
+    private static int sizeClass(final int capacity) {
+        return capacity <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+/**
+ * <p>Checks difficulty transitions across a range of imported headers, such as
+ * a batch from a peer or headers read from a file, in parallel.</p>
+ *
+ * <p>Once the headers are in the block store, each check depends only on
+ * headers already there, so the range is split into segments at retarget
+ * boundaries and each segment is checked, in order, by
+ * {@link NetworkParameters#checkDifficultyTransitions(StoredBlock, Block, BlockStore)}
+ * on a worker.</p>
+ *
+ * <p>The difficulty checks of the network parameters in this library keep
+ * state for the chain tip they follow, such as the ancestor index and
+ * retarget windows, in the {@link ChainState} of the block store. Each
+ * segment therefore reads the block store through its own view, and so gets
+ * its own state. Segments share the network parameters, yet neither contend
+ * on nor evict the state kept for the live chain or for each other.</p>
+ *
+ * <p>The block store must support concurrent reads. Instances are thread safe.</p>
+ */
+public class BulkDifficultyVerifier {
+    /** Default minimum number of headers checked by each worker task. */
+    public static final int DEFAULT_MIN_SEGMENT_SIZE = 2000;
+
+    private final NetworkParameters params;
+    @Nullable private final ExecutorService executor;
+    private final int minSegmentSize;
+
+    /**
+     * @param params network parameters to check difficulty with.
+     * @param executor workers to check segments on, or null to check in the
+     * calling thread.
+     */
+    public BulkDifficultyVerifier(final NetworkParameters params, @Nullable final ExecutorService executor) {
+        this(params, executor, DEFAULT_MIN_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param params network parameters to check difficulty with.
+     * @param executor workers to check segments on, or null to check in the
+     * calling thread.
+     * @param minSegmentSize minimum number of headers in each segment. Segments
+     * are extended to the next retarget boundary.
+     */
+    public BulkDifficultyVerifier(final NetworkParameters params, @Nullable final ExecutorService executor,
+            final int minSegmentSize) {
+        if (minSegmentSize < 1) {
+            throw new IllegalArgumentException("Segment size must be positive, not " + minSegmentSize);
+        }
+        this.params = params;
+        this.executor = executor;
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    /**
+     * Check the difficulty of each header in the range against the header
+     * before it. The first header is taken as already checked, and all headers
+     * must already be in the block store.
+     *
+     * @param headers consecutive headers, in chain order.
+     * @param blockStore store holding the headers and their ancestors.
+     * @throws DifficultyTransitionException at the lowest height which fails,
+     * if any do.
+     */
+    public void verify(final List<StoredBlock> headers, final BlockStore blockStore)
+        throws VerificationException, BlockStoreException, InterruptedException {
+        checkLinked(headers);
+
+        final List<Segment> segments = split(headers, blockStore);
+        if (executor == null) {
+            for (Segment segment : segments) {
+                segment.call();
+            }
+            return;
+        }
+
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>(segments.size());
+        for (Segment segment : segments) {
+            futures.add(executor.submit(segment));
+        }
+        // Segments are in height order, so the first failure found is the lowest
+        VerificationException failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = unwrap(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void checkLinked(final List<StoredBlock> headers) throws VerificationException {
+        for (int headerIdx = 1; headerIdx < headers.size(); headerIdx++) {
+            final StoredBlock prev = headers.get(headerIdx - 1);
+            final StoredBlock next = headers.get(headerIdx);
+            if (next.getHeight() != prev.getHeight() + 1
+                || !next.getHeader().getPrevBlockHash().equals(prev.getHeader().getHash())) {
+                throw new DifficultyTransitionException(next.getHeight(),
+                    "Header does not follow the one before it in the range.", null);
+            }
+        }
+    }
+
+    /**
+     * Split the range into segments of at least the minimum size, each
+     * starting at a retarget boundary other than the first.
+     */
+    private List<Segment> split(final List<StoredBlock> headers, final BlockStore blockStore) {
+        final List<Segment> segments = new ArrayList<Segment>();
+        final int interval = params.getInterval();
+        int start = 1;
+        while (start < headers.size()) {
+            int end = Math.min(start + minSegmentSize, headers.size());
+            while (end < headers.size() && headers.get(end).getHeight() % interval != 0) {
+                end++;
+            }
+            segments.add(new Segment(headers, start, end, blockStore));
+            start = end;
+        }
+        return segments;
+    }
+
+    private static VerificationException unwrap(final ExecutionException e) throws BlockStoreException {
+        final Throwable cause = e.getCause();
+        if (cause instanceof VerificationException) {
+            return (VerificationException) cause;
+        } else if (cause instanceof BlockStoreException) {
+            throw (BlockStoreException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new RuntimeException(cause);
+    }
+
+    /**
+     * Headers from the start index (inclusive) to the end index (exclusive),
+     * each checked against the header before it.
+     */
+    private class Segment implements Callable<Void> {
+        private final List<StoredBlock> headers;
+        private final int start;
+        private final int end;
+        private final BlockStore blockStore;
+
+        private Segment(final List<StoredBlock> headers, final int start, final int end,
+                final BlockStore blockStore) {
+            this.headers = headers;
+            this.start = start;
+            this.end = end;
+            this.blockStore = blockStore;
+        }
+
+        @Override
+        public Void call() throws VerificationException, BlockStoreException {
+            // A view of its own, so the segment gets its own chain state
+            final BlockStore view = new SegmentView(blockStore);
+            for (int headerIdx = start; headerIdx < end; headerIdx++) {
+                final StoredBlock next = headers.get(headerIdx);
+                try {
+                    params.checkDifficultyTransitions(headers.get(headerIdx - 1), next.getHeader(), view);
+                } catch (VerificationException e) {
+                    throw new DifficultyTransitionException(next.getHeight(), e.getMessage(), e);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Read only view of the block store for one segment.
+     */
+    private static class SegmentView implements BlockStore {
+        private final BlockStore blockStore;
+
+        private SegmentView(final BlockStore blockStore) {
+            this.blockStore = blockStore;
+        }
+
+        @Override
+        public void put(final StoredBlock block) throws BlockStoreException {
+            throw new BlockStoreException("Headers cannot be stored while checking difficulty.");
+        }
+
+        @Override
+        public StoredBlock get(final Sha256Hash hash) throws BlockStoreException {
+            return blockStore.get(hash);
+        }
+
+        @Override
+        public StoredBlock getChainHead() throws BlockStoreException {
+            return blockStore.getChainHead();
+        }
+
+        @Override
+        public void setChainHead(final StoredBlock chainHead) throws BlockStoreException {
+            throw new BlockStoreException("Chain head cannot be set while checking difficulty.");
+        }
+
+        @Override
+        public void close() {
+            // The underlying block store belongs to the caller
+        }
+
+        @Override
+        public NetworkParameters getParams() {
+            return blockStore.getParams();
+        }
+    }
+
+    /**
+     * Thrown when a header in the range fails its difficulty check.
+     */
+    public static class DifficultyTransitionException extends VerificationException {
+        private final int height;
+
+        public DifficultyTransitionException(final int height, final String message,
+                @Nullable final Throwable cause) {
+            super("Difficulty check failed at height " + height + ": " + message, cause);
+            this.height = height;
+        }
+
+        /**
+         * Get the height of the header which failed.
+         */
+        public int getHeight() {
+            return height;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.bitcoinj.store.BlockStore;
+
+/**
+ * <p>State kept for the chain held in one block store, such as recently seen
+ * headers and the retarget windows of its tip.</p>
+ *
+ * <p>Network parameters are singletons, shared by every chain an application
+ * follows. The difficulty checks of the network parameters in this library
+ * therefore keep no state of their own, and look up the state for the block
+ * store they are checking against here instead. Each block store has one
+ * instance, which is released once the block store is no longer
+ * reachable.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class ChainState {
+    private static final Map<BlockStore, ChainState> STATES = new WeakHashMap<BlockStore, ChainState>();
+
+    private final AncestorIndex ancestorIndex = new AncestorIndex();
+    private final MedianTimePast medianTimePast = new MedianTimePast();
+    private final Map<Class<?>, Object> entries = new HashMap<Class<?>, Object>();
+
+    /**
+     * Creates state for a type of difficulty calculation, the first time a
+     * chain needs it.
+     */
+    public interface Factory<T> {
+        T create();
+    }
+
+    /**
+     * Get the state for the chain held in a block store, creating it if this
+     * is the first time the block store has been seen.
+     */
+    public static ChainState get(final BlockStore blockStore) {
+        synchronized (STATES) {
+            ChainState state = STATES.get(blockStore);
+            if (state == null) {
+                state = new ChainState();
+                STATES.put(blockStore, state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Get the index of recently seen headers, used to find ancestors without
+     * walking back through the block store.
+     */
+    public AncestorIndex getAncestorIndex() {
+        return ancestorIndex;
+    }
+
+    /**
+     * Get the median time past tracker for the tip of the chain.
+     */
+    public MedianTimePast getMedianTimePast() {
+        return medianTimePast;
+    }
+
+    /**
+     * Get the memo of the last non minimum difficulty block, used for testnet
+     * difficulty checks.
+     */
+    public MinDifficultyCursor getMinDifficultyCursor(final BigInteger maxTarget) {
+        return get(MinDifficultyCursor.class, new Factory<MinDifficultyCursor>() {
+            @Override
+            public MinDifficultyCursor create() {
+                return new MinDifficultyCursor(maxTarget);
+            }
+        });
+    }
+
+    /**
+     * Get the state of the given type, such as the window of a retarget
+     * algorithm, creating it with the factory if the chain has none yet.
+     */
+    public synchronized <T> T get(final Class<T> type, final Factory<T> factory) {
+        Object entry = entries.get(type);
+        if (entry == null) {
+            entry = factory.create();
+            entries.put(type, entry);
+        }
+        return type.cast(entry);
+    }
+}
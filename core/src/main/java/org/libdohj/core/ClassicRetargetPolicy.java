@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+/**
+ * Bitcoin style retarget, limiting the adjustment to a factor of four either
+ * way, and measured over the full interval as fixed by Litecoin.
+ */
+public class ClassicRetargetPolicy implements RetargetPolicy {
+    private final int targetTimespan;
+
+    public ClassicRetargetPolicy(final int targetTimespan) {
+        this.targetTimespan = targetTimespan;
+    }
+
+    @Override
+    public int getRetargetTimespan(final int height) {
+        return targetTimespan;
+    }
+
+    @Override
+    public int limitActualTimespan(final int height, final int actualTimespan, final int retargetTimespan) {
+        return Math.min(getMaxTimespan(height, retargetTimespan),
+            Math.max(getMinTimespan(height, retargetTimespan), actualTimespan));
+    }
+
+    /**
+     * Litecoin: This fixes an issue where a 51% attack can change difficulty
+     * at will. Go back the full period unless it's the first retarget after
+     * genesis. Code based on original by Art Forz.
+     */
+    @Override
+    public int getBlocksBack(final int previousHeight, final int retargetInterval) {
+        return previousHeight + 1 != retargetInterval
+            ? retargetInterval
+            : retargetInterval - 1;
+    }
+
+    protected int getMinTimespan(final int height, final int retargetTimespan) {
+        return retargetTimespan / 4;
+    }
+
+    protected int getMaxTimespan(final int height, final int retargetTimespan) {
+        return retargetTimespan * 4;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VerificationException;
+
+/**
+ * <p>Cache of decoded difficulty targets, and the work each represents, by
+ * compact difficulty bits.</p>
+ *
+ * <p>Every header needs its target decoded to check its proof of work, and
+ * its work calculated to add to the chain work. Chains only ever use a few
+ * thousand distinct difficulty bits, so both are kept, for each network, rather
+ * than calculated with BigInteger arithmetic for each header. The number of
+ * entries is capped, so headers with made up difficulty bits cannot grow the
+ * cache without limit; beyond the cap, values are calculated as before.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class CompactTargetCache {
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+
+    private static final BigInteger LARGEST_HASH = BigInteger.ONE.shiftLeft(256);
+
+    private final BigInteger maxTarget;
+    private final long maxTargetCompact;
+    private final int capacity;
+    private final ConcurrentHashMap<Long, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxTarget the easiest target allowed.
+     */
+    public CompactTargetCache(final BigInteger maxTarget) {
+        this(maxTarget, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param maxTarget the easiest target allowed.
+     * @param capacity most difficulty bits to retain.
+     */
+    public CompactTargetCache(final BigInteger maxTarget, final int capacity) {
+        this.maxTarget = maxTarget;
+        this.maxTargetCompact = Utils.encodeCompactBits(maxTarget);
+        this.capacity = capacity;
+        this.entries = new ConcurrentHashMap<Long, Entry>();
+    }
+
+    /**
+     * Get the target given compact difficulty bits represent.
+     *
+     * @throws VerificationException if the target is not positive, or is
+     * easier than the maximum target.
+     */
+    public BigInteger getTarget(final long compact) throws VerificationException {
+        return getEntry(compact).target;
+    }
+
+    /**
+     * Get the work done by a block with the given compact difficulty bits;
+     * the number of hashes expected to find a block with that target.
+     *
+     * @throws VerificationException if the target is not positive, or is
+     * easier than the maximum target.
+     */
+    public BigInteger getWork(final long compact) throws VerificationException {
+        return getEntry(compact).work;
+    }
+
+    /**
+     * Get the maximum target, as compact difficulty bits.
+     */
+    public long getMaxTargetCompact() {
+        return maxTargetCompact;
+    }
+
+    /**
+     * Get the number of lookups answered from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of lookups which had to decode the difficulty bits.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the proportion of lookups answered from the cache, or zero if there
+     * have been none.
+     */
+    public double getHitRate() {
+        final long hitCount = hits.get();
+        final long total = hitCount + misses.get();
+        return total == 0 ? 0.0 : (double) hitCount / total;
+    }
+
+    /**
+     * Get the number of distinct difficulty bits held.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private Entry getEntry(final long compact) throws VerificationException {
+        final Long key = compact;
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry;
+        }
+        misses.incrementAndGet();
+        final BigInteger target = Utils.decodeCompactBits(compact);
+        if (target.signum() <= 0 || target.compareTo(maxTarget) > 0) {
+            throw new VerificationException("Difficulty target is bad: " + target.toString());
+        }
+        entry = new Entry(target, LARGEST_HASH.divide(target.add(BigInteger.ONE)));
+        if (entries.size() < capacity) {
+            final Entry existing = entries.putIfAbsent(key, entry);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        return entry;
+    }
+
+    private static class Entry {
+        private final BigInteger target;
+        private final BigInteger work;
+
+        private Entry(final BigInteger target, final BigInteger work) {
+            this.target = target;
+            this.work = work;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+/**
+ * <p>Dark Gravity Wave v3 difficulty calculation, as used by Dash and chains
+ * derived from it, and with a longer window by Ravencoin.</p>
+ *
+ * <p>The targets and times of the last blocks are held in a rolling window,
+ * with targets already decoded, which advances by one block as each block
+ * connects. The block store is only walked to fill the window when it starts
+ * cold, or after a reorganisation.</p>
+ *
+ * <p>DGW's running "average" rounds down at each step, so is not quite the
+ * average of the window. Without rounding it would be the sum of the window
+ * plus the newest target again, divided by one more than the window length,
+ * and the rounding lowers it by less than half the window length in total, so
+ * the exact result lies within that distance below. The sum is kept up to
+ * date as blocks connect, and where both ends of that range give the same
+ * compact target, as they do except for targets very close to a rounding
+ * boundary, that is the answer. Otherwise the running average is recomputed
+ * over the window. Arithmetic is fixed width and does not allocate.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class DarkGravityWave {
+    /** Number of blocks Dash averages the target over. */
+    public static final int PAST_BLOCKS = 24;
+    /** Returned where the block store does not hold enough ancestors, such as after starting from a checkpoint. */
+    public static final long UNKNOWN = -1;
+
+    private static final int MIN_DIFFICULTY_RESET_SECONDS = 2 * 60 * 60;
+
+    private final long[] maxTargetDigits;
+    private final long maxTargetCompact;
+    private final int targetSpacing;
+    private final boolean allowMinDifficultyBlocks;
+    private final int pastBlocks;
+
+    private final byte[] hashes;
+    private final long[] times;
+    private final long[][] targets;
+    /** Sum of the targets in the window, once full. */
+    private final long[] sum = new long[DifficultyEngine.DIGITS];
+    private final long[] scratch = new long[DifficultyEngine.DIGITS];
+    private final long[] lowScratch = new long[DifficultyEngine.DIGITS];
+    /** How far below the unrounded average the running average can be. */
+    private final long[] roundingBound = new long[DifficultyEngine.DIGITS];
+    /** Height of the newest block in the window, or -1 if empty. */
+    private int tipHeight = -1;
+    /** Number of consecutive blocks in the window, ending at the tip. */
+    private int count;
+
+    /**
+     * Create a calculation over the {@value #PAST_BLOCKS} blocks Dash uses.
+     *
+     * @param maxTarget the easiest target allowed.
+     * @param targetSpacing target time between blocks, in seconds.
+     * @param allowMinDifficultyBlocks whether the testnet rules for blocks
+     * after a long gap apply.
+     */
+    public DarkGravityWave(final BigInteger maxTarget, final int targetSpacing,
+            final boolean allowMinDifficultyBlocks) {
+        this(maxTarget, targetSpacing, PAST_BLOCKS, allowMinDifficultyBlocks);
+    }
+
+    /**
+     * @param maxTarget the easiest target allowed.
+     * @param targetSpacing target time between blocks, in seconds.
+     * @param pastBlocks number of blocks to average the target over.
+     * @param allowMinDifficultyBlocks whether the testnet rules for blocks
+     * after a long gap apply.
+     */
+    public DarkGravityWave(final BigInteger maxTarget, final int targetSpacing, final int pastBlocks,
+            final boolean allowMinDifficultyBlocks) {
+        if (pastBlocks < 2) {
+            throw new IllegalArgumentException("Window must hold at least two blocks, not " + pastBlocks);
+        }
+        this.maxTargetDigits = DifficultyEngine.toDigits(maxTarget);
+        this.maxTargetCompact = DifficultyEngine.encodeCompact(maxTargetDigits);
+        this.targetSpacing = targetSpacing;
+        this.pastBlocks = pastBlocks;
+        this.allowMinDifficultyBlocks = allowMinDifficultyBlocks;
+        this.hashes = new byte[pastBlocks * Sha256Hash.LENGTH];
+        this.times = new long[pastBlocks];
+        this.targets = new long[pastBlocks][DifficultyEngine.DIGITS];
+        this.roundingBound[0] = (pastBlocks + 1) / 2;
+    }
+
+    /**
+     * Get the difficulty target expected for the block after the given one.
+     *
+     * @param storedPrev the block immediately before the block to check.
+     * @param nextBlock the block to check, used only for its time.
+     * @param blockStore store to fill the window from, where it does not
+     * already hold the previous blocks.
+     * @return the compact target, or {@link #UNKNOWN} if the block store does
+     * not hold enough ancestors to calculate it.
+     * @throws VerificationException if an ancestor has difficulty bits no
+     * valid block could have.
+     */
+    public synchronized long getNextTarget(final StoredBlock storedPrev, final Block nextBlock,
+            final BlockStore blockStore) throws VerificationException, BlockStoreException {
+        final Block prev = storedPrev.getHeader();
+        if (storedPrev.getHeight() < pastBlocks) {
+            return maxTargetCompact;
+        }
+
+        if (allowMinDifficultyBlocks) {
+            if (nextBlock.getTimeSeconds() > prev.getTimeSeconds() + MIN_DIFFICULTY_RESET_SECONDS) {
+                return maxTargetCompact;
+            }
+            if (nextBlock.getTimeSeconds() > prev.getTimeSeconds() + targetSpacing * 4) {
+                decode(prev.getDifficultyTarget(), scratch);
+                DifficultyEngine.multiply(scratch, 10);
+                return limit(scratch);
+            }
+        }
+
+        if (!advance(storedPrev, blockStore)) {
+            return UNKNOWN;
+        }
+
+        final int targetTimespan = pastBlocks * targetSpacing;
+        long actualTimespan = times[slot(tipHeight)] - times[slot(tipHeight - pastBlocks + 1)];
+        actualTimespan = Math.max(actualTimespan, targetTimespan / 3);
+        actualTimespan = Math.min(actualTimespan, targetTimespan * 3);
+
+        // Upper and lower bounds of the running average, from the window sum
+        final long[] high = scratch;
+        System.arraycopy(sum, 0, high, 0, DifficultyEngine.DIGITS);
+        DifficultyEngine.add(high, targets[slot(tipHeight)]);
+        DifficultyEngine.divide(high, pastBlocks + 1);
+        final long[] low = lowScratch;
+        System.arraycopy(high, 0, low, 0, DifficultyEngine.DIGITS);
+        if (!DifficultyEngine.subtract(low, roundingBound)) {
+            Arrays.fill(low, 0);
+        }
+        final long lowResult = retarget(low, actualTimespan, targetTimespan);
+        final long highResult = retarget(high, actualTimespan, targetTimespan);
+        if (lowResult == highResult) {
+            return highResult;
+        }
+
+        // Too close to a rounding boundary; calculate the running average in full.
+        final long[] average = scratch;
+        System.arraycopy(targets[slot(tipHeight)], 0, average, 0, DifficultyEngine.DIGITS);
+        for (int countBlocks = 2; countBlocks <= pastBlocks; countBlocks++) {
+            DifficultyEngine.multiply(average, countBlocks);
+            DifficultyEngine.add(average, targets[slot(tipHeight - countBlocks + 1)]);
+            DifficultyEngine.divide(average, countBlocks + 1);
+        }
+        return retarget(average, actualTimespan, targetTimespan);
+    }
+
+    /**
+     * Get the number of consecutive blocks held in the window.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized void clear() {
+        tipHeight = -1;
+        count = 0;
+    }
+
+    /**
+     * Move the window to end at the given block, filling it from the block
+     * store if it does not already end at, or just before, that block.
+     *
+     * @return false if the block store does not hold enough ancestors.
+     */
+    private boolean advance(final StoredBlock storedPrev, final BlockStore blockStore)
+        throws VerificationException, BlockStoreException {
+        final Block header = storedPrev.getHeader();
+        final int height = storedPrev.getHeight();
+        if (count == pastBlocks && height == tipHeight && hashEquals(tipHeight, header.getHash())) {
+            return true;
+        }
+        if (count == pastBlocks && height == tipHeight + 1 && hashEquals(tipHeight, header.getPrevBlockHash())) {
+            // The new block replaces the oldest in the window
+            final int slot = slot(height);
+            decode(header.getDifficultyTarget(), scratch);
+            DifficultyEngine.subtract(sum, targets[slot]);
+            store(storedPrev, scratch);
+            DifficultyEngine.add(sum, targets[slot]);
+            tipHeight = height;
+            return true;
+        }
+
+        // Cold, or a reorganisation; fill the window from the block store.
+        clear();
+        Arrays.fill(sum, 0);
+        StoredBlock cursor = storedPrev;
+        for (int blockIdx = 0; blockIdx < pastBlocks; blockIdx++) {
+            if (cursor == null) {
+                return false;
+            }
+            decode(cursor.getHeader().getDifficultyTarget(), scratch);
+            store(cursor, scratch);
+            DifficultyEngine.add(sum, scratch);
+            cursor = blockIdx < pastBlocks - 1 ? cursor.getPrev(blockStore) : null;
+        }
+        tipHeight = height;
+        count = pastBlocks;
+        return true;
+    }
+
+    private void store(final StoredBlock block, final long[] target) {
+        final Block header = block.getHeader();
+        final int slot = slot(block.getHeight());
+        System.arraycopy(target, 0, targets[slot], 0, DifficultyEngine.DIGITS);
+        times[slot] = header.getTimeSeconds();
+        System.arraycopy(header.getHash().getBytes(), 0, hashes, slot * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+    }
+
+    /**
+     * Scale an average target by the ratio of actual to target timespan, and
+     * cap it at the maximum target. The average is modified in place.
+     */
+    private long retarget(final long[] average, final long actualTimespan, final int targetTimespan) {
+        DifficultyEngine.multiply(average, (int) actualTimespan);
+        DifficultyEngine.divide(average, targetTimespan);
+        return limit(average);
+    }
+
+    private long limit(final long[] target) {
+        if (DifficultyEngine.compare(target, maxTargetDigits) > 0) {
+            return maxTargetCompact;
+        }
+        return DifficultyEngine.encodeCompact(target);
+    }
+
+    private static void decode(final long compact, final long[] digits) throws VerificationException {
+        if (!DifficultyEngine.decodeCompact(compact, digits)) {
+            throw new VerificationException("Difficulty bits are negative or overflow: " + Long.toHexString(compact));
+        }
+    }
+
+    private boolean hashEquals(final int height, final Sha256Hash hash) {
+        final byte[] bytes = hash.getBytes();
+        final int offset = slot(height) * Sha256Hash.LENGTH;
+        for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+            if (hashes[offset + byteIdx] != bytes[byteIdx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int slot(final int height) {
+        return height % pastBlocks;
+    }
+}
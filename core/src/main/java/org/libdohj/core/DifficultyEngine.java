@@ -0,0 +1,326 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+
+import org.bitcoinj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Periodic difficulty retarget calculation, shared by the network
+ * parameters, with the chain specific rules supplied by a
+ * {@link RetargetPolicy}.</p>
+ *
+ * <p>Targets are worked on as fixed width little endian arrays of 32 bit
+ * digits held in longs, wide enough for a 256 bit target multiplied by a
+ * timespan, so a retarget does not allocate. Results match
+ * {@link Utils#decodeCompactBits(long)} and
+ * {@link Utils#encodeCompactBits(BigInteger)} arithmetic exactly; negative or
+ * oversized compact targets, which no valid chain produces, are handed to a
+ * BigInteger implementation.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class DifficultyEngine {
+    private static final Logger log = LoggerFactory.getLogger(DifficultyEngine.class);
+
+    private static final int DIGIT_BITS = 32;
+    private static final long DIGIT_MASK = 0xffffffffL;
+    /** 288 bits, enough for a 256 bit target multiplied by a 31 bit timespan. */
+    static final int DIGITS = 9;
+    private static final int MAX_TARGET_BYTES = 32;
+
+    private static final ThreadLocal<long[]> SCRATCH = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[DIGITS];
+        }
+    };
+
+    private final BigInteger maxTarget;
+    private final long[] maxTargetDigits;
+    private final RetargetPolicy policy;
+
+    public DifficultyEngine(final BigInteger maxTarget, final RetargetPolicy policy) {
+        if (maxTarget.signum() < 0 || maxTarget.bitLength() > MAX_TARGET_BYTES * 8) {
+            throw new IllegalArgumentException("Maximum target must be a positive 256 bit value.");
+        }
+        this.maxTarget = maxTarget;
+        this.maxTargetDigits = toDigits(maxTarget);
+        this.policy = policy;
+    }
+
+    public RetargetPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Get how many blocks back from the previous block the retarget timespan
+     * is measured from.
+     */
+    public int getBlocksBack(final int previousHeight, final int retargetInterval) {
+        return policy.getBlocksBack(previousHeight, retargetInterval);
+    }
+
+    /**
+     * Calculate the difficulty target expected for the next block after a normal
+     * recalculation interval.
+     *
+     * @param previousHeight Height of the block immediately previous to the one we're calculating difficulty of.
+     * @param previousBlockTime Time of the block immediately previous to the one we're calculating difficulty of.
+     * @param lastDifficultyTarget Compact difficulty target of the last retarget block.
+     * @param lastRetargetTime Time of the last difficulty retarget.
+     * @param nextDifficultyTarget The expected difficulty target of the next
+     * block, used for determining precision of the result.
+     * @return New difficulty target as compact bytes.
+     */
+    public long calculateNewDifficultyTarget(final int previousHeight, final long previousBlockTime,
+            final long lastDifficultyTarget, final long lastRetargetTime,
+            final long nextDifficultyTarget) {
+        final int height = previousHeight + 1;
+        final int retargetTimespan = policy.getRetargetTimespan(height);
+        final int actualTime = policy.limitActualTimespan(height,
+            (int) (previousBlockTime - lastRetargetTime), retargetTimespan);
+        return retarget(lastDifficultyTarget, actualTime, retargetTimespan, nextDifficultyTarget);
+    }
+
+    /**
+     * Scale a compact target by the ratio of actual to target timespan, cap it
+     * at the maximum target, and reduce it to the precision of the given
+     * compact target.
+     *
+     * @param lastDifficultyTarget compact target to scale.
+     * @param actualTimespan already limited actual timespan.
+     * @param retargetTimespan target timespan.
+     * @param nextDifficultyTarget compact target whose precision the result
+     * is reduced to.
+     * @return the new compact target.
+     */
+    public long retarget(final long lastDifficultyTarget, final int actualTimespan, final int retargetTimespan,
+            final long nextDifficultyTarget) {
+        final long[] target = SCRATCH.get();
+        if (actualTimespan < 0 || retargetTimespan <= 0 || !decodeCompact(lastDifficultyTarget, target)) {
+            return retargetBigInteger(lastDifficultyTarget, actualTimespan, retargetTimespan, nextDifficultyTarget);
+        }
+
+        multiply(target, actualTimespan);
+        divide(target, retargetTimespan);
+
+        if (compare(target, maxTargetDigits) > 0) {
+            log.info("Difficulty hit proof of work limit: {}", toBigInteger(target).toString(16));
+            System.arraycopy(maxTargetDigits, 0, target, 0, DIGITS);
+        }
+
+        // The calculated difficulty is to a higher precision than received, so reduce here.
+        final int accuracyBytes = (int) (nextDifficultyTarget >>> 24) - 3;
+        keepBits(target, accuracyBytes * 8, accuracyBytes * 8 + 24);
+        return encodeCompact(target);
+    }
+
+    /**
+     * Reference implementation, for compact targets outside the range handled
+     * by the fixed width arithmetic.
+     */
+    private long retargetBigInteger(final long lastDifficultyTarget, final int actualTimespan,
+            final int retargetTimespan, final long nextDifficultyTarget) {
+        BigInteger newTarget = Utils.decodeCompactBits(lastDifficultyTarget);
+        newTarget = newTarget.multiply(BigInteger.valueOf(actualTimespan));
+        newTarget = newTarget.divide(BigInteger.valueOf(retargetTimespan));
+
+        if (newTarget.compareTo(maxTarget) > 0) {
+            log.info("Difficulty hit proof of work limit: {}", newTarget.toString(16));
+            newTarget = maxTarget;
+        }
+
+        int accuracyBytes = (int) (nextDifficultyTarget >>> 24) - 3;
+
+        BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
+        newTarget = newTarget.and(mask);
+        return Utils.encodeCompactBits(newTarget);
+    }
+
+    /**
+     * Decode compact bits into the given digits.
+     *
+     * @return false if the value is negative or wider than 256 bits, and so
+     * was not decoded.
+     */
+    static boolean decodeCompact(final long compact, final long[] digits) {
+        final int size = (int) (compact >> 24) & 0xFF;
+        if (size > MAX_TARGET_BYTES
+            || (size > 0 && (compact & 0x00800000L) != 0)) {
+            return false;
+        }
+        final long mantissa;
+        final int shiftBytes;
+        if (size < 3) {
+            // Only the leading mantissa bytes are used
+            mantissa = (compact & 0x007fffffL) >>> (8 * (3 - size));
+            shiftBytes = 0;
+        } else {
+            mantissa = compact & 0x007fffffL;
+            shiftBytes = size - 3;
+        }
+        for (int digitIdx = 0; digitIdx < DIGITS; digitIdx++) {
+            digits[digitIdx] = 0;
+        }
+        final int shift = shiftBytes * 8;
+        final int digitIdx = shift / DIGIT_BITS;
+        final int bitIdx = shift % DIGIT_BITS;
+        final long shifted = mantissa << bitIdx;
+        digits[digitIdx] = shifted & DIGIT_MASK;
+        if (digitIdx + 1 < DIGITS) {
+            digits[digitIdx + 1] = shifted >>> DIGIT_BITS;
+        }
+        return true;
+    }
+
+    /**
+     * Encode the given digits as compact bits, as
+     * {@link Utils#encodeCompactBits(BigInteger)} would.
+     */
+    static long encodeCompact(final long[] digits) {
+        final int bitLength = bitLength(digits);
+        // Size of the two's complement encoding, including the sign bit
+        int size = bitLength / 8 + 1;
+        long result;
+        if (size <= 3) {
+            result = digits[0] << 8 * (3 - size);
+        } else {
+            result = getBits(digits, 8 * (size - 3), 24);
+        }
+        // The 0x00800000 bit denotes the sign. Thus, if it is already set, divide the mantissa by 256 and increase the exponent.
+        if ((result & 0x00800000L) != 0) {
+            result >>= 8;
+            size++;
+        }
+        result |= size << 24;
+        return result;
+    }
+
+    static void multiply(final long[] digits, final int multiplier) {
+        long carry = 0;
+        for (int digitIdx = 0; digitIdx < DIGITS; digitIdx++) {
+            final long product = digits[digitIdx] * multiplier + carry;
+            digits[digitIdx] = product & DIGIT_MASK;
+            carry = product >>> DIGIT_BITS;
+        }
+    }
+
+    /**
+     * Add the second value to the first, in place.
+     */
+    static void add(final long[] digits, final long[] addend) {
+        long carry = 0;
+        for (int digitIdx = 0; digitIdx < DIGITS; digitIdx++) {
+            final long sum = digits[digitIdx] + addend[digitIdx] + carry;
+            digits[digitIdx] = sum & DIGIT_MASK;
+            carry = sum >>> DIGIT_BITS;
+        }
+    }
+
+    /**
+     * Subtract the second value from the first, in place.
+     *
+     * @return false if the result would be negative, in which case the
+     * digits hold it modulo 2^288.
+     */
+    static boolean subtract(final long[] digits, final long[] subtrahend) {
+        long borrow = 0;
+        for (int digitIdx = 0; digitIdx < DIGITS; digitIdx++) {
+            final long difference = digits[digitIdx] - subtrahend[digitIdx] - borrow;
+            digits[digitIdx] = difference & DIGIT_MASK;
+            borrow = difference < 0 ? 1 : 0;
+        }
+        return borrow == 0;
+    }
+
+    static void divide(final long[] digits, final int divisor) {
+        long remainder = 0;
+        for (int digitIdx = DIGITS - 1; digitIdx >= 0; digitIdx--) {
+            final long dividend = (remainder << DIGIT_BITS) | digits[digitIdx];
+            digits[digitIdx] = dividend / divisor;
+            remainder = dividend % divisor;
+        }
+    }
+
+    static int compare(final long[] a, final long[] b) {
+        for (int digitIdx = DIGITS - 1; digitIdx >= 0; digitIdx--) {
+            if (a[digitIdx] != b[digitIdx]) {
+                return a[digitIdx] < b[digitIdx] ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Clear all bits outside the range from lowBit (inclusive) to highBit
+     * (exclusive). A negative low bit is treated as zero.
+     */
+    private static void keepBits(final long[] digits, final int lowBit, final int highBit) {
+        for (int digitIdx = 0; digitIdx < DIGITS; digitIdx++) {
+            final int digitStart = digitIdx * DIGIT_BITS;
+            final int from = Math.max(lowBit - digitStart, 0);
+            final int to = Math.min(highBit - digitStart, DIGIT_BITS);
+            if (from >= to) {
+                digits[digitIdx] = 0;
+            } else {
+                digits[digitIdx] &= ((1L << to) - 1) & ~((1L << from) - 1);
+            }
+        }
+    }
+
+    private static int bitLength(final long[] digits) {
+        for (int digitIdx = DIGITS - 1; digitIdx >= 0; digitIdx--) {
+            if (digits[digitIdx] != 0) {
+                return digitIdx * DIGIT_BITS + (64 - Long.numberOfLeadingZeros(digits[digitIdx]));
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Read up to 32 bits starting from the given bit.
+     */
+    private static long getBits(final long[] digits, final int startBit, final int count) {
+        final int digitIdx = startBit / DIGIT_BITS;
+        final int bitIdx = startBit % DIGIT_BITS;
+        long value = digits[digitIdx] >>> bitIdx;
+        if (digitIdx + 1 < DIGITS) {
+            value |= digits[digitIdx + 1] << (DIGIT_BITS - bitIdx);
+        }
+        return value & ((1L << count) - 1);
+    }
+
+    /**
+     * Convert a non-negative value of up to 288 bits to digits.
+     */
+    static long[] toDigits(final BigInteger value) {
+        final long[] digits = new long[DIGITS];
+        for (int digitIdx = 0; digitIdx < DIGITS; digitIdx++) {
+            digits[digitIdx] = value.shiftRight(digitIdx * DIGIT_BITS).longValue() & DIGIT_MASK;
+        }
+        return digits;
+    }
+
+    static BigInteger toBigInteger(final long[] digits) {
+        BigInteger value = BigInteger.ZERO;
+        for (int digitIdx = DIGITS - 1; digitIdx >= 0; digitIdx--) {
+            value = value.shiftLeft(DIGIT_BITS).or(BigInteger.valueOf(digits[digitIdx]));
+        }
+        return value;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+/**
+ * Digishield retarget, which dampens the actual timespan to an eighth of its
+ * difference from the target, and then limits it to between -25% and +50%.
+ * Blocks before the activation height are retargeted by the given earlier
+ * policy.
+ */
+public class DigishieldRetargetPolicy implements RetargetPolicy {
+    private final int activationHeight;
+    private final int targetTimespan;
+    private final RetargetPolicy earlierPolicy;
+
+    /**
+     * @param activationHeight height of the first block retargeted with
+     * Digishield.
+     * @param targetTimespan timespan from activation.
+     * @param earlierPolicy policy for blocks before activation.
+     */
+    public DigishieldRetargetPolicy(final int activationHeight, final int targetTimespan,
+            final RetargetPolicy earlierPolicy) {
+        this.activationHeight = activationHeight;
+        this.targetTimespan = targetTimespan;
+        this.earlierPolicy = earlierPolicy;
+    }
+
+    @Override
+    public int getRetargetTimespan(final int height) {
+        return height >= activationHeight
+            ? targetTimespan
+            : earlierPolicy.getRetargetTimespan(height);
+    }
+
+    @Override
+    public int limitActualTimespan(final int height, int actualTimespan, final int retargetTimespan) {
+        if (height < activationHeight) {
+            return earlierPolicy.limitActualTimespan(height, actualTimespan, retargetTimespan);
+        }
+        // Integer division rounds towards zero, as the C++ implementation does
+        actualTimespan = retargetTimespan + (actualTimespan - retargetTimespan) / 8;
+        final int minTimespan = retargetTimespan - (retargetTimespan / 4);
+        final int maxTimespan = retargetTimespan + (retargetTimespan / 2);
+        return Math.min(maxTimespan, Math.max(minTimespan, actualTimespan));
+    }
+
+    @Override
+    public int getBlocksBack(final int previousHeight, final int retargetInterval) {
+        return earlierPolicy.getBlocksBack(previousHeight, retargetInterval);
+    }
+
+    public int getActivationHeight() {
+        return activationHeight;
+    }
+}
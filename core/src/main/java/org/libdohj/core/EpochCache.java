@@ -0,0 +1,208 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.Nullable;
+
+/**
+ * <p>Least recently used cache of {@link EthashLightCache}s, by epoch, for an
+ * Ethash derived proof of work.</p>
+ *
+ * <p>Building a light cache takes seconds, and headers near an epoch boundary
+ * need the caches for both epochs, so by default two epochs are kept. Once a
+ * height is half way through its epoch, the next epoch's cache is built on
+ * the executor, so it is normally ready by the time the first header of the
+ * epoch arrives. Each cache's hashing rounds depend on the round before, so
+ * cannot be split; instead, separate epochs are built in parallel on the
+ * executor's threads. A lookup for a cache still being built waits for it,
+ * rather than building it a second time.</p>
+ *
+ * <p>Every epoch held, including one being built, takes the full size of its
+ * light cache on the heap. That is about 76MiB around Ravencoin's epoch 480,
+ * so the default capacity holds about 150MiB, and each further epoch of
+ * capacity adds as much again.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class EpochCache {
+    /** Default number of epochs held; the current epoch and the next. */
+    public static final int DEFAULT_CAPACITY = 2;
+
+    private final int epochLength;
+    private final long initBytes;
+    private final long growthBytes;
+    @Nullable private final Executor executor;
+    private final Map<Integer, FutureTask<EthashLightCache>> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param epochLength number of blocks in an epoch.
+     * @param initBytes light cache size at epoch 0.
+     * @param growthBytes light cache growth per epoch.
+     * @param executor executor to build caches in the background on, or null
+     * to only build caches when they are looked up, in the calling thread.
+     */
+    public EpochCache(final int epochLength, final long initBytes, final long growthBytes,
+            @Nullable final Executor executor) {
+        this(epochLength, initBytes, growthBytes, executor, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param epochLength number of blocks in an epoch.
+     * @param initBytes light cache size at epoch 0.
+     * @param growthBytes light cache growth per epoch.
+     * @param executor executor to build caches in the background on, or null
+     * to only build caches when they are looked up, in the calling thread.
+     * @param capacity maximum number of epochs to retain, including those
+     * being built. Least recently used epochs are evicted first.
+     */
+    public EpochCache(final int epochLength, final long initBytes, final long growthBytes,
+            @Nullable final Executor executor, final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, not " + capacity);
+        }
+        this.epochLength = epochLength;
+        this.initBytes = initBytes;
+        this.growthBytes = growthBytes;
+        this.executor = executor;
+        this.entries = new LinkedHashMap<Integer, FutureTask<EthashLightCache>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, FutureTask<EthashLightCache>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the epoch a block height is in.
+     */
+    public int getEpoch(final int height) {
+        return height / epochLength;
+    }
+
+    /**
+     * Get the light cache for the epoch of the given block height, and start
+     * building the next epoch's cache once the height is half way through
+     * its epoch.
+     */
+    public EthashLightCache getForHeight(final int height) throws InterruptedException {
+        final int epoch = getEpoch(height);
+        if (height % epochLength >= epochLength / 2) {
+            prefetch(epoch + 1);
+        }
+        return get(epoch);
+    }
+
+    /**
+     * Get the light cache for an epoch, building it in the calling thread if
+     * it is not already built or being built, or waiting for it if it is
+     * being built.
+     */
+    public EthashLightCache get(final int epoch) throws InterruptedException {
+        final FutureTask<EthashLightCache> task = getTask(epoch, true);
+        // Does nothing if the task has already been started elsewhere
+        task.run();
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            synchronized (this) {
+                if (entries.get(epoch) == task) {
+                    entries.remove(epoch);
+                }
+            }
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Start building the light cache for an epoch on the executor, if it is
+     * not already built or being built. Does nothing if there is no executor.
+     */
+    public void prefetch(final int epoch) {
+        if (executor == null) {
+            return;
+        }
+        final FutureTask<EthashLightCache> task = getTask(epoch, false);
+        if (task != null) {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Determine whether the light cache for an epoch is built and held.
+     */
+    public synchronized boolean isReady(final int epoch) {
+        final FutureTask<EthashLightCache> task = entries.get(epoch);
+        return task != null && task.isDone();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get the number of lookups and prefetches which found the epoch already
+     * built or being built.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of lookups and prefetches which had to start building
+     * the epoch.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the task building an epoch's light cache, adding a new one if
+     * there is none.
+     *
+     * @param existing whether to return an existing task; if false, null is
+     * returned when the epoch already has one.
+     */
+    @Nullable
+    private synchronized FutureTask<EthashLightCache> getTask(final int epoch, final boolean existing) {
+        FutureTask<EthashLightCache> task = entries.get(epoch);
+        if (task != null) {
+            hits++;
+            return existing ? task : null;
+        }
+        misses++;
+        task = new FutureTask<EthashLightCache>(new Callable<EthashLightCache>() {
+            @Override
+            public EthashLightCache call() {
+                return EthashLightCache.build(epoch, initBytes, growthBytes);
+            }
+        });
+        entries.put(epoch, task);
+        return task;
+    }
+}
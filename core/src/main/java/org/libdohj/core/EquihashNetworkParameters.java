@@ -0,0 +1,32 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+/**
+ * Parameters for networks with Zcash style headers: a 140 byte header,
+ * including a 256 bit nonce, followed by an Equihash solution.
+ */
+public interface EquihashNetworkParameters extends AltcoinNetworkParameters {
+    /**
+     * Get the verifier for this network's Equihash solutions.
+     */
+    EquihashVerifier getEquihashVerifier();
+
+    /**
+     * Whether header copies, as kept in a store, keep their Equihash solution
+     * once it has been verified. Without it a copy can no longer be
+     * serialized, but a chain of headers takes a tenth of the memory.
+     */
+    boolean isEquihashSolutionRetained();
+}
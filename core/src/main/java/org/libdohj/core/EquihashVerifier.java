@@ -0,0 +1,221 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.digests.Blake2bDigest;
+
+/**
+ * <p>Checks Equihash solutions, as used for proof of work by Zcash derived
+ * chains such as Pirate Chain.</p>
+ *
+ * <p>A solution is 2<sup>k</sup> indices, each selecting a BLAKE2b hash of
+ * the header. Rather than building the tree of index lists the reference
+ * implementation does, the hashes are split once into their k + 1
+ * collision chunks, and each level of the tree XORs adjacent rows in place;
+ * the indices under each row are then simply a contiguous run of the
+ * solution. Each thread keeps its own digest and working arrays, so checking
+ * a solution allocates nothing.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class EquihashVerifier {
+    /** Personalization prefix used by Zcash and its derivatives. */
+    public static final String ZCASH_PERSONALIZATION = "ZcashPoW";
+
+    private static final int HASH_OUTPUT_BITS = 512;
+
+    private final int n;
+    private final int k;
+    private final int collisionBitLength;
+    private final int indexBitLength;
+    private final int indexCount;
+    private final int hashBytes;
+    private final int indicesPerHash;
+    private final int hashOutputLength;
+    private final int solutionLength;
+    private final byte[] personalization;
+    private final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    /**
+     * Create a verifier with the Zcash personalization.
+     */
+    public EquihashVerifier(final int n, final int k) {
+        this(n, k, ZCASH_PERSONALIZATION);
+    }
+
+    /**
+     * @param n hash length in bits; a multiple of 8 and of k + 1.
+     * @param k number of collision rounds.
+     * @param prefix personalization prefix, up to 8 ASCII characters, which
+     * is followed by n and k.
+     */
+    public EquihashVerifier(final int n, final int k, final String prefix) {
+        if (k < 1 || n % 8 != 0 || n % (k + 1) != 0 || n / (k + 1) + 1 > 31 || n > HASH_OUTPUT_BITS) {
+            throw new IllegalArgumentException("Unsupported Equihash parameters " + n + ", " + k);
+        }
+        this.n = n;
+        this.k = k;
+        this.collisionBitLength = n / (k + 1);
+        this.indexBitLength = collisionBitLength + 1;
+        this.indexCount = 1 << k;
+        this.hashBytes = n / 8;
+        this.indicesPerHash = HASH_OUTPUT_BITS / n;
+        this.hashOutputLength = indicesPerHash * hashBytes;
+        this.solutionLength = indexCount * indexBitLength / 8;
+
+        final byte[] prefixBytes = prefix.getBytes(Charset.forName("US-ASCII"));
+        if (prefixBytes.length > 8) {
+            throw new IllegalArgumentException("Personalization prefix is too long: " + prefix);
+        }
+        this.personalization = new byte[16];
+        System.arraycopy(prefixBytes, 0, personalization, 0, prefixBytes.length);
+        writeIntLE(n, personalization, 8);
+        writeIntLE(k, personalization, 12);
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * Get the length of a solution, in bytes; 1344 for Equihash(200, 9).
+     */
+    public int getSolutionLength() {
+        return solutionLength;
+    }
+
+    /**
+     * Check an Equihash solution.
+     *
+     * @param input the header without its solution, including the nonce.
+     * @param solution the solution, in its minimal encoding.
+     * @return whether the solution is valid for the input.
+     */
+    public boolean verify(final byte[] input, final int inputOffset, final int inputLength,
+            final byte[] solution, final int solutionOffset, final int solutionLength) {
+        if (solutionLength != this.solutionLength) {
+            return false;
+        }
+        return state.get().verify(input, inputOffset, inputLength, solution, solutionOffset);
+    }
+
+    /**
+     * Check an Equihash solution.
+     *
+     * @param input the header without its solution, including the nonce.
+     * @param solution the solution, in its minimal encoding.
+     */
+    public boolean verify(final byte[] input, final byte[] solution) {
+        return verify(input, 0, input.length, solution, 0, solution.length);
+    }
+
+    private static void writeIntLE(final int value, final byte[] bytes, final int offset) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+
+    /**
+     * Read a big endian run of bits from a byte array.
+     */
+    private static int readBits(final byte[] bytes, final int offset, final int bitOffset, final int bitLength) {
+        int value = 0;
+        for (int bitIdx = bitOffset; bitIdx < bitOffset + bitLength; bitIdx++) {
+            final int bit = (bytes[offset + (bitIdx >>> 3)] >>> (7 - (bitIdx & 7))) & 1;
+            value = (value << 1) | bit;
+        }
+        return value;
+    }
+
+    private final class State {
+        private final Blake2bDigest digest = new Blake2bDigest(null, hashOutputLength, null, personalization);
+        private final byte[] hash = new byte[hashOutputLength];
+        private final byte[] hashIndex = new byte[4];
+        private final int[] indices = new int[indexCount];
+        private final int[] sorted = new int[indexCount];
+        /** Collision chunks of each row, k + 1 per row. */
+        private final int[] chunks = new int[indexCount * (k + 1)];
+
+        private boolean verify(final byte[] input, final int inputOffset, final int inputLength,
+                final byte[] solution, final int solutionOffset) {
+            for (int indexIdx = 0; indexIdx < indexCount; indexIdx++) {
+                indices[indexIdx] = readBits(solution, solutionOffset, indexIdx * indexBitLength, indexBitLength);
+            }
+
+            // All indices must be distinct
+            System.arraycopy(indices, 0, sorted, 0, indexCount);
+            Arrays.sort(sorted);
+            for (int indexIdx = 1; indexIdx < indexCount; indexIdx++) {
+                if (sorted[indexIdx] == sorted[indexIdx - 1]) {
+                    return false;
+                }
+            }
+
+            // Each pair of subtrees must be in order of their first index
+            for (int level = 0; level < k; level++) {
+                final int span = 1 << level;
+                for (int left = 0; left < indexCount; left += span * 2) {
+                    if (indices[left] >= indices[left + span]) {
+                        return false;
+                    }
+                }
+            }
+
+            for (int indexIdx = 0; indexIdx < indexCount; indexIdx++) {
+                final int index = indices[indexIdx];
+                digest.reset();
+                digest.update(input, inputOffset, inputLength);
+                writeIntLE(index / indicesPerHash, hashIndex, 0);
+                digest.update(hashIndex, 0, 4);
+                digest.doFinal(hash, 0);
+                final int hashOffset = (index % indicesPerHash) * hashBytes;
+                for (int chunkIdx = 0; chunkIdx <= k; chunkIdx++) {
+                    chunks[indexIdx * (k + 1) + chunkIdx]
+                        = readBits(hash, hashOffset, chunkIdx * collisionBitLength, collisionBitLength);
+                }
+            }
+
+            // Combine adjacent rows, which must collide on the next chunk
+            int rows = indexCount;
+            for (int level = 0; level < k; level++) {
+                for (int row = 0; row < rows; row += 2) {
+                    final int left = row * (k + 1);
+                    final int right = left + k + 1;
+                    if (chunks[left + level] != chunks[right + level]) {
+                        return false;
+                    }
+                    final int combined = (row / 2) * (k + 1);
+                    for (int chunkIdx = level + 1; chunkIdx <= k; chunkIdx++) {
+                        chunks[combined + chunkIdx] = chunks[left + chunkIdx] ^ chunks[right + chunkIdx];
+                    }
+                }
+                rows /= 2;
+            }
+            return chunks[k] == 0;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+import org.bouncycastle.crypto.digests.KeccakDigest;
+
+/**
+ * <p>Ethash light cache for one epoch, from which items of the full dataset
+ * can be calculated on demand. Ethash derived proofs of work, such as
+ * Ravencoin's KAWPOW and FiroPoW, verify a header against the light cache
+ * without building the dataset itself.</p>
+ *
+ * <p>The cache is held as little endian 32 bit words, on the heap. With the
+ * Ethereum and KAWPOW sizes it is 16MiB at epoch 0 and grows by 128KiB each
+ * epoch, so is about 76MiB around Ravencoin's epoch 480. Building it is
+ * expensive, as each of its three passes depends on the one before, so
+ * callers should keep built caches; see {@link EpochCache}. Dataset items
+ * depend only on the cache, so ranges of them are calculated in parallel.
+ * Instances are immutable once built, and so thread safe.</p>
+ */
+public class EthashLightCache {
+    /** Length of a cache item, in bytes. */
+    public static final int HASH_BYTES = 64;
+    /** Number of 32 bit words in a cache item. */
+    public static final int HASH_WORDS = HASH_BYTES / 4;
+    /** Light cache size at epoch 0, used by Ethereum and KAWPOW. */
+    public static final long CACHE_BYTES_INIT = 1L << 24;
+    /** Growth of the light cache per epoch, used by Ethereum and KAWPOW. */
+    public static final long CACHE_BYTES_GROWTH = 1L << 17;
+
+    private static final int CACHE_ROUNDS = 3;
+    /** Minimum number of dataset items calculated by each worker task. */
+    private static final int MIN_ITEMS_PER_TASK = 1024;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private final int epoch;
+    private final int[] words;
+    private final int itemCount;
+
+    private EthashLightCache(final int epoch, final int[] words) {
+        this.epoch = epoch;
+        this.words = words;
+        this.itemCount = words.length / HASH_WORDS;
+    }
+
+    /**
+     * Build the light cache for an epoch, with the Ethereum and KAWPOW
+     * cache sizes.
+     */
+    public static EthashLightCache build(final int epoch) {
+        return build(epoch, CACHE_BYTES_INIT, CACHE_BYTES_GROWTH);
+    }
+
+    /**
+     * Build the light cache for an epoch.
+     *
+     * @param epoch the epoch, which sets the seed and size.
+     * @param initBytes cache size at epoch 0, before rounding down to a prime
+     * number of items.
+     * @param growthBytes cache growth per epoch.
+     */
+    public static EthashLightCache build(final int epoch, final long initBytes, final long growthBytes) {
+        final int itemCount = (int) (getCacheSize(epoch, initBytes, growthBytes) / HASH_BYTES);
+        final int[] words = new int[itemCount * HASH_WORDS];
+        final KeccakDigest keccak = new KeccakDigest(512);
+        final byte[] item = new byte[HASH_BYTES];
+
+        // Sequentially hash the seed to fill the cache
+        final byte[] seed = getSeedHash(epoch);
+        keccak.update(seed, 0, seed.length);
+        keccak.doFinal(item, 0);
+        toWords(item, words, 0);
+        for (int itemIdx = 1; itemIdx < itemCount; itemIdx++) {
+            keccak.update(item, 0, HASH_BYTES);
+            keccak.doFinal(item, 0);
+            toWords(item, words, itemIdx * HASH_WORDS);
+        }
+
+        // Strict memory hard hashing rounds (RandMemoHash)
+        final int[] mixed = new int[HASH_WORDS];
+        for (int round = 0; round < CACHE_ROUNDS; round++) {
+            for (int itemIdx = 0; itemIdx < itemCount; itemIdx++) {
+                final int offset = itemIdx * HASH_WORDS;
+                final int other = (int) ((words[offset] & 0xffffffffL) % itemCount) * HASH_WORDS;
+                final int prev = ((itemIdx - 1 + itemCount) % itemCount) * HASH_WORDS;
+                for (int wordIdx = 0; wordIdx < HASH_WORDS; wordIdx++) {
+                    mixed[wordIdx] = words[prev + wordIdx] ^ words[other + wordIdx];
+                }
+                keccak512(keccak, mixed, 0, item, words, offset);
+            }
+        }
+        return new EthashLightCache(epoch, words);
+    }
+
+    /**
+     * Get the size of the light cache for an epoch, in bytes; the largest
+     * prime number of items within the epoch's size.
+     */
+    public static long getCacheSize(final int epoch, final long initBytes, final long growthBytes) {
+        long size = initBytes + growthBytes * epoch - HASH_BYTES;
+        while (!isPrime(size / HASH_BYTES)) {
+            size -= 2 * HASH_BYTES;
+        }
+        return size;
+    }
+
+    /**
+     * Get the seed hash for an epoch; Keccak-256 applied to 32 zero bytes
+     * once for each epoch.
+     */
+    public static byte[] getSeedHash(final int epoch) {
+        final byte[] seed = new byte[32];
+        final KeccakDigest keccak = new KeccakDigest(256);
+        for (int epochIdx = 0; epochIdx < epoch; epochIdx++) {
+            keccak.update(seed, 0, seed.length);
+            keccak.doFinal(seed, 0);
+        }
+        return seed;
+    }
+
+    /**
+     * Calculate an item of the full dataset, as {@link #HASH_WORDS} little
+     * endian words.
+     *
+     * @param index index of the dataset item.
+     * @param parents number of cache items mixed into the dataset item; 256
+     * for Ethereum, 512 for ProgPoW based proofs of work.
+     * @param output array to write the item to.
+     * @param outputOffset offset to write the item at.
+     */
+    public void calculateDatasetItem(final int index, final int parents, final int[] output,
+            final int outputOffset) {
+        calculateDatasetItem(index, parents, output, outputOffset,
+            new KeccakDigest(512), new byte[HASH_BYTES], new int[HASH_WORDS]);
+    }
+
+    /**
+     * Calculate consecutive items of the full dataset. Unlike the cache,
+     * each dataset item depends only on the cache, so the range is split
+     * across the executor's workers.
+     *
+     * @param start index of the first dataset item.
+     * @param count number of dataset items to calculate.
+     * @param parents number of cache items mixed into each dataset item.
+     * @param output array to write the items to, {@link #HASH_WORDS} words
+     * each.
+     * @param outputOffset offset to write the first item at.
+     * @param executor workers to calculate items on, or null to calculate
+     * them in the calling thread.
+     */
+    public void calculateDatasetItems(final int start, final int count, final int parents,
+            final int[] output, final int outputOffset, @Nullable final ExecutorService executor)
+        throws InterruptedException {
+        if (executor == null) {
+            calculateDatasetRange(start, start + count, parents, output, outputOffset);
+            return;
+        }
+        final int taskCount = Math.max(1,
+            Math.min(Runtime.getRuntime().availableProcessors(), count / MIN_ITEMS_PER_TASK));
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>(taskCount);
+        for (int taskIdx = 0; taskIdx < taskCount; taskIdx++) {
+            final int taskStart = start + (int) ((long) count * taskIdx / taskCount);
+            final int taskEnd = start + (int) ((long) count * (taskIdx + 1) / taskCount);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    calculateDatasetRange(taskStart, taskEnd, parents, output,
+                        outputOffset + (taskStart - start) * HASH_WORDS);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Calculate dataset items from the start index (inclusive) to the end
+     * index (exclusive), writing them consecutively from the output offset.
+     */
+    private void calculateDatasetRange(final int start, final int end, final int parents, final int[] output,
+            final int outputOffset) {
+        final KeccakDigest keccak = new KeccakDigest(512);
+        final byte[] scratch = new byte[HASH_BYTES];
+        final int[] mix = new int[HASH_WORDS];
+        for (int index = start; index < end; index++) {
+            calculateDatasetItem(index, parents, output, outputOffset + (index - start) * HASH_WORDS,
+                keccak, scratch, mix);
+        }
+    }
+
+    private void calculateDatasetItem(final int index, final int parents, final int[] output,
+            final int outputOffset, final KeccakDigest keccak, final byte[] scratch, final int[] mix) {
+        System.arraycopy(words, (int) ((index & 0xffffffffL) % itemCount) * HASH_WORDS, mix, 0, HASH_WORDS);
+        mix[0] ^= index;
+        keccak512(keccak, mix, 0, scratch, mix, 0);
+        for (int parentIdx = 0; parentIdx < parents; parentIdx++) {
+            final int parent = fnv(index ^ parentIdx, mix[parentIdx % HASH_WORDS]);
+            final int parentOffset = (int) ((parent & 0xffffffffL) % itemCount) * HASH_WORDS;
+            for (int wordIdx = 0; wordIdx < HASH_WORDS; wordIdx++) {
+                mix[wordIdx] = fnv(mix[wordIdx], words[parentOffset + wordIdx]);
+            }
+        }
+        keccak512(keccak, mix, 0, scratch, output, outputOffset);
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Get the number of {@link #HASH_BYTES} byte items in the cache.
+     */
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * Get a word of the cache.
+     */
+    public int getWord(final int index) {
+        return words[index];
+    }
+
+    private static int fnv(final int v1, final int v2) {
+        return (v1 * FNV_PRIME) ^ v2;
+    }
+
+    /**
+     * Hash {@link #HASH_WORDS} words with Keccak-512, writing the result as
+     * words. The input and output may overlap.
+     */
+    private static void keccak512(final KeccakDigest keccak, final int[] input, final int inputOffset,
+            final byte[] scratch, final int[] output, final int outputOffset) {
+        for (int wordIdx = 0; wordIdx < HASH_WORDS; wordIdx++) {
+            final int word = input[inputOffset + wordIdx];
+            scratch[wordIdx * 4] = (byte) word;
+            scratch[wordIdx * 4 + 1] = (byte) (word >>> 8);
+            scratch[wordIdx * 4 + 2] = (byte) (word >>> 16);
+            scratch[wordIdx * 4 + 3] = (byte) (word >>> 24);
+        }
+        keccak.update(scratch, 0, HASH_BYTES);
+        keccak.doFinal(scratch, 0);
+        toWords(scratch, output, outputOffset);
+    }
+
+    private static void toWords(final byte[] bytes, final int[] words, final int offset) {
+        for (int wordIdx = 0; wordIdx < HASH_WORDS; wordIdx++) {
+            words[offset + wordIdx] = (bytes[wordIdx * 4] & 0xff)
+                | (bytes[wordIdx * 4 + 1] & 0xff) << 8
+                | (bytes[wordIdx * 4 + 2] & 0xff) << 16
+                | (bytes[wordIdx * 4 + 3] & 0xff) << 24;
+        }
+    }
+
+    private static boolean isPrime(final long value) {
+        if (value < 2) {
+            return false;
+        }
+        if (value % 2 == 0) {
+            return value == 2;
+        }
+        for (long divisor = 3; divisor * divisor <= value; divisor += 2) {
+            if (value % divisor == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
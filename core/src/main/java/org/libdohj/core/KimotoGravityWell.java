@@ -0,0 +1,245 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+/**
+ * <p>Kimoto Gravity Well difficulty calculation, as used by Firo. The target
+ * is the average of the targets of recent blocks, scaled by how far their
+ * times are from the target spacing, where the number of blocks averaged is
+ * the first, after a minimum, at which the rate strays past the "event
+ * horizon" for that many blocks.</p>
+ *
+ * <p>The times and decoded targets of the last blocks are held in a rolling
+ * window, which advances by one block as each block connects. The block store
+ * is only walked to fill the window when it starts cold, or after a
+ * reorganisation. The running average depends on which block it starts from,
+ * so is still calculated on each block, but over the window's arrays with
+ * fixed width arithmetic, and with the event horizon for each number of
+ * blocks calculated once up front.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class KimotoGravityWell {
+    /** Returned where the block store does not hold enough ancestors, such as after starting from a checkpoint. */
+    public static final long UNKNOWN = -1;
+
+    private final long[] maxTargetDigits;
+    private final long maxTargetCompact;
+    private final int targetSpacing;
+    private final int pastBlocksMin;
+    private final int pastBlocksMax;
+    /** Event horizon deviation for each number of blocks averaged. */
+    private final double[] eventHorizonDeviation;
+
+    private final byte[] hashes;
+    private final long[] times;
+    private final long[][] targets;
+    private final long[] average = new long[DifficultyEngine.DIGITS];
+    private final long[] difference = new long[DifficultyEngine.DIGITS];
+    /** Height of the newest block in the window, or -1 if empty. */
+    private int tipHeight = -1;
+    /** Number of consecutive blocks in the window, ending at the tip. */
+    private int count;
+
+    /**
+     * @param maxTarget the easiest target allowed.
+     * @param targetSpacing target time between blocks, in seconds.
+     * @param pastBlocksMin number of blocks always averaged over.
+     * @param pastBlocksMax most blocks ever averaged over.
+     */
+    public KimotoGravityWell(final BigInteger maxTarget, final int targetSpacing, final int pastBlocksMin,
+            final int pastBlocksMax) {
+        if (pastBlocksMin < 1 || pastBlocksMax < pastBlocksMin) {
+            throw new IllegalArgumentException("Invalid window of " + pastBlocksMin + " to " + pastBlocksMax
+                + " blocks");
+        }
+        if ((long) targetSpacing * pastBlocksMax > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Window of " + pastBlocksMax + " blocks is too long");
+        }
+        this.maxTargetDigits = DifficultyEngine.toDigits(maxTarget);
+        this.maxTargetCompact = DifficultyEngine.encodeCompact(maxTargetDigits);
+        this.targetSpacing = targetSpacing;
+        this.pastBlocksMin = pastBlocksMin;
+        this.pastBlocksMax = pastBlocksMax;
+        this.eventHorizonDeviation = new double[pastBlocksMax + 1];
+        for (int mass = 1; mass <= pastBlocksMax; mass++) {
+            eventHorizonDeviation[mass] = 1 + (0.7084 * Math.pow((double) mass / 28.2, -1.228));
+        }
+        this.hashes = new byte[pastBlocksMax * Sha256Hash.LENGTH];
+        this.times = new long[pastBlocksMax];
+        this.targets = new long[pastBlocksMax][DifficultyEngine.DIGITS];
+    }
+
+    /**
+     * Get the difficulty target expected for the block after the given one.
+     *
+     * @param storedPrev the block immediately before the block to check.
+     * @param blockStore store to fill the window from, where it does not
+     * already hold the previous blocks.
+     * @return the compact target, or {@link #UNKNOWN} if the block store does
+     * not hold enough ancestors to calculate it.
+     * @throws VerificationException if an ancestor has difficulty bits no
+     * valid block could have.
+     */
+    public synchronized long getNextTarget(final StoredBlock storedPrev, final BlockStore blockStore)
+        throws VerificationException, BlockStoreException {
+        final int height = storedPrev.getHeight();
+        if (height == 0 || height < pastBlocksMin) {
+            return maxTargetCompact;
+        }
+        if (!advance(storedPrev, blockStore)) {
+            return UNKNOWN;
+        }
+
+        // The genesis block is never included
+        final int available = Math.min(pastBlocksMax, height);
+        final long lastSolvedTime = times[slot(tipHeight)];
+        long pastRateActualSeconds = 0;
+        long pastRateTargetSeconds = 0;
+        for (int mass = 1; mass <= available; mass++) {
+            final long[] target = targets[slot(tipHeight - mass + 1)];
+            if (mass == 1) {
+                System.arraycopy(target, 0, average, 0, DifficultyEngine.DIGITS);
+            } else {
+                // Move the average towards this target, rounding towards the previous average
+                System.arraycopy(target, 0, difference, 0, DifficultyEngine.DIGITS);
+                if (DifficultyEngine.compare(difference, average) >= 0) {
+                    DifficultyEngine.subtract(difference, average);
+                    DifficultyEngine.divide(difference, mass);
+                    DifficultyEngine.add(average, difference);
+                } else {
+                    System.arraycopy(average, 0, difference, 0, DifficultyEngine.DIGITS);
+                    DifficultyEngine.subtract(difference, target);
+                    DifficultyEngine.divide(difference, mass);
+                    DifficultyEngine.subtract(average, difference);
+                }
+            }
+
+            pastRateActualSeconds = Math.max(lastSolvedTime - times[slot(tipHeight - mass + 1)], 0);
+            pastRateTargetSeconds = (long) targetSpacing * mass;
+            double pastRateAdjustmentRatio = 1.0;
+            if (pastRateActualSeconds != 0 && pastRateTargetSeconds != 0) {
+                pastRateAdjustmentRatio = (double) pastRateTargetSeconds / (double) pastRateActualSeconds;
+            }
+            if (mass >= pastBlocksMin) {
+                final double fast = eventHorizonDeviation[mass];
+                final double slow = 1 / fast;
+                if (pastRateAdjustmentRatio <= slow || pastRateAdjustmentRatio >= fast) {
+                    break;
+                }
+            }
+        }
+
+        if (pastRateActualSeconds != 0 && pastRateTargetSeconds != 0) {
+            DifficultyEngine.multiply(average, (int) pastRateActualSeconds);
+            DifficultyEngine.divide(average, (int) pastRateTargetSeconds);
+        }
+        if (DifficultyEngine.compare(average, maxTargetDigits) > 0) {
+            return maxTargetCompact;
+        }
+        return DifficultyEngine.encodeCompact(average);
+    }
+
+    /**
+     * Get the number of consecutive blocks held in the window.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized void clear() {
+        tipHeight = -1;
+        count = 0;
+    }
+
+    /**
+     * Move the window to end at the given block, filling it from the block
+     * store if it does not already end at, or just before, that block.
+     *
+     * @return false if the block store does not hold enough ancestors.
+     */
+    private boolean advance(final StoredBlock storedPrev, final BlockStore blockStore)
+        throws VerificationException, BlockStoreException {
+        final Block header = storedPrev.getHeader();
+        final int height = storedPrev.getHeight();
+        final int needed = Math.min(pastBlocksMax, height);
+        if (count > 0 && height == tipHeight && hashEquals(tipHeight, header.getHash())) {
+            return count >= needed || fill(storedPrev, needed, blockStore);
+        }
+        if (count > 0 && height == tipHeight + 1 && hashEquals(tipHeight, header.getPrevBlockHash())) {
+            store(storedPrev);
+            tipHeight = height;
+            count = Math.min(count + 1, pastBlocksMax);
+            return count >= needed || fill(storedPrev, needed, blockStore);
+        }
+
+        // Cold, or a reorganisation
+        return fill(storedPrev, needed, blockStore);
+    }
+
+    /**
+     * Fill the window with the given number of blocks from the block store,
+     * ending at the given block.
+     */
+    private boolean fill(final StoredBlock storedPrev, final int needed, final BlockStore blockStore)
+        throws VerificationException, BlockStoreException {
+        clear();
+        StoredBlock cursor = storedPrev;
+        for (int blockIdx = 0; blockIdx < needed; blockIdx++) {
+            if (cursor == null) {
+                return false;
+            }
+            store(cursor);
+            cursor = blockIdx < needed - 1 ? cursor.getPrev(blockStore) : null;
+        }
+        tipHeight = storedPrev.getHeight();
+        count = needed;
+        return true;
+    }
+
+    private void store(final StoredBlock block) throws VerificationException {
+        final Block header = block.getHeader();
+        final int slot = slot(block.getHeight());
+        if (!DifficultyEngine.decodeCompact(header.getDifficultyTarget(), targets[slot])) {
+            throw new VerificationException("Difficulty bits are negative or overflow: "
+                + Long.toHexString(header.getDifficultyTarget()));
+        }
+        times[slot] = header.getTimeSeconds();
+        System.arraycopy(header.getHash().getBytes(), 0, hashes, slot * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+    }
+
+    private boolean hashEquals(final int height, final Sha256Hash hash) {
+        final byte[] bytes = hash.getBytes();
+        final int offset = slot(height) * Sha256Hash.LENGTH;
+        for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+            if (hashes[offset + byteIdx] != bytes[byteIdx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int slot(final int height) {
+        return height % pastBlocksMax;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+/**
+ * <p>Tracks the median time past of the chain tip; the median time of the
+ * last {@value #SPAN} blocks, which each block's time must be after.</p>
+ *
+ * <p>The times of the last {@value #SPAN} blocks are held sorted. When a block
+ * extends the tip, the time leaving the span is removed and the new one
+ * inserted, so the median is read directly rather than sorting the span for
+ * each header. Recent block times are also held in an {@link AncestorIndex},
+ * so moving the tip back to an earlier block, or across to a short fork,
+ * rebuilds the span from memory. The block store is only walked when the
+ * tracker starts cold, or after a reorganisation deeper than that history.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class MedianTimePast {
+    /** Number of blocks the median is taken over. */
+    public static final int SPAN = 11;
+    /** Returned where the block store does not hold enough ancestors, such as after starting from a checkpoint. */
+    public static final long UNKNOWN = -1;
+
+    private static final int DEFAULT_HISTORY = 1 << 8;
+
+    private final AncestorIndex history;
+    /** Times of the blocks in the span, in ascending order. */
+    private final long[] sorted = new long[SPAN];
+    /** Number of blocks in the span; fewer than the full span near the start of the chain. */
+    private int size;
+    private int tipHeight = -1;
+    private final byte[] tipHash = new byte[Sha256Hash.LENGTH];
+
+    public MedianTimePast() {
+        this(DEFAULT_HISTORY);
+    }
+
+    /**
+     * @param history number of recent block times to retain, and so how deep
+     * a reorganisation can be without walking the block store.
+     */
+    public MedianTimePast(final int history) {
+        this.history = new AncestorIndex(Math.max(history, SPAN + 1));
+    }
+
+    /**
+     * Get the median time past of the given block.
+     *
+     * @param storedPrev the newest block of the span.
+     * @param blockStore store to search, where the block times are not
+     * already held.
+     * @return the median time in seconds, or {@link #UNKNOWN} if the block store
+     * does not hold enough ancestors to calculate it.
+     */
+    public synchronized long getMedianTimePast(final StoredBlock storedPrev, final BlockStore blockStore)
+        throws BlockStoreException {
+        return moveTo(storedPrev, blockStore) ? sorted[size / 2] : UNKNOWN;
+    }
+
+    public synchronized void clear() {
+        history.clear();
+        tipHeight = -1;
+        size = 0;
+    }
+
+    /**
+     * Move the span to end at the given block.
+     *
+     * @return false if the block store does not hold enough ancestors.
+     */
+    private boolean moveTo(final StoredBlock block, final BlockStore blockStore) throws BlockStoreException {
+        final Block header = block.getHeader();
+        final int height = block.getHeight();
+        if (height == tipHeight && tipEquals(header.getHash())) {
+            return true;
+        }
+        final boolean extendsTip = height == tipHeight + 1 && tipEquals(header.getPrevBlockHash());
+        history.add(block);
+        final int span = Math.min(SPAN, height + 1);
+        if (extendsTip && size == SPAN) {
+            final long evicted = history.getTimeSeconds(block, SPAN);
+            if (evicted != AncestorIndex.MISS) {
+                remove(evicted);
+                insert(header.getTimeSeconds());
+                setTip(block);
+                return true;
+            }
+        } else if (extendsTip && size == span - 1) {
+            insert(header.getTimeSeconds());
+            setTip(block);
+            return true;
+        }
+
+        // Rebuild the span, from the history where it holds the ancestors
+        tipHeight = -1;
+        size = 0;
+        if (history.getTimeSeconds(block, span - 1) == AncestorIndex.MISS && !fill(block, span, blockStore)) {
+            return false;
+        }
+        for (int depth = 0; depth < span; depth++) {
+            insert(history.getTimeSeconds(block, depth));
+        }
+        setTip(block);
+        return true;
+    }
+
+    /**
+     * Record the given number of blocks ending at the given block in the
+     * history, from the block store.
+     */
+    private boolean fill(final StoredBlock block, final int count, final BlockStore blockStore)
+        throws BlockStoreException {
+        final List<StoredBlock> ancestors = new ArrayList<StoredBlock>(count);
+        StoredBlock cursor = block;
+        for (int blockIdx = 0; blockIdx < count; blockIdx++) {
+            if (cursor == null) {
+                return false;
+            }
+            ancestors.add(cursor);
+            cursor = blockIdx < count - 1 ? cursor.getPrev(blockStore) : null;
+        }
+        for (int blockIdx = ancestors.size() - 1; blockIdx >= 0; blockIdx--) {
+            history.add(ancestors.get(blockIdx));
+        }
+        return true;
+    }
+
+    private void insert(final long time) {
+        int idx = size;
+        while (idx > 0 && sorted[idx - 1] > time) {
+            sorted[idx] = sorted[idx - 1];
+            idx--;
+        }
+        sorted[idx] = time;
+        size++;
+    }
+
+    private void remove(final long time) {
+        int idx = 0;
+        while (sorted[idx] != time) {
+            idx++;
+        }
+        System.arraycopy(sorted, idx + 1, sorted, idx, size - idx - 1);
+        size--;
+    }
+
+    private void setTip(final StoredBlock block) {
+        tipHeight = block.getHeight();
+        System.arraycopy(block.getHeader().getHash().getBytes(), 0, tipHash, 0, Sha256Hash.LENGTH);
+    }
+
+    private boolean tipEquals(final Sha256Hash hash) {
+        final byte[] bytes = hash.getBytes();
+        for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+            if (tipHash[byteIdx] != bytes[byteIdx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
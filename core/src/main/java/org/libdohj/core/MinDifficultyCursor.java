@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+/**
+ * <p>Finds the difficulty target of the last block not mined under the testnet
+ * special minimum difficulty rule, which is what the next block must match
+ * when it is not itself a minimum difficulty block.</p>
+ *
+ * <p>Rather than walking back through every minimum difficulty block each
+ * time, the answer is memoized against the hash of the block it was found
+ * for. As each block connects, the answer for its parent is normally already
+ * known, so the search is a single map lookup. As a block hash fixes its
+ * ancestry, memoized answers remain correct across reorganisations; blocks on
+ * a new branch simply have no entry until they are looked up, and entries for
+ * abandoned branches age out of the bounded map.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class MinDifficultyCursor {
+    private static final int DEFAULT_CAPACITY = 1000;
+
+    private final long minDifficultyTarget;
+    private final Map<Sha256Hash, Entry> entries;
+
+    /**
+     * @param maxTarget the easiest target allowed, which minimum difficulty
+     * blocks are mined at.
+     */
+    public MinDifficultyCursor(final BigInteger maxTarget) {
+        this(maxTarget, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param maxTarget the easiest target allowed, which minimum difficulty
+     * blocks are mined at.
+     * @param capacity maximum number of blocks to retain answers for. Least
+     * recently used entries are evicted first.
+     */
+    public MinDifficultyCursor(final BigInteger maxTarget, final int capacity) {
+        this.minDifficultyTarget = Utils.encodeCompactBits(maxTarget);
+        this.entries = new LinkedHashMap<Sha256Hash, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Sha256Hash, MinDifficultyCursor.Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the difficulty target of the last block, at or before the given
+     * block, which is either a retarget block or not a minimum difficulty
+     * block. If the search reaches the start of the block store, the target
+     * of the earliest block found is returned.
+     *
+     * @param storedPrev block to search back from.
+     * @param retargetInterval number of blocks between retargets.
+     * @param blockStore store to search, where the answer is not memoized.
+     */
+    public synchronized long getLastNonMinDifficultyTarget(final StoredBlock storedPrev, final int retargetInterval,
+            final BlockStore blockStore) throws BlockStoreException {
+        final Sha256Hash tipHash = storedPrev.getHeader().getHash();
+        Long result = lookup(tipHash, retargetInterval);
+        StoredBlock cursor = storedPrev;
+
+        while (result == null) {
+            final Block header = cursor.getHeader();
+            if (cursor.getHeight() % retargetInterval == 0
+                    || header.getDifficultyTarget() != minDifficultyTarget) {
+                result = header.getDifficultyTarget();
+                break;
+            }
+            result = lookup(header.getPrevBlockHash(), retargetInterval);
+            if (result == null) {
+                final StoredBlock prevCursor = cursor.getPrev(blockStore);
+                if (prevCursor == null) {
+                    result = header.getDifficultyTarget();
+                    break;
+                }
+                cursor = prevCursor;
+            }
+        }
+
+        entries.put(tipHash, new Entry(result, retargetInterval));
+        return result;
+    }
+
+    /**
+     * Get the number of blocks answers are held for.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private Long lookup(final Sha256Hash hash, final int retargetInterval) {
+        final Entry entry = entries.get(hash);
+        return entry == null || entry.retargetInterval != retargetInterval ? null : entry.target;
+    }
+
+    private static class Entry {
+        private final long target;
+        /** Retarget blocks end the search, so answers depend on the interval. */
+        private final int retargetInterval;
+
+        private Entry(final long target, final int retargetInterval) {
+            this.target = target;
+            this.retargetInterval = retargetInterval;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+/**
+ * <p>DigiByte MultiShield (difficulty version 4) calculation, which sets the
+ * target for each mining algorithm from the last block mined with it, adjusted
+ * by the recent rate of blocks across all algorithms.</p>
+ *
+ * <p>The last block of each algorithm is kept in an index which is updated as
+ * each block connects, so finding it does not scan back through the chain.
+ * After a reorganisation the index is rebuilt lazily, scanning back from the
+ * new tip only as far as the algorithms asked for require. Block times for the
+ * median time past calculations come from an {@link AncestorIndex}.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class MultiShield {
+    /** Number of mining algorithms in use at once. */
+    public static final int NUM_ALGOS = 5;
+    /** Returned where the block store does not hold enough ancestors, such as after starting from a checkpoint. */
+    public static final long UNKNOWN = -1;
+
+    private static final int AVERAGING_INTERVAL = 10;
+    private static final int MAX_ADJUST_DOWN = 16;
+    private static final int MAX_ADJUST_UP = 8;
+    private static final int LOCAL_TARGET_ADJUSTMENT = 4;
+    private static final int MEDIAN_TIME_SPAN = 11;
+    /** Algorithm IDs are small integers, up to and including ODO. */
+    private static final int ALGO_SLOTS = AltcoinBlock.ALGO_ODO + 1;
+    /** Number of 32 bit digits in a 256 bit value. */
+    private static final int TARGET_DIGITS = 8;
+
+    private final long[] maxTargetDigits;
+    private final long maxTargetCompact;
+    private final int targetSpacing;
+    private final boolean allowMinDifficultyBlocks;
+    private final int averagingTargetTimespan;
+    private final int minActualTimespan;
+    private final int maxActualTimespan;
+
+    private final AncestorIndex times = new AncestorIndex(AVERAGING_INTERVAL * NUM_ALGOS + MEDIAN_TIME_SPAN);
+    private final long[] scratch = new long[DifficultyEngine.DIGITS];
+    private final long[] medianScratch = new long[MEDIAN_TIME_SPAN];
+
+    /** Tip of the chain the index describes, or null if empty. */
+    @Nullable private StoredBlock tip;
+    private final int[] lastHeights = new int[ALGO_SLOTS];
+    private final long[] lastTargets = new long[ALGO_SLOTS];
+    /** Oldest block not yet scanned for the index, or null once the scan reaches the start of the store. */
+    @Nullable private StoredBlock scanCursor;
+    /** Whether the scan stopped at the start of the block store rather than the genesis block. */
+    private boolean scanHitCheckpoint;
+
+    /**
+     * @param maxTarget the easiest target allowed.
+     * @param targetSpacing target time between blocks of any algorithm, in
+     * seconds.
+     * @param allowMinDifficultyBlocks whether testnet minimum difficulty
+     * blocks are ignored when finding the last block of an algorithm.
+     */
+    public MultiShield(final BigInteger maxTarget, final int targetSpacing, final boolean allowMinDifficultyBlocks) {
+        this.maxTargetDigits = DifficultyEngine.toDigits(maxTarget);
+        this.maxTargetCompact = DifficultyEngine.encodeCompact(maxTargetDigits);
+        this.targetSpacing = targetSpacing;
+        this.allowMinDifficultyBlocks = allowMinDifficultyBlocks;
+        this.averagingTargetTimespan = AVERAGING_INTERVAL * targetSpacing * NUM_ALGOS;
+        this.minActualTimespan = averagingTargetTimespan * (100 - MAX_ADJUST_UP) / 100;
+        this.maxActualTimespan = averagingTargetTimespan * (100 + MAX_ADJUST_DOWN) / 100;
+        clear();
+    }
+
+    /**
+     * Get the difficulty target expected for a block of the given algorithm
+     * after the given block.
+     *
+     * @param storedPrev the block immediately before the block to check.
+     * @param algo mining algorithm of the block to check.
+     * @param blockStore store to search, where the indexes do not already
+     * hold the blocks needed.
+     * @return the compact target, or {@link #UNKNOWN} if the block store does
+     * not hold enough ancestors to calculate it.
+     * @throws VerificationException if the block used has difficulty bits no
+     * valid block could have.
+     */
+    public synchronized long getNextTarget(final StoredBlock storedPrev, final int algo,
+            final BlockStore blockStore) throws VerificationException, BlockStoreException {
+        if (algo < 0 || algo >= ALGO_SLOTS) {
+            throw new IllegalArgumentException("Unknown algorithm " + algo);
+        }
+        connect(storedPrev);
+
+        final int firstDepth = NUM_ALGOS * AVERAGING_INTERVAL;
+        if (!fillTimes(storedPrev, firstDepth + MEDIAN_TIME_SPAN - 1, blockStore)) {
+            return UNKNOWN;
+        }
+        if (storedPrev.getHeight() < firstDepth || !findLastForAlgo(algo, blockStore)) {
+            return scanHitCheckpoint ? UNKNOWN : maxTargetCompact;
+        }
+
+        // Limit adjustment step, using medians to prevent time warp attacks
+        long actualTimespan = getMedianTimePast(storedPrev, 0) - getMedianTimePast(storedPrev, firstDepth);
+        actualTimespan = averagingTargetTimespan + (actualTimespan - averagingTargetTimespan) / 4;
+        actualTimespan = Math.max(actualTimespan, minActualTimespan);
+        actualTimespan = Math.min(actualTimespan, maxActualTimespan);
+
+        // Global retarget
+        final long[] target = scratch;
+        if (!DifficultyEngine.decodeCompact(lastTargets[algo], target)) {
+            throw new VerificationException("Difficulty bits are negative or overflow: "
+                + Long.toHexString(lastTargets[algo]));
+        }
+        multiply(target, (int) actualTimespan);
+        DifficultyEngine.divide(target, averagingTargetTimespan);
+
+        // Per-algorithm retarget
+        final int adjustments = lastHeights[algo] + NUM_ALGOS - 1 - storedPrev.getHeight();
+        for (int adjustmentIdx = 0; adjustmentIdx < adjustments; adjustmentIdx++) {
+            multiply(target, 100);
+            DifficultyEngine.divide(target, 100 + LOCAL_TARGET_ADJUSTMENT);
+        }
+        for (int adjustmentIdx = 0; adjustmentIdx < -adjustments; adjustmentIdx++) {
+            // Make it easier
+            multiply(target, 100 + LOCAL_TARGET_ADJUSTMENT);
+            DifficultyEngine.divide(target, 100);
+        }
+
+        if (DifficultyEngine.compare(target, maxTargetDigits) > 0) {
+            return maxTargetCompact;
+        }
+        return DifficultyEngine.encodeCompact(target);
+    }
+
+    /**
+     * Get the height of the last block of the given algorithm at or before
+     * the given block, ignoring testnet minimum difficulty blocks.
+     *
+     * @return the height, or -1 if there is no such block in the store.
+     */
+    public synchronized int getLastHeightForAlgo(final StoredBlock storedPrev, final int algo,
+            final BlockStore blockStore) throws BlockStoreException {
+        connect(storedPrev);
+        return findLastForAlgo(algo, blockStore) ? lastHeights[algo] : -1;
+    }
+
+    public synchronized void clear() {
+        tip = null;
+        scanCursor = null;
+        scanHitCheckpoint = false;
+        Arrays.fill(lastHeights, -1);
+        times.clear();
+    }
+
+    /**
+     * Move the index to the given block, recording it if it extends the
+     * current tip, and otherwise starting a new scan from it.
+     */
+    private void connect(final StoredBlock block) {
+        final Block header = block.getHeader();
+        if (tip != null && block.getHeight() == tip.getHeight()
+                && header.getHash().equals(tip.getHeader().getHash())) {
+            return;
+        }
+        if (tip != null && block.getHeight() == tip.getHeight() + 1
+                && header.getPrevBlockHash().equals(tip.getHeader().getHash())) {
+            record(block, tip);
+        } else {
+            Arrays.fill(lastHeights, -1);
+            scanCursor = block;
+            scanHitCheckpoint = false;
+        }
+        tip = block;
+        times.add(block);
+    }
+
+    /**
+     * Scan back from where the last scan stopped until the last block of the
+     * given algorithm is found, or the store runs out.
+     */
+    private boolean findLastForAlgo(final int algo, final BlockStore blockStore) throws BlockStoreException {
+        while (lastHeights[algo] < 0 && scanCursor != null) {
+            final StoredBlock prev = scanCursor.getPrev(blockStore);
+            if (prev == null && scanCursor.getHeight() > 0) {
+                scanHitCheckpoint = true;
+            }
+            record(scanCursor, prev);
+            scanCursor = prev;
+        }
+        return lastHeights[algo] >= 0;
+    }
+
+    /**
+     * Record a block as the last of its algorithm, unless a later block of that
+     * algorithm is already known or it is a testnet minimum difficulty block.
+     */
+    private void record(final StoredBlock block, @Nullable final StoredBlock prev) {
+        final Block header = block.getHeader();
+        final int algo = getAlgorithm(header);
+        if (algo < 0 || lastHeights[algo] > block.getHeight()) {
+            return;
+        }
+        if (allowMinDifficultyBlocks && prev != null
+                && header.getTimeSeconds() > prev.getHeader().getTimeSeconds() + targetSpacing * 2) {
+            return;
+        }
+        lastHeights[algo] = block.getHeight();
+        lastTargets[algo] = header.getDifficultyTarget();
+    }
+
+    /**
+     * Make sure the time index holds the ancestors of the given block to the
+     * given depth, walking the block store if not.
+     *
+     * @return false if the block store does not hold them all, and the
+     * chain does not start before reaching that depth.
+     */
+    private boolean fillTimes(final StoredBlock from, final int depth, final BlockStore blockStore)
+        throws BlockStoreException {
+        final int available = Math.min(depth, from.getHeight());
+        if (times.getTimeSeconds(from, available) != AncestorIndex.MISS) {
+            return true;
+        }
+        final List<StoredBlock> ancestors = new ArrayList<StoredBlock>(available + 1);
+        StoredBlock cursor = from;
+        for (int blockIdx = 0; blockIdx <= available; blockIdx++) {
+            if (cursor == null) {
+                return false;
+            }
+            ancestors.add(cursor);
+            cursor = blockIdx < available ? cursor.getPrev(blockStore) : null;
+        }
+        for (int blockIdx = ancestors.size() - 1; blockIdx >= 0; blockIdx--) {
+            times.add(ancestors.get(blockIdx));
+        }
+        return true;
+    }
+
+    /**
+     * Get the median time of the eleven blocks ending the given depth below
+     * the given block, or fewer at the start of the chain.
+     */
+    private long getMedianTimePast(final StoredBlock from, final int depth) {
+        final int count = Math.min(MEDIAN_TIME_SPAN, from.getHeight() - depth + 1);
+        for (int timeIdx = 0; timeIdx < count; timeIdx++) {
+            medianScratch[timeIdx] = times.getTimeSeconds(from, depth + timeIdx);
+        }
+        Arrays.sort(medianScratch, 0, count);
+        return medianScratch[count / 2];
+    }
+
+    /**
+     * Multiply in place, discarding bits beyond 256 as the reference
+     * implementation does.
+     */
+    private static void multiply(final long[] digits, final int multiplier) {
+        DifficultyEngine.multiply(digits, multiplier);
+        for (int digitIdx = TARGET_DIGITS; digitIdx < digits.length; digitIdx++) {
+            digits[digitIdx] = 0;
+        }
+    }
+
+    private static int getAlgorithm(final Block header) {
+        return header instanceof AltcoinBlock
+            ? ((AltcoinBlock) header).getAlgorithm()
+            : AltcoinBlock.getAlgorithm(header.getVersion());
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+/**
+ * Parameters for networks with Litecoin's MimbleWimble extension blocks
+ * (MWEB): blocks whose last transaction is an integrating (HogEx)
+ * transaction are followed by the extension block.
+ */
+public interface MwebNetworkParameters extends AltcoinNetworkParameters {
+    /**
+     * Whether parsed blocks keep a reference to their payload, so their
+     * extension block can be read. Without it the extension block is only
+     * measured and skipped, and the payload can be released once parsed.
+     */
+    boolean isMwebDataRetained();
+}
@@ -0,0 +1,35 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+/**
+ * Namecoin retarget. This is the original Bitcoin retarget, which measures
+ * one block short of the full interval, until AuxPoW starts, after which the
+ * full interval is used.
+ */
+public class NamecoinRetargetPolicy extends ClassicRetargetPolicy {
+    private final int auxpowStartHeight;
+
+    public NamecoinRetargetPolicy(final int targetTimespan, final int auxpowStartHeight) {
+        super(targetTimespan);
+        this.auxpowStartHeight = auxpowStartHeight;
+    }
+
+    @Override
+    public int getBlocksBack(final int previousHeight, final int retargetInterval) {
+        return previousHeight >= auxpowStartHeight && previousHeight + 1 > retargetInterval
+            ? retargetInterval
+            : retargetInterval - 1;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import org.bitcoinj.core.Block;
+
+/**
+ * Measures the length of wire-format structures without parsing them into
+ * message objects. Every method takes an exclusive <code>limit</code> and
+ * returns {@link #INCOMPLETE} if the structure runs past it, so callers can
+ * use these to find message boundaries in partially received payloads.
+ */
+public final class PayloadScanner {
+    /** Returned when the structure does not fit in the bytes available. */
+    public static final int INCOMPLETE = -1;
+    /** Transaction flag bit for segregated witness data. */
+    public static final int WITNESS_FLAG = 0x01;
+    /** Transaction flag bit for an MWEB transaction, as used by Litecoin. */
+    public static final int MWEB_FLAG = 0x08;
+
+    private static final int OUTPOINT_SIZE = 36;
+    private static final int HASH_SIZE = 32;
+    /** Size of a Zcash style header, up to the Equihash solution. */
+    private static final int EQUIHASH_HEADER_SIZE = 140;
+
+    private PayloadScanner() {
+    }
+
+    /**
+     * Get the number of bytes used to encode the variable length integer at
+     * the given offset, or {@link #INCOMPLETE} if the prefix byte is not
+     * available.
+     */
+    public static int varIntSize(final byte[] buf, final int offset, final int limit) {
+        if (offset >= limit) {
+            return INCOMPLETE;
+        }
+        final int first = buf[offset] & 0xff;
+        if (first < 0xfd) {
+            return 1;
+        } else if (first == 0xfd) {
+            return 3;
+        } else if (first == 0xfe) {
+            return 5;
+        } else {
+            return 9;
+        }
+    }
+
+    /**
+     * Read the variable length integer at the given offset. Range checks
+     * must be performed with {@link #varIntSize(byte[], int, int)} first.
+     */
+    public static long readVarInt(final byte[] buf, final int offset) {
+        final int first = buf[offset] & 0xff;
+        if (first < 0xfd) {
+            return first;
+        } else if (first == 0xfd) {
+            return (buf[offset + 1] & 0xffL) | ((buf[offset + 2] & 0xffL) << 8);
+        } else if (first == 0xfe) {
+            return org.bitcoinj.core.Utils.readUint32(buf, offset + 1);
+        } else {
+            return org.bitcoinj.core.Utils.readInt64(buf, offset + 1);
+        }
+    }
+
+    /**
+     * Get the length of a var-int prefixed byte array (such as a script)
+     * starting at the given offset.
+     */
+    public static int byteArrayLength(final byte[] buf, final int offset, final int limit) {
+        final int prefix = varIntSize(buf, offset, limit);
+        if (prefix == INCOMPLETE || offset + prefix > limit) {
+            return INCOMPLETE;
+        }
+        final long length = readVarInt(buf, offset);
+        if (length < 0 || length > limit - offset - prefix) {
+            return INCOMPLETE;
+        }
+        return prefix + (int) length;
+    }
+
+    /**
+     * Get the length of the transaction starting at the given offset,
+     * including any segregated witness data. An MWEB flag is followed by an
+     * optional MWEB transaction; only its absence, as on integrating (HogEx)
+     * transactions in blocks, can be measured, and transactions carrying one
+     * are reported as {@link #INCOMPLETE}.
+     */
+    public static int transactionLength(final byte[] buf, final int offset, final int limit) {
+        final int witnessStart = witnessOffset(buf, offset, limit);
+        if (witnessStart == INCOMPLETE) {
+            return INCOMPLETE;
+        }
+        int cursor = witnessEnd(buf, offset, witnessStart, limit);
+        if (cursor == INCOMPLETE) {
+            return INCOMPLETE;
+        }
+        final int flags = hasWitnessFlag(buf, offset, limit) ? buf[offset + 5] & 0xff : 0;
+        if ((flags & MWEB_FLAG) != 0) {
+            if (cursor >= limit || buf[cursor] != 0) {
+                return INCOMPLETE;
+            }
+            cursor++; // Absent MWEB transaction
+        }
+        cursor += 4; // Lock time
+        return cursor > limit ? INCOMPLETE : cursor - offset;
+    }
+
+    /**
+     * Get the offset at which witness data starts in the transaction at the
+     * given offset (or at which the lock time starts, for transactions without
+     * witness data).
+     */
+    public static int witnessOffset(final byte[] buf, final int offset, final int limit) {
+        int cursor = offset + 4; // Version
+        if (cursor > limit) {
+            return INCOMPLETE;
+        }
+        if (hasWitnessFlag(buf, offset, limit)) {
+            cursor += 2;
+        }
+        int size = varIntSize(buf, cursor, limit);
+        if (size == INCOMPLETE || cursor + size > limit) {
+            return INCOMPLETE;
+        }
+        final long inputCount = readVarInt(buf, cursor);
+        cursor += size;
+        for (long inputIdx = 0; inputIdx < inputCount; inputIdx++) {
+            cursor += OUTPOINT_SIZE;
+            size = byteArrayLength(buf, cursor, limit);
+            if (size == INCOMPLETE) {
+                return INCOMPLETE;
+            }
+            cursor += size + 4; // Script and sequence number
+        }
+        size = varIntSize(buf, cursor, limit);
+        if (size == INCOMPLETE || cursor + size > limit) {
+            return INCOMPLETE;
+        }
+        final long outputCount = readVarInt(buf, cursor);
+        cursor += size;
+        for (long outputIdx = 0; outputIdx < outputCount; outputIdx++) {
+            cursor += 8; // Value
+            size = byteArrayLength(buf, cursor, limit);
+            if (size == INCOMPLETE) {
+                return INCOMPLETE;
+            }
+            cursor += size;
+        }
+        return cursor > limit ? INCOMPLETE : cursor;
+    }
+
+    /**
+     * Get the offset just past the witness data of the transaction at the
+     * given offset, which is the witness offset itself for transactions
+     * without witness data.
+     *
+     * @param witnessStart offset of the witness data, as returned by
+     * {@link #witnessOffset(byte[], int, int)}.
+     */
+    public static int witnessEnd(final byte[] buf, final int offset, final int witnessStart, final int limit) {
+        int cursor = witnessStart;
+        if (hasWitnessFlag(buf, offset, limit) && (buf[offset + 5] & WITNESS_FLAG) != 0) {
+            final int inputCount = (int) readVarInt(buf, offset + 6);
+            for (int inputIdx = 0; inputIdx < inputCount; inputIdx++) {
+                final int stackLength = witnessStackLength(buf, cursor, limit);
+                if (stackLength == INCOMPLETE) {
+                    return INCOMPLETE;
+                }
+                cursor += stackLength;
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Whether the transaction at the given offset uses the segregated witness
+     * serialization (a zero marker byte followed by a non-zero flag in place of
+     * the input count).
+     */
+    public static boolean hasWitnessFlag(final byte[] buf, final int offset, final int limit) {
+        return offset + 6 <= limit && buf[offset + 4] == 0 && buf[offset + 5] != 0;
+    }
+
+    /**
+     * Whether the transaction at the given offset uses the extended
+     * serialization with the MWEB flag set, as Litecoin's integrating (HogEx)
+     * transactions do.
+     */
+    public static boolean hasMwebFlag(final byte[] buf, final int offset, final int limit) {
+        return hasWitnessFlag(buf, offset, limit) && (buf[offset + 5] & MWEB_FLAG) != 0;
+    }
+
+    /**
+     * Get the length of a single input's witness stack starting at the given
+     * offset.
+     */
+    public static int witnessStackLength(final byte[] buf, final int offset, final int limit) {
+        final int prefix = varIntSize(buf, offset, limit);
+        if (prefix == INCOMPLETE || offset + prefix > limit) {
+            return INCOMPLETE;
+        }
+        final long itemCount = readVarInt(buf, offset);
+        int cursor = offset + prefix;
+        for (long itemIdx = 0; itemIdx < itemCount; itemIdx++) {
+            final int itemLength = byteArrayLength(buf, cursor, limit);
+            if (itemLength == INCOMPLETE) {
+                return INCOMPLETE;
+            }
+            cursor += itemLength;
+        }
+        return cursor - offset;
+    }
+
+    /**
+     * Get the length of a merkle branch starting at the given offset.
+     */
+    public static int merkleBranchLength(final byte[] buf, final int offset, final int limit) {
+        final int prefix = varIntSize(buf, offset, limit);
+        if (prefix == INCOMPLETE || offset + prefix > limit) {
+            return INCOMPLETE;
+        }
+        final long hashCount = readVarInt(buf, offset);
+        // Checked before multiplying, so huge counts cannot wrap around
+        if (hashCount < 0 || hashCount > (limit - offset - prefix - 4) / HASH_SIZE) {
+            return INCOMPLETE;
+        }
+        return prefix + (int) hashCount * HASH_SIZE + 4;
+    }
+
+    /**
+     * Get the length of an AuxPoW header starting at the given offset. This
+     * covers the parent coinbase transaction, the parent block hash, both merkle
+     * branches and the parent block header.
+     */
+    public static int auxPoWLength(final byte[] buf, final int offset, final int limit) {
+        int length = transactionLength(buf, offset, limit);
+        if (length == INCOMPLETE) {
+            return INCOMPLETE;
+        }
+        int cursor = offset + length + HASH_SIZE;
+        for (int branchIdx = 0; branchIdx < 2; branchIdx++) {
+            length = merkleBranchLength(buf, cursor, limit);
+            if (length == INCOMPLETE) {
+                return INCOMPLETE;
+            }
+            cursor += length;
+        }
+        cursor += Block.HEADER_SIZE;
+        return cursor > limit ? INCOMPLETE : cursor - offset;
+    }
+
+    /**
+     * Get the length of the block header starting at the given offset,
+     * including any AuxPoW header if the version indicates one is present,
+     * or the Equihash solution on Equihash networks. Does not include the
+     * transaction count.
+     */
+    public static int blockHeaderLength(final AltcoinNetworkParameters params, final byte[] buf,
+            final int offset, final int limit) {
+        if (params instanceof EquihashNetworkParameters) {
+            final int solutionLength = byteArrayLength(buf, offset + EQUIHASH_HEADER_SIZE, limit);
+            return solutionLength == INCOMPLETE ? INCOMPLETE : EQUIHASH_HEADER_SIZE + solutionLength;
+        }
+        if (offset + Block.HEADER_SIZE > limit) {
+            return INCOMPLETE;
+        }
+        if (params instanceof AuxPoWNetworkParameters) {
+            final long version = org.bitcoinj.core.Utils.readUint32(buf, offset);
+            if (((AuxPoWNetworkParameters) params).isAuxPoWBlockVersion(version)) {
+                final int auxpowLength = auxPoWLength(buf, offset + Block.HEADER_SIZE, limit);
+                return auxpowLength == INCOMPLETE ? INCOMPLETE : Block.HEADER_SIZE + auxpowLength;
+            }
+        }
+        return Block.HEADER_SIZE;
+    }
+}
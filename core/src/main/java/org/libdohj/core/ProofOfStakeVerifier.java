@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VerificationException;
+
+/**
+ * <p>Checks the stake kernels of proof of stake headers, following the rules
+ * of Particl and its derivatives such as Ghost.</p>
+ *
+ * <p>Each block has a stake modifier, chained from the modifier of the block
+ * before and the kernel of the block; the staked outpoint's transaction for
+ * proof of stake blocks, or the block hash otherwise. A proof of stake
+ * block's kernel hash, over the previous block's modifier, the time of the
+ * block which created the staked output, the outpoint and the block time,
+ * must meet the block's target multiplied by the value staked.</p>
+ *
+ * <p>Everything needed is looked up in a {@link StakeIndex}, so no
+ * transactions or past headers are fetched. Headers the index does not hold
+ * the data for are reported as unchecked, so callers can take them on trust
+ * in the same way as headers below a checkpoint.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class ProofOfStakeVerifier {
+    private static final BigInteger TARGET_MASK = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE);
+
+    private final StakeIndex index;
+    private final int minConfirmations;
+    private final int timestampMask;
+
+    /**
+     * @param index staked outputs and stake modifiers to check against, to
+     * which the modifiers of checked headers are added.
+     * @param minConfirmations number of confirmations an output needs before
+     * it can be staked.
+     * @param timestampMask bits which must be clear in the time of a proof of
+     * stake block.
+     */
+    public ProofOfStakeVerifier(final StakeIndex index, final int minConfirmations, final int timestampMask) {
+        this.index = index;
+        this.minConfirmations = minConfirmations;
+        this.timestampMask = timestampMask;
+    }
+
+    public StakeIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Calculate a block's stake modifier.
+     *
+     * @param prevModifier modifier of the block before.
+     * @param kernel hash of the staked outpoint's transaction, or of the block
+     * itself if it is not proof of stake.
+     */
+    public static Sha256Hash getStakeModifier(final Sha256Hash prevModifier, final Sha256Hash kernel) {
+        final byte[] bytes = new byte[Sha256Hash.LENGTH * 2];
+        System.arraycopy(kernel.getReversedBytes(), 0, bytes, 0, Sha256Hash.LENGTH);
+        System.arraycopy(prevModifier.getReversedBytes(), 0, bytes, Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bytes));
+    }
+
+    /**
+     * Calculate the kernel hash of a proof of stake block.
+     *
+     * @param modifier stake modifier of the block before.
+     * @param blockFromTime time of the block which created the staked output.
+     * @param kernel the staked outpoint.
+     * @param timeSeconds time of the block.
+     */
+    public static Sha256Hash getKernelHash(final Sha256Hash modifier, final long blockFromTime,
+            final TransactionOutPoint kernel, final long timeSeconds) {
+        final byte[] bytes = new byte[Sha256Hash.LENGTH * 2 + 12];
+        System.arraycopy(modifier.getReversedBytes(), 0, bytes, 0, Sha256Hash.LENGTH);
+        Utils.uint32ToByteArrayLE(blockFromTime, bytes, Sha256Hash.LENGTH);
+        System.arraycopy(kernel.getHash().getReversedBytes(), 0, bytes, Sha256Hash.LENGTH + 4, Sha256Hash.LENGTH);
+        Utils.uint32ToByteArrayLE(kernel.getIndex(), bytes, Sha256Hash.LENGTH * 2 + 4);
+        Utils.uint32ToByteArrayLE(timeSeconds, bytes, Sha256Hash.LENGTH * 2 + 8);
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bytes));
+    }
+
+    /**
+     * Get the target a kernel hash must meet; the block's target multiplied
+     * by the value staked, truncated to 256 bits as the reference client's
+     * arithmetic does.
+     */
+    public static BigInteger getWeightedTarget(final long difficultyTarget, final long value) {
+        return Utils.decodeCompactBits(difficultyTarget).multiply(BigInteger.valueOf(value)).and(TARGET_MASK);
+    }
+
+    /**
+     * Record the stake modifier of a block which is not proof of stake, such
+     * as the genesis block or early proof of work blocks.
+     *
+     * @return whether the modifier was recorded; false if the index does not
+     * hold the modifier of the block before.
+     */
+    public boolean addProofOfWork(final StoredBlock storedPrev, final StoredBlock block) {
+        final Sha256Hash hash = block.getHeader().getHash();
+        final Sha256Hash prevModifier = index.getModifier(storedPrev.getHeight(), storedPrev.getHeader().getHash());
+        if (prevModifier == null) {
+            return false;
+        }
+        index.addModifier(block.getHeight(), hash, getStakeModifier(prevModifier, hash));
+        return true;
+    }
+
+    /**
+     * Record the genesis block, whose stake modifier is zero.
+     */
+    public void addGenesis(final Block genesis) {
+        index.addModifier(0, genesis.getHash(), Sha256Hash.ZERO_HASH);
+    }
+
+    /**
+     * Check the stake kernel of a proof of stake header, and record its
+     * stake modifier.
+     *
+     * @param storedPrev the block the header builds on.
+     * @param header the header to check.
+     * @param kernel the outpoint the header's coinstake transaction stakes.
+     * @return true if the kernel was checked, or false if the index does not
+     * hold the previous block's modifier or the staked output.
+     * @throws VerificationException if the kernel is invalid.
+     */
+    public boolean verify(final StoredBlock storedPrev, final Block header, final TransactionOutPoint kernel)
+            throws VerificationException {
+        final long timeSeconds = header.getTimeSeconds();
+        if ((timeSeconds & timestampMask) != 0) {
+            throw new VerificationException("Proof of stake block time " + timeSeconds
+                + " does not match the timestamp mask");
+        }
+        final Sha256Hash prevModifier = index.getModifier(storedPrev.getHeight(), storedPrev.getHeader().getHash());
+        if (prevModifier == null) {
+            return false;
+        }
+        final int height = storedPrev.getHeight() + 1;
+        final Sha256Hash modifier = getStakeModifier(prevModifier, kernel.getHash());
+        final StakeIndex.StakedOutput output = index.getOutput(kernel);
+        if (output == null) {
+            // The modifier does not depend on the output, so the chain of modifiers continues
+            index.addModifier(height, header.getHash(), modifier);
+            return false;
+        }
+
+        final int depth = storedPrev.getHeight() - output.getHeight();
+        final int requiredDepth = Math.min(minConfirmations - 1, storedPrev.getHeight() / 2);
+        if (depth < requiredDepth) {
+            throw new VerificationException("Staked output " + kernel + " has " + depth
+                + " confirmations, but needs " + requiredDepth);
+        }
+        if (timeSeconds < output.getTimeSeconds()) {
+            throw new VerificationException("Proof of stake block time " + timeSeconds
+                + " is before the staked output's block time " + output.getTimeSeconds());
+        }
+        final Sha256Hash kernelHash = getKernelHash(prevModifier, output.getTimeSeconds(), kernel, timeSeconds);
+        final BigInteger target = getWeightedTarget(header.getDifficultyTarget(), output.getValue());
+        if (kernelHash.toBigInteger().compareTo(target) > 0) {
+            throw new VerificationException("Stake kernel hash " + kernelHash + " does not meet weighted target "
+                + target.toString(16));
+        }
+        index.addModifier(height, header.getHash(), modifier);
+        return true;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+/**
+ * Rules for a periodic difficulty retarget, used by {@link DifficultyEngine}.
+ * Heights are those of the block being calculated, unless stated otherwise.
+ */
+public interface RetargetPolicy {
+    /**
+     * Get the timespan the retarget interval should take.
+     */
+    int getRetargetTimespan(int height);
+
+    /**
+     * Dampen and/or clamp the time actually taken by the retarget interval.
+     *
+     * @param actualTimespan seconds between the last retarget block and the
+     * block before the one being calculated.
+     * @param retargetTimespan the value of {@link #getRetargetTimespan(int)}
+     * at the same height.
+     */
+    int limitActualTimespan(int height, int actualTimespan, int retargetTimespan);
+
+    /**
+     * Get how many blocks back from the previous block the timespan is
+     * measured from.
+     *
+     * @param previousHeight height of the block before the one being calculated.
+     * @param retargetInterval number of blocks between retargets.
+     */
+    int getBlocksBack(int previousHeight, int retargetInterval);
+}
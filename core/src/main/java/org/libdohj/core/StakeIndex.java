@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionOutPoint;
+
+/**
+ * <p>In-memory index of what proof of stake header checks need, so staked
+ * outputs and past blocks do not have to be fetched for each header.</p>
+ *
+ * <p>Stake modifiers are held for a run of recent blocks, next to each
+ * block's hash, in primitive ring buffers addressed by height, in the same
+ * way as {@link AncestorIndex}. Outputs which may be staked are held by
+ * outpoint, with just their value and the height and time of the block
+ * that created them.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class StakeIndex {
+    private static final int DEFAULT_CAPACITY = 1 << 12;
+
+    private final byte[] hashes;
+    private final byte[] modifiers;
+    private final int mask;
+    /** Height of the lowest block in the current run, or -1 if empty. */
+    private int lowHeight = -1;
+    /** Height of the highest block in the current run, or -1 if empty. */
+    private int highHeight = -1;
+
+    private final Map<TransactionOutPoint, StakedOutput> outputs = new HashMap<TransactionOutPoint, StakedOutput>();
+
+    public StakeIndex() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of blocks to retain stake modifiers for, rounded
+     * up to a power of two.
+     */
+    public StakeIndex(final int capacity) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        hashes = new byte[size * Sha256Hash.LENGTH];
+        modifiers = new byte[size * Sha256Hash.LENGTH];
+        mask = size - 1;
+    }
+
+    /**
+     * Record the stake modifier of a block. Blocks should be added in chain
+     * order, each building on the block before in the index; a block which
+     * does not follow the highest in the current run starts a new run, and
+     * one replacing a block in the run discards everything above it.
+     */
+    public synchronized void addModifier(final int height, final Sha256Hash blockHash, final Sha256Hash modifier) {
+        if (highHeight >= 0 && height > lowHeight && height <= highHeight + 1) {
+            highHeight = height;
+            lowHeight = Math.max(lowHeight, height - mask);
+        } else {
+            lowHeight = height;
+            highHeight = height;
+        }
+        final int offset = (height & mask) * Sha256Hash.LENGTH;
+        System.arraycopy(blockHash.getBytes(), 0, hashes, offset, Sha256Hash.LENGTH);
+        System.arraycopy(modifier.getBytes(), 0, modifiers, offset, Sha256Hash.LENGTH);
+    }
+
+    /**
+     * Get the stake modifier of a block.
+     *
+     * @return the modifier, or null if the index does not hold the block.
+     */
+    @Nullable
+    public synchronized Sha256Hash getModifier(final int height, final Sha256Hash blockHash) {
+        if (highHeight < 0 || height < lowHeight || height > highHeight) {
+            return null;
+        }
+        final int offset = (height & mask) * Sha256Hash.LENGTH;
+        final byte[] bytes = blockHash.getBytes();
+        for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+            if (hashes[offset + byteIdx] != bytes[byteIdx]) {
+                return null;
+            }
+        }
+        final byte[] modifier = new byte[Sha256Hash.LENGTH];
+        System.arraycopy(modifiers, offset, modifier, 0, Sha256Hash.LENGTH);
+        return Sha256Hash.wrap(modifier);
+    }
+
+    /**
+     * Get the number of blocks stake modifiers are held for.
+     */
+    public synchronized int getModifierCount() {
+        return highHeight < 0 ? 0 : highHeight - lowHeight + 1;
+    }
+
+    /**
+     * Record an output which may be staked.
+     *
+     * @param outPoint the output.
+     * @param value value of the output, in satoshis.
+     * @param height height of the block which created the output.
+     * @param timeSeconds time of the block which created the output.
+     */
+    public synchronized void addOutput(final TransactionOutPoint outPoint, final long value, final int height,
+            final long timeSeconds) {
+        outputs.put(outPoint, new StakedOutput(value, height, (int) timeSeconds));
+    }
+
+    /**
+     * Get a staked output, or null if the index does not hold it.
+     */
+    @Nullable
+    public synchronized StakedOutput getOutput(final TransactionOutPoint outPoint) {
+        return outputs.get(outPoint);
+    }
+
+    /**
+     * Forget an output, such as once it is spent.
+     */
+    public synchronized void removeOutput(final TransactionOutPoint outPoint) {
+        outputs.remove(outPoint);
+    }
+
+    /**
+     * Forget outputs created above the given height, such as when the blocks
+     * which created them are reorganised away.
+     */
+    public synchronized void removeOutputsAbove(final int height) {
+        final Iterator<StakedOutput> iterator = outputs.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().height > height) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized int getOutputCount() {
+        return outputs.size();
+    }
+
+    public synchronized void clear() {
+        lowHeight = -1;
+        highHeight = -1;
+        outputs.clear();
+    }
+
+    /**
+     * Value and origin of an output which may be staked.
+     */
+    public static class StakedOutput {
+        private final long value;
+        private final int height;
+        private final int timeSeconds;
+
+        private StakedOutput(final long value, final int height, final int timeSeconds) {
+            this.value = value;
+            this.height = height;
+            this.timeSeconds = timeSeconds;
+        }
+
+        /**
+         * Get the value of the output, in satoshis.
+         */
+        public long getValue() {
+            return value;
+        }
+
+        /**
+         * Get the height of the block which created the output.
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Get the time of the block which created the output.
+         */
+        public long getTimeSeconds() {
+            return timeSeconds & 0xffffffffL;
+        }
+    }
+}
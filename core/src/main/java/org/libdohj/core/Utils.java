@@ -16,8 +16,10 @@
  */
 package org.libdohj.core;
 
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 
+import org.bitcoinj.core.Sha256Hash;
 import org.bouncycastle.crypto.generators.SCrypt;
 
 /**
@@ -31,4 +33,64 @@ public class Utils {
     public static byte[] scryptDigest(byte[] input) throws GeneralSecurityException {
         return SCrypt.generate(input, input, 1024, 1, 1, 32);
     }
+
+    /**
+     * Write a 32 bit unsigned integer to the buffer in little endian order,
+     * regardless of the buffer's own byte order.
+     */
+    public static void uint32ToByteBufferLE(long val, ByteBuffer buffer) {
+        buffer.put((byte) (0xFF & val));
+        buffer.put((byte) (0xFF & (val >> 8)));
+        buffer.put((byte) (0xFF & (val >> 16)));
+        buffer.put((byte) (0xFF & (val >> 24)));
+    }
+
+    /**
+     * Write a 64 bit integer to the buffer in little endian order, regardless
+     * of the buffer's own byte order.
+     */
+    public static void int64ToByteBufferLE(long val, ByteBuffer buffer) {
+        uint32ToByteBufferLE(val, buffer);
+        uint32ToByteBufferLE(val >>> 32, buffer);
+    }
+
+    /**
+     * Write a variable length integer to the buffer, using its minimal
+     * encoding.
+     */
+    public static void varIntToByteBuffer(long val, ByteBuffer buffer) {
+        if (val >= 0 && val < 0xfd) {
+            buffer.put((byte) val);
+        } else if (val >= 0 && val <= 0xffff) {
+            buffer.put((byte) 0xfd);
+            buffer.put((byte) (0xFF & val));
+            buffer.put((byte) (0xFF & (val >> 8)));
+        } else if (val >= 0 && val <= 0xffffffffL) {
+            buffer.put((byte) 0xfe);
+            uint32ToByteBufferLE(val, buffer);
+        } else {
+            buffer.put((byte) 0xff);
+            int64ToByteBufferLE(val, buffer);
+        }
+    }
+
+    /**
+     * Write a hash to the buffer in wire (little endian) order, without
+     * creating a reversed copy of it.
+     */
+    public static void hashToByteBufferLE(Sha256Hash hash, ByteBuffer buffer) {
+        final byte[] bytes = hash.getBytes();
+        for (int byteIdx = bytes.length - 1; byteIdx >= 0; byteIdx--) {
+            buffer.put(bytes[byteIdx]);
+        }
+    }
+
+    /**
+     * Write a variable length byte array (such as a script) to the buffer,
+     * prefixed with its length.
+     */
+    public static void byteArrayToByteBuffer(byte[] bytes, ByteBuffer buffer) {
+        varIntToByteBuffer(bytes.length, buffer);
+        buffer.put(bytes);
+    }
 }
@@ -27,6 +27,13 @@ import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.utils.MonetaryFormat;
 import org.libdohj.core.AltcoinNetworkParameters;
 import org.libdohj.core.AltcoinSerializer;
+import org.libdohj.core.AncestorIndex;
+import org.libdohj.core.ChainState;
+import org.libdohj.core.ClassicRetargetPolicy;
+import org.libdohj.core.CompactTargetCache;
+import org.libdohj.core.DifficultyEngine;
+import org.libdohj.core.MultiShield;
+import org.libdohj.core.RetargetPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,6 +55,10 @@ public abstract class AbstractDigibyteParams extends NetworkParameters implement
     public static final int DIGI_TARGET_TIMESPAN = (int)(0.10 * 24 * 60 * 60);  // 72 minutes per difficulty cycle, on average.
     public static final int DIGI_TARGET_SPACING = (int)(1 * 60);  // 40 seconds per block.
     public static final int DIGI_INTERVAL = TARGET_TIMESPAN / TARGET_SPACING;  //108 blocks
+    /** Target time between blocks of any algorithm, once multiple algorithms were introduced. */
+    public static final int DIGI_MULTI_ALGO_TARGET_SPACING = 15;
+    /** Height from which MultiShield (difficulty version 4) applies. */
+    public static final int DIGI_MULTISHIELD_HEIGHT = 400000;
 
     /**
      * The maximum number of coins to be generated
@@ -89,6 +100,9 @@ public abstract class AbstractDigibyteParams extends NetworkParameters implement
 
     protected Logger log = LoggerFactory.getLogger(AbstractDigibyteParams.class);
 
+    private DifficultyEngine difficultyEngine;
+    private CompactTargetCache compactTargetCache;
+
     public AbstractDigibyteParams() {
         super();
         interval = DIGI_INTERVAL;
@@ -156,8 +170,10 @@ public abstract class AbstractDigibyteParams extends NetworkParameters implement
     /**
      * Get the difficulty target expected for the next block. This includes all
      * the weird cases for Litecoin such as testnet blocks which can be maximum
-     * difficulty if the block interval is high enough.
-     * TODO: this may need updating for Digibyte; it is currently copied from Litecoin
+     * difficulty if the block interval is high enough. From
+     * {@link #getMultiShieldHeight()} onwards, this is MultiShield, targeting
+     * the mining algorithm selected by the next block's version; before then
+     * the Litecoin rules are applied.
      *
      * @throws CheckpointEncounteredException if a checkpoint is encountered while
      * calculating difficulty target, and therefore no conclusive answer can
@@ -165,6 +181,24 @@ public abstract class AbstractDigibyteParams extends NetworkParameters implement
      */
     public long calculateNewDifficultyTarget(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore)
         throws VerificationException, BlockStoreException, CheckpointEncounteredException {
+        if (storedPrev.getHeight() + 1 >= getMultiShieldHeight()) {
+            final long rawVersion = nextBlock instanceof AltcoinBlock
+                ? ((AltcoinBlock) nextBlock).getRawVersion()
+                : nextBlock.getVersion();
+            final int algo = AltcoinBlock.getAlgorithm(rawVersion);
+            if (algo == AltcoinBlock.ALGO_UNKNOWN) {
+                throw new VerificationException("Block version " + rawVersion
+                    + " does not select a known mining algorithm.");
+            }
+            final long newTarget = getMultiShield(blockStore).getNextTarget(storedPrev, algo, blockStore);
+            if (newTarget == MultiShield.UNKNOWN) {
+                throw new CheckpointEncounteredException();
+            }
+            return newTarget;
+        }
+
+        final ChainState chainState = ChainState.get(blockStore);
+        chainState.getAncestorIndex().add(storedPrev);
         final Block prev = storedPrev.getHeader();
         final int previousHeight = storedPrev.getHeight();
         final int retargetInterval = this.getInterval();
@@ -176,21 +210,11 @@ public abstract class AbstractDigibyteParams extends NetworkParameters implement
                 // If the new block's timestamp is more than 5 minutes
                 // then allow mining of a min-difficulty block.
                 if (nextBlock.getTimeSeconds() > prev.getTimeSeconds() + getTargetSpacing() * 2) {
-                    return Utils.encodeCompactBits(maxTarget);
+                    return getCompactTargetCache().getMaxTargetCompact();
                 } else {
                     // Return the last non-special-min-difficulty-rules-block
-                    StoredBlock cursor = storedPrev;
-
-                    while (cursor.getHeight() % retargetInterval != 0
-                            && cursor.getHeader().getDifficultyTarget() == Utils.encodeCompactBits(this.getMaxTarget())) {
-                        StoredBlock prevCursor = cursor.getPrev(blockStore);
-                        if (prevCursor == null) {
-                            break;
-                        }
-                        cursor = prevCursor;
-                    }
-
-                    return cursor.getHeader().getDifficultyTarget();
+                    return chainState.getMinDifficultyCursor(this.getMaxTarget())
+                        .getLastNonMinDifficultyTarget(storedPrev, retargetInterval, blockStore);
                 }
             }
 
@@ -201,32 +225,30 @@ public abstract class AbstractDigibyteParams extends NetworkParameters implement
         // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
         // two weeks after the initial block chain download.
         StoredBlock cursor = storedPrev;
-        int goBack = retargetInterval - 1;
-
-        // Litecoin: This fixes an issue where a 51% attack can change difficulty at will.
-        // Go back the full period unless it's the first retarget after genesis.
-        // Code based on original by Art Forz
-        if (cursor.getHeight()+1 != retargetInterval)
-            goBack = retargetInterval;
+        final int goBack = getDifficultyEngine().getBlocksBack(previousHeight, retargetInterval);
+
+        long lastRetargetTime = chainState.getAncestorIndex().getTimeSeconds(storedPrev, goBack);
+        if (lastRetargetTime == AncestorIndex.MISS) {
+            // Index is cold, so walk back through the block store
+            for (int i = 0; i < goBack; i++) {
+                if (cursor == null) {
+                    // This should never happen. If it does, it means we are following an incorrect or busted chain.
+                    throw new VerificationException(
+                            "Difficulty transition point but we did not find a way back to the genesis block.");
+                }
+                cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            }
 
-        for (int i = 0; i < goBack; i++) {
+            //We used checkpoints...
             if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
+                log.debug("Difficulty transition: Hit checkpoint!");
+                throw new CheckpointEncounteredException();
             }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            lastRetargetTime = cursor.getHeader().getTimeSeconds();
         }
 
-        //We used checkpoints...
-        if (cursor == null) {
-            log.debug("Difficulty transition: Hit checkpoint!");
-            throw new CheckpointEncounteredException();
-        }
-
-        Block blockIntervalAgo = cursor.getHeader();
         return this.calculateNewDifficultyTargetInner(previousHeight, prev.getTimeSeconds(),
-            prev.getDifficultyTarget(), blockIntervalAgo.getTimeSeconds(),
+            prev.getDifficultyTarget(), lastRetargetTime,
             nextBlock.getDifficultyTarget());
     }
 
@@ -261,28 +283,53 @@ public abstract class AbstractDigibyteParams extends NetworkParameters implement
     protected long calculateNewDifficultyTargetInner(int previousHeight, long previousBlockTime,
         final long lastDifficultyTarget, final long lastRetargetTime,
         final long nextDifficultyTarget) {
-        final int retargetTimespan = this.getTargetTimespan();
-        int actualTime = (int) (previousBlockTime - lastRetargetTime);
-        final int minTimespan = retargetTimespan / 4;
-        final int maxTimespan = retargetTimespan * 4;
-
-        actualTime = Math.min(maxTimespan, Math.max(minTimespan, actualTime));
+        return getDifficultyEngine().calculateNewDifficultyTarget(previousHeight, previousBlockTime,
+            lastDifficultyTarget, lastRetargetTime, nextDifficultyTarget);
+    }
 
-        BigInteger newTarget = Utils.decodeCompactBits(lastDifficultyTarget);
-        newTarget = newTarget.multiply(BigInteger.valueOf(actualTime));
-        newTarget = newTarget.divide(BigInteger.valueOf(retargetTimespan));
+    /**
+     * Get the engine used for difficulty retargets, created on first use.
+     */
+    protected synchronized DifficultyEngine getDifficultyEngine() {
+        if (difficultyEngine == null) {
+            difficultyEngine = new DifficultyEngine(this.getMaxTarget(), createRetargetPolicy());
+        }
+        return difficultyEngine;
+    }
 
-        if (newTarget.compareTo(this.getMaxTarget()) > 0) {
-            log.info("Difficulty hit proof of work limit: {}", newTarget.toString(16));
-            newTarget = this.getMaxTarget();
+    @Override
+    public synchronized CompactTargetCache getCompactTargetCache() {
+        if (compactTargetCache == null) {
+            compactTargetCache = new CompactTargetCache(this.getMaxTarget());
         }
+        return compactTargetCache;
+    }
+
+    /**
+     * Get the MultiShield calculation for the chain in the given block store,
+     * which holds the last block of each mining algorithm.
+     */
+    protected MultiShield getMultiShield(final BlockStore blockStore) {
+        return ChainState.get(blockStore).get(MultiShield.class, new ChainState.Factory<MultiShield>() {
+            @Override
+            public MultiShield create() {
+                return new MultiShield(getMaxTarget(), DIGI_MULTI_ALGO_TARGET_SPACING, allowMinDifficultyBlocks());
+            }
+        });
+    }
 
-        int accuracyBytes = (int) (nextDifficultyTarget >>> 24) - 3;
+    /**
+     * Get the height of the first block whose difficulty is set by MultiShield.
+     */
+    public int getMultiShieldHeight() {
+        return DIGI_MULTISHIELD_HEIGHT;
+    }
 
-        // The calculated difficulty is to a higher precision than received, so reduce here.
-        BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
-        newTarget = newTarget.and(mask);
-        return Utils.encodeCompactBits(newTarget);
+    /**
+     * Create the rules used by {@link #getDifficultyEngine()}.
+     */
+    protected RetargetPolicy createRetargetPolicy() {
+        return new ClassicRetargetPolicy(this.getTargetTimespan());
     }
 
     @Override
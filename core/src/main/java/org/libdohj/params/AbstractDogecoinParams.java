@@ -41,6 +41,13 @@ import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.core.TransactionOutput;
 import org.bitcoinj.core.Utils;
 import org.libdohj.core.AltcoinSerializer;
+import org.libdohj.core.AncestorIndex;
+import org.libdohj.core.ChainState;
+import org.libdohj.core.ClassicRetargetPolicy;
+import org.libdohj.core.CompactTargetCache;
+import org.libdohj.core.DifficultyEngine;
+import org.libdohj.core.DigishieldRetargetPolicy;
+import org.libdohj.core.RetargetPolicy;
 import org.libdohj.core.AuxPoWNetworkParameters;
 
 /**
@@ -91,6 +98,9 @@ public abstract class AbstractDogecoinParams extends NetworkParameters implement
     protected final int diffChangeTarget;
 
     protected Logger log = LoggerFactory.getLogger(AbstractDogecoinParams.class);
+
+    private DifficultyEngine difficultyEngine;
+    private CompactTargetCache compactTargetCache;
     public static final int DOGECOIN_PROTOCOL_VERSION_AUXPOW = 70003;
     public static final int DOGECOIN_PROTOCOL_VERSION_CURRENT = 70004;
 
@@ -229,13 +239,19 @@ public abstract class AbstractDogecoinParams extends NetworkParameters implement
      */
     public long calculateNewDifficultyTarget(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore)
         throws VerificationException, BlockStoreException, CheckpointEncounteredException {
+        final ChainState chainState = ChainState.get(blockStore);
+        chainState.getAncestorIndex().add(storedPrev);
         // Dogecoin: Special rules for minimum difficulty blocks with Digishield
         if (allowDigishieldMinDifficultyForBlock(storedPrev, nextBlock))
         {
             // Special difficulty rule for testnet:
             // If the new block's timestamp is more than 2* nTargetSpacing minutes
             // then allow mining of a min-difficulty block.
-            return Utils.encodeCompactBits(this.getMaxTarget());
+            return getCompactTargetCache().getMaxTargetCompact();
+        }
+        if (storedPrev.getHeight() + 1 >= this.getDigishieldBlockHeight() && this.getNewInterval() == 1) {
+            return calculateDigishieldDifficultyTarget(storedPrev, getParentTimeSeconds(storedPrev, blockStore),
+                nextBlock);
         }
 
         final Block prev = storedPrev.getHeader();
@@ -252,21 +268,11 @@ public abstract class AbstractDogecoinParams extends NetworkParameters implement
                 // If the new block's timestamp is more than 2 minutes
                 // then allow mining of a min-difficulty block.
                 if (nextBlock.getTimeSeconds() > prev.getTimeSeconds() + getTargetSpacing(previousHeight + 1) * 2) {
-                    return Utils.encodeCompactBits(maxTarget);
+                    return getCompactTargetCache().getMaxTargetCompact();
                 } else {
                     // Return the last non-special-min-difficulty-rules-block
-                    StoredBlock cursor = storedPrev;
-
-                    while (cursor.getHeight() % retargetInterval != 0
-                            && cursor.getHeader().getDifficultyTarget() == Utils.encodeCompactBits(this.getMaxTarget())) {
-                        StoredBlock prevCursor = cursor.getPrev(blockStore);
-                        if (prevCursor == null) {
-                            break;
-                        }
-                        cursor = prevCursor;
-                    }
-
-                    return cursor.getHeader().getDifficultyTarget();
+                    return chainState.getMinDifficultyCursor(this.getMaxTarget())
+                        .getLastNonMinDifficultyTarget(storedPrev, retargetInterval, blockStore);
                 }
             }
 
@@ -277,29 +283,73 @@ public abstract class AbstractDogecoinParams extends NetworkParameters implement
         // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
         // two weeks after the initial block chain download.
         StoredBlock cursor = storedPrev;
-        int goBack = retargetInterval - 1;
-        if (cursor.getHeight()+1 != retargetInterval)
-            goBack = retargetInterval;
+        final int goBack = getDifficultyEngine().getBlocksBack(previousHeight, retargetInterval);
+
+        long lastRetargetTime = chainState.getAncestorIndex().getTimeSeconds(storedPrev, goBack);
+        if (lastRetargetTime == AncestorIndex.MISS) {
+            // Index is cold, so walk back through the block store
+            for (int i = 0; i < goBack; i++) {
+                if (cursor == null) {
+                    // This should never happen. If it does, it means we are following an incorrect or busted chain.
+                    throw new VerificationException(
+                            "Difficulty transition point but we did not find a way back to the genesis block.");
+                }
+                cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            }
 
-        for (int i = 0; i < goBack; i++) {
+            //We used checkpoints...
             if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
+                log.debug("Difficulty transition: Hit checkpoint!");
+                throw new CheckpointEncounteredException();
             }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            lastRetargetTime = cursor.getHeader().getTimeSeconds();
+        }
+
+        return this.calculateNewDifficultyTargetInner(previousHeight, prev.getTimeSeconds(),
+            prev.getDifficultyTarget(), lastRetargetTime,
+            nextBlock.getDifficultyTarget());
+    }
+
+    /**
+     * Get the difficulty target expected for the block after a Digishield
+     * block, which retargets from the previous block and the time of the
+     * block before that alone. Callers connecting headers in order already
+     * hold both, so nothing is read from the block store; this includes the
+     * testnet minimum difficulty rule.
+     *
+     * @param storedPrev the block the next block builds on.
+     * @param parentTimeSeconds time of the block before storedPrev.
+     * @param nextBlock the block to calculate the target of.
+     */
+    public long calculateDigishieldDifficultyTarget(final StoredBlock storedPrev, final long parentTimeSeconds,
+            final Block nextBlock) {
+        if (allowDigishieldMinDifficultyForBlock(storedPrev, nextBlock)) {
+            return getCompactTargetCache().getMaxTargetCompact();
         }
+        final Block prev = storedPrev.getHeader();
+        return this.calculateNewDifficultyTargetInner(storedPrev.getHeight(), prev.getTimeSeconds(),
+            prev.getDifficultyTarget(), parentTimeSeconds, nextBlock.getDifficultyTarget());
+    }
 
-        //We used checkpoints...
-        if (cursor == null) {
+    /**
+     * Get the time of the block before the given one, from the ancestor index
+     * or, if it is cold, a single block store read.
+     *
+     * @throws CheckpointEncounteredException if the block store does not hold
+     * the block, as it starts from a checkpoint.
+     */
+    private long getParentTimeSeconds(final StoredBlock storedPrev, final BlockStore blockStore)
+            throws BlockStoreException, CheckpointEncounteredException {
+        final long parentTime = ChainState.get(blockStore).getAncestorIndex().getTimeSeconds(storedPrev, 1);
+        if (parentTime != AncestorIndex.MISS) {
+            return parentTime;
+        }
+        final StoredBlock parent = blockStore.get(storedPrev.getHeader().getPrevBlockHash());
+        if (parent == null) {
             log.debug("Difficulty transition: Hit checkpoint!");
             throw new CheckpointEncounteredException();
         }
-
-        Block blockIntervalAgo = cursor.getHeader();
-        return this.calculateNewDifficultyTargetInner(previousHeight, prev.getTimeSeconds(),
-            prev.getDifficultyTarget(), blockIntervalAgo.getTimeSeconds(),
-            nextBlock.getDifficultyTarget());
+        return parent.getHeader().getTimeSeconds();
     }
 
     /**
@@ -335,59 +385,45 @@ public abstract class AbstractDogecoinParams extends NetworkParameters implement
     protected long calculateNewDifficultyTargetInner(int previousHeight, long previousBlockTime,
         final long lastDifficultyTarget, final long lastRetargetTime,
         final long nextDifficultyTarget) {
-        final int height = previousHeight + 1;
-        final boolean digishieldAlgorithm = height >= this.getDigishieldBlockHeight();
-        final int retargetTimespan = digishieldAlgorithm
-            ? this.getNewTargetTimespan()
-            : this.getTargetTimespan();
-        int actualTime = (int) (previousBlockTime - lastRetargetTime);
-        final int minTimespan;
-        final int maxTimespan;
+        return getDifficultyEngine().calculateNewDifficultyTarget(previousHeight, previousBlockTime,
+            lastDifficultyTarget, lastRetargetTime, nextDifficultyTarget);
+    }
 
-        // Limit the adjustment step.
-        if (digishieldAlgorithm)
-        {
-            // Round towards zero to match the C++ implementation.
-            if (actualTime < retargetTimespan) {
-                actualTime = (int)Math.ceil(retargetTimespan + (actualTime - retargetTimespan) / 8.0);
-            } else {
-                actualTime = (int)Math.floor(retargetTimespan + (actualTime - retargetTimespan) / 8.0);
-            }
-            minTimespan = retargetTimespan - (retargetTimespan / 4);
-            maxTimespan = retargetTimespan + (retargetTimespan / 2);
-        }
-        else if (height > 10000)
-        {
-            minTimespan = retargetTimespan / 4;
-            maxTimespan = retargetTimespan * 4;
-        }
-        else if (height > 5000)
-        {
-            minTimespan = retargetTimespan / 8;
-            maxTimespan = retargetTimespan * 4;
-        }
-        else
-        {
-            minTimespan = retargetTimespan / 16;
-            maxTimespan = retargetTimespan * 4;
+    /**
+     * Get the engine used for difficulty retargets, created on first use.
+     */
+    protected synchronized DifficultyEngine getDifficultyEngine() {
+        if (difficultyEngine == null) {
+            difficultyEngine = new DifficultyEngine(this.getMaxTarget(), createRetargetPolicy());
         }
-        actualTime = Math.min(maxTimespan, Math.max(minTimespan, actualTime));
-
-        BigInteger newTarget = Utils.decodeCompactBits(lastDifficultyTarget);
-        newTarget = newTarget.multiply(BigInteger.valueOf(actualTime));
-        newTarget = newTarget.divide(BigInteger.valueOf(retargetTimespan));
+        return difficultyEngine;
+    }
 
-        if (newTarget.compareTo(this.getMaxTarget()) > 0) {
-            log.info("Difficulty hit proof of work limit: {}", newTarget.toString(16));
-            newTarget = this.getMaxTarget();
+    @Override
+    public synchronized CompactTargetCache getCompactTargetCache() {
+        if (compactTargetCache == null) {
+            compactTargetCache = new CompactTargetCache(this.getMaxTarget());
         }
+        return compactTargetCache;
+    }
 
-        int accuracyBytes = (int) (nextDifficultyTarget >>> 24) - 3;
-
-        // The calculated difficulty is to a higher precision than received, so reduce here.
-        BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
-        newTarget = newTarget.and(mask);
-        return Utils.encodeCompactBits(newTarget);
+    /**
+     * Create the rules used by {@link #getDifficultyEngine()}.
+     */
+    protected RetargetPolicy createRetargetPolicy() {
+        final RetargetPolicy original = new ClassicRetargetPolicy(this.getTargetTimespan()) {
+            @Override
+            protected int getMinTimespan(final int height, final int retargetTimespan) {
+                if (height > 10000) {
+                    return retargetTimespan / 4;
+                } else if (height > 5000) {
+                    return retargetTimespan / 8;
+                } else {
+                    return retargetTimespan / 16;
+                }
+            }
+        };
+        return new DigishieldRetargetPolicy(this.getDigishieldBlockHeight(), this.getNewTargetTimespan(), original);
     }
 
     /**
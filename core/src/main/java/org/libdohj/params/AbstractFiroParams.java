@@ -26,6 +26,12 @@ import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.utils.MonetaryFormat;
 import org.libdohj.core.AltcoinNetworkParameters;
 import org.libdohj.core.AltcoinSerializer;
+import org.libdohj.core.ChainState;
+import org.libdohj.core.ClassicRetargetPolicy;
+import org.libdohj.core.CompactTargetCache;
+import org.libdohj.core.DifficultyEngine;
+import org.libdohj.core.KimotoGravityWell;
+import org.libdohj.core.RetargetPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,6 +53,16 @@ public abstract class AbstractFiroParams extends NetworkParameters implements Al
     public static final int FIRO_TARGET_TIMESPAN = (int)(60 * 60);  // 60 minutes
     public static final int FIRO_TARGET_SPACING = (int)(10 * 60);  // 10 minutes
     public static final int FIRO_INTERVAL = TARGET_TIMESPAN / TARGET_SPACING;
+    /** Target time between blocks since the switch to MTP. */
+    public static final int FIRO_MTP_TARGET_SPACING = (int)(5 * 60);  // 5 minutes
+    /** Height of the first MTP block on the main network. */
+    public static final int FIRO_MTP_HEIGHT = 117564;
+    /** Number of blocks after the switch to MTP mined at a fixed difficulty. */
+    public static final int FIRO_MTP_FIXED_DIFFICULTY_BLOCKS = 5 * 12;
+    /** Fewest blocks Kimoto Gravity Well averages over; six hours of blocks. */
+    public static final int FIRO_KGW_PAST_BLOCKS_MIN = (60 * 60 * 6) / FIRO_MTP_TARGET_SPACING;
+    /** Most blocks Kimoto Gravity Well averages over; a week of blocks. */
+    public static final int FIRO_KGW_PAST_BLOCKS_MAX = (60 * 60 * 24 * 7) / FIRO_MTP_TARGET_SPACING;
 
     /**
      * The maximum number of coins to be generated
@@ -88,6 +104,9 @@ public abstract class AbstractFiroParams extends NetworkParameters implements Al
 
     protected Logger log = LoggerFactory.getLogger(AbstractFiroParams.class);
 
+    private DifficultyEngine difficultyEngine;
+    private CompactTargetCache compactTargetCache;
+
     public AbstractFiroParams() {
         super();
         interval = FIRO_INTERVAL;
@@ -153,10 +172,11 @@ public abstract class AbstractFiroParams extends NetworkParameters implements Al
     }
 
     /**
-     * Get the difficulty target expected for the next block. This includes all
-     * the weird cases for Litecoin such as testnet blocks which can be maximum
-     * difficulty if the block interval is high enough.
-     * TODO: this may need updating for Firo; it is currently copied from Litecoin
+     * Get the difficulty target expected for the next block. Firo sets the
+     * target of every block with Kimoto Gravity Well. Blocks before
+     * {@link #getKimotoGravityWellHeight()}, which span the early forks that
+     * reset difficulty and the switch to MTP, are taken on trust, as they are
+     * covered by checkpoints.
      *
      * @throws CheckpointEncounteredException if a checkpoint is encountered while
      * calculating difficulty target, and therefore no conclusive answer can
@@ -164,69 +184,15 @@ public abstract class AbstractFiroParams extends NetworkParameters implements Al
      */
     public long calculateNewDifficultyTarget(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore)
         throws VerificationException, BlockStoreException, CheckpointEncounteredException {
-        final Block prev = storedPrev.getHeader();
-        final int previousHeight = storedPrev.getHeight();
-        final int retargetInterval = this.getInterval();
-
-        // Is this supposed to be a difficulty transition point?
-        if ((storedPrev.getHeight() + 1) % retargetInterval != 0) {
-            if (this.allowMinDifficultyBlocks()) {
-                // Special difficulty rule for testnet:
-                // If the new block's timestamp is more than 5 minutes
-                // then allow mining of a min-difficulty block.
-                if (nextBlock.getTimeSeconds() > prev.getTimeSeconds() + getTargetSpacing() * 2) {
-                    return Utils.encodeCompactBits(maxTarget);
-                } else {
-                    // Return the last non-special-min-difficulty-rules-block
-                    StoredBlock cursor = storedPrev;
-
-                    while (cursor.getHeight() % retargetInterval != 0
-                            && cursor.getHeader().getDifficultyTarget() == Utils.encodeCompactBits(this.getMaxTarget())) {
-                        StoredBlock prevCursor = cursor.getPrev(blockStore);
-                        if (prevCursor == null) {
-                            break;
-                        }
-                        cursor = prevCursor;
-                    }
-
-                    return cursor.getHeader().getDifficultyTarget();
-                }
-            }
-
-            // No ... so check the difficulty didn't actually change.
-            return prev.getDifficultyTarget();
-        }
-
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
-        StoredBlock cursor = storedPrev;
-        int goBack = retargetInterval - 1;
-
-        // Litecoin: This fixes an issue where a 51% attack can change difficulty at will.
-        // Go back the full period unless it's the first retarget after genesis.
-        // Code based on original by Art Forz
-        if (cursor.getHeight()+1 != retargetInterval)
-            goBack = retargetInterval;
-
-        for (int i = 0; i < goBack; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+        if (storedPrev.getHeight() + 1 < getKimotoGravityWellHeight()) {
+            throw new CheckpointEncounteredException();
         }
-
-        //We used checkpoints...
-        if (cursor == null) {
-            log.debug("Difficulty transition: Hit checkpoint!");
+        final long newTarget = getKimotoGravityWell(blockStore).getNextTarget(storedPrev, blockStore);
+        if (newTarget == KimotoGravityWell.UNKNOWN) {
+            log.debug("Difficulty calculation: Hit checkpoint!");
             throw new CheckpointEncounteredException();
         }
-
-        Block blockIntervalAgo = cursor.getHeader();
-        return this.calculateNewDifficultyTargetInner(previousHeight, prev.getTimeSeconds(),
-            prev.getDifficultyTarget(), blockIntervalAgo.getTimeSeconds(),
-            nextBlock.getDifficultyTarget());
+        return newTarget;
     }
 
     /**
@@ -260,28 +226,55 @@ public abstract class AbstractFiroParams extends NetworkParameters implements Al
     protected long calculateNewDifficultyTargetInner(int previousHeight, long previousBlockTime,
         final long lastDifficultyTarget, final long lastRetargetTime,
         final long nextDifficultyTarget) {
-        final int retargetTimespan = this.getTargetTimespan();
-        int actualTime = (int) (previousBlockTime - lastRetargetTime);
-        final int minTimespan = retargetTimespan / 4;
-        final int maxTimespan = retargetTimespan * 4;
-
-        actualTime = Math.min(maxTimespan, Math.max(minTimespan, actualTime));
+        return getDifficultyEngine().calculateNewDifficultyTarget(previousHeight, previousBlockTime,
+            lastDifficultyTarget, lastRetargetTime, nextDifficultyTarget);
+    }
 
-        BigInteger newTarget = Utils.decodeCompactBits(lastDifficultyTarget);
-        newTarget = newTarget.multiply(BigInteger.valueOf(actualTime));
-        newTarget = newTarget.divide(BigInteger.valueOf(retargetTimespan));
+    /**
+     * Get the engine used for difficulty retargets, created on first use.
+     */
+    protected synchronized DifficultyEngine getDifficultyEngine() {
+        if (difficultyEngine == null) {
+            difficultyEngine = new DifficultyEngine(this.getMaxTarget(), createRetargetPolicy());
+        }
+        return difficultyEngine;
+    }
 
-        if (newTarget.compareTo(this.getMaxTarget()) > 0) {
-            log.info("Difficulty hit proof of work limit: {}", newTarget.toString(16));
-            newTarget = this.getMaxTarget();
+    @Override
+    public synchronized CompactTargetCache getCompactTargetCache() {
+        if (compactTargetCache == null) {
+            compactTargetCache = new CompactTargetCache(this.getMaxTarget());
         }
+        return compactTargetCache;
+    }
 
-        int accuracyBytes = (int) (nextDifficultyTarget >>> 24) - 3;
+    /**
+     * Get the Kimoto Gravity Well calculation for the chain in the given
+     * block store, which holds the targets of its most recent blocks.
+     */
+    protected KimotoGravityWell getKimotoGravityWell(final BlockStore blockStore) {
+        return ChainState.get(blockStore).get(KimotoGravityWell.class, new ChainState.Factory<KimotoGravityWell>() {
+            @Override
+            public KimotoGravityWell create() {
+                return new KimotoGravityWell(getMaxTarget(), FIRO_MTP_TARGET_SPACING,
+                    FIRO_KGW_PAST_BLOCKS_MIN, FIRO_KGW_PAST_BLOCKS_MAX);
+            }
+        });
+    }
 
-        // The calculated difficulty is to a higher precision than received, so reduce here.
-        BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
-        newTarget = newTarget.and(mask);
-        return Utils.encodeCompactBits(newTarget);
+    /**
+     * Get the height of the first block whose difficulty is checked, once
+     * the fixed difficulty blocks after the switch to MTP are done.
+     */
+    public int getKimotoGravityWellHeight() {
+        return FIRO_MTP_HEIGHT + FIRO_MTP_FIXED_DIFFICULTY_BLOCKS;
+    }
+
+    /**
+     * Create the rules used by {@link #getDifficultyEngine()}.
+     */
+    protected RetargetPolicy createRetargetPolicy() {
+        return new ClassicRetargetPolicy(this.getTargetTimespan());
     }
 
     @Override
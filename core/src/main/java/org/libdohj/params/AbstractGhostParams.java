@@ -26,6 +26,14 @@ import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.utils.MonetaryFormat;
 import org.libdohj.core.AltcoinNetworkParameters;
 import org.libdohj.core.AltcoinSerializer;
+import org.libdohj.core.AncestorIndex;
+import org.libdohj.core.ChainState;
+import org.libdohj.core.ClassicRetargetPolicy;
+import org.libdohj.core.CompactTargetCache;
+import org.libdohj.core.DifficultyEngine;
+import org.libdohj.core.ProofOfStakeVerifier;
+import org.libdohj.core.RetargetPolicy;
+import org.libdohj.core.StakeIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,6 +55,10 @@ public abstract class AbstractGhostParams extends NetworkParameters implements A
     public static final int GHOST_TARGET_TIMESPAN = (int)(14 * 24 * 60 * 60);  // 2 weeks - https://github.com/ghost-coin/ghost-core/blob/master/src/chainparams.cpp#L487
     public static final int GHOST_TARGET_SPACING = (int)(10 * 60);  // 10 minutes - https://github.com/ghost-coin/ghost-core/blob/master/src/chainparams.cpp#L488
     public static final int GHOST_INTERVAL = TARGET_TIMESPAN / TARGET_SPACING;
+    /** Confirmations an output needs before it can be staked. */
+    public static final int GHOST_STAKE_MIN_CONFIRMATIONS = 225;
+    /** Bits which must be clear in the time of a proof of stake block. */
+    public static final int GHOST_STAKE_TIMESTAMP_MASK = (1 << 4) - 1;
 
     /**
      * The maximum number of coins to be generated
@@ -90,6 +102,10 @@ public abstract class AbstractGhostParams extends NetworkParameters implements A
 
     protected Logger log = LoggerFactory.getLogger(AbstractGhostParams.class);
 
+    private DifficultyEngine difficultyEngine;
+    private CompactTargetCache compactTargetCache;
+    private ProofOfStakeVerifier proofOfStakeVerifier;
+
     public AbstractGhostParams() {
         super();
         interval = GHOST_INTERVAL;
@@ -107,7 +123,9 @@ public abstract class AbstractGhostParams extends NetworkParameters implements A
     }
 
     /**
-     * Get the hash to use for a block.
+     * Get the hash to use for a block. Ghost blocks are proof of stake, and
+     * are checked with {@link #getProofOfStakeVerifier()} given the kernel
+     * of their coinstake transaction; the scrypt hash remains a placeholder.
      */
     @Override
     public Sha256Hash getBlockDifficultyHash(Block block) {
@@ -166,6 +184,8 @@ public abstract class AbstractGhostParams extends NetworkParameters implements A
      */
     public long calculateNewDifficultyTarget(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore)
         throws VerificationException, BlockStoreException, CheckpointEncounteredException {
+        final ChainState chainState = ChainState.get(blockStore);
+        chainState.getAncestorIndex().add(storedPrev);
         final Block prev = storedPrev.getHeader();
         final int previousHeight = storedPrev.getHeight();
         final int retargetInterval = this.getInterval();
@@ -177,21 +197,11 @@ public abstract class AbstractGhostParams extends NetworkParameters implements A
                 // If the new block's timestamp is more than 5 minutes
                 // then allow mining of a min-difficulty block.
                 if (nextBlock.getTimeSeconds() > prev.getTimeSeconds() + getTargetSpacing() * 2) {
-                    return Utils.encodeCompactBits(maxTarget);
+                    return getCompactTargetCache().getMaxTargetCompact();
                 } else {
                     // Return the last non-special-min-difficulty-rules-block
-                    StoredBlock cursor = storedPrev;
-
-                    while (cursor.getHeight() % retargetInterval != 0
-                            && cursor.getHeader().getDifficultyTarget() == Utils.encodeCompactBits(this.getMaxTarget())) {
-                        StoredBlock prevCursor = cursor.getPrev(blockStore);
-                        if (prevCursor == null) {
-                            break;
-                        }
-                        cursor = prevCursor;
-                    }
-
-                    return cursor.getHeader().getDifficultyTarget();
+                    return chainState.getMinDifficultyCursor(this.getMaxTarget())
+                        .getLastNonMinDifficultyTarget(storedPrev, retargetInterval, blockStore);
                 }
             }
 
@@ -202,32 +212,30 @@ public abstract class AbstractGhostParams extends NetworkParameters implements A
         // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
         // two weeks after the initial block chain download.
         StoredBlock cursor = storedPrev;
-        int goBack = retargetInterval - 1;
-
-        // Litecoin: This fixes an issue where a 51% attack can change difficulty at will.
-        // Go back the full period unless it's the first retarget after genesis.
-        // Code based on original by Art Forz
-        if (cursor.getHeight()+1 != retargetInterval)
-            goBack = retargetInterval;
+        final int goBack = getDifficultyEngine().getBlocksBack(previousHeight, retargetInterval);
+
+        long lastRetargetTime = chainState.getAncestorIndex().getTimeSeconds(storedPrev, goBack);
+        if (lastRetargetTime == AncestorIndex.MISS) {
+            // Index is cold, so walk back through the block store
+            for (int i = 0; i < goBack; i++) {
+                if (cursor == null) {
+                    // This should never happen. If it does, it means we are following an incorrect or busted chain.
+                    throw new VerificationException(
+                            "Difficulty transition point but we did not find a way back to the genesis block.");
+                }
+                cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            }
 
-        for (int i = 0; i < goBack; i++) {
+            //We used checkpoints...
             if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
+                log.debug("Difficulty transition: Hit checkpoint!");
+                throw new CheckpointEncounteredException();
             }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
-        }
-
-        //We used checkpoints...
-        if (cursor == null) {
-            log.debug("Difficulty transition: Hit checkpoint!");
-            throw new CheckpointEncounteredException();
+            lastRetargetTime = cursor.getHeader().getTimeSeconds();
         }
 
-        Block blockIntervalAgo = cursor.getHeader();
         return this.calculateNewDifficultyTargetInner(previousHeight, prev.getTimeSeconds(),
-            prev.getDifficultyTarget(), blockIntervalAgo.getTimeSeconds(),
+            prev.getDifficultyTarget(), lastRetargetTime,
             nextBlock.getDifficultyTarget());
     }
 
@@ -262,28 +270,52 @@ public abstract class AbstractGhostParams extends NetworkParameters implements A
     protected long calculateNewDifficultyTargetInner(int previousHeight, long previousBlockTime,
         final long lastDifficultyTarget, final long lastRetargetTime,
         final long nextDifficultyTarget) {
-        final int retargetTimespan = this.getTargetTimespan();
-        int actualTime = (int) (previousBlockTime - lastRetargetTime);
-        final int minTimespan = retargetTimespan / 4;
-        final int maxTimespan = retargetTimespan * 4;
+        return getDifficultyEngine().calculateNewDifficultyTarget(previousHeight, previousBlockTime,
+            lastDifficultyTarget, lastRetargetTime, nextDifficultyTarget);
+    }
 
-        actualTime = Math.min(maxTimespan, Math.max(minTimespan, actualTime));
+    /**
+     * Get the engine used for difficulty retargets, created on first use.
+     */
+    protected synchronized DifficultyEngine getDifficultyEngine() {
+        if (difficultyEngine == null) {
+            difficultyEngine = new DifficultyEngine(this.getMaxTarget(), createRetargetPolicy());
+        }
+        return difficultyEngine;
+    }
 
-        BigInteger newTarget = Utils.decodeCompactBits(lastDifficultyTarget);
-        newTarget = newTarget.multiply(BigInteger.valueOf(actualTime));
-        newTarget = newTarget.divide(BigInteger.valueOf(retargetTimespan));
+    @Override
+    public synchronized CompactTargetCache getCompactTargetCache() {
+        if (compactTargetCache == null) {
+            compactTargetCache = new CompactTargetCache(this.getMaxTarget());
+        }
+        return compactTargetCache;
+    }
 
-        if (newTarget.compareTo(this.getMaxTarget()) > 0) {
-            log.info("Difficulty hit proof of work limit: {}", newTarget.toString(16));
-            newTarget = this.getMaxTarget();
+    /**
+     * Get the verifier for stake kernels, created on first use. It holds the
+     * staked outputs and stake modifiers of recent blocks in memory.
+     */
+    public synchronized ProofOfStakeVerifier getProofOfStakeVerifier() {
+        if (proofOfStakeVerifier == null) {
+            proofOfStakeVerifier = new ProofOfStakeVerifier(new StakeIndex(), getStakeMinConfirmations(),
+                GHOST_STAKE_TIMESTAMP_MASK);
         }
+        return proofOfStakeVerifier;
+    }
 
-        int accuracyBytes = (int) (nextDifficultyTarget >>> 24) - 3;
+    /**
+     * Get the number of confirmations an output needs before it can be staked.
+     */
+    public int getStakeMinConfirmations() {
+        return GHOST_STAKE_MIN_CONFIRMATIONS;
+    }
 
-        // The calculated difficulty is to a higher precision than received, so reduce here.
-        BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
-        newTarget = newTarget.and(mask);
-        return Utils.encodeCompactBits(newTarget);
+    /**
+     * Create the rules used by {@link #getDifficultyEngine()}.
+     */
+    protected RetargetPolicy createRetargetPolicy() {
+        return new ClassicRetargetPolicy(this.getTargetTimespan());
     }
 
     @Override
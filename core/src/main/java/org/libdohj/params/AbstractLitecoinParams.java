@@ -20,8 +20,14 @@ import org.bitcoinj.core.*;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.utils.MonetaryFormat;
-import org.libdohj.core.AltcoinNetworkParameters;
 import org.libdohj.core.AltcoinSerializer;
+import org.libdohj.core.AncestorIndex;
+import org.libdohj.core.ChainState;
+import org.libdohj.core.ClassicRetargetPolicy;
+import org.libdohj.core.CompactTargetCache;
+import org.libdohj.core.DifficultyEngine;
+import org.libdohj.core.MwebNetworkParameters;
+import org.libdohj.core.RetargetPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.math.BigInteger;
@@ -30,7 +36,7 @@ import static org.bitcoinj.core.Coin.COIN;
 /**
  * Common parameters for Litecoin networks.
  */
-public abstract class AbstractLitecoinParams extends NetworkParameters implements AltcoinNetworkParameters {
+public abstract class AbstractLitecoinParams extends NetworkParameters implements MwebNetworkParameters {
     /** Standard format for the LITE denomination. */
     public static final MonetaryFormat LITE;
     /** Standard format for the mLITE denomination. */
@@ -82,6 +88,9 @@ public abstract class AbstractLitecoinParams extends NetworkParameters implement
 
     protected Logger log = LoggerFactory.getLogger(AbstractLitecoinParams.class);
 
+    private DifficultyEngine difficultyEngine;
+    private CompactTargetCache compactTargetCache;
+
     public AbstractLitecoinParams() {
         super();
         interval = LITE_INTERVAL;
@@ -157,6 +166,8 @@ public abstract class AbstractLitecoinParams extends NetworkParameters implement
      */
     public long calculateNewDifficultyTarget(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore)
         throws VerificationException, BlockStoreException, CheckpointEncounteredException {
+        final ChainState chainState = ChainState.get(blockStore);
+        chainState.getAncestorIndex().add(storedPrev);
         final Block prev = storedPrev.getHeader();
         final int previousHeight = storedPrev.getHeight();
         final int retargetInterval = this.getInterval();
@@ -168,21 +179,11 @@ public abstract class AbstractLitecoinParams extends NetworkParameters implement
                 // If the new block's timestamp is more than 5 minutes
                 // then allow mining of a min-difficulty block.
                 if (nextBlock.getTimeSeconds() > prev.getTimeSeconds() + getTargetSpacing() * 2) {
-                    return Utils.encodeCompactBits(maxTarget);
+                    return getCompactTargetCache().getMaxTargetCompact();
                 } else {
                     // Return the last non-special-min-difficulty-rules-block
-                    StoredBlock cursor = storedPrev;
-
-                    while (cursor.getHeight() % retargetInterval != 0
-                            && cursor.getHeader().getDifficultyTarget() == Utils.encodeCompactBits(this.getMaxTarget())) {
-                        StoredBlock prevCursor = cursor.getPrev(blockStore);
-                        if (prevCursor == null) {
-                            break;
-                        }
-                        cursor = prevCursor;
-                    }
-
-                    return cursor.getHeader().getDifficultyTarget();
+                    return chainState.getMinDifficultyCursor(this.getMaxTarget())
+                        .getLastNonMinDifficultyTarget(storedPrev, retargetInterval, blockStore);
                 }
             }
 
@@ -193,32 +194,30 @@ public abstract class AbstractLitecoinParams extends NetworkParameters implement
         // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
         // two weeks after the initial block chain download.
         StoredBlock cursor = storedPrev;
-        int goBack = retargetInterval - 1;
-
-        // Litecoin: This fixes an issue where a 51% attack can change difficulty at will.
-        // Go back the full period unless it's the first retarget after genesis.
-        // Code based on original by Art Forz
-        if (cursor.getHeight()+1 != retargetInterval)
-            goBack = retargetInterval;
+        final int goBack = getDifficultyEngine().getBlocksBack(previousHeight, retargetInterval);
+
+        long lastRetargetTime = chainState.getAncestorIndex().getTimeSeconds(storedPrev, goBack);
+        if (lastRetargetTime == AncestorIndex.MISS) {
+            // Index is cold, so walk back through the block store
+            for (int i = 0; i < goBack; i++) {
+                if (cursor == null) {
+                    // This should never happen. If it does, it means we are following an incorrect or busted chain.
+                    throw new VerificationException(
+                            "Difficulty transition point but we did not find a way back to the genesis block.");
+                }
+                cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            }
 
-        for (int i = 0; i < goBack; i++) {
+            //We used checkpoints...
             if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
+                log.debug("Difficulty transition: Hit checkpoint!");
+                throw new CheckpointEncounteredException();
             }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
-        }
-
-        //We used checkpoints...
-        if (cursor == null) {
-            log.debug("Difficulty transition: Hit checkpoint!");
-            throw new CheckpointEncounteredException();
+            lastRetargetTime = cursor.getHeader().getTimeSeconds();
         }
 
-        Block blockIntervalAgo = cursor.getHeader();
         return this.calculateNewDifficultyTargetInner(previousHeight, prev.getTimeSeconds(),
-            prev.getDifficultyTarget(), blockIntervalAgo.getTimeSeconds(),
+            prev.getDifficultyTarget(), lastRetargetTime,
             nextBlock.getDifficultyTarget());
     }
 
@@ -253,28 +252,41 @@ public abstract class AbstractLitecoinParams extends NetworkParameters implement
     protected long calculateNewDifficultyTargetInner(int previousHeight, long previousBlockTime,
         final long lastDifficultyTarget, final long lastRetargetTime,
         final long nextDifficultyTarget) {
-        final int retargetTimespan = this.getTargetTimespan();
-        int actualTime = (int) (previousBlockTime - lastRetargetTime);
-        final int minTimespan = retargetTimespan / 4;
-        final int maxTimespan = retargetTimespan * 4;
-
-        actualTime = Math.min(maxTimespan, Math.max(minTimespan, actualTime));
+        return getDifficultyEngine().calculateNewDifficultyTarget(previousHeight, previousBlockTime,
+            lastDifficultyTarget, lastRetargetTime, nextDifficultyTarget);
+    }
 
-        BigInteger newTarget = Utils.decodeCompactBits(lastDifficultyTarget);
-        newTarget = newTarget.multiply(BigInteger.valueOf(actualTime));
-        newTarget = newTarget.divide(BigInteger.valueOf(retargetTimespan));
+    /**
+     * Get the engine used for difficulty retargets, created on first use.
+     */
+    protected synchronized DifficultyEngine getDifficultyEngine() {
+        if (difficultyEngine == null) {
+            difficultyEngine = new DifficultyEngine(this.getMaxTarget(), createRetargetPolicy());
+        }
+        return difficultyEngine;
+    }
 
-        if (newTarget.compareTo(this.getMaxTarget()) > 0) {
-            log.info("Difficulty hit proof of work limit: {}", newTarget.toString(16));
-            newTarget = this.getMaxTarget();
+    @Override
+    public synchronized CompactTargetCache getCompactTargetCache() {
+        if (compactTargetCache == null) {
+            compactTargetCache = new CompactTargetCache(this.getMaxTarget());
         }
+        return compactTargetCache;
+    }
 
-        int accuracyBytes = (int) (nextDifficultyTarget >>> 24) - 3;
+    /**
+     * Create the rules used by {@link #getDifficultyEngine()}.
+     */
+    protected RetargetPolicy createRetargetPolicy() {
+        return new ClassicRetargetPolicy(this.getTargetTimespan());
+    }
 
-        // The calculated difficulty is to a higher precision than received, so reduce here.
-        BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
-        newTarget = newTarget.and(mask);
-        return Utils.encodeCompactBits(newTarget);
+    /**
+     * Extension blocks are skipped by default, as nothing here reads them.
+     */
+    @Override
+    public boolean isMwebDataRetained() {
+        return false;
     }
 
     @Override
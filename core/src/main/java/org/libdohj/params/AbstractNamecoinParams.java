@@ -49,6 +49,11 @@ import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.core.TransactionOutput;
 import org.bitcoinj.core.Utils;
 import org.libdohj.core.AltcoinSerializer;
+import org.libdohj.core.AncestorIndex;
+import org.libdohj.core.ChainState;
+import org.libdohj.core.CompactTargetCache;
+import org.libdohj.core.DifficultyEngine;
+import org.libdohj.core.NamecoinRetargetPolicy;
 import org.libdohj.core.AuxPoWNetworkParameters;
 
 // TODO: review this
@@ -94,6 +99,9 @@ public abstract class AbstractNamecoinParams extends NetworkParameters implement
     public static final String ID_NMC_TESTNET = "org.namecoin.test";
 
     protected Logger log = LoggerFactory.getLogger(AbstractNamecoinParams.class);
+
+    private DifficultyEngine difficultyEngine;
+    private CompactTargetCache compactTargetCache;
     
     public static final int NAMECOIN_PROTOCOL_VERSION_GETHEADERS = 38000;
 
@@ -176,6 +184,8 @@ public abstract class AbstractNamecoinParams extends NetworkParameters implement
         throws VerificationException, BlockStoreException {        
         // This is copied verbatim from Bitcoin except for the Namecoin changes marked accordingly
         Block prev = storedPrev.getHeader();
+        final ChainState chainState = ChainState.get(blockStore);
+        chainState.getAncestorIndex().add(storedPrev);
 
         // Is this supposed to be a difficulty transition point?
         if (!isDifficultyTransitionPoint(storedPrev)) {
@@ -191,59 +201,58 @@ public abstract class AbstractNamecoinParams extends NetworkParameters implement
         // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
         // two weeks after the initial block chain download.
         final Stopwatch watch = Stopwatch.createStarted();
-        StoredBlock cursor = blockStore.get(prev.getHash());
         
         // Namecoin addition
-        int blocksBack = this.getInterval() - 1;
-        if (storedPrev.getHeight() >= this.getAuxpowStartHeight() && (storedPrev.getHeight() + 1 > this.getInterval())) {
-	    blocksBack = this.getInterval();
-        }
-        
-        // Namecoin modification
-        //for (int i = 0; i < this.getInterval() - 1; i++) {
-        for (int i = 0; i < blocksBack; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
+        final int blocksBack = getDifficultyEngine().getBlocksBack(storedPrev.getHeight(), this.getInterval());
+
+        long lastRetargetTime = chainState.getAncestorIndex().getTimeSeconds(storedPrev, blocksBack);
+        if (lastRetargetTime == AncestorIndex.MISS) {
+            StoredBlock cursor = blockStore.get(prev.getHash());
+
+            // Namecoin modification
+            //for (int i = 0; i < this.getInterval() - 1; i++) {
+            for (int i = 0; i < blocksBack; i++) {
+                if (cursor == null) {
+                    // This should never happen. If it does, it means we are following an incorrect or busted chain.
+                    throw new VerificationException(
+                            "Difficulty transition point but we did not find a way back to the genesis block.");
+                }
+                cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
             }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            lastRetargetTime = cursor.getHeader().getTimeSeconds();
         }
         watch.stop();
         if (watch.elapsed(TimeUnit.MILLISECONDS) > 50)
             log.info("Difficulty transition traversal took {}", watch);
 
-        Block blockIntervalAgo = cursor.getHeader();
-        int timespan = (int) (prev.getTimeSeconds() - blockIntervalAgo.getTimeSeconds());
-        // Limit the adjustment step.
-        final int targetTimespan = this.getTargetTimespan();
-        if (timespan < targetTimespan / 4)
-            timespan = targetTimespan / 4;
-        if (timespan > targetTimespan * 4)
-            timespan = targetTimespan * 4;
-
-        BigInteger newTarget = Utils.decodeCompactBits(prev.getDifficultyTarget());
-        newTarget = newTarget.multiply(BigInteger.valueOf(timespan));
-        newTarget = newTarget.divide(BigInteger.valueOf(targetTimespan));
-
-        if (newTarget.compareTo(this.getMaxTarget()) > 0) {
-            log.info("Difficulty hit proof of work limit: {}", newTarget.toString(16));
-            newTarget = this.getMaxTarget();
-        }
-
-        int accuracyBytes = (int) (nextBlock.getDifficultyTarget() >>> 24) - 3;
         long receivedTargetCompact = nextBlock.getDifficultyTarget();
-
-        // The calculated difficulty is to a higher precision than received, so reduce here.
-        BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
-        newTarget = newTarget.and(mask);
-        long newTargetCompact = Utils.encodeCompactBits(newTarget);
+        long newTargetCompact = getDifficultyEngine().calculateNewDifficultyTarget(storedPrev.getHeight(),
+            prev.getTimeSeconds(), prev.getDifficultyTarget(), lastRetargetTime, receivedTargetCompact);
 
         if (newTargetCompact != receivedTargetCompact)
             throw new VerificationException("Network provided difficulty bits do not match what was calculated: " +
                     Long.toHexString(newTargetCompact) + " vs " + Long.toHexString(receivedTargetCompact));
     }
 
+    /**
+     * Get the engine used for difficulty retargets, created on first use.
+     */
+    protected synchronized DifficultyEngine getDifficultyEngine() {
+        if (difficultyEngine == null) {
+            difficultyEngine = new DifficultyEngine(this.getMaxTarget(),
+                new NamecoinRetargetPolicy(this.getTargetTimespan(), this.getAuxpowStartHeight()));
+        }
+        return difficultyEngine;
+    }
+
+    @Override
+    public synchronized CompactTargetCache getCompactTargetCache() {
+        if (compactTargetCache == null) {
+            compactTargetCache = new CompactTargetCache(this.getMaxTarget());
+        }
+        return compactTargetCache;
+    }
+
     @Override
     public int getChainID() {
         return AUXPOW_CHAIN_ID;
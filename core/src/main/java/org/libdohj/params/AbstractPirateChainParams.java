@@ -24,8 +24,15 @@ import org.bitcoinj.core.*;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.utils.MonetaryFormat;
-import org.libdohj.core.AltcoinNetworkParameters;
 import org.libdohj.core.AltcoinSerializer;
+import org.libdohj.core.AncestorIndex;
+import org.libdohj.core.ChainState;
+import org.libdohj.core.ClassicRetargetPolicy;
+import org.libdohj.core.CompactTargetCache;
+import org.libdohj.core.DifficultyEngine;
+import org.libdohj.core.EquihashNetworkParameters;
+import org.libdohj.core.EquihashVerifier;
+import org.libdohj.core.RetargetPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,7 +43,7 @@ import static org.bitcoinj.core.Coin.COIN;
 /**
  * Common parameters for Litecoin networks.
  */
-public abstract class AbstractPirateChainParams extends NetworkParameters implements AltcoinNetworkParameters {
+public abstract class AbstractPirateChainParams extends NetworkParameters implements EquihashNetworkParameters {
     /** Standard format for the PIRATE denomination. */
     public static final MonetaryFormat PIRATE;
     /** Standard format for the mPIRATE denomination. */
@@ -47,6 +54,10 @@ public abstract class AbstractPirateChainParams extends NetworkParameters implem
     public static final int ARRR_TARGET_TIMESPAN = (int) (3.5 * 24 * 60 * 60); // 3.5 days // TODO
     public static final int ARRR_TARGET_SPACING = (int) (1 * 60); // 1 minute
     public static final int ARRR_INTERVAL = ARRR_TARGET_TIMESPAN / ARRR_TARGET_SPACING;
+    /** Equihash hash length, in bits. */
+    public static final int ARRR_EQUIHASH_N = 200;
+    /** Equihash collision rounds. */
+    public static final int ARRR_EQUIHASH_K = 9;
 
     /**
      * The maximum number of coins to be generated
@@ -88,6 +99,10 @@ public abstract class AbstractPirateChainParams extends NetworkParameters implem
 
     protected Logger log = LoggerFactory.getLogger(AbstractPirateChainParams.class);
 
+    private DifficultyEngine difficultyEngine;
+    private CompactTargetCache compactTargetCache;
+    private EquihashVerifier equihashVerifier;
+
     public AbstractPirateChainParams() {
         super();
         interval = ARRR_INTERVAL;
@@ -105,11 +120,32 @@ public abstract class AbstractPirateChainParams extends NetworkParameters implem
     }
 
     /**
-     * Get the hash to use for a block.
+     * Get the hash to use for a block; the block hash, which for Zcash style
+     * headers covers the Equihash solution.
      */
     @Override
     public Sha256Hash getBlockDifficultyHash(Block block) {
-        return ((AltcoinBlock) block).getScryptHash();
+        return block.getHash();
+    }
+
+    /**
+     * Get the verifier for Equihash(200, 9) solutions, created on first use.
+     */
+    @Override
+    public synchronized EquihashVerifier getEquihashVerifier() {
+        if (equihashVerifier == null) {
+            equihashVerifier = new EquihashVerifier(ARRR_EQUIHASH_N, ARRR_EQUIHASH_K);
+        }
+        return equihashVerifier;
+    }
+
+    /**
+     * Solutions are left out of stored headers once verified, so a chain of
+     * headers takes around a tenth of the memory.
+     */
+    @Override
+    public boolean isEquihashSolutionRetained() {
+        return false;
     }
 
     public MonetaryFormat getMonetaryFormat() {
@@ -163,6 +199,8 @@ public abstract class AbstractPirateChainParams extends NetworkParameters implem
      */
     public long calculateNewDifficultyTarget(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore)
         throws VerificationException, BlockStoreException, CheckpointEncounteredException {
+        final ChainState chainState = ChainState.get(blockStore);
+        chainState.getAncestorIndex().add(storedPrev);
         final Block prev = storedPrev.getHeader();
         final int previousHeight = storedPrev.getHeight();
         final int retargetInterval = this.getInterval();
@@ -174,21 +212,11 @@ public abstract class AbstractPirateChainParams extends NetworkParameters implem
                 // If the new block's timestamp is more than 5 minutes
                 // then allow mining of a min-difficulty block.
                 if (nextBlock.getTimeSeconds() > prev.getTimeSeconds() + getTargetSpacing() * 2) {
-                    return Utils.encodeCompactBits(maxTarget);
+                    return getCompactTargetCache().getMaxTargetCompact();
                 } else {
                     // Return the last non-special-min-difficulty-rules-block
-                    StoredBlock cursor = storedPrev;
-
-                    while (cursor.getHeight() % retargetInterval != 0
-                            && cursor.getHeader().getDifficultyTarget() == Utils.encodeCompactBits(this.getMaxTarget())) {
-                        StoredBlock prevCursor = cursor.getPrev(blockStore);
-                        if (prevCursor == null) {
-                            break;
-                        }
-                        cursor = prevCursor;
-                    }
-
-                    return cursor.getHeader().getDifficultyTarget();
+                    return chainState.getMinDifficultyCursor(this.getMaxTarget())
+                        .getLastNonMinDifficultyTarget(storedPrev, retargetInterval, blockStore);
                 }
             }
 
@@ -199,32 +227,30 @@ public abstract class AbstractPirateChainParams extends NetworkParameters implem
         // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
         // two weeks after the initial block chain download.
         StoredBlock cursor = storedPrev;
-        int goBack = retargetInterval - 1;
-
-        // Litecoin: This fixes an issue where a 51% attack can change difficulty at will.
-        // Go back the full period unless it's the first retarget after genesis.
-        // Code based on original by Art Forz
-        if (cursor.getHeight()+1 != retargetInterval)
-            goBack = retargetInterval;
+        final int goBack = getDifficultyEngine().getBlocksBack(previousHeight, retargetInterval);
+
+        long lastRetargetTime = chainState.getAncestorIndex().getTimeSeconds(storedPrev, goBack);
+        if (lastRetargetTime == AncestorIndex.MISS) {
+            // Index is cold, so walk back through the block store
+            for (int i = 0; i < goBack; i++) {
+                if (cursor == null) {
+                    // This should never happen. If it does, it means we are following an incorrect or busted chain.
+                    throw new VerificationException(
+                            "Difficulty transition point but we did not find a way back to the genesis block.");
+                }
+                cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            }
 
-        for (int i = 0; i < goBack; i++) {
+            //We used checkpoints...
             if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
+                log.debug("Difficulty transition: Hit checkpoint!");
+                throw new CheckpointEncounteredException();
             }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            lastRetargetTime = cursor.getHeader().getTimeSeconds();
         }
 
-        //We used checkpoints...
-        if (cursor == null) {
-            log.debug("Difficulty transition: Hit checkpoint!");
-            throw new CheckpointEncounteredException();
-        }
-
-        Block blockIntervalAgo = cursor.getHeader();
         return this.calculateNewDifficultyTargetInner(previousHeight, prev.getTimeSeconds(),
-            prev.getDifficultyTarget(), blockIntervalAgo.getTimeSeconds(),
+            prev.getDifficultyTarget(), lastRetargetTime,
             nextBlock.getDifficultyTarget());
     }
 
@@ -259,28 +285,33 @@ public abstract class AbstractPirateChainParams extends NetworkParameters implem
     protected long calculateNewDifficultyTargetInner(int previousHeight, long previousBlockTime,
         final long lastDifficultyTarget, final long lastRetargetTime,
         final long nextDifficultyTarget) {
-        final int retargetTimespan = this.getTargetTimespan();
-        int actualTime = (int) (previousBlockTime - lastRetargetTime);
-        final int minTimespan = retargetTimespan / 4;
-        final int maxTimespan = retargetTimespan * 4;
-
-        actualTime = Math.min(maxTimespan, Math.max(minTimespan, actualTime));
-
-        BigInteger newTarget = Utils.decodeCompactBits(lastDifficultyTarget);
-        newTarget = newTarget.multiply(BigInteger.valueOf(actualTime));
-        newTarget = newTarget.divide(BigInteger.valueOf(retargetTimespan));
+        return getDifficultyEngine().calculateNewDifficultyTarget(previousHeight, previousBlockTime,
+            lastDifficultyTarget, lastRetargetTime, nextDifficultyTarget);
+    }
 
-        if (newTarget.compareTo(this.getMaxTarget()) > 0) {
-            log.info("Difficulty hit proof of work limit: {}", newTarget.toString(16));
-            newTarget = this.getMaxTarget();
+    /**
+     * Get the engine used for difficulty retargets, created on first use.
+     */
+    protected synchronized DifficultyEngine getDifficultyEngine() {
+        if (difficultyEngine == null) {
+            difficultyEngine = new DifficultyEngine(this.getMaxTarget(), createRetargetPolicy());
         }
+        return difficultyEngine;
+    }
 
-        int accuracyBytes = (int) (nextDifficultyTarget >>> 24) - 3;
+    @Override
+    public synchronized CompactTargetCache getCompactTargetCache() {
+        if (compactTargetCache == null) {
+            compactTargetCache = new CompactTargetCache(this.getMaxTarget());
+        }
+        return compactTargetCache;
+    }
 
-        // The calculated difficulty is to a higher precision than received, so reduce here.
-        BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
-        newTarget = newTarget.and(mask);
-        return Utils.encodeCompactBits(newTarget);
+    /**
+     * Create the rules used by {@link #getDifficultyEngine()}.
+     */
+    protected RetargetPolicy createRetargetPolicy() {
+        return new ClassicRetargetPolicy(this.getTargetTimespan());
     }
 
     @Override
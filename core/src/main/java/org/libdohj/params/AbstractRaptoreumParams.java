@@ -26,6 +26,13 @@ import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.utils.MonetaryFormat;
 import org.libdohj.core.AltcoinNetworkParameters;
 import org.libdohj.core.AltcoinSerializer;
+import org.libdohj.core.AncestorIndex;
+import org.libdohj.core.ChainState;
+import org.libdohj.core.ClassicRetargetPolicy;
+import org.libdohj.core.CompactTargetCache;
+import org.libdohj.core.DarkGravityWave;
+import org.libdohj.core.DifficultyEngine;
+import org.libdohj.core.RetargetPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,6 +54,8 @@ public abstract class AbstractRaptoreumParams extends NetworkParameters implemen
     public static final int RTM_TARGET_TIMESPAN = (int)(24 * 60 * 60);  // 1 day
     public static final int RTM_TARGET_SPACING = (int)(2 * 60);  // 2 minutes
     public static final int RTM_INTERVAL = TARGET_TIMESPAN / TARGET_SPACING;
+    /** Raptoreum has used Dark Gravity Wave v3 since its genesis block. */
+    public static final int RTM_DGW_HEIGHT = 0;
 
     /**
      * The maximum number of coins to be generated
@@ -88,6 +97,9 @@ public abstract class AbstractRaptoreumParams extends NetworkParameters implemen
 
     protected Logger log = LoggerFactory.getLogger(AbstractRaptoreumParams.class);
 
+    private DifficultyEngine difficultyEngine;
+    private CompactTargetCache compactTargetCache;
+
     public AbstractRaptoreumParams() {
         super();
         interval = RTM_INTERVAL;
@@ -155,8 +167,9 @@ public abstract class AbstractRaptoreumParams extends NetworkParameters implemen
     /**
      * Get the difficulty target expected for the next block. This includes all
      * the weird cases for Litecoin such as testnet blocks which can be maximum
-     * difficulty if the block interval is high enough.
-     * TODO: this may need updating for Raptoreum; it is currently copied from Litecoin
+     * difficulty if the block interval is high enough. From
+     * {@link #getDarkGravityWaveHeight()} onwards, this is Dark Gravity Wave v3;
+     * before then the Litecoin rules are applied.
      *
      * @throws CheckpointEncounteredException if a checkpoint is encountered while
      * calculating difficulty target, and therefore no conclusive answer can
@@ -164,6 +177,16 @@ public abstract class AbstractRaptoreumParams extends NetworkParameters implemen
      */
     public long calculateNewDifficultyTarget(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore)
         throws VerificationException, BlockStoreException, CheckpointEncounteredException {
+        if (storedPrev.getHeight() + 1 >= getDarkGravityWaveHeight()) {
+            final long newTarget = getDarkGravityWave(blockStore).getNextTarget(storedPrev, nextBlock, blockStore);
+            if (newTarget == DarkGravityWave.UNKNOWN) {
+                throw new CheckpointEncounteredException();
+            }
+            return newTarget;
+        }
+
+        final ChainState chainState = ChainState.get(blockStore);
+        chainState.getAncestorIndex().add(storedPrev);
         final Block prev = storedPrev.getHeader();
         final int previousHeight = storedPrev.getHeight();
         final int retargetInterval = this.getInterval();
@@ -175,21 +198,11 @@ public abstract class AbstractRaptoreumParams extends NetworkParameters implemen
                 // If the new block's timestamp is more than 5 minutes
                 // then allow mining of a min-difficulty block.
                 if (nextBlock.getTimeSeconds() > prev.getTimeSeconds() + getTargetSpacing() * 2) {
-                    return Utils.encodeCompactBits(maxTarget);
+                    return getCompactTargetCache().getMaxTargetCompact();
                 } else {
                     // Return the last non-special-min-difficulty-rules-block
-                    StoredBlock cursor = storedPrev;
-
-                    while (cursor.getHeight() % retargetInterval != 0
-                            && cursor.getHeader().getDifficultyTarget() == Utils.encodeCompactBits(this.getMaxTarget())) {
-                        StoredBlock prevCursor = cursor.getPrev(blockStore);
-                        if (prevCursor == null) {
-                            break;
-                        }
-                        cursor = prevCursor;
-                    }
-
-                    return cursor.getHeader().getDifficultyTarget();
+                    return chainState.getMinDifficultyCursor(this.getMaxTarget())
+                        .getLastNonMinDifficultyTarget(storedPrev, retargetInterval, blockStore);
                 }
             }
 
@@ -200,32 +213,30 @@ public abstract class AbstractRaptoreumParams extends NetworkParameters implemen
         // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
         // two weeks after the initial block chain download.
         StoredBlock cursor = storedPrev;
-        int goBack = retargetInterval - 1;
-
-        // Litecoin: This fixes an issue where a 51% attack can change difficulty at will.
-        // Go back the full period unless it's the first retarget after genesis.
-        // Code based on original by Art Forz
-        if (cursor.getHeight()+1 != retargetInterval)
-            goBack = retargetInterval;
+        final int goBack = getDifficultyEngine().getBlocksBack(previousHeight, retargetInterval);
+
+        long lastRetargetTime = chainState.getAncestorIndex().getTimeSeconds(storedPrev, goBack);
+        if (lastRetargetTime == AncestorIndex.MISS) {
+            // Index is cold, so walk back through the block store
+            for (int i = 0; i < goBack; i++) {
+                if (cursor == null) {
+                    // This should never happen. If it does, it means we are following an incorrect or busted chain.
+                    throw new VerificationException(
+                            "Difficulty transition point but we did not find a way back to the genesis block.");
+                }
+                cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            }
 
-        for (int i = 0; i < goBack; i++) {
+            //We used checkpoints...
             if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
+                log.debug("Difficulty transition: Hit checkpoint!");
+                throw new CheckpointEncounteredException();
             }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            lastRetargetTime = cursor.getHeader().getTimeSeconds();
         }
 
-        //We used checkpoints...
-        if (cursor == null) {
-            log.debug("Difficulty transition: Hit checkpoint!");
-            throw new CheckpointEncounteredException();
-        }
-
-        Block blockIntervalAgo = cursor.getHeader();
         return this.calculateNewDifficultyTargetInner(previousHeight, prev.getTimeSeconds(),
-            prev.getDifficultyTarget(), blockIntervalAgo.getTimeSeconds(),
+            prev.getDifficultyTarget(), lastRetargetTime,
             nextBlock.getDifficultyTarget());
     }
 
@@ -260,28 +271,54 @@ public abstract class AbstractRaptoreumParams extends NetworkParameters implemen
     protected long calculateNewDifficultyTargetInner(int previousHeight, long previousBlockTime,
         final long lastDifficultyTarget, final long lastRetargetTime,
         final long nextDifficultyTarget) {
-        final int retargetTimespan = this.getTargetTimespan();
-        int actualTime = (int) (previousBlockTime - lastRetargetTime);
-        final int minTimespan = retargetTimespan / 4;
-        final int maxTimespan = retargetTimespan * 4;
-
-        actualTime = Math.min(maxTimespan, Math.max(minTimespan, actualTime));
+        return getDifficultyEngine().calculateNewDifficultyTarget(previousHeight, previousBlockTime,
+            lastDifficultyTarget, lastRetargetTime, nextDifficultyTarget);
+    }
 
-        BigInteger newTarget = Utils.decodeCompactBits(lastDifficultyTarget);
-        newTarget = newTarget.multiply(BigInteger.valueOf(actualTime));
-        newTarget = newTarget.divide(BigInteger.valueOf(retargetTimespan));
+    /**
+     * Get the engine used for difficulty retargets, created on first use.
+     */
+    protected synchronized DifficultyEngine getDifficultyEngine() {
+        if (difficultyEngine == null) {
+            difficultyEngine = new DifficultyEngine(this.getMaxTarget(), createRetargetPolicy());
+        }
+        return difficultyEngine;
+    }
 
-        if (newTarget.compareTo(this.getMaxTarget()) > 0) {
-            log.info("Difficulty hit proof of work limit: {}", newTarget.toString(16));
-            newTarget = this.getMaxTarget();
+    @Override
+    public synchronized CompactTargetCache getCompactTargetCache() {
+        if (compactTargetCache == null) {
+            compactTargetCache = new CompactTargetCache(this.getMaxTarget());
         }
+        return compactTargetCache;
+    }
+
+    /**
+     * Get the Dark Gravity Wave calculation for the chain in the given block
+     * store. Raptoreum keeps Dash's v3 averaging window.
+     */
+    protected DarkGravityWave getDarkGravityWave(final BlockStore blockStore) {
+        return ChainState.get(blockStore).get(DarkGravityWave.class, new ChainState.Factory<DarkGravityWave>() {
+            @Override
+            public DarkGravityWave create() {
+                return new DarkGravityWave(getMaxTarget(), RTM_TARGET_SPACING, allowMinDifficultyBlocks());
+            }
+        });
+    }
 
-        int accuracyBytes = (int) (nextDifficultyTarget >>> 24) - 3;
+    /**
+     * Get the height of the first block whose difficulty is set by Dark
+     * Gravity Wave.
+     */
+    public int getDarkGravityWaveHeight() {
+        return RTM_DGW_HEIGHT;
+    }
 
-        // The calculated difficulty is to a higher precision than received, so reduce here.
-        BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
-        newTarget = newTarget.and(mask);
-        return Utils.encodeCompactBits(newTarget);
+    /**
+     * Create the rules used by {@link #getDifficultyEngine()}.
+     */
+    protected RetargetPolicy createRetargetPolicy() {
+        return new ClassicRetargetPolicy(this.getTargetTimespan());
     }
 
     @Override
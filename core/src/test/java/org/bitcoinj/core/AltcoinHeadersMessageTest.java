@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import org.libdohj.core.PayloadScanner;
+import org.libdohj.params.DogecoinMainNetParams;
+
+import static org.bitcoinj.core.Util.getBytes;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Indexed "headers" message parsing.
+ */
+public class AltcoinHeadersMessageTest {
+    private static final DogecoinMainNetParams params = DogecoinMainNetParams.get();
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(params);
+    }
+
+    @Test
+    public void shouldIndexMixedHeaders() throws Exception {
+        final byte[] auxpowBlock = getBytes(getClass().getResourceAsStream("dogecoin_block371337.bin"));
+        final byte[] plainBlock = getBytes(getClass().getResourceAsStream("dogecoin_block250000.bin"));
+        final byte[] payload = buildHeadersPayload(auxpowBlock, plainBlock, auxpowBlock);
+
+        final AltcoinHeadersMessage message = new AltcoinHeadersMessage(params, payload);
+        assertEquals(3, message.size());
+        assertEquals(payload.length, message.getMessageSize());
+        assertTrue(message.isAuxPoW(0));
+        assertFalse(message.isAuxPoW(1));
+        assertEquals(535, message.getHeaderLength(0));
+        assertEquals(Block.HEADER_SIZE, message.getHeaderLength(1));
+
+        assertEquals("60323982f9c5ff1b5a954eac9dc1269352835f47c2c5222691d80f0d50dcf053", message.getHash(0).toString());
+        assertEquals("0e4bcfe8d970979f7e30e2809ab51908d435677998cf759169407824d4f36460", message.getHash(1).toString());
+        assertEquals(2469341065L, message.getNonce(1));
+
+        final AltcoinBlock header = message.getHeader(2);
+        assertEquals(message.getHash(2), header.getHash());
+        assertEquals(message.getPrevBlockHash(2), header.getPrevBlockHash());
+        assertEquals(message.getDifficultyTarget(2), header.getDifficultyTarget());
+        assertNotNull(header.getAuxPoW());
+        assertSame(header, message.getBlockHeaders().get(2));
+
+        assertArrayEquals(payload, message.bitcoinSerialize());
+    }
+
+    @Test
+    public void shouldFindDisconnectedHeader() throws Exception {
+        final byte[] block479 = getBytes(org.libdohj.params.AbstractDogecoinParams.class.getResourceAsStream("dogecoin_block479.bin"));
+        final byte[] block480 = getBytes(org.libdohj.params.AbstractDogecoinParams.class.getResourceAsStream("dogecoin_block480.bin"));
+
+        final AltcoinHeadersMessage connected = new AltcoinHeadersMessage(params, buildHeadersPayload(block479, block480));
+        assertEquals(-1, connected.findDisconnectedHeader(null));
+        assertEquals(-1, connected.findDisconnectedHeader(connected.getPrevBlockHash(0)));
+        assertEquals(0, connected.findDisconnectedHeader(Sha256Hash.ZERO_HASH));
+
+        final AltcoinHeadersMessage disconnected = new AltcoinHeadersMessage(params, buildHeadersPayload(block480, block479));
+        assertEquals(1, disconnected.findDisconnectedHeader(null));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void shouldRejectTruncatedHeaders() throws Exception {
+        final byte[] auxpowBlock = getBytes(getClass().getResourceAsStream("dogecoin_block371337.bin"));
+        final byte[] payload = buildHeadersPayload(auxpowBlock);
+        new AltcoinHeadersMessage(params, java.util.Arrays.copyOf(payload, payload.length - 40));
+    }
+
+    @Test
+    public void shouldRejectOversizedMerkleBranch() {
+        // 2^59 hashes, whose length wraps to zero if multiplied unchecked
+        final byte[] branch = new byte[64];
+        branch[0] = (byte) 0xff;
+        Utils.int64ToByteArrayLE(1L << 59, branch, 1);
+        assertEquals(PayloadScanner.INCOMPLETE, PayloadScanner.merkleBranchLength(branch, 0, branch.length));
+        // One hash and the side mask fit exactly
+        branch[0] = 1;
+        assertEquals(1 + 32 + 4, PayloadScanner.merkleBranchLength(branch, 0, 37));
+        assertEquals(PayloadScanner.INCOMPLETE, PayloadScanner.merkleBranchLength(branch, 0, 36));
+    }
+
+    /**
+     * Compare heap allocation per header of indexing a full batch of AuxPoW
+     * headers against eagerly parsing them.
+     */
+    @Test
+    public void shouldAllocateLessThanEagerParsing() throws Exception {
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        final byte[] auxpowBlock = getBytes(getClass().getResourceAsStream("dogecoin_block371337.bin"));
+        final byte[][] blocks = new byte[HeadersMessage.MAX_HEADERS][];
+        java.util.Arrays.fill(blocks, auxpowBlock);
+        final byte[] payload = buildHeadersPayload(blocks);
+
+        // Warm up both paths so class loading is not measured
+        new AltcoinHeadersMessage(params, payload).findDisconnectedHeader(null);
+        new HeadersMessage(params, payload);
+
+        final long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        final AltcoinHeadersMessage indexed = new AltcoinHeadersMessage(params, payload);
+        indexed.findDisconnectedHeader(null);
+        final long indexedPerHeader = (allocations.getThreadAllocatedBytes(threadId) - before) / blocks.length;
+
+        before = allocations.getThreadAllocatedBytes(threadId);
+        final HeadersMessage eager = new HeadersMessage(params, payload);
+        final long eagerPerHeader = (allocations.getThreadAllocatedBytes(threadId) - before) / blocks.length;
+
+        assertEquals(blocks.length, indexed.size());
+        assertEquals(blocks.length, eager.getBlockHeaders().size());
+        // Indexing costs an int offset and an empty header slot per header
+        assertTrue("Indexed " + indexedPerHeader + " bytes/header, eager " + eagerPerHeader,
+            indexedPerHeader * 20 < eagerPerHeader);
+    }
+
+    private static byte[] buildHeadersPayload(final byte[]... blocks) throws IOException {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(new VarInt(blocks.length).encode());
+        for (byte[] block : blocks) {
+            stream.write(block, 0, PayloadScanner.blockHeaderLength(params, block, 0, block.length));
+            stream.write(0);
+        }
+        return stream.toByteArray();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.core;
+
+import org.libdohj.params.DogecoinMainNetParams;
+import org.libdohj.params.DogecoinTestNet3Params;
+
+import static org.bitcoinj.core.Util.getBytes;
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Interning of AuxPoW parent chain elements.
+ */
+public class AuxPoWParentCacheTest {
+    private static final NetworkParameters params = DogecoinMainNetParams.get();
+    private static final Sha256Hash BLOCK_HASH = Sha256Hash.wrap("0c836b86991631d34a8a68054e2f62db919b39d1ee43c27ab3344d6aa82fa609");
+
+    private AuxPoWParentCache cache;
+    private byte[] auxpowAsBytes;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(params);
+        cache = new AuxPoWParentCache(2);
+        AuxPoWParentCache.setShared(cache);
+        auxpowAsBytes = getBytes(getClass().getResourceAsStream("auxpow_header.bin"));
+    }
+
+    @After
+    public void tearDown() {
+        AuxPoWParentCache.setShared(null);
+    }
+
+    @Test
+    public void shouldInternRepeatedParent() throws Exception {
+        final AuxPoW first = new AuxPoW(params, auxpowAsBytes, (ChildMessage) null, params.getSerializer(false));
+        final AuxPoW second = new AuxPoW(params, auxpowAsBytes.clone(), (ChildMessage) null, params.getSerializer(true));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        assertSame(first.getParentBlockHeader(), second.getParentBlockHeader());
+        assertSame(first.getCoinbase(), second.getCoinbase());
+        assertEquals(first.getChainMerkleBranch(), second.getChainMerkleBranch());
+        assertEquals(auxpowAsBytes.length, second.getMessageSize());
+        assertEquals(auxpowAsBytes.length, first.getOptimalEncodingMessageSize());
+        assertArrayEquals(auxpowAsBytes, first.bitcoinSerialize());
+
+        assertTrue(first.checkProofOfWork(BLOCK_HASH, Utils.decodeCompactBits(0x1b06f8f0), true));
+        assertTrue(second.checkProofOfWork(BLOCK_HASH, Utils.decodeCompactBits(0x1b06f8f0), true));
+    }
+
+    /**
+     * A different coinbase under the same parent header must not be swapped for
+     * the interned one.
+     */
+    @Test
+    public void shouldNotInternDifferentCoinbase() throws Exception {
+        final AuxPoW first = new AuxPoW(params, auxpowAsBytes, (ChildMessage) null, params.getSerializer(false));
+        final byte[] altered = auxpowAsBytes.clone();
+        altered[60] ^= 0x01; // Within the coinbase input script
+        final AuxPoW second = new AuxPoW(params, altered, (ChildMessage) null, params.getSerializer(false));
+
+        assertEquals(0, cache.getHits());
+        assertNotSame(first.getCoinbase(), second.getCoinbase());
+        assertFalse(second.checkProofOfWork(BLOCK_HASH, Utils.decodeCompactBits(0x1b06f8f0), false));
+        assertTrue(first.checkProofOfWork(BLOCK_HASH, Utils.decodeCompactBits(0x1b06f8f0), true));
+    }
+
+    /**
+     * The same parent arriving on another network shares the entry, but gets
+     * elements parsed with that network's parameters.
+     */
+    @Test
+    public void shouldShareParentAcrossNetworks() throws Exception {
+        final NetworkParameters otherParams = DogecoinTestNet3Params.get();
+        final AuxPoW first = new AuxPoW(params, auxpowAsBytes, (ChildMessage) null, params.getSerializer(false));
+        assertTrue(first.checkProofOfWork(BLOCK_HASH, Utils.decodeCompactBits(0x1b06f8f0), true));
+        final AuxPoW second = new AuxPoW(otherParams, auxpowAsBytes.clone(), (ChildMessage) null,
+            otherParams.getSerializer(false));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+        assertNotSame(first.getParentBlockHeader(), second.getParentBlockHeader());
+        assertSame(otherParams, second.getParentBlockHeader().getParams());
+        assertSame(otherParams, second.getCoinbase().getParams());
+        // Carried over rather than calculated again
+        assertEquals(first.getParentBlockHeader().getScryptHash(),
+            second.getParentBlockHeader().getCachedScryptHash());
+        assertTrue(second.checkProofOfWork(BLOCK_HASH, Utils.decodeCompactBits(0x1b06f8f0), true));
+
+        final AuxPoW third = new AuxPoW(otherParams, auxpowAsBytes.clone(), (ChildMessage) null,
+            otherParams.getSerializer(false));
+        assertEquals(2, cache.getHits());
+        assertSame(second.getCoinbase(), third.getCoinbase());
+        assertSame(second.getParentBlockHeader(), third.getParentBlockHeader());
+    }
+
+    @Test
+    public void shouldDropInternedParentOnReplacement() throws Exception {
+        final AuxPoW auxpow = new AuxPoW(params, auxpowAsBytes, (ChildMessage) null, params.getSerializer(false));
+        assertTrue(auxpow.checkProofOfWork(BLOCK_HASH, Utils.decodeCompactBits(0x1b06f8f0), true));
+
+        final Transaction coinbase = new Transaction(params, auxpow.getCoinbase().bitcoinSerialize());
+        coinbase.clearOutputs();
+        auxpow.setCoinbase(coinbase);
+        assertFalse(auxpow.checkProofOfWork(BLOCK_HASH, Utils.decodeCompactBits(0x1b06f8f0), false));
+    }
+}
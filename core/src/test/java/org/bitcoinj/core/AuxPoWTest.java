@@ -60,6 +60,21 @@ public class AuxPoWTest {
         assertArrayEquals(expected, actual);
     }
 
+    /**
+     * Test serializing the AuxPoW header from Dogecoin block #403,931 into a
+     * buffer, without retaining the parsed bytes.
+     */
+    @Test
+    public void serializeAuxPoWHeaderToBuffer() throws Exception {
+        byte[] auxpowAsBytes = getBytes(getClass().getResourceAsStream("auxpow_header.bin"));
+        AuxPoW auxpow = new AuxPoW(params, auxpowAsBytes, (ChildMessage) null, params.getSerializer(false));
+        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(auxpowAsBytes.length);
+        auxpow.serializeTo(buffer);
+
+        assertEquals(auxpowAsBytes.length, buffer.position());
+        assertArrayEquals(auxpowAsBytes, buffer.array());
+    }
+
     /**
      * Validate the AuxPoW header from Dogecoin block #403,931.
      */
@@ -6,8 +6,11 @@
 package org.bitcoinj.core;
 
 import org.libdohj.core.AltcoinSerializer;
+import org.libdohj.core.BufferPool;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import org.libdohj.params.DogecoinMainNetParams;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -184,4 +187,35 @@ public class DogecoinBlockTest {
         final AltcoinBlock block = (AltcoinBlock)serializer.makeBlock(payload);
         assertEquals(true, block.checkProofOfWork(true));
     }
+
+    /**
+     * Serialize the header of an AuxPoW block in place, both from retained
+     * bytes and after the fields have been parsed out, and confirm it matches
+     * the original bytes.
+     */
+    @Test
+    public void shouldSerializeAuxPoWHeaderInPlace() throws IOException {
+        byte[] payload = Util.getBytes(getClass().getResourceAsStream("dogecoin_block371337.bin"));
+        final byte[] expected = Arrays.copyOf(payload, 535);
+        final BufferPool directPool = new BufferPool(true, BufferPool.DEFAULT_MAX_POOLED_CAPACITY, 1);
+
+        for (boolean parseRetain : new boolean[] {true, false}) {
+            AltcoinSerializer serializer = (AltcoinSerializer)params.getSerializer(parseRetain);
+            final AltcoinBlock block = (AltcoinBlock)serializer.makeBlock(payload);
+            assertEquals(expected.length, block.getHeaderSize());
+
+            final ByteBuffer heap = ByteBuffer.allocate(block.getHeaderSize());
+            block.serializeHeaderTo(heap);
+            assertArrayEquals(expected, heap.array());
+
+            final ByteBuffer direct = block.serializeHeader(directPool);
+            final byte[] actual = new byte[direct.remaining()];
+            direct.get(actual);
+            directPool.release(direct);
+            assertArrayEquals(expected, actual);
+
+            assertArrayEquals(expected, block.cloneAsHeader().bitcoinSerialize());
+            assertEquals("60323982f9c5ff1b5a954eac9dc1269352835f47c2c5222691d80f0d50dcf053", block.getHashAsString());
+        }
+    }
 }
@@ -5,12 +5,18 @@
  */
 package org.bitcoinj.core;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.libdohj.core.AltcoinSerializer;
 import org.libdohj.params.LitecoinMainNetParams;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import org.junit.Before;
 import org.junit.Test;
@@ -38,4 +44,189 @@ public class LitecoinBlockTest {
         assertEquals(0x1e0ffff0L, block.getDifficultyTarget());
         assertTrue(block.checkProofOfWork(false));
     }
+
+    @Test
+    public void shouldSkipMwebBlock() throws IOException {
+        final byte[] extension = new byte[300];
+        Arrays.fill(extension, (byte) 0x5a);
+        final byte[] payload = buildMwebBlock(0x08, true, extension);
+        final AltcoinBlock block = (AltcoinBlock) params.getDefaultSerializer().makeBlock(payload);
+        assertEquals("80ca095ed10b02e53d769eb6eaf92cd04e9e0759e5be4a8477b42911ba49c78f", block.getHashAsString());
+        assertEquals(2, block.getTransactions().size());
+        assertEquals(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(HOGEX_STRIPPED)),
+            block.getTransactions().get(1).getTxId());
+        assertTrue(block.hasMwebBlock());
+        assertEquals(payload.length - extension.length, block.getMwebOffset());
+        assertEquals(extension.length, block.getMwebLength());
+        assertEquals(payload.length, block.getMessageSize());
+        // Not retained by default
+        assertNull(block.getMwebData());
+    }
+
+    @Test
+    public void shouldRetainMwebBlock() throws IOException {
+        final NetworkParameters retainingParams = new LitecoinMainNetParams() {
+            @Override
+            public boolean isMwebDataRetained() {
+                return true;
+            }
+        };
+        final byte[] extension = new byte[] {1, 2, 3, 4, 5};
+        final byte[] payload = buildMwebBlock(0x09, true, extension);
+        final AltcoinBlock block = (AltcoinBlock) retainingParams.getSerializer(true).makeBlock(payload);
+        assertEquals(2, block.getTransactions().size());
+        assertTrue(block.getTransactions().get(1).hasWitnesses());
+        final ByteBuffer data = block.getMwebData();
+        assertTrue(data.isReadOnly());
+        final byte[] read = new byte[data.remaining()];
+        data.get(read);
+        assertArrayEquals(extension, read);
+        // Retained bytes are written back as they were
+        assertArrayEquals(payload, block.bitcoinSerialize());
+    }
+
+    @Test
+    public void shouldCopyRetainedMwebBlock() throws IOException {
+        final NetworkParameters retainingParams = new LitecoinMainNetParams() {
+            @Override
+            public boolean isMwebDataRetained() {
+                return true;
+            }
+        };
+        final byte[] extension = new byte[] {1, 2, 3, 4, 5};
+        final byte[] payload = buildMwebBlock(0x09, true, extension);
+        // A pooled buffer, larger than the message, which is reused once parsed
+        final byte[] buffer = Arrays.copyOf(payload, payload.length + 64);
+        final AltcoinBlock block = (AltcoinBlock) new AltcoinSerializer(retainingParams, false)
+            .makeBlock(buffer, 0, payload.length);
+        Arrays.fill(buffer, (byte) 0x77);
+        assertEquals(extension.length, block.getMwebLength());
+        assertEquals(payload.length, block.getMessageSize());
+        final ByteBuffer data = block.getMwebData();
+        final byte[] read = new byte[data.remaining()];
+        data.get(read);
+        assertArrayEquals(extension, read);
+    }
+
+    @Test
+    public void shouldParseHogExWithoutMwebBlock() throws IOException {
+        final byte[] payload = buildMwebBlock(0x08, false, new byte[0]);
+        final AltcoinBlock block = (AltcoinBlock) params.getDefaultSerializer().makeBlock(payload);
+        assertEquals(2, block.getTransactions().size());
+        assertFalse(block.hasMwebBlock());
+        assertEquals(payload.length, block.getMessageSize());
+    }
+
+    @Test
+    public void shouldDeferWitnesses() throws IOException {
+        final byte[] payload = buildWitnessBlock(3);
+        final AltcoinBlock eager = (AltcoinBlock) params.getDefaultSerializer().makeBlock(payload);
+        final AltcoinBlock lazy = (AltcoinBlock) new AltcoinSerializer(params, false, true).makeBlock(payload);
+        assertEquals(eager.getHash(), lazy.getHash());
+        assertEquals(4, lazy.getTransactions().size());
+        assertEquals(payload.length, lazy.getMessageSize());
+        assertFalse(lazy.isWitnessDeferred(0));
+        for (int txIdx = 1; txIdx < 4; txIdx++) {
+            final Transaction eagerTx = eager.getTransactions().get(txIdx);
+            final Transaction lazyTx = lazy.getTransactions().get(txIdx);
+            assertTrue(lazy.isWitnessDeferred(txIdx));
+            assertFalse(lazyTx.hasWitnesses());
+            assertEquals(eagerTx.getTxId(), lazyTx.getTxId());
+            assertEquals(eagerTx.getOutput(0).getValue(), lazyTx.getOutput(0).getValue());
+            assertArrayEquals(eagerTx.getOutput(0).getScriptBytes(), lazyTx.getOutput(0).getScriptBytes());
+        }
+        assertTrue(lazy.checkProofOfWork(false));
+
+        final Transaction materialized = lazy.materializeWitnesses(2);
+        assertFalse(lazy.isWitnessDeferred(2));
+        assertTrue(lazy.isWitnessDeferred(3));
+        assertTrue(materialized.hasWitnesses());
+        assertEquals(eager.getTransactions().get(2).getWTxId(), materialized.getWTxId());
+        assertEquals(eager.getTransactions().get(2).getInput(0).getWitness(), materialized.getInput(0).getWitness());
+        // Materializing again changes nothing
+        assertEquals(materialized.getWTxId(), lazy.materializeWitnesses(2).getWTxId());
+        assertEquals(eager.getTransactions().get(3).getWTxId(), lazy.materializeWitnesses(3).getWTxId());
+    }
+
+    @Test
+    public void shouldDeferHogExWitnesses() throws IOException {
+        final byte[] payload = buildMwebBlock(0x09, true, new byte[] {1, 2, 3});
+        final AltcoinBlock block = (AltcoinBlock) new AltcoinSerializer(params, false, true).makeBlock(payload);
+        assertEquals(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(HOGEX_STRIPPED)),
+            block.getTransactions().get(1).getTxId());
+        assertTrue(block.isWitnessDeferred(1));
+        assertTrue(block.hasMwebBlock());
+        assertEquals(payload.length, block.getMessageSize());
+        final Transaction hogEx = block.materializeWitnesses(1);
+        assertArrayEquals(new byte[] {0x51}, hogEx.getInput(0).getWitness().getPush(0));
+    }
+
+    /**
+     * Integrating transaction in the serialization Transaction parses: one
+     * input and one anyone-can-spend output.
+     */
+    private static final byte[] HOGEX_STRIPPED = Utils.HEX.decode("02000000"
+        + "01" + "1111111111111111111111111111111111111111111111111111111111111111" + "00000000" + "00" + "ffffffff"
+        + "01" + "00e1f50500000000" + "22" + "5920" + "2222222222222222222222222222222222222222222222222222222222222222"
+        + "00000000");
+
+    /**
+     * Build a block from Litecoin block 1, with an integrating transaction
+     * after its coinbase.
+     *
+     * @param flags transaction flags of the integrating transaction, which
+     * must include the MWEB flag.
+     * @param present whether an extension block follows the transactions.
+     * @param extension the extension block.
+     */
+    private byte[] buildMwebBlock(final int flags, final boolean present, final byte[] extension)
+            throws IOException {
+        final byte[] block1 = Util.getBytes(getClass().getResourceAsStream("litecoin_block1.bin"));
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(block1, 0, Block.HEADER_SIZE);
+        payload.write(2);
+        payload.write(block1, Block.HEADER_SIZE + 1, block1.length - Block.HEADER_SIZE - 1);
+
+        // Version, marker and flags, then inputs and outputs
+        payload.write(HOGEX_STRIPPED, 0, 4);
+        payload.write(0);
+        payload.write(flags);
+        payload.write(HOGEX_STRIPPED, 4, HOGEX_STRIPPED.length - 8);
+        if ((flags & 1) != 0) {
+            // One witness item for the input
+            payload.write(new byte[] {1, 1, 0x51});
+        }
+        // Empty MWEB transaction, then lock time
+        payload.write(0);
+        payload.write(HOGEX_STRIPPED, HOGEX_STRIPPED.length - 4, 4);
+
+        payload.write(present ? 1 : 0);
+        payload.write(extension);
+        return payload.toByteArray();
+    }
+
+    /**
+     * Build a block from Litecoin block 1, with witness transactions after
+     * its coinbase, each with one input whose witness has two items.
+     */
+    private byte[] buildWitnessBlock(final int witnessTxCount) throws IOException {
+        final byte[] block1 = Util.getBytes(getClass().getResourceAsStream("litecoin_block1.bin"));
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(block1, 0, Block.HEADER_SIZE);
+        payload.write(1 + witnessTxCount);
+        payload.write(block1, Block.HEADER_SIZE + 1, block1.length - Block.HEADER_SIZE - 1);
+        for (int txIdx = 0; txIdx < witnessTxCount; txIdx++) {
+            payload.write(HOGEX_STRIPPED, 0, 4);
+            payload.write(new byte[] {0, 1});
+            payload.write(HOGEX_STRIPPED, 4, HOGEX_STRIPPED.length - 8);
+            final byte[] signature = new byte[72];
+            Arrays.fill(signature, (byte) txIdx);
+            payload.write(2);
+            payload.write(signature.length);
+            payload.write(signature);
+            payload.write(new byte[] {1, (byte) txIdx});
+            payload.write(HOGEX_STRIPPED, HOGEX_STRIPPED.length - 4, 4);
+        }
+        return payload.toByteArray();
+    }
 }
@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.libdohj.params.DogecoinTestNet3Params;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Building merged mining work and AuxPoW headers.
+ */
+public class MergedMiningCoordinatorTest {
+    private static final NetworkParameters parentParams = DogecoinTestNet3Params.get();
+    private static final BigInteger EASIEST_TARGET = BigInteger.ONE.shiftLeft(256);
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(parentParams);
+    }
+
+    @Test
+    public void shouldAssignDistinctSlots() {
+        final int[] chainIds = new int[] {1, 98, 0x10, 0x2000, 7};
+        final MergedMiningCoordinator coordinator = new MergedMiningCoordinator();
+        final MergedMiningCoordinator.Layout layout = coordinator.getLayout(chainIds);
+        assertTrue(layout.getMerkleSize() >= chainIds.length);
+
+        final Set<Integer> slots = new HashSet<Integer>();
+        for (int chainIdx = 0; chainIdx < chainIds.length; chainIdx++) {
+            assertEquals(AuxPoW.getExpectedIndex(layout.getNonce(), chainIds[chainIdx], layout.getMerkleHeight()),
+                layout.getSlot(chainIdx));
+            assertTrue(slots.add(layout.getSlot(chainIdx)));
+        }
+        assertSame(layout, coordinator.getLayout(chainIds.clone()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectDuplicateChainIds() {
+        new MergedMiningCoordinator().getLayout(new int[] {98, 1, 98});
+    }
+
+    /**
+     * Build work for several chains, then confirm the AuxPoW header created
+     * for each passes validation on its own chain.
+     */
+    @Test
+    public void shouldBuildValidAuxPoW() throws Exception {
+        final int[] chainIds = new int[] {98, 1, 0x10};
+        final Sha256Hash[] childHashes = new Sha256Hash[chainIds.length];
+        for (int chainIdx = 0; chainIdx < chainIds.length; chainIdx++) {
+            childHashes[chainIdx] = Sha256Hash.of(new byte[] {(byte) chainIdx});
+        }
+        final MergedMiningCoordinator.Work work = new MergedMiningCoordinator().createWork(chainIds, childHashes);
+        final byte[] commitment = work.getCoinbaseCommitment();
+        assertEquals(MergedMiningCoordinator.COMMITMENT_LENGTH, commitment.length);
+
+        // Parent block with just the coinbase, which carries the commitment
+        final Transaction coinbase = new Transaction(parentParams);
+        final byte[] script = new byte[4 + commitment.length];
+        System.arraycopy(commitment, 0, script, 4, commitment.length);
+        coinbase.addInput(new TransactionInput(parentParams, coinbase, script));
+        coinbase.addOutput(new TransactionOutput(parentParams, coinbase, Coin.COIN, new byte[] {0x51}));
+        final AltcoinBlock parentHeader = new AltcoinBlock(parentParams, 2);
+        parentHeader.setMerkleRoot(coinbase.getHash());
+        final MerkleBranch coinbaseBranch = new MerkleBranch(parentParams, null,
+            new ArrayList<Sha256Hash>(), 0);
+
+        for (int chainIdx = 0; chainIdx < chainIds.length; chainIdx++) {
+            final NetworkParameters childParams = childParams(chainIds[chainIdx]);
+            final AuxPoW auxpow = work.createAuxPoW(childParams, chainIdx, coinbase, coinbaseBranch, parentHeader);
+            assertEquals(work.getChainMerkleRoot(), auxpow.getChainMerkleBranch().calculateMerkleRoot(childHashes[chainIdx]));
+            assertTrue(auxpow.checkProofOfWork(childHashes[chainIdx], EASIEST_TARGET, true));
+
+            // Round trip through the wire format
+            final AuxPoW parsed = new AuxPoW(childParams, auxpow.bitcoinSerialize(), (ChildMessage) null,
+                childParams.getDefaultSerializer());
+            assertTrue(parsed.checkProofOfWork(childHashes[chainIdx], EASIEST_TARGET, true));
+        }
+
+        // Another chain's block hash must not validate in this chain's slot
+        final AuxPoW auxpow = work.createAuxPoW(childParams(chainIds[0]), 0, coinbase, coinbaseBranch, parentHeader);
+        assertFalse(auxpow.checkProofOfWork(childHashes[1], EASIEST_TARGET, false));
+    }
+
+    /**
+     * An AuxPoW built in code has no message length, so the block carrying it
+     * must size its header from the fields.
+     */
+    @Test
+    public void shouldSerializeBlockWithCreatedAuxPoW() throws Exception {
+        final Sha256Hash childHash = Sha256Hash.of(new byte[] {1});
+        final MergedMiningCoordinator.Work work = new MergedMiningCoordinator()
+            .createWork(new int[] {98}, new Sha256Hash[] {childHash});
+        final Transaction coinbase = new Transaction(parentParams);
+        coinbase.addInput(new TransactionInput(parentParams, coinbase, work.getCoinbaseCommitment()));
+        coinbase.addOutput(new TransactionOutput(parentParams, coinbase, Coin.COIN, new byte[] {0x51}));
+        final AltcoinBlock parentHeader = new AltcoinBlock(parentParams, 2);
+        parentHeader.setMerkleRoot(coinbase.getTxId());
+        final AuxPoW auxpow = work.createAuxPoW(parentParams, 0, coinbase,
+            new MerkleBranch(parentParams, null, new ArrayList<Sha256Hash>(), 0), parentHeader);
+
+        final AltcoinBlock block = new AltcoinBlock(parentParams, 0x00620102L, Sha256Hash.ZERO_HASH,
+            Sha256Hash.ZERO_HASH, 1400000000L, 0x1e0fffffL, 0, Collections.<Transaction>emptyList());
+        block.setAuxPoW(auxpow);
+        final byte[] auxpowBytes = auxpow.bitcoinSerialize();
+        assertEquals(Block.HEADER_SIZE + auxpowBytes.length, block.getHeaderSize());
+
+        final byte[] serialized = block.bitcoinSerialize();
+        assertEquals(block.getHeaderSize() + 1, serialized.length);
+        final AltcoinBlock parsed = (AltcoinBlock) parentParams.getDefaultSerializer().makeBlock(serialized);
+        assertEquals(block.getTimeSeconds(), parsed.getTimeSeconds());
+        assertEquals(block.getDifficultyTarget(), parsed.getDifficultyTarget());
+        assertArrayEquals(auxpowBytes, parsed.getAuxPoW().bitcoinSerialize());
+    }
+
+    @Test
+    public void shouldBuildSingleChainWork() {
+        final Sha256Hash childHash = Sha256Hash.of(new byte[] {1});
+        final MergedMiningCoordinator.Work work = new MergedMiningCoordinator()
+            .createWork(new int[] {98}, new Sha256Hash[] {childHash});
+        assertEquals(0, work.getLayout().getMerkleHeight());
+        assertEquals(childHash, work.getChainMerkleRoot());
+        assertEquals(Collections.<Sha256Hash>emptyList(), work.getChainMerkleBranch(parentParams, 0, null).getHashes());
+    }
+
+    private static NetworkParameters childParams(final int chainId) {
+        return new DogecoinTestNet3Params() {
+            @Override
+            public int getChainID() {
+                return chainId;
+            }
+
+            @Override
+            public Sha256Hash getBlockDifficultyHash(Block block) {
+                return block.getHash();
+            }
+        };
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Util;
+import org.bitcoinj.core.Utils;
+import org.libdohj.params.DogecoinMainNetParams;
+import org.libdohj.params.LitecoinMainNetParams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Streaming message decoding.
+ */
+public class AltcoinMessageDecoderTest {
+    private static final DogecoinMainNetParams params = DogecoinMainNetParams.get();
+
+    private byte[] blockPayload;
+    private byte[] blockMessage;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(params);
+        blockPayload = Util.getBytes(org.bitcoinj.core.AuxPoW.class.getResourceAsStream("dogecoin_block371337.bin"));
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        params.getDefaultSerializer().serialize("block", blockPayload, stream);
+        blockMessage = stream.toByteArray();
+    }
+
+    /**
+     * Feed an AuxPoW block one byte at a time, and confirm the header is
+     * reported before the block completes.
+     */
+    @Test
+    public void shouldDecodeAuxPoWBlockIncrementally() throws Exception {
+        final AltcoinMessageDecoder decoder = new AltcoinMessageDecoder(params.getSerializer(false));
+        final List<AltcoinBlock> headers = new ArrayList<AltcoinBlock>();
+        decoder.setHeaderListener(new AltcoinMessageDecoder.HeaderListener() {
+            @Override
+            public void onBlockHeader(AltcoinBlock header) {
+                headers.add(header);
+            }
+        });
+
+        Message message = null;
+        int headerSeenAt = -1;
+        for (int byteIdx = 0; byteIdx < blockMessage.length; byteIdx++) {
+            assertNull(message);
+            message = decoder.decode(ByteBuffer.wrap(blockMessage, byteIdx, 1));
+            if (headerSeenAt < 0 && !headers.isEmpty()) {
+                headerSeenAt = byteIdx;
+            }
+        }
+
+        assertNotNull(message);
+        assertEquals(1, headers.size());
+        assertTrue(headerSeenAt < blockMessage.length - 1);
+        final AltcoinBlock block = (AltcoinBlock) message;
+        assertEquals("60323982f9c5ff1b5a954eac9dc1269352835f47c2c5222691d80f0d50dcf053", block.getHashAsString());
+        assertEquals(block.getHash(), headers.get(0).getHash());
+        assertNotNull(headers.get(0).getAuxPoW());
+        assertEquals(block.getAuxPoW().getParentBlockHeader().getHash(),
+            headers.get(0).getAuxPoW().getParentBlockHeader().getHash());
+        assertEquals(6, block.getTransactions().size());
+        assertFalse(decoder.isPartial());
+    }
+
+    /**
+     * Confirm leading garbage is skipped and back to back messages in a single
+     * buffer are both decoded, with the buffer pooled between them.
+     */
+    @Test
+    public void shouldDecodeConsecutiveMessages() throws Exception {
+        final AltcoinMessageDecoder decoder = new AltcoinMessageDecoder(params.getSerializer(false));
+        final ByteBuffer in = ByteBuffer.allocate(3 + blockMessage.length * 2);
+        in.put(new byte[] {(byte) 0xc0, 0x01, 0x02});
+        in.put(blockMessage);
+        in.put(blockMessage);
+        in.flip();
+
+        final Message first = decoder.decode(in);
+        final Message second = decoder.decode(in);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(((AltcoinBlock) first).getHash(), ((AltcoinBlock) second).getHash());
+        assertNull(decoder.decode(in));
+    }
+
+    /**
+     * Confirm a truncated block is rejected rather than completed from the
+     * bytes a longer, earlier message left in the pooled buffer.
+     */
+    @Test
+    public void shouldRejectMessageRunningPastPooledPayload() throws Exception {
+        final AltcoinSerializer serializer = params.getSerializer(false);
+        final AltcoinMessageDecoder decoder = new AltcoinMessageDecoder(serializer,
+            new BufferPool(false, BufferPool.DEFAULT_MAX_POOLED_CAPACITY, 1));
+        assertNotNull(decoder.decode(ByteBuffer.wrap(blockMessage)));
+
+        // Valid checksum, but the last byte of the lock time is missing
+        final byte[] truncated = Arrays.copyOf(blockPayload, blockPayload.length - 1);
+        try {
+            decoder.decode(ByteBuffer.wrap(toMessage(serializer, truncated)));
+            fail("Expected a block running past its payload to be rejected");
+        } catch (ProtocolException expected) {
+            assertTrue(expected.getMessage().startsWith("block message is"));
+        }
+        assertFalse(decoder.isPartial());
+    }
+
+    /**
+     * Confirm deferred witnesses are still readable once the pooled buffer
+     * the block was decoded from holds the next message.
+     */
+    @Test
+    public void shouldMaterializeWitnessesAfterBufferReuse() throws Exception {
+        final LitecoinMainNetParams litecoinParams = LitecoinMainNetParams.get();
+        Context.propagate(new Context(litecoinParams));
+        final AltcoinSerializer serializer = new AltcoinSerializer(litecoinParams, false, true);
+        final AltcoinMessageDecoder decoder = new AltcoinMessageDecoder(serializer,
+            new BufferPool(false, BufferPool.DEFAULT_MAX_POOLED_CAPACITY, 1));
+        final byte[] firstPayload = buildWitnessBlock((byte) 0x01);
+        final byte[] secondPayload = buildWitnessBlock((byte) 0x02);
+
+        final AltcoinBlock first = (AltcoinBlock) decoder.decode(ByteBuffer.wrap(toMessage(serializer, firstPayload)));
+        assertNotNull(decoder.decode(ByteBuffer.wrap(toMessage(serializer, secondPayload))));
+        assertTrue(first.isWitnessDeferred(1));
+        final Transaction expected = litecoinParams.getDefaultSerializer().makeBlock(firstPayload)
+            .getTransactions().get(1);
+        final Transaction materialized = first.materializeWitnesses(1);
+        assertEquals(expected.getInput(0).getWitness(), materialized.getInput(0).getWitness());
+        assertEquals(expected.getWTxId(), materialized.getWTxId());
+    }
+
+    @Test
+    public void shouldReadFromChannel() throws Exception {
+        final AltcoinMessageDecoder decoder = new AltcoinMessageDecoder(params.getSerializer(true));
+        final java.nio.channels.ReadableByteChannel channel =
+            Channels.newChannel(new java.io.ByteArrayInputStream(blockMessage));
+        Message message = null;
+        while (message == null && !decoder.isEndOfStream()) {
+            message = decoder.read(channel);
+        }
+        assertNotNull(message);
+        assertEquals("60323982f9c5ff1b5a954eac9dc1269352835f47c2c5222691d80f0d50dcf053",
+            ((AltcoinBlock) message).getHashAsString());
+        decoder.release();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void shouldRejectBadChecksum() throws Exception {
+        final AltcoinMessageDecoder decoder = new AltcoinMessageDecoder(params.getSerializer(false));
+        final byte[] corrupt = blockMessage.clone();
+        corrupt[corrupt.length - 1] ^= 0x01;
+        decoder.decode(ByteBuffer.wrap(corrupt));
+    }
+
+    private static byte[] toMessage(final AltcoinSerializer serializer, final byte[] payload) throws Exception {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        serializer.serialize("block", payload, stream);
+        return stream.toByteArray();
+    }
+
+    /**
+     * Build a block from Litecoin block 1, with one witness transaction after
+     * its coinbase, whose witness is filled with the given byte.
+     */
+    private static byte[] buildWitnessBlock(final byte fill) throws Exception {
+        final byte[] block1 = Util.getBytes(AltcoinBlock.class.getResourceAsStream("litecoin_block1.bin"));
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(block1, 0, Block.HEADER_SIZE);
+        payload.write(2);
+        payload.write(block1, Block.HEADER_SIZE + 1, block1.length - Block.HEADER_SIZE - 1);
+        // Version, marker and flag, one input and one output
+        payload.write(Utils.HEX.decode("02000000" + "0001"
+            + "01" + "1111111111111111111111111111111111111111111111111111111111111111" + "00000000" + "00" + "ffffffff"
+            + "01" + "00e1f50500000000" + "01" + "51"));
+        final byte[] signature = new byte[72];
+        Arrays.fill(signature, fill);
+        payload.write(1);
+        payload.write(signature.length);
+        payload.write(signature);
+        payload.write(new byte[4]);
+        return payload.toByteArray();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+import java.util.Collections;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.libdohj.params.LitecoinMainNetParams;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Height indexed ancestor lookups.
+ */
+public class AncestorIndexTest {
+    private static final LitecoinMainNetParams params = LitecoinMainNetParams.get();
+    private static final long START_TIME = 1317972665L;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(params);
+    }
+
+    @Test
+    public void shouldFindAncestors() {
+        final AncestorIndex index = new AncestorIndex(16);
+        final StoredBlock[] chain = buildChain(null, 0, 10, 0);
+        for (StoredBlock block : chain) {
+            index.add(block);
+        }
+        assertEquals(10, index.size());
+        assertEquals(chain[3].getHeader().getTimeSeconds(), index.getTimeSeconds(chain[9], 6));
+        assertEquals(chain[0].getHeader().getDifficultyTarget(), index.getDifficultyTarget(chain[9], 9));
+        assertEquals(chain[5].getHeader().getTimeSeconds(), index.getTimeSeconds(chain[5], 0));
+
+        // Below the start of the run
+        assertEquals(AncestorIndex.MISS, index.getTimeSeconds(chain[9], 10));
+    }
+
+    @Test
+    public void shouldMissWhenCold() {
+        final AncestorIndex index = new AncestorIndex(16);
+        final StoredBlock[] chain = buildChain(null, 0, 10, 0);
+        assertEquals(AncestorIndex.MISS, index.getTimeSeconds(chain[9], 1));
+
+        // A gap starts a new run
+        index.add(chain[2]);
+        index.add(chain[5]);
+        index.add(chain[6]);
+        assertEquals(2, index.size());
+        assertEquals(chain[5].getHeader().getTimeSeconds(), index.getTimeSeconds(chain[6], 1));
+        assertEquals(AncestorIndex.MISS, index.getTimeSeconds(chain[6], 4));
+    }
+
+    /**
+     * Blocks on a fork replace the indexed blocks above the fork point, and
+     * lookups from the abandoned branch then miss.
+     */
+    @Test
+    public void shouldFollowReorganisation() {
+        final AncestorIndex index = new AncestorIndex(16);
+        final StoredBlock[] chain = buildChain(null, 0, 10, 0);
+        for (StoredBlock block : chain) {
+            index.add(block);
+        }
+        final StoredBlock[] fork = buildChain(chain[5], 6, 3, 1);
+        for (StoredBlock block : fork) {
+            index.add(block);
+        }
+        assertEquals(9, index.size());
+        assertEquals(fork[0].getHeader().getTimeSeconds(), index.getTimeSeconds(fork[2], 2));
+        assertEquals(chain[4].getHeader().getTimeSeconds(), index.getTimeSeconds(fork[2], 4));
+        assertEquals(AncestorIndex.MISS, index.getTimeSeconds(chain[9], 1));
+        assertEquals(AncestorIndex.MISS, index.getTimeSeconds(chain[7], 1));
+    }
+
+    @Test
+    public void shouldGrowForDeepLookups() {
+        final AncestorIndex index = new AncestorIndex(4);
+        final StoredBlock[] chain = buildChain(null, 0, 40, 0);
+        for (StoredBlock block : chain) {
+            index.add(block);
+        }
+        // Too deep for the ring, which grows to fit
+        assertEquals(AncestorIndex.MISS, index.getTimeSeconds(chain[39], 30));
+        assertEquals(chain[39].getHeader().getTimeSeconds(), index.getTimeSeconds(chain[39], 0));
+        final StoredBlock[] extension = buildChain(chain[39], 40, 40, 0);
+        for (StoredBlock block : extension) {
+            index.add(block);
+        }
+        assertEquals(extension[9].getHeader().getTimeSeconds(), index.getTimeSeconds(extension[39], 30));
+    }
+
+    /**
+     * Build a chain of headers with distinct times and targets.
+     *
+     * @param parent block to build on, or null to start a new chain.
+     * @param startHeight height of the first block.
+     * @param count number of blocks to build.
+     * @param salt value to vary nonces by, so forks have distinct hashes.
+     */
+    static StoredBlock[] buildChain(final StoredBlock parent, final int startHeight, final int count,
+            final long salt) {
+        final StoredBlock[] chain = new StoredBlock[count];
+        Sha256Hash prevHash = parent == null ? Sha256Hash.ZERO_HASH : parent.getHeader().getHash();
+        for (int blockIdx = 0; blockIdx < count; blockIdx++) {
+            final int height = startHeight + blockIdx;
+            final AltcoinBlock block = new AltcoinBlock(params, 1, prevHash, Sha256Hash.ZERO_HASH,
+                START_TIME + height * 150L + salt, 0x1e0fffffL - height, salt, Collections.<Transaction>emptyList());
+            chain[blockIdx] = new StoredBlock(block, BigInteger.valueOf(height + 1), height);
+            prevHash = block.getHash();
+        }
+        return chain;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.libdohj.params.AbstractDogecoinParams;
+import org.libdohj.params.DogecoinMainNetParams;
+import org.libdohj.params.LitecoinMainNetParams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Parallel difficulty checks over imported header ranges.
+ */
+public class BulkDifficultyVerifierTest {
+    private static final LitecoinMainNetParams params = LitecoinMainNetParams.get();
+    private static final long START_TIME = 1317972665L;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(params);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldVerifyRange() throws Exception {
+        final MemoryBlockStore store = new MemoryBlockStore(params);
+        final List<StoredBlock> headers = buildChain(store, params.getInterval() * 2 + 10, -1);
+
+        new BulkDifficultyVerifier(params, executor).verify(headers, store);
+        new BulkDifficultyVerifier(params, null).verify(headers, store);
+        new BulkDifficultyVerifier(params, executor, 100).verify(headers.subList(1500, headers.size()), store);
+    }
+
+    @Test
+    public void shouldReportLowestFailure() throws Exception {
+        final MemoryBlockStore store = new MemoryBlockStore(params);
+        final int badHeight = params.getInterval() + 500;
+        final List<StoredBlock> headers = buildChain(store, params.getInterval() * 2 + 10, badHeight);
+
+        try {
+            new BulkDifficultyVerifier(params, executor, 100).verify(headers, store);
+            fail("Expected difficulty check to fail");
+        } catch (BulkDifficultyVerifier.DifficultyTransitionException e) {
+            assertEquals(badHeight, e.getHeight());
+        }
+    }
+
+    /**
+     * Dogecoin's checks keep an ancestor index for the chain tip, so each
+     * segment must get its own, rather than share the block store's.
+     */
+    @Test
+    public void shouldVerifyStatefulNetworkPerSegment() throws Exception {
+        final DogecoinMainNetParams dogecoin = DogecoinMainNetParams.get();
+        final MemoryBlockStore store = new MemoryBlockStore(dogecoin);
+        final List<StoredBlock> headers = buildDigishieldChain(store, 1000, -1);
+        final AncestorIndex ancestorIndex = ChainState.get(store).getAncestorIndex();
+        ancestorIndex.clear();
+
+        new BulkDifficultyVerifier(dogecoin, executor, 100).verify(headers, store);
+        new BulkDifficultyVerifier(dogecoin, null, 100).verify(headers, store);
+        // The state kept for the live chain is left alone
+        assertEquals(0, ancestorIndex.size());
+
+        final MemoryBlockStore badStore = new MemoryBlockStore(dogecoin);
+        final int badHeight = AbstractDogecoinParams.DIGISHIELD_BLOCK_HEIGHT + 700;
+        try {
+            new BulkDifficultyVerifier(dogecoin, executor, 100).verify(buildDigishieldChain(badStore, 1000, badHeight),
+                badStore);
+            fail("Expected difficulty check to fail");
+        } catch (BulkDifficultyVerifier.DifficultyTransitionException e) {
+            assertEquals(badHeight, e.getHeight());
+        }
+    }
+
+    /**
+     * Build and store a chain of Digishield blocks, each retargeted from the
+     * one before, except for the given height, which takes a different target.
+     */
+    private static List<StoredBlock> buildDigishieldChain(final MemoryBlockStore store, final int count,
+            final int badHeight) throws Exception {
+        final DogecoinMainNetParams builder = new DogecoinMainNetParams();
+        final List<StoredBlock> chain = new ArrayList<StoredBlock>(count);
+        Sha256Hash prevHash = Sha256Hash.ZERO_HASH;
+        long target = 0x1b499dfdL;
+        for (int blockIdx = 0; blockIdx < count; blockIdx++) {
+            final int height = AbstractDogecoinParams.DIGISHIELD_BLOCK_HEIGHT + blockIdx;
+            // Alternately fast and slow, so the target moves both ways
+            final long time = 1395094427L + blockIdx * 60L + (blockIdx % 2) * 45L;
+            if (blockIdx > 1) {
+                final AltcoinBlock candidate = new AltcoinBlock(builder, 1, prevHash, Sha256Hash.ZERO_HASH,
+                    time, target, height, Collections.<Transaction>emptyList());
+                target = builder.calculateNewDifficultyTarget(chain.get(blockIdx - 1), candidate, store);
+            }
+            final long blockTarget = height == badHeight ? target - 1 : target;
+            final AltcoinBlock block = new AltcoinBlock(builder, 1, prevHash, Sha256Hash.ZERO_HASH,
+                time, blockTarget, height, Collections.<Transaction>emptyList());
+            final StoredBlock stored = new StoredBlock(block, BigInteger.valueOf(blockIdx + 1), height);
+            store.put(stored);
+            chain.add(stored);
+            prevHash = block.getHash();
+        }
+        return chain;
+    }
+
+    /**
+     * Build and store a chain from height zero with correct retargets, except
+     * for the given height, which takes a different target.
+     */
+    private static List<StoredBlock> buildChain(final MemoryBlockStore store, final int count,
+            final int badHeight) throws Exception {
+        final List<StoredBlock> chain = new ArrayList<StoredBlock>(count);
+        Sha256Hash prevHash = Sha256Hash.ZERO_HASH;
+        long target = 0x1e0ffff0L;
+        for (int height = 0; height < count; height++) {
+            // Blocks come in a little faster than targeted, so difficulty rises
+            final long time = START_TIME + height * 120L;
+            if (height > 0 && height % params.getInterval() == 0) {
+                final AltcoinBlock candidate = new AltcoinBlock(params, 1, prevHash, Sha256Hash.ZERO_HASH,
+                    time, target, height, Collections.<Transaction>emptyList());
+                target = params.calculateNewDifficultyTarget(chain.get(height - 1), candidate, store);
+            }
+            final long blockTarget = height == badHeight ? target - 1 : target;
+            final AltcoinBlock block = new AltcoinBlock(params, 1, prevHash, Sha256Hash.ZERO_HASH,
+                time, blockTarget, height, Collections.<Transaction>emptyList());
+            final StoredBlock stored = new StoredBlock(block, BigInteger.valueOf(height + 1), height);
+            store.put(stored);
+            chain.add(stored);
+            prevHash = block.getHash();
+        }
+        return chain;
+    }
+}
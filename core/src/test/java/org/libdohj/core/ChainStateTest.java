@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+import java.util.Collections;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.libdohj.params.DashMainNetParams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChainStateTest {
+    private static final DashMainNetParams params = DashMainNetParams.get();
+    private static final long START_TIME = 1390095618L;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(params);
+    }
+
+    @Test
+    public void shouldKeepStatePerBlockStore() throws Exception {
+        final MemoryBlockStore first = new MemoryBlockStore(params);
+        final MemoryBlockStore second = new MemoryBlockStore(params);
+        assertSame(ChainState.get(first), ChainState.get(first));
+        assertNotSame(ChainState.get(first), ChainState.get(second));
+        assertNotSame(ChainState.get(first).getAncestorIndex(), ChainState.get(second).getAncestorIndex());
+
+        final int[] created = new int[1];
+        final ChainState.Factory<StringBuilder> factory = new ChainState.Factory<StringBuilder>() {
+            @Override
+            public StringBuilder create() {
+                created[0]++;
+                return new StringBuilder();
+            }
+        };
+        final StringBuilder entry = ChainState.get(first).get(StringBuilder.class, factory);
+        assertSame(entry, ChainState.get(first).get(StringBuilder.class, factory));
+        assertNotSame(entry, ChainState.get(second).get(StringBuilder.class, factory));
+        assertEquals(2, created[0]);
+    }
+
+    /**
+     * Two chains checked with the same network parameters, a header at a time
+     * each, get the targets they would get if checked alone.
+     */
+    @Test
+    public void shouldNotShareRetargetWindowsBetweenChains() throws Exception {
+        final int height = params.getDarkGravityWaveHeight() + 30;
+        final MemoryBlockStore fastStore = new MemoryBlockStore(params);
+        final MemoryBlockStore slowStore = new MemoryBlockStore(params);
+        final StoredBlock[] fast = buildChain(fastStore, height, 100);
+        final StoredBlock[] slow = buildChain(slowStore, height, 200);
+
+        final long[] fastTargets = new long[30];
+        final long[] slowTargets = new long[30];
+        for (int blockIdx = 0; blockIdx < 30; blockIdx++) {
+            final int prevIdx = fast.length - 31 + blockIdx;
+            fastTargets[blockIdx] = params.calculateNewDifficultyTarget(fast[prevIdx],
+                fast[prevIdx + 1].getHeader(), fastStore);
+            slowTargets[blockIdx] = params.calculateNewDifficultyTarget(slow[prevIdx],
+                slow[prevIdx + 1].getHeader(), slowStore);
+        }
+
+        final MemoryBlockStore aloneStore = new MemoryBlockStore(params);
+        final StoredBlock[] alone = buildChain(aloneStore, height, 200);
+        for (int blockIdx = 0; blockIdx < 30; blockIdx++) {
+            final int prevIdx = alone.length - 31 + blockIdx;
+            assertEquals(slowTargets[blockIdx], params.calculateNewDifficultyTarget(alone[prevIdx],
+                alone[prevIdx + 1].getHeader(), aloneStore));
+        }
+        assertTrue(fastTargets[29] != slowTargets[29]);
+    }
+
+    /**
+     * Build and store the last 60 blocks of a chain ending at the given
+     * height, spaced the given number of seconds apart.
+     */
+    private StoredBlock[] buildChain(final MemoryBlockStore store, final int tipHeight, final int spacing)
+        throws Exception {
+        final StoredBlock[] chain = new StoredBlock[60];
+        Sha256Hash prevHash = Sha256Hash.ZERO_HASH;
+        for (int blockIdx = 0; blockIdx < chain.length; blockIdx++) {
+            final int height = tipHeight - chain.length + 1 + blockIdx;
+            final AltcoinBlock block = new AltcoinBlock(params, 1, prevHash, Sha256Hash.ZERO_HASH,
+                START_TIME + blockIdx * spacing, 0x1b0ffff0L, blockIdx, Collections.<Transaction>emptyList());
+            chain[blockIdx] = new StoredBlock(block, BigInteger.valueOf(height + 1), height);
+            store.put(chain[blockIdx]);
+            prevHash = block.getHash();
+        }
+        return chain;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.util.Collections;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VerificationException;
+import org.libdohj.params.DogecoinMainNetParams;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompactTargetCacheTest {
+    private static final DogecoinMainNetParams params = DogecoinMainNetParams.get();
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(params);
+    }
+
+    @Test
+    public void shouldMatchBlockWork() {
+        final CompactTargetCache cache = new CompactTargetCache(params.getMaxTarget());
+        for (long compact : new long[] {0x1e0fffffL, 0x1b267eeeL, 0x1a0c3fa6L, 0x1e0ffff0L}) {
+            final Block block = new Block(params, 1, Sha256Hash.ZERO_HASH, Sha256Hash.ZERO_HASH, 0,
+                compact, 0, Collections.<Transaction>emptyList());
+            for (int lookup = 0; lookup < 2; lookup++) {
+                assertEquals(Utils.decodeCompactBits(compact), cache.getTarget(compact));
+                assertEquals(block.getWork(), cache.getWork(compact));
+            }
+        }
+        assertEquals(Utils.encodeCompactBits(params.getMaxTarget()), cache.getMaxTargetCompact());
+        assertEquals(4, cache.getMisses());
+        assertEquals(12, cache.getHits());
+        assertEquals(0.75, cache.getHitRate(), 0.0);
+    }
+
+    @Test
+    public void shouldUseNetworkCache() {
+        final AltcoinBlock block = new AltcoinBlock(params, 1, Sha256Hash.ZERO_HASH, Sha256Hash.ZERO_HASH, 0,
+            0x1b267eeeL, 0, Collections.<Transaction>emptyList());
+        final long lookups = params.getCompactTargetCache().getHits() + params.getCompactTargetCache().getMisses();
+        block.getWork();
+        assertEquals(lookups + 1,
+            params.getCompactTargetCache().getHits() + params.getCompactTargetCache().getMisses());
+    }
+
+    @Test
+    public void shouldStopGrowingAtCapacity() {
+        final CompactTargetCache cache = new CompactTargetCache(params.getMaxTarget(), 2);
+        cache.getTarget(0x1b000001L);
+        cache.getTarget(0x1b000002L);
+        cache.getTarget(0x1b000003L);
+        assertEquals(2, cache.size());
+        assertEquals(Utils.decodeCompactBits(0x1b000003L), cache.getTarget(0x1b000003L));
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test(expected = VerificationException.class)
+    public void shouldRejectEasierThanMaximum() {
+        new CompactTargetCache(params.getMaxTarget()).getTarget(0x1f0fffffL);
+    }
+
+    @Test(expected = VerificationException.class)
+    public void shouldRejectNegative() {
+        new CompactTargetCache(params.getMaxTarget()).getTarget(0x1c800001L);
+    }
+}
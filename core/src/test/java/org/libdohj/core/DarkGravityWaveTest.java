@@ -0,0 +1,245 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.libdohj.params.AbstractDashParams;
+import org.libdohj.params.AbstractRaptoreumParams;
+import org.libdohj.params.AbstractRavencoinParams;
+import org.libdohj.params.DashMainNetParams;
+import org.libdohj.params.RaptoreumMainNetParams;
+import org.libdohj.params.RavencoinMainNetParams;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Dark Gravity Wave v3, checked against a direct transcription of the
+ * reference implementation.
+ */
+public class DarkGravityWaveTest {
+    private static final DashMainNetParams params = DashMainNetParams.get();
+    private static final long START_TIME = 1390095618L;
+
+    private MemoryBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(params);
+        store = new MemoryBlockStore(params);
+    }
+
+    @Test
+    public void shouldMatchReference() throws Exception {
+        final DarkGravityWave dgw = new DarkGravityWave(params.getMaxTarget(),
+            AbstractDashParams.DASH_TARGET_SPACING, false);
+        final List<StoredBlock> chain = buildChain(null, 300, new Random(1), 0x1c0ffff0L);
+        for (int height = 0; height < chain.size() - 1; height++) {
+            final StoredBlock storedPrev = chain.get(height);
+            final Block next = chain.get(height + 1).getHeader();
+            assertEquals(reference(params.getMaxTarget(), AbstractDashParams.DASH_TARGET_SPACING,
+                DarkGravityWave.PAST_BLOCKS, false, storedPrev, next), dgw.getNextTarget(storedPrev, next, store));
+        }
+        assertEquals(DarkGravityWave.PAST_BLOCKS, dgw.size());
+    }
+
+    @Test
+    public void shouldMatchRavencoinReference() throws Exception {
+        final RavencoinMainNetParams ravencoin = RavencoinMainNetParams.get();
+        final int spacing = AbstractRavencoinParams.RAVEN_TARGET_SPACING;
+        final int pastBlocks = AbstractRavencoinParams.RAVEN_DGW_PAST_BLOCKS;
+        final DarkGravityWave dgw = new DarkGravityWave(ravencoin.getMaxTarget(), spacing, pastBlocks, false);
+        final List<StoredBlock> chain = buildChain(null, 600, new Random(6), 0x1c7ffff0L);
+        for (int height = 0; height < chain.size() - 1; height++) {
+            final StoredBlock storedPrev = chain.get(height);
+            final Block next = chain.get(height + 1).getHeader();
+            assertEquals(reference(ravencoin.getMaxTarget(), spacing, pastBlocks, false, storedPrev, next),
+                dgw.getNextTarget(storedPrev, next, store));
+        }
+        assertEquals(pastBlocks, dgw.size());
+    }
+
+    /**
+     * Targets small enough that the compact form holds them exactly, so the
+     * rounding in the running average almost always changes the result and
+     * the window sum cannot be relied on alone.
+     */
+    @Test
+    public void shouldMatchReferenceNearRoundingBoundary() throws Exception {
+        final int pastBlocks = AbstractRavencoinParams.RAVEN_DGW_PAST_BLOCKS;
+        final DarkGravityWave dgw = new DarkGravityWave(params.getMaxTarget(),
+            AbstractDashParams.DASH_TARGET_SPACING, pastBlocks, false);
+        final List<StoredBlock> chain = buildChain(null, 400, new Random(7), 0x037fffffL);
+        for (int height = 0; height < chain.size() - 1; height++) {
+            final StoredBlock storedPrev = chain.get(height);
+            final Block next = chain.get(height + 1).getHeader();
+            assertEquals(reference(params.getMaxTarget(), AbstractDashParams.DASH_TARGET_SPACING, pastBlocks, false,
+                storedPrev, next), dgw.getNextTarget(storedPrev, next, store));
+        }
+    }
+
+    /**
+     * Blocks from a fork refill the window, and returning to the original
+     * branch refills it again.
+     */
+    @Test
+    public void shouldFollowReorganisation() throws Exception {
+        final DarkGravityWave dgw = new DarkGravityWave(params.getMaxTarget(),
+            AbstractDashParams.DASH_TARGET_SPACING, false);
+        final List<StoredBlock> chain = buildChain(null, 100, new Random(2), 0x1c0ffff0L);
+        final List<StoredBlock> fork = buildChain(chain.get(79), 20, new Random(3), 0x1c07fff0L);
+        final List<List<StoredBlock>> sequence = new ArrayList<List<StoredBlock>>();
+        sequence.add(chain.subList(0, 90));
+        sequence.add(fork);
+        sequence.add(chain.subList(85, 100));
+        for (List<StoredBlock> blocks : sequence) {
+            for (StoredBlock storedPrev : blocks) {
+                final Block next = storedPrev.getHeader();
+                assertEquals(reference(params.getMaxTarget(), AbstractDashParams.DASH_TARGET_SPACING,
+                    DarkGravityWave.PAST_BLOCKS, false, storedPrev, next), dgw.getNextTarget(storedPrev, next, store));
+            }
+        }
+    }
+
+    @Test
+    public void shouldApplyTestnetRules() throws Exception {
+        final RaptoreumMainNetParams raptoreum = RaptoreumMainNetParams.get();
+        final int spacing = AbstractRaptoreumParams.RTM_TARGET_SPACING;
+        final DarkGravityWave dgw = new DarkGravityWave(raptoreum.getMaxTarget(), spacing, true);
+        final List<StoredBlock> chain = buildChain(null, 40, new Random(4), 0x1d00fff0L);
+        final StoredBlock storedPrev = chain.get(39);
+        final long prevTime = storedPrev.getHeader().getTimeSeconds();
+        for (long gap : new long[] {spacing, spacing * 4 + 1, 2 * 60 * 60 + 1}) {
+            final Block next = new AltcoinBlock(raptoreum, 1, storedPrev.getHeader().getHash(), Sha256Hash.ZERO_HASH,
+                prevTime + gap, 0x1d00fff0L, 0, Collections.<Transaction>emptyList());
+            assertEquals(reference(raptoreum.getMaxTarget(), spacing, DarkGravityWave.PAST_BLOCKS, true,
+                storedPrev, next),
+                dgw.getNextTarget(storedPrev, next, store));
+        }
+        assertEquals(Utils.encodeCompactBits(raptoreum.getMaxTarget()),
+            dgw.getNextTarget(chain.get(10), chain.get(11).getHeader(), store));
+    }
+
+    @Test
+    public void shouldReportMissingAncestors() throws Exception {
+        final DarkGravityWave dgw = new DarkGravityWave(params.getMaxTarget(),
+            AbstractDashParams.DASH_TARGET_SPACING, false);
+        final List<StoredBlock> chain = buildChain(null, 40, new Random(5), 0x1c0ffff0L);
+        final MemoryBlockStore partial = new MemoryBlockStore(params);
+        for (StoredBlock block : chain.subList(30, 40)) {
+            partial.put(block);
+        }
+        assertEquals(DarkGravityWave.UNKNOWN, dgw.getNextTarget(chain.get(39), chain.get(39).getHeader(), partial));
+    }
+
+    /**
+     * Build and store a chain with irregular block times and targets varying
+     * around the given target.
+     */
+    private List<StoredBlock> buildChain(final StoredBlock parent, final int count, final Random random,
+            final long baseTarget) throws BlockStoreException {
+        final List<StoredBlock> chain = new ArrayList<StoredBlock>(count);
+        Sha256Hash prevHash = parent == null ? Sha256Hash.ZERO_HASH : parent.getHeader().getHash();
+        int height = parent == null ? 0 : parent.getHeight() + 1;
+        long time = parent == null ? START_TIME : parent.getHeader().getTimeSeconds();
+        for (int blockIdx = 0; blockIdx < count; blockIdx++, height++) {
+            time += random.nextInt(600) - 60;
+            final long target = baseTarget - random.nextInt(0x10000);
+            final AltcoinBlock block = new AltcoinBlock(params, 1, prevHash, Sha256Hash.ZERO_HASH,
+                time, target, random.nextInt(), Collections.<Transaction>emptyList());
+            final StoredBlock stored = new StoredBlock(block, BigInteger.valueOf(height + 1), height);
+            store.put(stored);
+            chain.add(stored);
+            prevHash = block.getHash();
+        }
+        return chain;
+    }
+
+    /**
+     * DarkGravityWave() from Dash Core's pow.cpp, with the window length
+     * taken as a parameter as Ravencoin does.
+     */
+    private long reference(final BigInteger powLimit, final int targetSpacing, final int nPastBlocks,
+            final boolean allowMinDifficultyBlocks, final StoredBlock pindexLast, final Block pblock)
+        throws BlockStoreException {
+        if (pindexLast.getHeight() < nPastBlocks) {
+            return Utils.encodeCompactBits(powLimit);
+        }
+
+        if (allowMinDifficultyBlocks) {
+            if (pblock.getTimeSeconds() > pindexLast.getHeader().getTimeSeconds() + 2 * 60 * 60) {
+                return Utils.encodeCompactBits(powLimit);
+            }
+            if (pblock.getTimeSeconds() > pindexLast.getHeader().getTimeSeconds() + targetSpacing * 4) {
+                BigInteger bnNew = Utils.decodeCompactBits(pindexLast.getHeader().getDifficultyTarget())
+                    .multiply(BigInteger.TEN);
+                if (bnNew.compareTo(powLimit) > 0) {
+                    bnNew = powLimit;
+                }
+                return Utils.encodeCompactBits(bnNew);
+            }
+        }
+
+        StoredBlock pindex = pindexLast;
+        BigInteger bnPastTargetAvg = null;
+
+        for (int nCountBlocks = 1; nCountBlocks <= nPastBlocks; nCountBlocks++) {
+            final BigInteger bnTarget = Utils.decodeCompactBits(pindex.getHeader().getDifficultyTarget());
+            if (nCountBlocks == 1) {
+                bnPastTargetAvg = bnTarget;
+            } else {
+                bnPastTargetAvg = bnPastTargetAvg.multiply(BigInteger.valueOf(nCountBlocks)).add(bnTarget)
+                    .divide(BigInteger.valueOf(nCountBlocks + 1));
+            }
+
+            if (nCountBlocks != nPastBlocks) {
+                pindex = pindex.getPrev(store);
+            }
+        }
+
+        BigInteger bnNew = bnPastTargetAvg;
+
+        long nActualTimespan = pindexLast.getHeader().getTimeSeconds() - pindex.getHeader().getTimeSeconds();
+        final long nTargetTimespan = nPastBlocks * targetSpacing;
+
+        if (nActualTimespan < nTargetTimespan / 3)
+            nActualTimespan = nTargetTimespan / 3;
+        if (nActualTimespan > nTargetTimespan * 3)
+            nActualTimespan = nTargetTimespan * 3;
+
+        bnNew = bnNew.multiply(BigInteger.valueOf(nActualTimespan));
+        bnNew = bnNew.divide(BigInteger.valueOf(nTargetTimespan));
+
+        if (bnNew.compareTo(powLimit) > 0) {
+            bnNew = powLimit;
+        }
+
+        return Utils.encodeCompactBits(bnNew);
+    }
+}
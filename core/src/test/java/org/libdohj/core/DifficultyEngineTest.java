@@ -0,0 +1,278 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Util;
+import org.bitcoinj.core.Utils;
+import org.libdohj.params.AbstractDogecoinParams;
+import org.libdohj.params.DogecoinMainNetParams;
+import org.libdohj.params.LitecoinMainNetParams;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Differential tests of the difficulty engine against the BigInteger
+ * calculations it replaced.
+ */
+public class DifficultyEngineTest {
+    private static final DogecoinMainNetParams dogeParams = DogecoinMainNetParams.get();
+    private static final LitecoinMainNetParams liteParams = LitecoinMainNetParams.get();
+    private static final int NAMECOIN_TIMESPAN = 14 * 24 * 60 * 60;
+    private static final int NAMECOIN_AUXPOW_START = 19200;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(dogeParams);
+    }
+
+    /**
+     * Retargets from the Dogecoin and Litecoin chains, covering the early
+     * Dogecoin limits, Digishield and its rounding, and a retarget from the
+     * Dogecoin block files.
+     */
+    @Test
+    public void shouldMatchChainRetargets() throws Exception {
+        final DifficultyEngine doge = new DifficultyEngine(dogeParams.getMaxTarget(), dogecoinPolicy());
+        final long[][] retargets = new long[][] {
+            // Previous height, previous time, last target, last retarget time, next target
+            {239, 1386475638L, 0x1e0ffff0L, 1386474927L, 0x1e00ffffL},
+            {719, 1386476362L, 0x1e00ffffL, 1386475840L, 0x1d0ffff0L},
+            {9599, 1386954113L, 0x1c1a1206L, 1386942008L, 0x1c15ea59L},
+            {145000, 1395094679L, 0x1b499dfdL, 1395094427L, 0x1b671062L},
+            {145001, 1395094727L, 0x1b671062L, 1395094679L, 0x1b6558a4L}
+        };
+        for (long[] retarget : retargets) {
+            final long expected = dogecoinReference((int) retarget[0], retarget[1], retarget[2], retarget[3], retarget[4]);
+            assertEquals(retarget[4], expected);
+            assertEquals(expected, doge.calculateNewDifficultyTarget((int) retarget[0], retarget[1], retarget[2], retarget[3], retarget[4]));
+        }
+
+        final AltcoinBlock block479 = readBlock("dogecoin_block479.bin");
+        final AltcoinBlock block480 = readBlock("dogecoin_block480.bin");
+        final AltcoinBlock block239 = readBlock("dogecoin_block239.bin");
+        assertEquals(block480.getDifficultyTarget(), doge.calculateNewDifficultyTarget(479, block479.getTimeSeconds(),
+            block479.getDifficultyTarget(), block239.getTimeSeconds(), block480.getDifficultyTarget()));
+    }
+
+    /**
+     * Compare the engine against the original implementations across a wide
+     * range of targets, timespans, heights and precisions, including the
+     * negative and oversized targets handled by the BigInteger fallback.
+     */
+    @Test
+    public void shouldMatchReferenceImplementations() {
+        final DifficultyEngine doge = new DifficultyEngine(dogeParams.getMaxTarget(), dogecoinPolicy());
+        final DifficultyEngine lite = new DifficultyEngine(liteParams.getMaxTarget(),
+            new ClassicRetargetPolicy(liteParams.getTargetTimespan()));
+        final BigInteger namecoinMax = Utils.decodeCompactBits(0x1d00ffffL);
+        final DifficultyEngine namecoin = new DifficultyEngine(namecoinMax,
+            new NamecoinRetargetPolicy(NAMECOIN_TIMESPAN, NAMECOIN_AUXPOW_START));
+
+        final Random random = new Random(0x646f6765L);
+        for (int caseIdx = 0; caseIdx < 200000; caseIdx++) {
+            final long lastTarget = randomCompact(random);
+            final long nextTarget = randomCompact(random);
+            final int previousHeight = random.nextInt(400000);
+            final long lastRetargetTime = 1386474927L + random.nextInt(100000000);
+            final long previousTime = lastRetargetTime + random.nextInt(NAMECOIN_TIMESPAN * 8) - NAMECOIN_TIMESPAN;
+
+            assertEquals(dogecoinReference(previousHeight, previousTime, lastTarget, lastRetargetTime, nextTarget),
+                doge.calculateNewDifficultyTarget(previousHeight, previousTime, lastTarget, lastRetargetTime, nextTarget));
+            assertEquals(classicReference(liteParams.getTargetTimespan(), liteParams.getMaxTarget(),
+                    previousTime, lastTarget, lastRetargetTime, nextTarget),
+                lite.calculateNewDifficultyTarget(previousHeight, previousTime, lastTarget, lastRetargetTime, nextTarget));
+            assertEquals(classicReference(NAMECOIN_TIMESPAN, namecoinMax,
+                    previousTime, lastTarget, lastRetargetTime, nextTarget),
+                namecoin.calculateNewDifficultyTarget(previousHeight, previousTime, lastTarget, lastRetargetTime, nextTarget));
+        }
+    }
+
+    /**
+     * Compare the integer Digishield damping against the floating point
+     * rounding it replaced, across every timespan near the target and the
+     * extremes, where the subtraction overflows.
+     */
+    @Test
+    public void shouldMatchDigishieldDamping() {
+        final RetargetPolicy policy = dogecoinPolicy();
+        final int height = dogeParams.getDigishieldBlockHeight() + 1;
+        final int retargetTimespan = dogeParams.getNewTargetTimespan();
+        for (int actualTimespan = -100000; actualTimespan <= 100000; actualTimespan++) {
+            assertEquals(digishieldReference(actualTimespan, retargetTimespan),
+                policy.limitActualTimespan(height, actualTimespan, retargetTimespan));
+        }
+        final int[] extremes = new int[] {Integer.MIN_VALUE, Integer.MIN_VALUE + 1, Integer.MIN_VALUE + 59,
+            Integer.MIN_VALUE + 60, Integer.MAX_VALUE - 1, Integer.MAX_VALUE};
+        for (int actualTimespan : extremes) {
+            assertEquals(digishieldReference(actualTimespan, retargetTimespan),
+                policy.limitActualTimespan(height, actualTimespan, retargetTimespan));
+        }
+    }
+
+    @Test
+    public void shouldMatchBlocksBack() {
+        final ClassicRetargetPolicy classic = new ClassicRetargetPolicy(liteParams.getTargetTimespan());
+        assertEquals(2015, classic.getBlocksBack(2015, 2016));
+        assertEquals(2016, classic.getBlocksBack(4031, 2016));
+
+        final NamecoinRetargetPolicy namecoin = new NamecoinRetargetPolicy(NAMECOIN_TIMESPAN, NAMECOIN_AUXPOW_START);
+        assertEquals(2015, namecoin.getBlocksBack(2015, 2016));
+        assertEquals(2015, namecoin.getBlocksBack(4031, 2016));
+        assertEquals(2016, namecoin.getBlocksBack(20159, 2016));
+    }
+
+    @Test
+    public void shouldRoundTripCompactBits() {
+        final long[] digits = new long[9];
+        final Random random = new Random(1);
+        for (int caseIdx = 0; caseIdx < 100000; caseIdx++) {
+            final long compact = randomCompact(random);
+            if (DifficultyEngine.decodeCompact(compact, digits)) {
+                assertEquals(Utils.encodeCompactBits(Utils.decodeCompactBits(compact)),
+                    DifficultyEngine.encodeCompact(digits));
+            }
+        }
+    }
+
+    private static long randomCompact(final Random random) {
+        switch (random.nextInt(8)) {
+            case 0:
+                // Any value at all, including negative and oversized targets
+                return random.nextLong() & 0xffffffffL;
+            case 1:
+                // Small exponents, which truncate the mantissa
+                return ((long) random.nextInt(4) << 24) | random.nextInt(0x800000);
+            default:
+                return ((long) (0x17 + random.nextInt(10)) << 24) | random.nextInt(0x800000);
+        }
+    }
+
+    private static RetargetPolicy dogecoinPolicy() {
+        return new DigishieldRetargetPolicy(dogeParams.getDigishieldBlockHeight(), dogeParams.getNewTargetTimespan(),
+            new ClassicRetargetPolicy(dogeParams.getTargetTimespan()) {
+                @Override
+                protected int getMinTimespan(final int height, final int retargetTimespan) {
+                    if (height > 10000) {
+                        return retargetTimespan / 4;
+                    } else if (height > 5000) {
+                        return retargetTimespan / 8;
+                    } else {
+                        return retargetTimespan / 16;
+                    }
+                }
+            });
+    }
+
+    private static AltcoinBlock readBlock(final String resource) throws Exception {
+        final byte[] payload = Util.getBytes(AbstractDogecoinParams.class.getResourceAsStream(resource));
+        return (AltcoinBlock) dogeParams.getDefaultSerializer().makeBlock(payload);
+    }
+
+    /**
+     * The Litecoin style calculation, as previously copied into each params
+     * class, and as Namecoin calculated inline.
+     */
+    private static long classicReference(final int retargetTimespan, final BigInteger maxTarget,
+            long previousBlockTime, final long lastDifficultyTarget, final long lastRetargetTime,
+            final long nextDifficultyTarget) {
+        int actualTime = (int) (previousBlockTime - lastRetargetTime);
+        final int minTimespan = retargetTimespan / 4;
+        final int maxTimespan = retargetTimespan * 4;
+
+        actualTime = Math.min(maxTimespan, Math.max(minTimespan, actualTime));
+        return finishReference(maxTarget, lastDifficultyTarget, actualTime, retargetTimespan, nextDifficultyTarget);
+    }
+
+    /**
+     * The Dogecoin calculation, as previously in AbstractDogecoinParams.
+     */
+    private static long dogecoinReference(int previousHeight, long previousBlockTime,
+        final long lastDifficultyTarget, final long lastRetargetTime,
+        final long nextDifficultyTarget) {
+        final int height = previousHeight + 1;
+        final boolean digishieldAlgorithm = height >= dogeParams.getDigishieldBlockHeight();
+        final int retargetTimespan = digishieldAlgorithm
+            ? dogeParams.getNewTargetTimespan()
+            : dogeParams.getTargetTimespan();
+        int actualTime = (int) (previousBlockTime - lastRetargetTime);
+        final int minTimespan;
+        final int maxTimespan;
+
+        // Limit the adjustment step.
+        if (digishieldAlgorithm)
+        {
+            actualTime = digishieldReference(actualTime, retargetTimespan);
+            minTimespan = actualTime;
+            maxTimespan = actualTime;
+        }
+        else if (height > 10000)
+        {
+            minTimespan = retargetTimespan / 4;
+            maxTimespan = retargetTimespan * 4;
+        }
+        else if (height > 5000)
+        {
+            minTimespan = retargetTimespan / 8;
+            maxTimespan = retargetTimespan * 4;
+        }
+        else
+        {
+            minTimespan = retargetTimespan / 16;
+            maxTimespan = retargetTimespan * 4;
+        }
+        actualTime = Math.min(maxTimespan, Math.max(minTimespan, actualTime));
+        return finishReference(dogeParams.getMaxTarget(), lastDifficultyTarget, actualTime, retargetTimespan,
+            nextDifficultyTarget);
+    }
+
+    /**
+     * The Digishield damping and limits, as previously in AbstractDogecoinParams.
+     */
+    private static int digishieldReference(int actualTime, final int retargetTimespan) {
+        // Round towards zero to match the C++ implementation.
+        if (actualTime < retargetTimespan) {
+            actualTime = (int)Math.ceil(retargetTimespan + (actualTime - retargetTimespan) / 8.0);
+        } else {
+            actualTime = (int)Math.floor(retargetTimespan + (actualTime - retargetTimespan) / 8.0);
+        }
+        final int minTimespan = retargetTimespan - (retargetTimespan / 4);
+        final int maxTimespan = retargetTimespan + (retargetTimespan / 2);
+        return Math.min(maxTimespan, Math.max(minTimespan, actualTime));
+    }
+
+    private static long finishReference(final BigInteger maxTarget, final long lastDifficultyTarget,
+            final int actualTime, final int retargetTimespan, final long nextDifficultyTarget) {
+        BigInteger newTarget = Utils.decodeCompactBits(lastDifficultyTarget);
+        newTarget = newTarget.multiply(BigInteger.valueOf(actualTime));
+        newTarget = newTarget.divide(BigInteger.valueOf(retargetTimespan));
+
+        if (newTarget.compareTo(maxTarget) > 0) {
+            newTarget = maxTarget;
+        }
+
+        int accuracyBytes = (int) (nextDifficultyTarget >>> 24) - 3;
+
+        // The calculated difficulty is to a higher precision than received, so reduce here.
+        BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
+        newTarget = newTarget.and(mask);
+        return Utils.encodeCompactBits(newTarget);
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.AltcoinHeadersMessage;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.core.VerificationException;
+import org.bouncycastle.crypto.digests.Blake2bDigest;
+import org.libdohj.params.PirateChainMainNetParams;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EquihashVerifierTest {
+    /** Small parameters, which can be solved within a test. */
+    private static final int TEST_N = 48;
+    private static final int TEST_K = 5;
+
+    private static final TestPirateChainParams params = new TestPirateChainParams();
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(params);
+    }
+
+    @Test
+    public void shouldSizeZcashSolutions() {
+        final EquihashVerifier verifier = new EquihashVerifier(200, 9);
+        assertEquals(1344, verifier.getSolutionLength());
+        assertEquals(36, new EquihashVerifier(TEST_N, TEST_K).getSolutionLength());
+    }
+
+    @Test
+    public void shouldAcceptSolutions() {
+        final EquihashVerifier verifier = new EquihashVerifier(TEST_N, TEST_K);
+        final Random random = new Random(1);
+        int solutionCount = 0;
+        for (int attempt = 0; attempt < 5; attempt++) {
+            final byte[] input = new byte[AltcoinBlock.EQUIHASH_HEADER_SIZE];
+            random.nextBytes(input);
+            for (int[] indices : solve(TEST_N, TEST_K, input)) {
+                assertTrue(verifier.verify(input, encode(indices, TEST_N / (TEST_K + 1) + 1)));
+                solutionCount++;
+            }
+        }
+        assertTrue(solutionCount > 0);
+    }
+
+    @Test
+    public void shouldRejectInvalidSolutions() {
+        final EquihashVerifier verifier = new EquihashVerifier(TEST_N, TEST_K);
+        final byte[] input = new byte[AltcoinBlock.EQUIHASH_HEADER_SIZE];
+        final int[] indices = findSolution(input);
+        final int indexBits = TEST_N / (TEST_K + 1) + 1;
+        assertTrue(verifier.verify(input, encode(indices, indexBits)));
+
+        // Different input
+        final byte[] otherInput = input.clone();
+        otherInput[0] ^= 1;
+        assertFalse(verifier.verify(otherInput, encode(indices, indexBits)));
+
+        // Subtrees out of order
+        final int[] swapped = indices.clone();
+        final int half = swapped.length / 2;
+        for (int indexIdx = 0; indexIdx < half; indexIdx++) {
+            swapped[indexIdx] = indices[half + indexIdx];
+            swapped[half + indexIdx] = indices[indexIdx];
+        }
+        assertFalse(verifier.verify(input, encode(swapped, indexBits)));
+
+        // Repeated indices
+        final int[] repeated = indices.clone();
+        System.arraycopy(indices, 0, repeated, half, half);
+        assertFalse(verifier.verify(input, encode(repeated, indexBits)));
+
+        // Wrong length
+        assertFalse(verifier.verify(input, Arrays.copyOf(encode(indices, indexBits), 35)));
+    }
+
+    @Test
+    public void shouldParseAndVerifyZcashStyleHeader() throws Exception {
+        final byte[] header = mineHeader(new Random(2));
+        final byte[] payload = Arrays.copyOf(header, header.length + 1);
+
+        final AltcoinBlock block = (AltcoinBlock) params.getDefaultSerializer().makeBlock(payload);
+        assertTrue(block.isEquihashHeader());
+        assertEquals(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(header)), block.getHash());
+        assertEquals(Utils.readUint32(header, 100), block.getTimeSeconds());
+        assertEquals(0x200f0f0fL, block.getDifficultyTarget());
+        assertEquals(Utils.readUint32(header, 108), block.getNonce());
+        assertArrayEquals(Arrays.copyOfRange(header, 108, 140), block.getEquihashNonce());
+        assertEquals(Sha256Hash.wrapReversed(Arrays.copyOfRange(header, 68, 100)), block.getFinalSaplingRoot());
+        assertEquals(header.length, block.getHeaderSize());
+        assertArrayEquals(header, block.bitcoinSerialize());
+
+        final Sha256Hash hash = block.getHash();
+        block.verifyHeader();
+        assertNotNull(block.getEquihashSolution());
+        // Stored copies leave the solution out once verified, but keep the hash
+        final AltcoinBlock stored = (AltcoinBlock) block.cloneAsHeader();
+        assertNull(stored.getEquihashSolution());
+        assertEquals(hash, stored.getHash());
+        assertEquals(hash, stored.cloneAsHeader().getHash());
+        stored.verifyHeader();
+        try {
+            stored.bitcoinSerialize();
+            fail("Expected serializing a released header to fail");
+        } catch (IllegalStateException expected) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void shouldRejectTamperedZcashStyleHeader() throws Exception {
+        final byte[] header = mineHeader(new Random(3));
+        header[header.length - 1] ^= 1;
+        final AltcoinBlock block = (AltcoinBlock) params.getDefaultSerializer().makeBlock(header);
+        assertNotNull(block.getEquihashSolution());
+        try {
+            block.verifyHeader();
+            fail("Expected an invalid Equihash solution to be rejected");
+        } catch (VerificationException expected) {
+            assertTrue(expected.getMessage().startsWith("Equihash solution is invalid"));
+        }
+    }
+
+    @Test
+    public void shouldRehashChangedZcashStyleHeader() throws Exception {
+        final byte[] header = mineHeader(new Random(6));
+        final AltcoinBlock block = (AltcoinBlock) params.getDefaultSerializer().makeBlock(header);
+        final Sha256Hash hash = block.getHash();
+        block.verifyHeader();
+
+        block.setTime(12345);
+        final Sha256Hash timeHash = block.getHash();
+        assertFalse(hash.equals(timeHash));
+        block.setNonce(99);
+        assertFalse(timeHash.equals(block.getHash()));
+        assertEquals(99, Utils.readUint32(block.getEquihashNonce(), 0));
+
+        // The hash covers the changed header, and the solution no longer matches it
+        final byte[] changed = block.bitcoinSerialize();
+        assertEquals(12345, Utils.readUint32(changed, 100));
+        assertEquals(99, Utils.readUint32(changed, 108));
+        assertEquals(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(changed)), block.getHash());
+        try {
+            block.verifyHeader();
+            fail("Expected a changed header to be verified again");
+        } catch (VerificationException expected) {
+            assertTrue(expected.getMessage().startsWith("Equihash solution is invalid"));
+        }
+    }
+
+    @Test
+    public void shouldIndexZcashStyleHeaders() throws Exception {
+        final byte[] first = mineHeader(new Random(4));
+        final byte[] second = mineHeader(new Random(5));
+        final Sha256Hash firstHash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(first));
+        // Link the second header to the first
+        System.arraycopy(firstHash.getReversedBytes(), 0, second, 4, 32);
+
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(new VarInt(2).encode());
+        payload.write(first);
+        payload.write(0);
+        payload.write(second);
+        payload.write(0);
+        final AltcoinHeadersMessage message = new AltcoinHeadersMessage(params, payload.toByteArray());
+        assertEquals(2, message.size());
+        assertEquals(first.length, message.getHeaderLength(0));
+        assertFalse(message.isAuxPoW(0));
+        assertEquals(firstHash, message.getHash(0));
+        assertEquals(message.getHeader(1).getHash(), message.getHash(1));
+        assertEquals(Utils.readUint32(second, 100), message.getTimeSeconds(1));
+        assertEquals(0x200f0f0fL, message.getDifficultyTarget(1));
+        assertEquals(Utils.readUint32(second, 108), message.getNonce(1));
+        assertEquals(-1, message.findDisconnectedHeader(null));
+    }
+
+    /**
+     * Build a Zcash style header with a valid solution for the test
+     * parameters, and a hash which meets its target.
+     */
+    private static byte[] mineHeader(final Random random) {
+        final BigInteger target = Utils.decodeCompactBits(0x200f0f0fL);
+        final byte[] input = new byte[AltcoinBlock.EQUIHASH_HEADER_SIZE];
+        random.nextBytes(input);
+        Utils.uint32ToByteArrayLE(4, input, 0);
+        Utils.uint32ToByteArrayLE(1500000000L, input, 100);
+        Utils.uint32ToByteArrayLE(0x200f0f0fL, input, 104);
+        while (true) {
+            input[108]++;
+            for (int[] indices : solve(TEST_N, TEST_K, input)) {
+                final byte[] solution = encode(indices, TEST_N / (TEST_K + 1) + 1);
+                final byte[] header = new byte[input.length + 1 + solution.length];
+                System.arraycopy(input, 0, header, 0, input.length);
+                header[input.length] = (byte) solution.length;
+                System.arraycopy(solution, 0, header, input.length + 1, solution.length);
+                if (Sha256Hash.wrapReversed(Sha256Hash.hashTwice(header)).toBigInteger().compareTo(target) <= 0) {
+                    return header;
+                }
+            }
+        }
+    }
+
+    private static int[] findSolution(final byte[] input) {
+        while (true) {
+            final List<int[]> solutions = solve(TEST_N, TEST_K, input);
+            if (!solutions.isEmpty()) {
+                return solutions.get(0);
+            }
+            input[108]++;
+        }
+    }
+
+    /**
+     * Find solutions with Wagner's algorithm; practical only for small n.
+     */
+    private static List<int[]> solve(final int n, final int k, final byte[] input) {
+        final int collisionBits = n / (k + 1);
+        final int indicesPerHash = 512 / n;
+        final byte[] personalization = new byte[16];
+        System.arraycopy("ZcashPoW".getBytes(), 0, personalization, 0, 8);
+        Utils.uint32ToByteArrayLE(n, personalization, 8);
+        Utils.uint32ToByteArrayLE(k, personalization, 12);
+        final Blake2bDigest digest = new Blake2bDigest(null, indicesPerHash * n / 8, null, personalization);
+        final byte[] hash = new byte[indicesPerHash * n / 8];
+        final byte[] hashIndex = new byte[4];
+
+        List<Row> rows = new ArrayList<Row>();
+        for (int index = 0; index < 1 << (collisionBits + 1); index++) {
+            digest.update(input, 0, input.length);
+            Utils.uint32ToByteArrayLE(index / indicesPerHash, hashIndex, 0);
+            digest.update(hashIndex, 0, 4);
+            digest.doFinal(hash, 0);
+            final BigInteger value = new BigInteger(1, Arrays.copyOfRange(hash,
+                (index % indicesPerHash) * n / 8, (index % indicesPerHash + 1) * n / 8));
+            final int[] chunks = new int[k + 1];
+            for (int chunkIdx = 0; chunkIdx <= k; chunkIdx++) {
+                chunks[chunkIdx] = value.shiftRight(n - (chunkIdx + 1) * collisionBits)
+                    .intValue() & ((1 << collisionBits) - 1);
+            }
+            rows.add(new Row(chunks, new int[] {index}));
+        }
+
+        for (int level = 0; level < k; level++) {
+            final boolean last = level == k - 1;
+            final Map<Long, List<Row>> buckets = new HashMap<Long, List<Row>>();
+            for (Row row : rows) {
+                final long key = last ? ((long) row.chunks[level] << 32) | row.chunks[level + 1] : row.chunks[level];
+                List<Row> bucket = buckets.get(key);
+                if (bucket == null) {
+                    bucket = new ArrayList<Row>();
+                    buckets.put(key, bucket);
+                }
+                bucket.add(row);
+            }
+            final List<Row> combined = new ArrayList<Row>();
+            for (List<Row> bucket : buckets.values()) {
+                for (int leftIdx = 0; leftIdx < bucket.size(); leftIdx++) {
+                    for (int rightIdx = leftIdx + 1; rightIdx < bucket.size(); rightIdx++) {
+                        final Row row = Row.combine(bucket.get(leftIdx), bucket.get(rightIdx));
+                        if (row != null) {
+                            combined.add(row);
+                        }
+                    }
+                }
+            }
+            rows = combined;
+        }
+
+        final List<int[]> solutions = new ArrayList<int[]>();
+        for (Row row : rows) {
+            solutions.add(row.indices);
+        }
+        return solutions;
+    }
+
+    /**
+     * Pack indices into the minimal big endian encoding.
+     */
+    private static byte[] encode(final int[] indices, final int indexBits) {
+        final byte[] encoded = new byte[indices.length * indexBits / 8];
+        int bitIdx = 0;
+        for (int index : indices) {
+            for (int bit = indexBits - 1; bit >= 0; bit--, bitIdx++) {
+                if (((index >>> bit) & 1) != 0) {
+                    encoded[bitIdx / 8] |= 0x80 >>> (bitIdx % 8);
+                }
+            }
+        }
+        return encoded;
+    }
+
+    private static class Row {
+        private final int[] chunks;
+        private final int[] indices;
+
+        private Row(final int[] chunks, final int[] indices) {
+            this.chunks = chunks;
+            this.indices = indices;
+        }
+
+        /**
+         * Combine two colliding rows, ordered by their first index, or
+         * return null if they share an index.
+         */
+        private static Row combine(final Row a, final Row b) {
+            for (int aIndex : a.indices) {
+                for (int bIndex : b.indices) {
+                    if (aIndex == bIndex) {
+                        return null;
+                    }
+                }
+            }
+            final Row left = a.indices[0] < b.indices[0] ? a : b;
+            final Row right = left == a ? b : a;
+            final int[] chunks = new int[a.chunks.length];
+            for (int chunkIdx = 0; chunkIdx < chunks.length; chunkIdx++) {
+                chunks[chunkIdx] = a.chunks[chunkIdx] ^ b.chunks[chunkIdx];
+            }
+            final int[] indices = Arrays.copyOf(left.indices, left.indices.length * 2);
+            System.arraycopy(right.indices, 0, indices, left.indices.length, right.indices.length);
+            return new Row(chunks, indices);
+        }
+    }
+
+    /**
+     * Pirate Chain, with Equihash parameters small enough to solve in a test.
+     */
+    private static class TestPirateChainParams extends PirateChainMainNetParams {
+        private final EquihashVerifier testVerifier = new EquihashVerifier(TEST_N, TEST_K);
+
+        @Override
+        public EquihashVerifier getEquihashVerifier() {
+            return testVerifier;
+        }
+    }
+}
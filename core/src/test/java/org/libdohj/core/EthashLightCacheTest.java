@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Utils;
+import org.libdohj.params.RavencoinMainNetParams;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EthashLightCacheTest {
+    private static final RavencoinMainNetParams params = RavencoinMainNetParams.get();
+    /** Small cache sizes, so tests do not spend seconds building caches. */
+    private static final long TEST_INIT_BYTES = 1 << 12;
+    private static final long TEST_GROWTH_BYTES = 1 << 7;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(params);
+    }
+
+    @Test
+    public void shouldCalculateSeedHash() {
+        assertArrayEquals(new byte[32], EthashLightCache.getSeedHash(0));
+        assertEquals("290decd9548b62a8d60345a988386fc84ba6bc95484008f6362f93160ef3e563",
+            Utils.HEX.encode(EthashLightCache.getSeedHash(1)));
+    }
+
+    @Test
+    public void shouldCalculateCacheSize() {
+        assertEquals(16776896L, EthashLightCache.getCacheSize(0,
+            EthashLightCache.CACHE_BYTES_INIT, EthashLightCache.CACHE_BYTES_GROWTH));
+        // Always a prime number of items
+        final long size = EthashLightCache.getCacheSize(1, TEST_INIT_BYTES, TEST_GROWTH_BYTES);
+        assertEquals(0, size % EthashLightCache.HASH_BYTES);
+        assertTrue(BigInteger.valueOf(size / EthashLightCache.HASH_BYTES).isProbablePrime(50));
+    }
+
+    @Test
+    public void shouldBuildDeterministically() {
+        final EthashLightCache first = EthashLightCache.build(2, TEST_INIT_BYTES, TEST_GROWTH_BYTES);
+        final EthashLightCache second = EthashLightCache.build(2, TEST_INIT_BYTES, TEST_GROWTH_BYTES);
+        final EthashLightCache other = EthashLightCache.build(3, TEST_INIT_BYTES, TEST_GROWTH_BYTES);
+        assertEquals(first.getItemCount(), second.getItemCount());
+        for (int wordIdx = 0; wordIdx < first.getItemCount() * EthashLightCache.HASH_WORDS; wordIdx++) {
+            assertEquals(first.getWord(wordIdx), second.getWord(wordIdx));
+        }
+        assertFalse(first.getWord(0) == other.getWord(0));
+
+        final int[] item = new int[EthashLightCache.HASH_WORDS * 2];
+        first.calculateDatasetItem(12345, 256, item, 0);
+        second.calculateDatasetItem(12345, 256, item, EthashLightCache.HASH_WORDS);
+        for (int wordIdx = 0; wordIdx < EthashLightCache.HASH_WORDS; wordIdx++) {
+            assertEquals(item[wordIdx], item[EthashLightCache.HASH_WORDS + wordIdx]);
+        }
+    }
+
+    @Test
+    public void shouldCalculateDatasetItemsInParallel() throws Exception {
+        final EthashLightCache cache = EthashLightCache.build(1, TEST_INIT_BYTES, TEST_GROWTH_BYTES);
+        final int count = 5000;
+        final int[] expected = new int[count * EthashLightCache.HASH_WORDS];
+        for (int itemIdx = 0; itemIdx < count; itemIdx++) {
+            cache.calculateDatasetItem(100 + itemIdx, 512, expected, itemIdx * EthashLightCache.HASH_WORDS);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final int[] actual = new int[expected.length + 1];
+            cache.calculateDatasetItems(100, count, 512, actual, 1, executor);
+            assertEquals(0, actual[0]);
+            assertArrayEquals(expected, Arrays.copyOfRange(actual, 1, actual.length));
+        } finally {
+            executor.shutdown();
+        }
+
+        final int[] sequential = new int[expected.length];
+        cache.calculateDatasetItems(100, count, 512, sequential, 0, null);
+        assertArrayEquals(expected, sequential);
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedEpoch() throws Exception {
+        final EpochCache cache = new EpochCache(100, TEST_INIT_BYTES, TEST_GROWTH_BYTES, null, 2);
+        final EthashLightCache epoch0 = cache.getForHeight(0);
+        assertSame(epoch0, cache.get(0));
+        assertEquals(1, cache.getEpoch(150));
+        cache.getForHeight(150);
+        cache.get(0);
+        cache.get(2);
+        assertEquals(2, cache.size());
+        assertTrue(cache.isReady(0));
+        assertFalse(cache.isReady(1));
+        assertSame(epoch0, cache.get(0));
+        assertNotSame(cache.get(1), cache.get(2));
+        // Without an executor, nothing is built ahead of time
+        cache.prefetch(5);
+        assertFalse(cache.isReady(5));
+    }
+
+    @Test
+    public void shouldPrefetchNextEpoch() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final EpochCache cache = new EpochCache(100, TEST_INIT_BYTES, TEST_GROWTH_BYTES, executor);
+            final EthashLightCache epoch0 = cache.getForHeight(49);
+            assertEquals(0, epoch0.getEpoch());
+            assertEquals(1, cache.size());
+
+            // Half way through the epoch, the next is built in the background
+            cache.getForHeight(50);
+            assertEquals(2, cache.size());
+            final long misses = cache.getMisses();
+            final EthashLightCache epoch1 = cache.get(1);
+            assertEquals(1, epoch1.getEpoch());
+            assertEquals(misses, cache.getMisses());
+            assertTrue(cache.isReady(1));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
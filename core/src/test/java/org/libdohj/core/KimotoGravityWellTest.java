@@ -0,0 +1,231 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.libdohj.params.AbstractFiroParams;
+import org.libdohj.params.FiroMainNetParams;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Kimoto Gravity Well, checked against a direct transcription of the
+ * reference implementation.
+ */
+public class KimotoGravityWellTest {
+    private static final FiroMainNetParams params = FiroMainNetParams.get();
+    private static final long START_TIME = 1414776286L;
+    private static final int SPACING = AbstractFiroParams.FIRO_MTP_TARGET_SPACING;
+
+    private CountingBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(params);
+        store = new CountingBlockStore();
+    }
+
+    /**
+     * Follow a chain whose block rate swings between fast and slow, so the
+     * number of blocks averaged varies, and confirm the steady state needs no
+     * block store lookups.
+     */
+    @Test
+    public void shouldMatchReference() throws Exception {
+        final KimotoGravityWell kgw = new KimotoGravityWell(params.getMaxTarget(), SPACING, 12, 100);
+        final List<StoredBlock> chain = buildChain(null, 600, new Random(1));
+        for (int height = 0; height < chain.size(); height++) {
+            final StoredBlock storedPrev = chain.get(height);
+            final long expected = reference(params.getMaxTarget(), SPACING, 12, 100, storedPrev);
+            store.gets = 0;
+            assertEquals(expected, kgw.getNextTarget(storedPrev, store));
+            if (height > 12) {
+                assertEquals(0, store.gets);
+            }
+        }
+        assertEquals(100, kgw.size());
+    }
+
+    @Test
+    public void shouldMatchFiroReference() throws Exception {
+        final int pastBlocksMin = AbstractFiroParams.FIRO_KGW_PAST_BLOCKS_MIN;
+        final int pastBlocksMax = AbstractFiroParams.FIRO_KGW_PAST_BLOCKS_MAX;
+        final KimotoGravityWell kgw = new KimotoGravityWell(params.getMaxTarget(), SPACING,
+            pastBlocksMin, pastBlocksMax);
+        final List<StoredBlock> chain = buildChain(null, pastBlocksMax + 100, new Random(2));
+        for (StoredBlock storedPrev : chain.subList(pastBlocksMax - 50, chain.size())) {
+            assertEquals(reference(params.getMaxTarget(), SPACING, pastBlocksMin, pastBlocksMax, storedPrev),
+                kgw.getNextTarget(storedPrev, store));
+        }
+    }
+
+    /**
+     * Blocks from a fork refill the window, and returning to the original
+     * branch refills it again.
+     */
+    @Test
+    public void shouldFollowReorganisation() throws Exception {
+        final KimotoGravityWell kgw = new KimotoGravityWell(params.getMaxTarget(), SPACING, 12, 100);
+        final List<StoredBlock> chain = buildChain(null, 300, new Random(3));
+        final List<StoredBlock> fork = buildChain(chain.get(249), 30, new Random(4));
+        final List<List<StoredBlock>> sequence = new ArrayList<List<StoredBlock>>();
+        sequence.add(chain.subList(0, 260));
+        sequence.add(fork);
+        sequence.add(chain.subList(255, 300));
+        for (List<StoredBlock> blocks : sequence) {
+            for (StoredBlock storedPrev : blocks) {
+                assertEquals(reference(params.getMaxTarget(), SPACING, 12, 100, storedPrev),
+                    kgw.getNextTarget(storedPrev, store));
+            }
+        }
+    }
+
+    @Test
+    public void shouldReportMissingAncestors() throws Exception {
+        final KimotoGravityWell kgw = new KimotoGravityWell(params.getMaxTarget(), SPACING, 12, 100);
+        final List<StoredBlock> chain = buildChain(null, 150, new Random(5));
+        final MemoryBlockStore partial = new MemoryBlockStore(params);
+        for (StoredBlock block : chain.subList(100, 150)) {
+            partial.put(block);
+        }
+        assertEquals(KimotoGravityWell.UNKNOWN, kgw.getNextTarget(chain.get(149), partial));
+    }
+
+    /**
+     * Build and store a chain whose block rate changes every fifty blocks,
+     * with targets varying from block to block.
+     */
+    private List<StoredBlock> buildChain(final StoredBlock parent, final int count, final Random random)
+        throws BlockStoreException {
+        final List<StoredBlock> chain = new ArrayList<StoredBlock>(count);
+        Sha256Hash prevHash = parent == null ? Sha256Hash.ZERO_HASH : parent.getHeader().getHash();
+        int height = parent == null ? 0 : parent.getHeight() + 1;
+        long time = parent == null ? START_TIME : parent.getHeader().getTimeSeconds();
+        int meanSpacing = SPACING;
+        for (int blockIdx = 0; blockIdx < count; blockIdx++, height++) {
+            if (height % 50 == 0) {
+                meanSpacing = SPACING / 4 + random.nextInt(SPACING * 2);
+            }
+            time += random.nextInt(meanSpacing * 2) - 30;
+            final long target = 0x1c0ffff0L - random.nextInt(0x10000);
+            final AltcoinBlock block = new AltcoinBlock(params, 1, prevHash, Sha256Hash.ZERO_HASH,
+                time, target, random.nextInt(), Collections.<Transaction>emptyList());
+            final StoredBlock stored = new StoredBlock(block, BigInteger.valueOf(height + 1), height);
+            store.put(stored);
+            chain.add(stored);
+            prevHash = block.getHash();
+        }
+        return chain;
+    }
+
+    /**
+     * BorisRidiculouslyNamedDifficultyFunction() from Firo's pow.cpp.
+     */
+    private long reference(final BigInteger powLimit, final long targetBlocksSpacingSeconds,
+            final long pastBlocksMin, final long pastBlocksMax, final StoredBlock pindexLast)
+        throws BlockStoreException {
+        final StoredBlock blockLastSolved = pindexLast;
+        StoredBlock blockReading = pindexLast;
+        long pastBlocksMass = 0;
+        long pastRateActualSeconds = 0;
+        long pastRateTargetSeconds = 0;
+        double pastRateAdjustmentRatio;
+        BigInteger pastDifficultyAverage = BigInteger.ZERO;
+        BigInteger pastDifficultyAveragePrev = BigInteger.ZERO;
+
+        if (blockLastSolved.getHeight() == 0 || blockLastSolved.getHeight() < pastBlocksMin) {
+            return Utils.encodeCompactBits(powLimit);
+        }
+
+        for (int i = 1; blockReading != null && blockReading.getHeight() > 0; i++) {
+            if (pastBlocksMax > 0 && i > pastBlocksMax) {
+                break;
+            }
+            pastBlocksMass++;
+            pastDifficultyAverage = Utils.decodeCompactBits(blockReading.getHeader().getDifficultyTarget());
+            if (i > 1) {
+                final BigInteger bnI = BigInteger.valueOf(i);
+                if (pastDifficultyAverage.compareTo(pastDifficultyAveragePrev) >= 0) {
+                    pastDifficultyAverage = pastDifficultyAverage.subtract(pastDifficultyAveragePrev).divide(bnI)
+                        .add(pastDifficultyAveragePrev);
+                } else {
+                    pastDifficultyAverage = pastDifficultyAveragePrev.subtract(
+                        pastDifficultyAveragePrev.subtract(pastDifficultyAverage).divide(bnI));
+                }
+            }
+            pastDifficultyAveragePrev = pastDifficultyAverage;
+
+            pastRateActualSeconds = blockLastSolved.getHeader().getTimeSeconds()
+                - blockReading.getHeader().getTimeSeconds();
+            pastRateTargetSeconds = targetBlocksSpacingSeconds * pastBlocksMass;
+            pastRateAdjustmentRatio = 1.0;
+            if (pastRateActualSeconds < 0) {
+                pastRateActualSeconds = 0;
+            }
+            if (pastRateActualSeconds != 0 && pastRateTargetSeconds != 0) {
+                pastRateAdjustmentRatio = (double) pastRateTargetSeconds / (double) pastRateActualSeconds;
+            }
+            final double eventHorizonDeviation = 1 + (0.7084 * Math.pow((double) pastBlocksMass / 28.2, -1.228));
+            final double eventHorizonDeviationFast = eventHorizonDeviation;
+            final double eventHorizonDeviationSlow = 1 / eventHorizonDeviation;
+
+            if (pastBlocksMass >= pastBlocksMin) {
+                if (pastRateAdjustmentRatio <= eventHorizonDeviationSlow
+                        || pastRateAdjustmentRatio >= eventHorizonDeviationFast) {
+                    break;
+                }
+            }
+            blockReading = blockReading.getPrev(store);
+        }
+
+        BigInteger bnNew = pastDifficultyAverage;
+        if (pastRateActualSeconds != 0 && pastRateTargetSeconds != 0) {
+            bnNew = bnNew.multiply(BigInteger.valueOf(pastRateActualSeconds))
+                .divide(BigInteger.valueOf(pastRateTargetSeconds));
+        }
+        if (bnNew.compareTo(powLimit) > 0) {
+            bnNew = powLimit;
+        }
+        return Utils.encodeCompactBits(bnNew);
+    }
+
+    private static class CountingBlockStore extends MemoryBlockStore {
+        private int gets;
+
+        private CountingBlockStore() {
+            super(params);
+        }
+
+        @Override
+        public synchronized StoredBlock get(final Sha256Hash hash) throws BlockStoreException {
+            gets++;
+            return super.get(hash);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.libdohj.params.LitecoinMainNetParams;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MedianTimePastTest {
+    private static final LitecoinMainNetParams params = LitecoinMainNetParams.get();
+    private static final long START_TIME = 1317972665L;
+
+    private CountingBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(params);
+        store = new CountingBlockStore();
+    }
+
+    @Test
+    public void shouldMatchSortedSpan() throws Exception {
+        final MedianTimePast medianTimePast = new MedianTimePast();
+        final List<StoredBlock> chain = buildChain(null, 300, new Random(1));
+        for (StoredBlock block : chain) {
+            final long expected = reference(block);
+            store.gets = 0;
+            assertEquals(expected, medianTimePast.getMedianTimePast(block, store));
+            assertEquals(0, store.gets);
+        }
+    }
+
+    /**
+     * Moving back to an earlier block, across to a fork and back again is
+     * answered from the history without reading the block store.
+     */
+    @Test
+    public void shouldRollBack() throws Exception {
+        final MedianTimePast medianTimePast = new MedianTimePast(64);
+        final List<StoredBlock> chain = buildChain(null, 200, new Random(2));
+        final List<StoredBlock> fork = buildChain(chain.get(169), 20, new Random(3));
+        final List<List<StoredBlock>> sequence = new ArrayList<List<StoredBlock>>();
+        sequence.add(chain.subList(0, 180));
+        sequence.add(chain.subList(150, 160));
+        sequence.add(fork);
+        sequence.add(chain.subList(170, 200));
+        for (List<StoredBlock> blocks : sequence) {
+            for (StoredBlock block : blocks) {
+                final long expected = reference(block);
+                store.gets = 0;
+                assertEquals(expected, medianTimePast.getMedianTimePast(block, store));
+                assertEquals(0, store.gets);
+            }
+        }
+
+        // Deeper than the history, so the block store is read
+        assertEquals(reference(chain.get(20)), medianTimePast.getMedianTimePast(chain.get(20), store));
+        assertEquals(reference(chain.get(199)), medianTimePast.getMedianTimePast(chain.get(199), store));
+    }
+
+    @Test
+    public void shouldNotKnowMedianTimePastAfterCheckpoint() throws Exception {
+        final MedianTimePast medianTimePast = new MedianTimePast();
+        final List<StoredBlock> chain = buildChain(null, 30, new Random(5));
+        final MemoryBlockStore partial = new MemoryBlockStore(params);
+        for (StoredBlock block : chain.subList(25, 30)) {
+            partial.put(block);
+        }
+        assertEquals(MedianTimePast.UNKNOWN, medianTimePast.getMedianTimePast(chain.get(29), partial));
+    }
+
+    /**
+     * Build and store a chain whose block times wander backwards as well as
+     * forwards.
+     */
+    private List<StoredBlock> buildChain(final StoredBlock parent, final int count, final Random random)
+        throws BlockStoreException {
+        final List<StoredBlock> chain = new ArrayList<StoredBlock>(count);
+        Sha256Hash prevHash = parent == null ? Sha256Hash.ZERO_HASH : parent.getHeader().getHash();
+        int height = parent == null ? 0 : parent.getHeight() + 1;
+        long time = parent == null ? START_TIME : parent.getHeader().getTimeSeconds();
+        for (int blockIdx = 0; blockIdx < count; blockIdx++, height++) {
+            time += random.nextInt(600) - 200;
+            final AltcoinBlock block = new AltcoinBlock(params, 1, prevHash, Sha256Hash.ZERO_HASH,
+                time, 0x1e0ffff0L, random.nextInt(), Collections.<Transaction>emptyList());
+            final StoredBlock stored = new StoredBlock(block, BigInteger.valueOf(height + 1), height);
+            store.put(stored);
+            chain.add(stored);
+            prevHash = block.getHash();
+        }
+        return chain;
+    }
+
+    /**
+     * GetMedianTimePast() from Bitcoin Core's chain.h.
+     */
+    private long reference(StoredBlock pindex) throws BlockStoreException {
+        final long[] times = new long[11];
+        int count = 0;
+        for (int i = 0; i < 11 && pindex != null; i++, pindex = pindex.getPrev(store)) {
+            times[count++] = pindex.getHeader().getTimeSeconds();
+        }
+        Arrays.sort(times, 0, count);
+        return times[count / 2];
+    }
+
+    private static class CountingBlockStore extends MemoryBlockStore {
+        private int gets;
+
+        private CountingBlockStore() {
+            super(params);
+        }
+
+        @Override
+        public synchronized StoredBlock get(final Sha256Hash hash) throws BlockStoreException {
+            gets++;
+            return super.get(hash);
+        }
+    }
+}
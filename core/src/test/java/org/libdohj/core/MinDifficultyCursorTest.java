@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+import java.util.Collections;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.libdohj.params.DogecoinTestNet3Params;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Memoized search for the last non minimum difficulty block.
+ */
+public class MinDifficultyCursorTest {
+    private static final DogecoinTestNet3Params params = DogecoinTestNet3Params.get();
+    private static final long START_TIME = 1391503289L;
+    private static final int INTERVAL = 240;
+
+    private long minDifficultyTarget;
+    private CountingBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(params);
+        minDifficultyTarget = Utils.encodeCompactBits(params.getMaxTarget());
+        store = new CountingBlockStore();
+    }
+
+    /**
+     * Follow a long run of minimum difficulty blocks, and confirm each block
+     * after the first needs no block store lookups.
+     */
+    @Test
+    public void shouldFollowMinDifficultyRun() throws Exception {
+        final MinDifficultyCursor cursor = new MinDifficultyCursor(params.getMaxTarget());
+        final StoredBlock[] chain = buildChain(null, 1, 2, 0x1e0ffff0L, 0);
+        final StoredBlock[] run = buildChain(chain[1], 3, 200, minDifficultyTarget, 0);
+
+        assertEquals(0x1e0ffff0L, cursor.getLastNonMinDifficultyTarget(chain[1], INTERVAL, store));
+        for (StoredBlock block : run) {
+            store.gets = 0;
+            assertEquals(0x1e0ffff0L, cursor.getLastNonMinDifficultyTarget(block, INTERVAL, store));
+            assertEquals(0, store.gets);
+        }
+
+        // Cold start in the middle of the run walks back to the last normal block
+        cursor.clear();
+        assertEquals(0x1e0ffff0L, cursor.getLastNonMinDifficultyTarget(run[150], INTERVAL, store));
+        assertEquals(151, store.gets);
+        store.gets = 0;
+        assertEquals(0x1e0ffff0L, cursor.getLastNonMinDifficultyTarget(run[151], INTERVAL, store));
+        assertEquals(0, store.gets);
+    }
+
+    /**
+     * Blocks on a competing branch must not see answers from the branch they
+     * replace.
+     */
+    @Test
+    public void shouldFollowReorganisation() throws Exception {
+        final MinDifficultyCursor cursor = new MinDifficultyCursor(params.getMaxTarget());
+        final StoredBlock[] chain = buildChain(null, 1, 10, minDifficultyTarget, 0);
+        final StoredBlock[] normal = buildChain(chain[4], 6, 1, 0x1e0fff00L, 1);
+        final StoredBlock[] fork = buildChain(normal[0], 7, 5, minDifficultyTarget, 1);
+
+        for (StoredBlock block : chain) {
+            cursor.getLastNonMinDifficultyTarget(block, INTERVAL, store);
+        }
+        for (StoredBlock block : fork) {
+            assertEquals(0x1e0fff00L, cursor.getLastNonMinDifficultyTarget(block, INTERVAL, store));
+        }
+        // The original branch reaches the start of the store
+        assertEquals(minDifficultyTarget, cursor.getLastNonMinDifficultyTarget(chain[9], INTERVAL, store));
+    }
+
+    @Test
+    public void shouldStopAtRetarget() throws Exception {
+        final MinDifficultyCursor cursor = new MinDifficultyCursor(params.getMaxTarget());
+        final StoredBlock[] chain = buildChain(null, INTERVAL - 2, 5, minDifficultyTarget, 0);
+        assertEquals(minDifficultyTarget, cursor.getLastNonMinDifficultyTarget(chain[4], INTERVAL, store));
+        assertEquals(2, store.gets);
+    }
+
+    /**
+     * Build and store a chain of headers with the given target.
+     */
+    private StoredBlock[] buildChain(final StoredBlock parent, final int startHeight, final int count,
+            final long target, final long salt) throws BlockStoreException {
+        final StoredBlock[] chain = new StoredBlock[count];
+        Sha256Hash prevHash = parent == null ? Sha256Hash.ZERO_HASH : parent.getHeader().getHash();
+        for (int blockIdx = 0; blockIdx < count; blockIdx++) {
+            final int height = startHeight + blockIdx;
+            final AltcoinBlock block = new AltcoinBlock(params, 1, prevHash, Sha256Hash.ZERO_HASH,
+                START_TIME + height * 60L, target, salt, Collections.<Transaction>emptyList());
+            chain[blockIdx] = new StoredBlock(block, BigInteger.valueOf(height + 1), height);
+            store.put(chain[blockIdx]);
+            prevHash = block.getHash();
+        }
+        return chain;
+    }
+
+    private static class CountingBlockStore extends MemoryBlockStore {
+        private int gets;
+
+        private CountingBlockStore() {
+            super(params);
+        }
+
+        @Override
+        public synchronized StoredBlock get(final Sha256Hash hash) throws BlockStoreException {
+            gets++;
+            return super.get(hash);
+        }
+    }
+}
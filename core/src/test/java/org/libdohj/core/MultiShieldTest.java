@@ -0,0 +1,240 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.libdohj.params.AbstractDigibyteParams;
+import org.libdohj.params.DigibyteMainNetParams;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * DigiByte MultiShield, checked against a direct transcription of the
+ * reference implementation.
+ */
+public class MultiShieldTest {
+    private static final DigibyteMainNetParams params = DigibyteMainNetParams.get();
+    private static final long START_TIME = 1389388394L;
+    private static final int SPACING = AbstractDigibyteParams.DIGI_MULTI_ALGO_TARGET_SPACING;
+    private static final int[] ALGOS = {
+        AltcoinBlock.ALGO_SHA256D, AltcoinBlock.ALGO_SCRYPT, AltcoinBlock.ALGO_SKEIN,
+        AltcoinBlock.ALGO_QUBIT, AltcoinBlock.ALGO_ODO
+    };
+
+    private CountingBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(params);
+        store = new CountingBlockStore();
+    }
+
+    @Test
+    public void shouldDecodeAlgorithm() {
+        assertEquals(AltcoinBlock.ALGO_SCRYPT, AltcoinBlock.getAlgorithm(2));
+        assertEquals(AltcoinBlock.ALGO_SHA256D, AltcoinBlock.getAlgorithm(0x20000202L));
+        assertEquals(AltcoinBlock.ALGO_GROESTL, AltcoinBlock.getAlgorithm(0x20000402L));
+        assertEquals(AltcoinBlock.ALGO_SKEIN, AltcoinBlock.getAlgorithm(0x20000602L));
+        assertEquals(AltcoinBlock.ALGO_QUBIT, AltcoinBlock.getAlgorithm(0x20000802L));
+        assertEquals(AltcoinBlock.ALGO_ODO, AltcoinBlock.getAlgorithm(0x20000e02L));
+        assertEquals(AltcoinBlock.ALGO_UNKNOWN, AltcoinBlock.getAlgorithm(0x20000a02L));
+    }
+
+    /**
+     * Follow a chain of mixed algorithms, one of which stops being mined
+     * part way so its target eases, and confirm the steady state needs no
+     * block store lookups.
+     */
+    @Test
+    public void shouldMatchReference() throws Exception {
+        final MultiShield multiShield = new MultiShield(params.getMaxTarget(), SPACING, false);
+        final List<StoredBlock> chain = buildChain(null, 400, new Random(1), 5);
+        final List<StoredBlock> tail = buildChain(chain.get(chain.size() - 1), 200, new Random(2), 4);
+        final List<StoredBlock> all = new ArrayList<StoredBlock>(chain);
+        all.addAll(tail);
+        for (int height = 0; height < all.size(); height++) {
+            final StoredBlock storedPrev = all.get(height);
+            for (int algo : ALGOS) {
+                final long expected = reference(storedPrev, algo, false);
+                store.gets = 0;
+                assertEquals(expected, multiShield.getNextTarget(storedPrev, algo, store));
+                if (height > 100) {
+                    assertEquals(0, store.gets);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldFollowReorganisation() throws Exception {
+        final MultiShield multiShield = new MultiShield(params.getMaxTarget(), SPACING, true);
+        final List<StoredBlock> chain = buildChain(null, 150, new Random(3), 5);
+        final List<StoredBlock> fork = buildChain(chain.get(119), 30, new Random(4), 5);
+        final List<List<StoredBlock>> sequence = new ArrayList<List<StoredBlock>>();
+        sequence.add(chain.subList(60, 140));
+        sequence.add(fork);
+        sequence.add(chain.subList(130, 150));
+        for (List<StoredBlock> blocks : sequence) {
+            for (StoredBlock storedPrev : blocks) {
+                for (int algo : ALGOS) {
+                    assertEquals(reference(storedPrev, algo, true), multiShield.getNextTarget(storedPrev, algo, store));
+                    assertEquals(lastHeightForAlgo(storedPrev, algo, true),
+                        multiShield.getLastHeightForAlgo(storedPrev, algo, store));
+                }
+            }
+        }
+    }
+
+    /**
+     * Build and store a chain with irregular block times, choosing randomly
+     * among the first given number of algorithms, each with its own target.
+     */
+    private List<StoredBlock> buildChain(final StoredBlock parent, final int count, final Random random,
+            final int algoCount) throws BlockStoreException {
+        final int[] versions = {0x20000202, 0x20000002, 0x20000602, 0x20000802, 0x20000e02};
+        final List<StoredBlock> chain = new ArrayList<StoredBlock>(count);
+        Sha256Hash prevHash = parent == null ? Sha256Hash.ZERO_HASH : parent.getHeader().getHash();
+        int height = parent == null ? 0 : parent.getHeight() + 1;
+        long time = parent == null ? START_TIME : parent.getHeader().getTimeSeconds();
+        for (int blockIdx = 0; blockIdx < count; blockIdx++, height++) {
+            final int algoIdx = random.nextInt(algoCount);
+            time += random.nextInt(SPACING * 3) - 5;
+            final long target = (0x1b000000L + (algoIdx << 20)) | random.nextInt(0x10000);
+            final AltcoinBlock block = new AltcoinBlock(params, versions[algoIdx], prevHash, Sha256Hash.ZERO_HASH,
+                time, target, random.nextInt(), Collections.<Transaction>emptyList());
+            final StoredBlock stored = new StoredBlock(block, BigInteger.valueOf(height + 1), height);
+            store.put(stored);
+            chain.add(stored);
+            prevHash = block.getHash();
+        }
+        return chain;
+    }
+
+    private int lastHeightForAlgo(final StoredBlock from, final int algo, final boolean allowMinDifficultyBlocks)
+        throws BlockStoreException {
+        final StoredBlock block = getLastBlockIndexForAlgo(from, algo, allowMinDifficultyBlocks);
+        return block == null ? -1 : block.getHeight();
+    }
+
+    private StoredBlock getLastBlockIndexForAlgo(StoredBlock pindex, final int algo,
+            final boolean allowMinDifficultyBlocks) throws BlockStoreException {
+        for (; pindex != null; pindex = pindex.getPrev(store)) {
+            if (((AltcoinBlock) pindex.getHeader()).getAlgorithm() != algo) {
+                continue;
+            }
+            final StoredBlock pprev = pindex.getPrev(store);
+            if (allowMinDifficultyBlocks && pprev != null
+                    && pindex.getHeader().getTimeSeconds() > pprev.getHeader().getTimeSeconds() + SPACING * 2) {
+                continue;
+            }
+            return pindex;
+        }
+        return null;
+    }
+
+    private long getMedianTimePast(StoredBlock pindex) throws BlockStoreException {
+        final long[] times = new long[11];
+        int count = 0;
+        for (int i = 0; i < 11 && pindex != null; i++, pindex = pindex.getPrev(store)) {
+            times[count++] = pindex.getHeader().getTimeSeconds();
+        }
+        Arrays.sort(times, 0, count);
+        return times[count / 2];
+    }
+
+    /**
+     * GetNextWorkRequiredV4() from DigiByte Core's pow.cpp.
+     */
+    private long reference(final StoredBlock pindexLast, final int algo, final boolean allowMinDifficultyBlocks)
+        throws BlockStoreException {
+        final BigInteger powLimit = params.getMaxTarget();
+        final BigInteger mask256 = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE);
+        final int nAveragingInterval = 10;
+        final long nAveragingTargetTimespanV4 = nAveragingInterval * SPACING * MultiShield.NUM_ALGOS;
+        final long nMinActualTimespanV4 = nAveragingTargetTimespanV4 * (100 - 8) / 100;
+        final long nMaxActualTimespanV4 = nAveragingTargetTimespanV4 * (100 + 16) / 100;
+        final int nLocalTargetAdjustment = 4;
+
+        StoredBlock pindexFirst = pindexLast;
+        for (int i = 0; pindexFirst != null && i < MultiShield.NUM_ALGOS * nAveragingInterval; i++) {
+            pindexFirst = pindexFirst.getPrev(store);
+        }
+
+        final StoredBlock pindexPrevAlgo = getLastBlockIndexForAlgo(pindexLast, algo, allowMinDifficultyBlocks);
+        if (pindexPrevAlgo == null || pindexFirst == null) {
+            return Utils.encodeCompactBits(powLimit);
+        }
+
+        long nActualTimespan = getMedianTimePast(pindexLast) - getMedianTimePast(pindexFirst);
+        nActualTimespan = nAveragingTargetTimespanV4 + (nActualTimespan - nAveragingTargetTimespanV4) / 4;
+
+        if (nActualTimespan < nMinActualTimespanV4)
+            nActualTimespan = nMinActualTimespanV4;
+        if (nActualTimespan > nMaxActualTimespanV4)
+            nActualTimespan = nMaxActualTimespanV4;
+
+        BigInteger bnNew = Utils.decodeCompactBits(pindexPrevAlgo.getHeader().getDifficultyTarget());
+        bnNew = bnNew.multiply(BigInteger.valueOf(nActualTimespan)).and(mask256);
+        bnNew = bnNew.divide(BigInteger.valueOf(nAveragingTargetTimespanV4));
+
+        final int nAdjustments = pindexPrevAlgo.getHeight() + MultiShield.NUM_ALGOS - 1 - pindexLast.getHeight();
+        if (nAdjustments > 0) {
+            for (int i = 0; i < nAdjustments; i++) {
+                bnNew = bnNew.multiply(BigInteger.valueOf(100)).and(mask256);
+                bnNew = bnNew.divide(BigInteger.valueOf(100 + nLocalTargetAdjustment));
+            }
+        } else if (nAdjustments < 0) {
+            for (int i = 0; i < -nAdjustments; i++) {
+                bnNew = bnNew.multiply(BigInteger.valueOf(100 + nLocalTargetAdjustment)).and(mask256);
+                bnNew = bnNew.divide(BigInteger.valueOf(100));
+            }
+        }
+
+        if (bnNew.compareTo(powLimit) > 0) {
+            bnNew = powLimit;
+        }
+
+        return Utils.encodeCompactBits(bnNew);
+    }
+
+    private static class CountingBlockStore extends MemoryBlockStore {
+        private int gets;
+
+        private CountingBlockStore() {
+            super(params);
+        }
+
+        @Override
+        public synchronized StoredBlock get(final Sha256Hash hash) throws BlockStoreException {
+            gets++;
+            return super.get(hash);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.math.BigInteger;
+import java.util.Collections;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VerificationException;
+import org.libdohj.params.AbstractGhostParams;
+import org.libdohj.params.GhostMainNetParams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Stake kernel checks against the in-memory stake index.
+ */
+public class ProofOfStakeVerifierTest {
+    private static final GhostMainNetParams params = GhostMainNetParams.get();
+    private static final long START_TIME = 1592430048L;
+    private static final int MIN_CONFIRMATIONS = 10;
+    private static final int TIMESTAMP_MASK = AbstractGhostParams.GHOST_STAKE_TIMESTAMP_MASK;
+    /** Easy enough that a valid kernel is found within a few block times. */
+    private static final long STAKE_TARGET = 0x1c00ffffL;
+    private static final long STAKE_VALUE = Coin.COIN.multiply(1000).value;
+
+    private ProofOfStakeVerifier verifier;
+    private StoredBlock[] chain;
+    private TransactionOutPoint kernel;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(params);
+        verifier = new ProofOfStakeVerifier(new StakeIndex(64), MIN_CONFIRMATIONS, TIMESTAMP_MASK);
+        chain = buildChain(null, 0, 20, 0);
+        verifier.addGenesis(chain[0].getHeader());
+        for (int height = 1; height < chain.length; height++) {
+            assertTrue(verifier.addProofOfWork(chain[height - 1], chain[height]));
+        }
+        kernel = new TransactionOutPoint(params, 1, Sha256Hash.of(new byte[] {1}));
+        verifier.getIndex().addOutput(kernel, STAKE_VALUE, 2, chain[2].getHeader().getTimeSeconds());
+    }
+
+    @Test
+    public void shouldChainStakeModifiers() {
+        final StakeIndex index = verifier.getIndex();
+        assertEquals(Sha256Hash.ZERO_HASH, index.getModifier(0, chain[0].getHeader().getHash()));
+        final Sha256Hash first = index.getModifier(1, chain[1].getHeader().getHash());
+        assertEquals(ProofOfStakeVerifier.getStakeModifier(Sha256Hash.ZERO_HASH, chain[1].getHeader().getHash()),
+            first);
+        assertEquals(ProofOfStakeVerifier.getStakeModifier(first, chain[2].getHeader().getHash()),
+            index.getModifier(2, chain[2].getHeader().getHash()));
+        assertEquals(chain.length, index.getModifierCount());
+        // Wrong hash for the height
+        assertNull(index.getModifier(2, chain[3].getHeader().getHash()));
+    }
+
+    @Test
+    public void shouldVerifyStakeKernel() {
+        final StoredBlock prev = chain[chain.length - 1];
+        final AltcoinBlock header = findStake(prev, true);
+        assertTrue(verifier.verify(prev, header, kernel));
+        final Sha256Hash prevModifier = verifier.getIndex().getModifier(prev.getHeight(),
+            prev.getHeader().getHash());
+        assertEquals(ProofOfStakeVerifier.getStakeModifier(prevModifier, kernel.getHash()),
+            verifier.getIndex().getModifier(prev.getHeight() + 1, header.getHash()));
+    }
+
+    @Test
+    public void shouldRejectKernelAboveTarget() {
+        final StoredBlock prev = chain[chain.length - 1];
+        final AltcoinBlock header = findStake(prev, false);
+        try {
+            verifier.verify(prev, header, kernel);
+            fail("Expected a kernel hash above the weighted target to be rejected");
+        } catch (VerificationException expected) {
+            assertTrue(expected.getMessage().startsWith("Stake kernel hash"));
+        }
+        assertNull(verifier.getIndex().getModifier(prev.getHeight() + 1, header.getHash()));
+    }
+
+    @Test
+    public void shouldRejectImmatureStake() {
+        final StoredBlock prev = chain[chain.length - 1];
+        final TransactionOutPoint immature = new TransactionOutPoint(params, 0, Sha256Hash.of(new byte[] {4}));
+        verifier.getIndex().addOutput(immature, STAKE_VALUE, prev.getHeight() - MIN_CONFIRMATIONS + 2,
+            prev.getHeader().getTimeSeconds());
+        try {
+            verifier.verify(prev, stakeHeader(prev, getStakeTime(prev)), immature);
+            fail("Expected an immature stake to be rejected");
+        } catch (VerificationException expected) {
+            assertTrue(expected.getMessage().contains("confirmations"));
+        }
+    }
+
+    @Test
+    public void shouldRejectUnmaskedTime() {
+        final StoredBlock prev = chain[chain.length - 1];
+        final AltcoinBlock header = stakeHeader(prev, getStakeTime(prev) + 1);
+        try {
+            verifier.verify(prev, header, kernel);
+            fail("Expected a block time not matching the mask to be rejected");
+        } catch (VerificationException expected) {
+            assertTrue(expected.getMessage().contains("timestamp mask"));
+        }
+    }
+
+    @Test
+    public void shouldReportUncheckedHeaders() {
+        final StoredBlock prev = chain[chain.length - 1];
+        final AltcoinBlock header = stakeHeader(prev, getStakeTime(prev));
+        final TransactionOutPoint unknown = new TransactionOutPoint(params, 0, Sha256Hash.of(new byte[] {2}));
+        // The staked output is not held, but the modifier chain continues
+        assertFalse(verifier.verify(prev, header, unknown));
+        assertEquals(ProofOfStakeVerifier.getStakeModifier(
+                verifier.getIndex().getModifier(prev.getHeight(), prev.getHeader().getHash()), unknown.getHash()),
+            verifier.getIndex().getModifier(prev.getHeight() + 1, header.getHash()));
+
+        // Nothing is known about a block on another chain
+        final StoredBlock[] other = buildChain(null, 0, 2, 1);
+        assertFalse(verifier.verify(other[1], stakeHeader(other[1], getStakeTime(other[1])), kernel));
+    }
+
+    @Test
+    public void shouldForgetOutputs() {
+        final StakeIndex index = verifier.getIndex();
+        final TransactionOutPoint later = new TransactionOutPoint(params, 0, Sha256Hash.of(new byte[] {3}));
+        index.addOutput(later, STAKE_VALUE, 15, chain[15].getHeader().getTimeSeconds());
+        assertEquals(2, index.getOutputCount());
+        index.removeOutputsAbove(10);
+        assertNull(index.getOutput(later));
+        assertEquals(STAKE_VALUE, index.getOutput(kernel).getValue());
+        index.removeOutput(kernel);
+        assertEquals(0, index.getOutputCount());
+    }
+
+    @Test
+    public void shouldWeightTargetByValue() {
+        final BigInteger target = ProofOfStakeVerifier.getWeightedTarget(STAKE_TARGET, 3);
+        assertEquals(Utils.decodeCompactBits(STAKE_TARGET).multiply(BigInteger.valueOf(3)),
+            target);
+        // Truncated to 256 bits
+        assertEquals(BigInteger.ZERO, ProofOfStakeVerifier.getWeightedTarget(0x2100ffffL, 1L << 16)
+            .shiftRight(256));
+    }
+
+    @Test
+    public void shouldShareGhostVerifier() {
+        final ProofOfStakeVerifier ghostVerifier = params.getProofOfStakeVerifier();
+        assertSame(ghostVerifier, params.getProofOfStakeVerifier());
+        assertEquals(AbstractGhostParams.GHOST_STAKE_MIN_CONFIRMATIONS, params.getStakeMinConfirmations());
+    }
+
+    /**
+     * Find a masked block time after the previous block's at which the
+     * kernel does, or does not, meet the weighted target.
+     */
+    private AltcoinBlock findStake(final StoredBlock prev, final boolean valid) {
+        final StakeIndex index = verifier.getIndex();
+        final Sha256Hash modifier = index.getModifier(prev.getHeight(), prev.getHeader().getHash());
+        final StakeIndex.StakedOutput output = index.getOutput(kernel);
+        final BigInteger target = ProofOfStakeVerifier.getWeightedTarget(STAKE_TARGET, output.getValue());
+        long time = getStakeTime(prev);
+        while (true) {
+            final Sha256Hash kernelHash = ProofOfStakeVerifier.getKernelHash(modifier, output.getTimeSeconds(),
+                kernel, time);
+            if ((kernelHash.toBigInteger().compareTo(target) <= 0) == valid) {
+                return stakeHeader(prev, time);
+            }
+            time += TIMESTAMP_MASK + 1;
+        }
+    }
+
+    /**
+     * Get the first block time after the previous block's which matches the
+     * timestamp mask.
+     */
+    private static long getStakeTime(final StoredBlock prev) {
+        return (prev.getHeader().getTimeSeconds() | TIMESTAMP_MASK) + 1;
+    }
+
+    private static AltcoinBlock stakeHeader(final StoredBlock prev, final long time) {
+        return new AltcoinBlock(params, 1, prev.getHeader().getHash(), Sha256Hash.ZERO_HASH, time, STAKE_TARGET,
+            0, Collections.<Transaction>emptyList());
+    }
+
+    /**
+     * Build a chain of proof of work headers.
+     *
+     * @param salt value to vary nonces by, so chains have distinct hashes.
+     */
+    private static StoredBlock[] buildChain(final StoredBlock parent, final int startHeight, final int count,
+            final long salt) {
+        final StoredBlock[] chain = new StoredBlock[count];
+        Sha256Hash prevHash = parent == null ? Sha256Hash.ZERO_HASH : parent.getHeader().getHash();
+        for (int blockIdx = 0; blockIdx < count; blockIdx++) {
+            final int height = startHeight + blockIdx;
+            final AltcoinBlock block = new AltcoinBlock(params, 1, prevHash, Sha256Hash.ZERO_HASH,
+                START_TIME + height * 120L, 0x1f00ffffL, salt,
+                Collections.<Transaction>emptyList());
+            chain[blockIdx] = new StoredBlock(block, BigInteger.valueOf(height + 1), height);
+            prevHash = block.getHash();
+        }
+        return chain;
+    }
+}
@@ -16,11 +16,17 @@
 package org.libdohj.params;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Random;
 import org.bitcoinj.core.AltcoinBlock;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.Context;
 import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.Util;
+import org.bitcoinj.store.MemoryBlockStore;
 import static org.junit.Assert.assertEquals;
 import org.junit.Before;
 import org.junit.Test;
@@ -105,6 +111,81 @@ public class AbstractDogecoinParamsTest {
         assertEquals(0x1b6558a4, newDifficulty);
     }
 
+    /**
+     * The per block Digishield path, given the previous block and its
+     * parent's time directly, against the Digishield retargets above.
+     */
+    @Test
+    public void shouldCalculateDigishieldDifficultyFromParentTime() {
+        final StoredBlock block145000 = storedHeader(145000, Sha256Hash.ZERO_HASH, 1395094679L, 0x1b499dfdL);
+        assertEquals(0x1b671062L, params.calculateDigishieldDifficultyTarget(block145000, 1395094427L,
+            header(block145000.getHeader().getHash(), 1395094727L, 0x1b671062L)));
+        final StoredBlock block145001 = storedHeader(145001, block145000.getHeader().getHash(), 1395094727L,
+            0x1b671062L);
+        assertEquals(0x1b6558a4L, params.calculateDigishieldDifficultyTarget(block145001, 1395094679L,
+            header(block145001.getHeader().getHash(), 1395094800L, 0x1b6558a4L)));
+    }
+
+    /**
+     * Connect a chain of Digishield headers, each with the target calculated
+     * by the general retarget, with the ancestor index warm (in chain order)
+     * and cold (in reverse, so each parent comes from the block store).
+     */
+    @Test
+    public void shouldMatchGeneralRetargetForDigishieldChain() throws Exception {
+        final Random random = new Random(145000);
+        final StoredBlock[] chain = new StoredBlock[200];
+        final MemoryBlockStore blockStore = new MemoryBlockStore(params);
+        long time = 1395094427L;
+        long target = 0x1b499dfdL;
+        Sha256Hash prevHash = Sha256Hash.ZERO_HASH;
+        for (int blockIdx = 0; blockIdx < chain.length; blockIdx++) {
+            final int height = params.getDigishieldBlockHeight() - 2 + blockIdx;
+            if (blockIdx >= 2) {
+                final AltcoinBlock prev = (AltcoinBlock) chain[blockIdx - 1].getHeader();
+                final long parentTime = chain[blockIdx - 2].getHeader().getTimeSeconds();
+                target = params.calculateNewDifficultyTargetInner(height - 1, prev.getTimeSeconds(),
+                    prev.getDifficultyTarget(), parentTime, prev.getDifficultyTarget());
+            }
+            // Mostly a minute apart, but sometimes well off, or backwards
+            time += random.nextInt(10) == 0 ? random.nextInt(1200) - 600 : random.nextInt(120);
+            chain[blockIdx] = storedHeader(height, prevHash, time, target);
+            blockStore.put(chain[blockIdx]);
+            prevHash = chain[blockIdx].getHeader().getHash();
+        }
+
+        for (int blockIdx = 2; blockIdx < chain.length; blockIdx++) {
+            assertEquals(chain[blockIdx].getHeader().getDifficultyTarget(),
+                params.calculateNewDifficultyTarget(chain[blockIdx - 1], chain[blockIdx].getHeader(), blockStore));
+        }
+        // A second store of the same chain has an index of its own, still cold
+        final MemoryBlockStore coldStore = new MemoryBlockStore(params);
+        for (StoredBlock block : chain) {
+            coldStore.put(block);
+        }
+        for (int blockIdx = chain.length - 1; blockIdx >= 2; blockIdx--) {
+            assertEquals(chain[blockIdx].getHeader().getDifficultyTarget(),
+                params.calculateNewDifficultyTarget(chain[blockIdx - 1], chain[blockIdx].getHeader(), coldStore));
+        }
+    }
+
+    /**
+     * A testnet minimum difficulty block just after a checkpoint is known to
+     * be at minimum difficulty without the parent of the previous block,
+     * which the block store does not hold.
+     */
+    @Test
+    public void shouldAllowMinDifficultyBlockAfterCheckpoint() throws Exception {
+        final DogecoinTestNet3Params testnet = DogecoinTestNet3Params.get();
+        final MemoryBlockStore blockStore = new MemoryBlockStore(testnet);
+        final StoredBlock checkpoint = storedHeader(160000, Sha256Hash.wrap(
+            "1d4ecf0d1ce1e0cd75b1ca8c5fb76b0ad8fa7ec55ee23e6e17feaa1e7efad5a8"), 1400000000L, 0x1e02a0c4L);
+        blockStore.put(checkpoint);
+
+        assertEquals(0x1e0fffffL, testnet.calculateNewDifficultyTarget(checkpoint,
+            header(checkpoint.getHeader().getHash(), 1400000000L + 121, 0x1e0fffffL), blockStore));
+    }
+
     @Test
     public void shouldCalculateRetarget() throws IOException {
         // Do a more in-depth test for the first retarget
@@ -170,4 +251,14 @@ public class AbstractDogecoinParamsTest {
         assertEquals(60, params.getTargetSpacing(params.getDigishieldBlockHeight()));
         assertEquals(60, params.getTargetSpacing(params.getDigishieldBlockHeight() + 1));
     }
+
+    private static AltcoinBlock header(final Sha256Hash prevHash, final long time, final long target) {
+        return new AltcoinBlock(params, 1, prevHash, Sha256Hash.ZERO_HASH, time, target, 0,
+            Collections.<Transaction>emptyList());
+    }
+
+    private static StoredBlock storedHeader(final int height, final Sha256Hash prevHash, final long time,
+            final long target) {
+        return new StoredBlock(header(prevHash, time, target), BigInteger.valueOf(height), height);
+    }
 }
@@ -15,9 +15,20 @@
  */
 package org.libdohj.params;
 
+import java.math.BigInteger;
+import java.util.Collections;
+
+import org.bitcoinj.core.AltcoinBlock;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.libdohj.core.AncestorIndex;
+import org.libdohj.core.ChainState;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -43,4 +54,38 @@ public class AbstractLitecoinParamsTest {
         assertEquals(Coin.COIN.multiply(25), params.getBlockSubsidy(840000));
         assertEquals(Coin.COIN.multiply(25), params.getBlockSubsidy(1679999));
     }
+
+    /**
+     * Confirm a retarget calculated from the ancestor index matches one
+     * calculated by walking back through the block store.
+     */
+    @Test
+    public void shouldRetargetFromAncestorIndex() throws Exception {
+        final int interval = params.getInterval();
+        final MemoryBlockStore store = new MemoryBlockStore(params);
+        final StoredBlock[] chain = new StoredBlock[interval + 1];
+        Sha256Hash prevHash = Sha256Hash.ZERO_HASH;
+        for (int height = 0; height <= interval; height++) {
+            // Blocks come in a little faster than targeted, so difficulty rises
+            final AltcoinBlock block = new AltcoinBlock(params, 1, prevHash, Sha256Hash.ZERO_HASH,
+                1317972665L + height * 120L, 0x1e0ffff0L, height, Collections.<Transaction>emptyList());
+            chain[height] = new StoredBlock(block, BigInteger.valueOf(height + 1), height);
+            store.put(chain[height]);
+            prevHash = block.getHash();
+        }
+
+        final AncestorIndex ancestorIndex = ChainState.get(store).getAncestorIndex();
+        for (int height = 0; height < interval - 1; height++) {
+            params.calculateNewDifficultyTarget(chain[height], chain[height + 1].getHeader(), store);
+        }
+        final StoredBlock storedPrev = chain[interval - 1];
+        final AltcoinBlock next = (AltcoinBlock) chain[interval].getHeader();
+        final long indexed = params.calculateNewDifficultyTarget(storedPrev, next, store);
+        assertTrue(ancestorIndex.size() >= interval);
+
+        ancestorIndex.clear();
+        final long walked = params.calculateNewDifficultyTarget(storedPrev, next, store);
+        assertEquals(walked, indexed);
+        assertTrue(walked != 0x1e0ffff0L);
+    }
 }